@@ -0,0 +1,168 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+package ch.ethz.exot.analysis;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Basic analyses of whole meter logs. All analyses stream the log, such that logs
+ * larger than the heap can be processed.
+ */
+public final class Analyses {
+    /** Column prefix of the per-core absolute frequency meter */
+    public static final String FREQUENCY = "frequency_sysfs";
+
+    /** Column prefix of the thermal zone meter */
+    public static final String THERMAL = "thermal_sysfs";
+
+    /** Column prefix of the polling foreground app meter, used by older logs */
+    public static final String PROCESS = "process_android";
+
+    /** Column prefix of the event-driven foreground app meter */
+    public static final String PROCESS_EVENTS = "process_events";
+
+    private Analyses() {
+    }
+
+    /**
+     * Resamples a numeric column by averaging into fixed-period buckets
+     *
+     * @param log    The log
+     * @param column The column name
+     * @param period The period, in units of the time column
+     * @return The resampler holding the result
+     * @throws IOException if the log cannot be read
+     */
+    public static Resampler resample(MeterLog log, String column, long period) throws IOException {
+        final int index = requireColumn(log.getSchema(), column);
+        final Resampler resampler = new Resampler(period);
+
+        log.stream(new Consumer<Table>() {
+            @Override
+            public void accept(Table table) {
+                resampler.add(table, index);
+            }
+        });
+
+        return resampler;
+    }
+
+    /**
+     * Correlates every numeric column with prefix x with every numeric column with
+     * prefix y, e.g. the per-core frequencies with the thermal zones.
+     *
+     * @param log     The log
+     * @param xPrefix The prefix of the row variables
+     * @param yPrefix The prefix of the column variables
+     * @return The matrix of correlation coefficients, indexed like
+     *         Schema.columnsStartingWith(xPrefix/yPrefix, DOUBLE)
+     * @throws IOException if the log cannot be read
+     */
+    public static double[][] correlate(MeterLog log, String xPrefix, String yPrefix) throws IOException {
+        final int[] xs = log.getSchema().columnsStartingWith(xPrefix, ColumnType.DOUBLE);
+        final int[] ys = log.getSchema().columnsStartingWith(yPrefix, ColumnType.DOUBLE);
+        final Correlation[][] correlations = new Correlation[xs.length][ys.length];
+
+        for (int i = 0; i < xs.length; ++i) {
+            for (int j = 0; j < ys.length; ++j) {
+                correlations[i][j] = new Correlation();
+            }
+        }
+
+        log.stream(new Consumer<Table>() {
+            @Override
+            public void accept(Table table) {
+                for (int i = 0; i < xs.length; ++i) {
+                    double[] x = table.getDoubles(xs[i]);
+                    for (int j = 0; j < ys.length; ++j) {
+                        correlations[i][j].add(x, table.getDoubles(ys[j]), table.getRows());
+                    }
+                }
+            }
+        });
+
+        double[][] result = new double[xs.length][ys.length];
+        for (int i = 0; i < xs.length; ++i) {
+            for (int j = 0; j < ys.length; ++j) {
+                result[i][j] = correlations[i][j].get();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Correlates the per-core frequencies with the thermal zones
+     *
+     * @see #correlate(MeterLog, String, String)
+     */
+    public static double[][] thermalFrequencyCorrelation(MeterLog log) throws IOException {
+        return correlate(log, FREQUENCY, THERMAL);
+    }
+
+    /**
+     * Attributes the logged time to the foreground apps
+     *
+     * @param log The log
+     * @param k   The maximum number of apps to return
+     * @return The apps with the most time, in descending order
+     * @throws IOException if the log cannot be read
+     */
+    public static List<Map.Entry<String, Long>> topApps(MeterLog log, int k) throws IOException {
+        int[] columns = log.getSchema().columnsStartingWith(PROCESS_EVENTS, ColumnType.TEXT);
+        if (columns.length == 0) {
+            columns = log.getSchema().columnsStartingWith(PROCESS, ColumnType.TEXT);
+        }
+        if (columns.length == 0) {
+            throw new IllegalArgumentException("log has no " + PROCESS_EVENTS + " or " + PROCESS + " text column");
+        }
+
+        final int index = columns[0];
+        final AppTime appTime = new AppTime();
+
+        log.stream(new Consumer<Table>() {
+            @Override
+            public void accept(Table table) {
+                appTime.add(table, index);
+            }
+        });
+
+        return appTime.top(k);
+    }
+
+    private static int requireColumn(Schema schema, String name) {
+        int index = schema.indexOf(name);
+        if (index < 0) {
+            throw new IllegalArgumentException("no column named " + name);
+        }
+        return index;
+    }
+}
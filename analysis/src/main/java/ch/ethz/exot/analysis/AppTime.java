@@ -0,0 +1,123 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+package ch.ethz.exot.analysis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streaming top-app time attribution: the time between two records is attributed to
+ * the app reported in the earlier one.
+ */
+public final class AppTime {
+    private final Map<String, Long> times = new HashMap<String, Long>();
+    private String lastApp = null;
+    private long lastTime = Long.MIN_VALUE;
+
+    /**
+     * Adds records
+     *
+     * @param time The time column
+     * @param apps The app column
+     * @param rows The number of rows
+     */
+    public void add(long[] time, TextColumn apps, int rows) {
+        String[] dictionary = apps.getDictionary();
+        int[] codes = apps.getCodes();
+
+        /* Accumulate per code first, then fold into the map once per window. */
+        long[] perCode = new long[dictionary.length];
+        int lastCode = -1;
+
+        for (int i = 0; i < rows; ++i) {
+            if (time[i] == Long.MIN_VALUE) {
+                continue;
+            }
+
+            if (lastTime != Long.MIN_VALUE && time[i] > lastTime) {
+                if (lastCode >= 0) {
+                    perCode[lastCode] += time[i] - lastTime;
+                } else if (lastApp != null) {
+                    /* The previous record was in the previous window. */
+                    accumulate(lastApp, time[i] - lastTime);
+                }
+            }
+
+            lastCode = codes[i];
+            lastTime = time[i];
+        }
+
+        if (lastCode >= 0) {
+            lastApp = dictionary[lastCode];
+        }
+
+        for (int c = 0; c < perCode.length; ++c) {
+            if (perCode[c] > 0) {
+                accumulate(dictionary[c], perCode[c]);
+            }
+        }
+    }
+
+    /**
+     * Adds a text column of a table
+     */
+    public void add(Table table, int column) {
+        add(table.getTime(), table.getText(column), table.getRows());
+    }
+
+    /**
+     * Gets the apps with the most attributed time
+     *
+     * @param k The maximum number of apps
+     * @return The apps and their times, in descending order
+     */
+    public List<Map.Entry<String, Long>> top(int k) {
+        List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>(times.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+            @Override
+            public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+                return Long.compare(b.getValue(), a.getValue());
+            }
+        });
+        return entries.subList(0, Math.min(k, entries.size()));
+    }
+
+    public Map<String, Long> getTimes() {
+        return Collections.unmodifiableMap(times);
+    }
+
+    private void accumulate(String app, long time) {
+        Long current = times.get(app);
+        times.put(app, current == null ? time : current + time);
+    }
+}
@@ -0,0 +1,327 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+package ch.ethz.exot.analysis;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Fork-join task parsing a line-aligned chunk of a log buffer into a table.
+ *
+ * Empty lines and lines starting with '#' (side-channel records) are skipped. Missing
+ * numeric fields are NaN, unparseable integral fields are Long.MIN_VALUE.
+ */
+final class ChunkParser extends RecursiveTask<Table> {
+    private static final long serialVersionUID = 1L;
+
+    private static final double[] POW10 = new double[23];
+
+    static {
+        POW10[0] = 1.0;
+        for (int i = 1; i < POW10.length; ++i) {
+            POW10[i] = POW10[i - 1] * 10.0;
+        }
+    }
+
+    private final ByteBuffer buffer;
+    private final int from;
+    private final int to;
+    private final Schema schema;
+
+    /**
+     * Constructor
+     *
+     * @param buffer The buffer, accessed with absolute reads only
+     * @param from   The start of the chunk, at a line start
+     * @param to     The end of the chunk, after a line end
+     * @param schema The schema of the log
+     */
+    ChunkParser(ByteBuffer buffer, int from, int to, Schema schema) {
+        this.buffer = buffer;
+        this.from = from;
+        this.to = to;
+        this.schema = schema;
+    }
+
+    @Override
+    protected Table compute() {
+        final int width = schema.size();
+        int capacity = Math.max(16, (to - from) / Math.max(1, 8 * width));
+
+        Object[] columns = new Object[width];
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Map<String, Integer>[] dictionaries = new Map[width];
+
+        for (int c = 0; c < width; ++c) {
+            switch (schema.getType(c)) {
+            case LONG:
+                columns[c] = new long[capacity];
+                break;
+            case DOUBLE:
+                columns[c] = new double[capacity];
+                break;
+            case TEXT:
+                columns[c] = new int[capacity];
+                dictionaries[c] = new HashMap<String, Integer>();
+                break;
+            }
+        }
+
+        int rows = 0;
+        int pos = from;
+
+        while (pos < to) {
+            int end = pos;
+            while (end < to && buffer.get(end) != '\n') {
+                ++end;
+            }
+
+            int lineEnd = end > pos && buffer.get(end - 1) == '\r' ? end - 1 : end;
+
+            if (lineEnd > pos && buffer.get(pos) != '#') {
+                if (rows == capacity) {
+                    capacity = capacity + (capacity >> 1);
+                    for (int c = 0; c < width; ++c) {
+                        columns[c] = grow(columns[c], capacity);
+                    }
+                }
+
+                int field = pos;
+                for (int c = 0; c < width; ++c) {
+                    int fieldEnd = field;
+                    while (fieldEnd < lineEnd && buffer.get(fieldEnd) != ',') {
+                        ++fieldEnd;
+                    }
+
+                    store(columns, dictionaries, c, rows, field, fieldEnd);
+                    field = Math.min(fieldEnd + 1, lineEnd);
+                }
+
+                ++rows;
+            }
+
+            pos = end + 1;
+        }
+
+        for (int c = 0; c < width; ++c) {
+            if (schema.getType(c) == ColumnType.TEXT) {
+                String[] dictionary = new String[dictionaries[c].size()];
+                for (Map.Entry<String, Integer> entry : dictionaries[c].entrySet()) {
+                    dictionary[entry.getValue()] = entry.getKey();
+                }
+                columns[c] = new TextColumn((int[]) columns[c], dictionary);
+            }
+        }
+
+        return new Table(schema, rows, columns);
+    }
+
+    private void store(Object[] columns, Map<String, Integer>[] dictionaries, int c, int row, int start, int end) {
+        while (start < end && buffer.get(start) == ' ') {
+            ++start;
+        }
+        while (end > start && buffer.get(end - 1) == ' ') {
+            --end;
+        }
+
+        switch (schema.getType(c)) {
+        case LONG:
+            ((long[]) columns[c])[row] = parseLong(buffer, start, end);
+            break;
+        case DOUBLE:
+            ((double[]) columns[c])[row] = parseDouble(buffer, start, end);
+            break;
+        case TEXT:
+            String value = decode(buffer, start, end);
+            Integer code = dictionaries[c].get(value);
+            if (code == null) {
+                code = dictionaries[c].size();
+                dictionaries[c].put(value, code);
+            }
+            ((int[]) columns[c])[row] = code;
+            break;
+        }
+    }
+
+    private static Object grow(Object column, int capacity) {
+        if (column instanceof long[]) {
+            return Arrays.copyOf((long[]) column, capacity);
+        } else if (column instanceof double[]) {
+            return Arrays.copyOf((double[]) column, capacity);
+        } else {
+            return Arrays.copyOf((int[]) column, capacity);
+        }
+    }
+
+    static String decode(ByteBuffer buffer, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = buffer.get(start + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parses an integral field, falling back to rounding a floating-point one
+     */
+    static long parseLong(ByteBuffer buffer, int start, int end) {
+        int i = start;
+        boolean negative = false;
+
+        if (i < end && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+            negative = buffer.get(i) == '-';
+            ++i;
+        }
+
+        if (i == end || end - i > 18) {
+            return fallbackLong(buffer, start, end);
+        }
+
+        long value = 0;
+        for (; i < end; ++i) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return fallbackLong(buffer, start, end);
+            }
+            value = value * 10 + digit;
+        }
+
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses a floating-point field. Values with up to 15 significant digits and a
+     * decimal exponent within +/-22 take the exact fast path, other values are parsed
+     * with Double.parseDouble.
+     */
+    static double parseDouble(ByteBuffer buffer, int start, int end) {
+        int i = start;
+        boolean negative = false;
+
+        if (i < end && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+            negative = buffer.get(i) == '-';
+            ++i;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean any = false;
+        boolean truncated = false;
+
+        for (; i < end; ++i) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                break;
+            }
+            any = true;
+            if (digits < 18) {
+                mantissa = mantissa * 10 + digit;
+                digits += mantissa != 0 ? 1 : 0;
+            } else {
+                truncated = true;
+                ++exponent;
+            }
+        }
+
+        if (i < end && buffer.get(i) == '.') {
+            for (++i; i < end; ++i) {
+                int digit = buffer.get(i) - '0';
+                if (digit < 0 || digit > 9) {
+                    break;
+                }
+                any = true;
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + digit;
+                    digits += mantissa != 0 ? 1 : 0;
+                    --exponent;
+                } else {
+                    truncated = true;
+                }
+            }
+        }
+
+        if (any && i < end && (buffer.get(i) == 'e' || buffer.get(i) == 'E')) {
+            int j = i + 1;
+            boolean negativeExponent = false;
+
+            if (j < end && (buffer.get(j) == '-' || buffer.get(j) == '+')) {
+                negativeExponent = buffer.get(j) == '-';
+                ++j;
+            }
+
+            int value = 0;
+            int start10 = j;
+            for (; j < end && j - start10 < 6; ++j) {
+                int digit = buffer.get(j) - '0';
+                if (digit < 0 || digit > 9) {
+                    break;
+                }
+                value = value * 10 + digit;
+            }
+
+            if (j > start10) {
+                exponent += negativeExponent ? -value : value;
+                i = j;
+            }
+        }
+
+        if (!any || i != end) {
+            return fallbackDouble(buffer, start, end);
+        }
+
+        if (!truncated && digits <= 15 && exponent >= -22 && exponent <= 22) {
+            double value = exponent < 0 ? mantissa / POW10[-exponent] : mantissa * POW10[exponent];
+            return negative ? -value : value;
+        }
+
+        return fallbackDouble(buffer, start, end);
+    }
+
+    private static double fallbackDouble(ByteBuffer buffer, int start, int end) {
+        if (start == end) {
+            return Double.NaN;
+        }
+
+        try {
+            return Double.parseDouble(decode(buffer, start, end));
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    private static long fallbackLong(ByteBuffer buffer, int start, int end) {
+        double value = fallbackDouble(buffer, start, end);
+        return Double.isNaN(value) ? Long.MIN_VALUE : Math.round(value);
+    }
+}
@@ -0,0 +1,276 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+package ch.ethz.exot.analysis;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+
+/**
+ * A memory-mapped ExOT meter log, as written by the meter_host_logger component.
+ *
+ * The log is processed in windows of a bounded size. Each window is mapped, split into
+ * line-aligned chunks and the chunks are parsed in parallel into column arrays. Logs
+ * larger than the heap are processed with stream(), which hands out one window at a
+ * time; read() concatenates all windows into a single table.
+ */
+public final class MeterLog implements Closeable {
+    /** The default size of a window, 256 MiB */
+    public static final long DEFAULT_WINDOW = 256L << 20;
+
+    /** The default size of a chunk parsed by a single task, 4 MiB */
+    public static final int DEFAULT_CHUNK = 4 << 20;
+
+    /** The maximum length of the header and first record */
+    private static final int PROBE_SIZE = 1 << 16;
+
+    private final FileChannel channel;
+    private final long size;
+    private final long dataOffset;
+    private final Schema schema;
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+    private int chunkSize = DEFAULT_CHUNK;
+
+    private MeterLog(FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.size = channel.size();
+
+        ByteBuffer probe = ByteBuffer.allocate((int) Math.min(size, PROBE_SIZE));
+        while (probe.hasRemaining() && channel.read(probe, probe.position()) > 0) {
+            // read the whole probe
+        }
+        probe.flip();
+
+        String header = null;
+        String first = null;
+        long offset = 0;
+        int pos = 0;
+
+        while (pos < probe.limit() && first == null) {
+            int end = pos;
+            while (end < probe.limit() && probe.get(end) != '\n') {
+                ++end;
+            }
+
+            String line = ChunkParser.decode(probe, pos, end).trim();
+
+            if (!line.isEmpty() && line.charAt(0) != '#') {
+                String[] fields = Schema.split(line);
+                if (header == null && !Schema.isNumeric(fields[0])) {
+                    header = line;
+                    offset = end + 1;
+                } else {
+                    first = line;
+                }
+            }
+
+            pos = end + 1;
+        }
+
+        this.dataOffset = Math.min(offset, size);
+        this.schema = Schema.infer(header, first);
+    }
+
+    /**
+     * Opens a log
+     *
+     * @param path The path to the log file
+     * @return The opened log
+     * @throws IOException if the log cannot be read
+     */
+    public static MeterLog open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            return new MeterLog(channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public Schema getSchema() {
+        return schema;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Sets the pool used for parsing, the common pool by default
+     */
+    public MeterLog withPool(ForkJoinPool pool) {
+        this.pool = pool;
+        return this;
+    }
+
+    /**
+     * Sets the size of the chunks parsed by a single task
+     */
+    public MeterLog withChunkSize(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunk size must be positive");
+        }
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    /**
+     * Reads the whole log into memory
+     *
+     * @return The table with all records
+     * @throws IOException if the log cannot be read
+     */
+    public Table read() throws IOException {
+        final List<Table> windows = new ArrayList<Table>();
+
+        stream(DEFAULT_WINDOW, new Consumer<Table>() {
+            @Override
+            public void accept(Table table) {
+                windows.add(table);
+            }
+        });
+
+        return Table.concat(schema, windows.isEmpty() ? emptyWindow() : windows);
+    }
+
+    /**
+     * Streams the log with the default window size
+     *
+     * @see #stream(long, Consumer)
+     */
+    public void stream(Consumer<Table> consumer) throws IOException {
+        stream(DEFAULT_WINDOW, consumer);
+    }
+
+    /**
+     * Streams the log window by window. Only a single window is held on the heap at
+     * a time, unless the consumer retains it.
+     *
+     * @param window   The maximum window size in bytes, must exceed the longest record
+     * @param consumer The consumer of the windows, called in log order
+     * @throws IOException if the log cannot be read, or a record is longer than the window
+     */
+    public void stream(long window, Consumer<Table> consumer) throws IOException {
+        window = Math.min(window, Integer.MAX_VALUE);
+        long position = dataOffset;
+
+        while (position < size) {
+            long length = Math.min(window, size - position);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            int limit = (int) length;
+
+            if (position + length < size) {
+                limit = lastLineEnd(buffer, limit);
+                if (limit < 0) {
+                    throw new IOException(String.format("record at offset %d longer than window of %d bytes",
+                            position, window));
+                }
+            }
+
+            consumer.accept(parse(buffer, limit));
+            position += limit;
+        }
+    }
+
+    /**
+     * Parses a line-aligned buffer with fork-join tasks
+     */
+    private Table parse(ByteBuffer buffer, int limit) {
+        final List<ChunkParser> tasks = new ArrayList<ChunkParser>();
+        int from = 0;
+
+        while (from < limit) {
+            int to = (int) Math.min((long) from + chunkSize, limit);
+            while (to < limit && buffer.get(to - 1) != '\n') {
+                ++to;
+            }
+
+            tasks.add(new ChunkParser(buffer, from, to, schema));
+            from = to;
+        }
+
+        if (tasks.isEmpty()) {
+            return Table.concat(schema, emptyWindow());
+        }
+
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+
+        List<Table> parts = new ArrayList<Table>(tasks.size());
+        for (ChunkParser task : tasks) {
+            parts.add(task.join());
+        }
+
+        return Table.concat(schema, parts);
+    }
+
+    private List<Table> emptyWindow() {
+        List<Table> parts = new ArrayList<Table>();
+        parts.add(new ChunkParser(ByteBuffer.allocate(0), 0, 0, schema).compute());
+        return parts;
+    }
+
+    /**
+     * Finds the end of the last complete line in a buffer
+     *
+     * @return The offset after the last newline, or -1 if there is none
+     */
+    private static int lastLineEnd(ByteBuffer buffer, int limit) {
+        for (int i = limit - 1; i >= 0; --i) {
+            if (buffer.get(i) == '\n') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("MeterLog[%d bytes, %s]", size, schema);
+    }
+}
@@ -0,0 +1,143 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+package ch.ethz.exot.analysis;
+
+import java.util.Arrays;
+
+/**
+ * Streaming resampler, averaging a column into fixed-period buckets.
+ *
+ * Buckets are aligned to multiples of the period. Buckets without samples are NaN.
+ * Windows of a log can be added one after another, the state is carried over.
+ */
+public final class Resampler {
+    private final long period;
+    private double[] values = new double[64];
+    private int count = 0;
+    private long start = Long.MIN_VALUE;
+    private long bucket = Long.MIN_VALUE;
+    private double sum = 0.0;
+    private int samples = 0;
+
+    /**
+     * Constructor
+     *
+     * @param period The resampling period, in units of the time column
+     */
+    public Resampler(long period) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("period must be positive");
+        }
+        this.period = period;
+    }
+
+    /**
+     * Adds samples
+     *
+     * @param time   The time column
+     * @param values The value column
+     * @param rows   The number of rows
+     */
+    public void add(long[] time, double[] values, int rows) {
+        for (int i = 0; i < rows; ++i) {
+            if (time[i] == Long.MIN_VALUE) {
+                continue;
+            }
+
+            long b = Math.floorDiv(time[i], period);
+
+            if (start == Long.MIN_VALUE) {
+                start = b;
+                bucket = b;
+            }
+
+            if (b != bucket) {
+                if (b < bucket) {
+                    /* Out-of-order sample, e.g. after a clock adjustment: fold into the current bucket. */
+                    b = bucket;
+                } else {
+                    emit();
+                    while (++bucket < b) {
+                        append(Double.NaN);
+                    }
+                }
+            }
+
+            if (!Double.isNaN(values[i])) {
+                sum += values[i];
+                ++samples;
+            }
+        }
+    }
+
+    /**
+     * Adds a column of a table
+     *
+     * @param table  The table
+     * @param column The index of a numeric column
+     */
+    public void add(Table table, int column) {
+        add(table.getTime(), table.getDoubles(column), table.getRows());
+    }
+
+    /**
+     * Gets the time of the first bucket
+     */
+    public long getStart() {
+        return start == Long.MIN_VALUE ? 0 : start * period;
+    }
+
+    public long getPeriod() {
+        return period;
+    }
+
+    /**
+     * Gets the resampled values, including the last, possibly incomplete, bucket
+     */
+    public double[] getValues() {
+        double[] result = Arrays.copyOf(values, count + (start == Long.MIN_VALUE ? 0 : 1));
+        if (start != Long.MIN_VALUE) {
+            result[count] = samples > 0 ? sum / samples : Double.NaN;
+        }
+        return result;
+    }
+
+    private void emit() {
+        append(samples > 0 ? sum / samples : Double.NaN);
+        sum = 0.0;
+        samples = 0;
+    }
+
+    private void append(double value) {
+        if (count == values.length) {
+            values = Arrays.copyOf(values, count * 2);
+        }
+        values[count++] = value;
+    }
+}
@@ -0,0 +1,185 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+package ch.ethz.exot.analysis;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Column names and types of a meter log.
+ *
+ * Types are inferred from the header and the first record: columns named like a
+ * timestamp are integral, columns with a numeric first value are floating-point, all
+ * other columns are text.
+ */
+public final class Schema {
+    private final String[] names;
+    private final ColumnType[] types;
+    private final int timeColumn;
+
+    Schema(String[] names, ColumnType[] types, int timeColumn) {
+        this.names = names;
+        this.types = types;
+        this.timeColumn = timeColumn;
+    }
+
+    /**
+     * Infers the schema of a log
+     *
+     * @param header The header line, or null if the log has no header
+     * @param first  The first record, or null if the log has no records
+     * @return The schema
+     */
+    static Schema infer(String header, String first) {
+        String[] values = first != null ? split(first) : new String[0];
+        String[] names = header != null ? split(header) : new String[values.length];
+        ColumnType[] types = new ColumnType[names.length];
+        int timeColumn = -1;
+
+        for (int i = 0; i < names.length; ++i) {
+            if (names[i] == null) {
+                names[i] = "column_" + i;
+            }
+
+            boolean numeric = i < values.length && isNumeric(values[i]);
+
+            if (numeric && timeColumn < 0 && names[i].toLowerCase().contains("timestamp")) {
+                types[i] = ColumnType.LONG;
+                timeColumn = i;
+            } else if (numeric || i >= values.length) {
+                types[i] = ColumnType.DOUBLE;
+            } else {
+                types[i] = ColumnType.TEXT;
+            }
+        }
+
+        /* Logs without a timestamp header use the first column as time. */
+        if (timeColumn < 0 && names.length > 0 && values.length > 0 && isIntegral(values[0])) {
+            types[0] = ColumnType.LONG;
+            timeColumn = 0;
+        }
+
+        return new Schema(names, types, timeColumn);
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    public String getName(int column) {
+        return names[column];
+    }
+
+    public ColumnType getType(int column) {
+        return types[column];
+    }
+
+    /**
+     * Gets the index of the time column
+     *
+     * @return The column index, or -1 if the log has no time column
+     */
+    public int getTimeColumn() {
+        return timeColumn;
+    }
+
+    /**
+     * Gets the index of a column
+     *
+     * @param name The column name
+     * @return The column index, or -1 if there is no such column
+     */
+    public int indexOf(String name) {
+        for (int i = 0; i < names.length; ++i) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the indices of all columns of a type whose names start with a prefix,
+     * e.g. all columns of a meter module.
+     *
+     * @param prefix The name prefix
+     * @param type   The column type
+     * @return The column indices, in log order
+     */
+    public int[] columnsStartingWith(String prefix, ColumnType type) {
+        List<Integer> columns = new ArrayList<Integer>();
+
+        for (int i = 0; i < names.length; ++i) {
+            if (types[i] == type && names[i].startsWith(prefix)) {
+                columns.add(i);
+            }
+        }
+
+        int[] result = new int[columns.size()];
+        for (int i = 0; i < result.length; ++i) {
+            result[i] = columns.get(i);
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("Schema[");
+        for (int i = 0; i < names.length; ++i) {
+            builder.append(i > 0 ? ", " : "").append(names[i]).append(':').append(types[i]);
+        }
+        return builder.append(']').toString();
+    }
+
+    static String[] split(String line) {
+        String[] fields = line.split(",", -1);
+        for (int i = 0; i < fields.length; ++i) {
+            fields[i] = fields[i].trim();
+        }
+        return fields;
+    }
+
+    static boolean isNumeric(String value) {
+        try {
+            Double.parseDouble(value);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    static boolean isIntegral(String value) {
+        try {
+            Long.parseLong(value);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+}
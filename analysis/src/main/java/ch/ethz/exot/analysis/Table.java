@@ -0,0 +1,191 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+package ch.ethz.exot.analysis;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A column-oriented block of log records, holding one primitive array per column.
+ */
+public final class Table {
+    private final Schema schema;
+    private final int rows;
+    private final Object[] columns;
+
+    Table(Schema schema, int rows, Object[] columns) {
+        this.schema = schema;
+        this.rows = rows;
+        this.columns = columns;
+    }
+
+    public Schema getSchema() {
+        return schema;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * Gets an integral column. The array may be longer than the number of rows.
+     */
+    public long[] getLongs(int column) {
+        return (long[]) check(column, ColumnType.LONG);
+    }
+
+    /**
+     * Gets a numeric column. The array may be longer than the number of rows.
+     */
+    public double[] getDoubles(int column) {
+        return (double[]) check(column, ColumnType.DOUBLE);
+    }
+
+    /**
+     * Gets a text column. The codes array may be longer than the number of rows.
+     */
+    public TextColumn getText(int column) {
+        return (TextColumn) check(column, ColumnType.TEXT);
+    }
+
+    public double[] getDoubles(String name) {
+        return getDoubles(indexOf(name));
+    }
+
+    public TextColumn getText(String name) {
+        return getText(indexOf(name));
+    }
+
+    /**
+     * Gets the time column
+     *
+     * @throws IllegalStateException if the log has no time column
+     */
+    public long[] getTime() {
+        if (schema.getTimeColumn() < 0) {
+            throw new IllegalStateException("log has no time column");
+        }
+        return getLongs(schema.getTimeColumn());
+    }
+
+    private int indexOf(String name) {
+        int column = schema.indexOf(name);
+        if (column < 0) {
+            throw new IllegalArgumentException("no column named " + name);
+        }
+        return column;
+    }
+
+    private Object check(int column, ColumnType type) {
+        if (schema.getType(column) != type) {
+            throw new IllegalArgumentException(String.format("column %s is %s, not %s",
+                    schema.getName(column), schema.getType(column), type));
+        }
+        return columns[column];
+    }
+
+    /**
+     * Concatenates tables of the same schema, remapping text dictionaries.
+     *
+     * @param schema The schema of the tables
+     * @param parts  The tables, in order
+     * @return The concatenated table
+     */
+    static Table concat(Schema schema, List<Table> parts) {
+        if (parts.size() == 1) {
+            return parts.get(0);
+        }
+
+        int rows = 0;
+        for (Table part : parts) {
+            rows += part.rows;
+        }
+
+        Object[] columns = new Object[schema.size()];
+
+        for (int c = 0; c < schema.size(); ++c) {
+            int offset = 0;
+
+            switch (schema.getType(c)) {
+            case LONG: {
+                long[] values = new long[rows];
+                for (Table part : parts) {
+                    System.arraycopy(part.columns[c], 0, values, offset, part.rows);
+                    offset += part.rows;
+                }
+                columns[c] = values;
+                break;
+            }
+            case DOUBLE: {
+                double[] values = new double[rows];
+                for (Table part : parts) {
+                    System.arraycopy(part.columns[c], 0, values, offset, part.rows);
+                    offset += part.rows;
+                }
+                columns[c] = values;
+                break;
+            }
+            case TEXT: {
+                int[] codes = new int[rows];
+                Map<String, Integer> dictionary = new HashMap<String, Integer>();
+
+                for (Table part : parts) {
+                    TextColumn text = (TextColumn) part.columns[c];
+                    int[] remap = new int[text.getDictionary().length];
+
+                    for (int i = 0; i < remap.length; ++i) {
+                        String value = text.getDictionary()[i];
+                        Integer code = dictionary.get(value);
+                        if (code == null) {
+                            code = dictionary.size();
+                            dictionary.put(value, code);
+                        }
+                        remap[i] = code;
+                    }
+
+                    for (int r = 0; r < part.rows; ++r) {
+                        codes[offset + r] = remap[text.getCodes()[r]];
+                    }
+                    offset += part.rows;
+                }
+
+                String[] values = new String[dictionary.size()];
+                for (Map.Entry<String, Integer> entry : dictionary.entrySet()) {
+                    values[entry.getValue()] = entry.getKey();
+                }
+                columns[c] = new TextColumn(codes, values);
+                break;
+            }
+            }
+        }
+
+        return new Table(schema, rows, columns);
+    }
+}
@@ -0,0 +1,125 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+package ch.ethz.exot.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class ChunkParserTest {
+    private static final Schema SCHEMA = Schema.infer("timestamp,value,name", "1,1.0,x");
+
+    private static ByteBuffer bytes(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Table parse(String text) {
+        ByteBuffer buffer = bytes(text);
+        return new ChunkParser(buffer, 0, buffer.limit(), SCHEMA).compute();
+    }
+
+    private static double parseDouble(String text) {
+        return ChunkParser.parseDouble(bytes(text), 0, text.length());
+    }
+
+    private static long parseLong(String text) {
+        return ChunkParser.parseLong(bytes(text), 0, text.length());
+    }
+
+    @Test
+    public void skipsSideChannelAndEmptyLines() {
+        Table table = parse("# marker,5,6,start,0\n1,0.5,a\n\n# clock,1,2\r\n2,1.5,b\r\n3,2.5,a\n");
+
+        assertEquals(3, table.getRows());
+        assertEquals(1, table.getTime()[0]);
+        assertEquals(3, table.getTime()[2]);
+        assertEquals(1.5, table.getDoubles("value")[1], 0.0);
+        assertEquals("b", table.getText("name").get(1));
+        assertEquals(2, table.getText("name").getDictionary().length);
+    }
+
+    @Test
+    public void parsesALastLineWithoutNewline() {
+        Table table = parse("1,0.5,a\n2,1.5,b");
+
+        assertEquals(2, table.getRows());
+        assertEquals(2, table.getTime()[1]);
+        assertEquals("b", table.getText("name").get(1));
+    }
+
+    @Test
+    public void fillsMissingFields() {
+        Table table = parse("1,,a\n2\n");
+
+        assertEquals(2, table.getRows());
+        assertTrue(Double.isNaN(table.getDoubles("value")[0]));
+        assertTrue(Double.isNaN(table.getDoubles("value")[1]));
+        assertEquals("", table.getText("name").get(1));
+    }
+
+    @Test
+    public void growsBeyondTheInitialCapacity() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 1000; ++i) {
+            text.append(i).append(',').append(i * 0.25).append(",n\n");
+        }
+
+        Table table = parse(text.toString());
+
+        assertEquals(1000, table.getRows());
+        assertEquals(999, table.getTime()[999]);
+        assertEquals(999 * 0.25, table.getDoubles("value")[999], 0.0);
+    }
+
+    @Test
+    public void parsesDoublesExactly() {
+        String[] values = {"0", "-0.5", "41.125", "1e3", "2.5E-3", "+7", "123456789012345678901",
+                "0.1", "3.14159265358979323846", "1e300"};
+
+        for (String value : values) {
+            assertEquals(value, Double.parseDouble(value), parseDouble(value), 0.0);
+        }
+
+        assertTrue(Double.isNaN(parseDouble("")));
+        assertTrue(Double.isNaN(parseDouble("abc")));
+    }
+
+    @Test
+    public void parsesLongsWithFallbacks() {
+        assertEquals(1234567890123L, parseLong("1234567890123"));
+        assertEquals(-42, parseLong("-42"));
+        assertEquals(3, parseLong("2.5"));
+        assertEquals(Long.MIN_VALUE, parseLong("x"));
+        assertEquals(Long.MIN_VALUE, parseLong(""));
+    }
+}
@@ -0,0 +1,172 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+package ch.ethz.exot.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MeterLogTest {
+    private Path mPath;
+
+    @Before
+    public void setUp() throws IOException {
+        mPath = Files.createTempFile("meter", ".csv");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(mPath);
+    }
+
+    private MeterLog write(String text) throws IOException {
+        Files.write(mPath, text.getBytes(StandardCharsets.UTF_8));
+        return MeterLog.open(mPath);
+    }
+
+    private static String records(int count) {
+        StringBuilder text = new StringBuilder("# clock,0,monotonic_raw,0,0,0,0\n");
+        text.append("timestamp,utilisation:user:0:%,process_events:top_app:0:-\n");
+        for (int i = 0; i < count; ++i) {
+            if (i % 7 == 3) {
+                text.append("# marker,").append(i).append(",0,step,0\n");
+            }
+            text.append(1000 + i).append(',').append(i * 0.5).append(",app").append(i % 3).append('\n');
+        }
+        return text.toString();
+    }
+
+    private static List<Table> stream(MeterLog log, long window) throws IOException {
+        final List<Table> windows = new ArrayList<Table>();
+        log.stream(window, new Consumer<Table>() {
+            @Override
+            public void accept(Table table) {
+                windows.add(table);
+            }
+        });
+        return windows;
+    }
+
+    private static void checkRecords(List<Table> windows, int count) {
+        int row = 0;
+        for (Table table : windows) {
+            for (int r = 0; r < table.getRows(); ++r, ++row) {
+                assertEquals(1000 + row, table.getTime()[r]);
+                assertEquals(row * 0.5, table.getDoubles("utilisation:user:0:%")[r], 0.0);
+                assertEquals("app" + (row % 3), table.getText("process_events:top_app:0:-").get(r));
+            }
+        }
+        assertEquals(count, row);
+    }
+
+    @Test
+    public void readsTheSchemaAfterSideChannelLines() throws IOException {
+        try (MeterLog log = write(records(3))) {
+            Schema schema = log.getSchema();
+
+            assertEquals(3, schema.size());
+            assertEquals(0, schema.getTimeColumn());
+            assertEquals(ColumnType.TEXT, schema.getType(2));
+        }
+    }
+
+    @Test
+    public void readsAllRecords() throws IOException {
+        try (MeterLog log = write(records(100))) {
+            Table table = log.read();
+
+            assertEquals(100, table.getRows());
+            List<Table> windows = new ArrayList<Table>();
+            windows.add(table);
+            checkRecords(windows, 100);
+        }
+    }
+
+    @Test
+    public void streamsWindowsAcrossLineBoundaries() throws IOException {
+        try (MeterLog log = write(records(500))) {
+            log.withChunkSize(64);
+
+            /* Window sizes which split records at different positions. */
+            for (long window : new long[]{29, 64, 97, 1000, 4096}) {
+                List<Table> windows = stream(log, window);
+
+                assertTrue(windows.size() > 1);
+                checkRecords(windows, 500);
+            }
+        }
+    }
+
+    @Test
+    public void readsALastRecordWithoutNewline() throws IOException {
+        String text = records(10);
+        try (MeterLog log = write(text.substring(0, text.length() - 1))) {
+            checkRecords(stream(log, 40), 10);
+
+            List<Table> windows = new ArrayList<Table>();
+            windows.add(log.read());
+            checkRecords(windows, 10);
+        }
+    }
+
+    @Test
+    public void readsALogWithoutRecords() throws IOException {
+        try (MeterLog log = write("timestamp,a,b\n")) {
+            assertEquals(0, log.read().getRows());
+        }
+    }
+
+    @Test
+    public void failsOnARecordLongerThanTheWindow() throws IOException {
+        StringBuilder text = new StringBuilder("timestamp,a\n1,1\n2,");
+        for (int i = 0; i < 200; ++i) {
+            text.append('9');
+        }
+        text.append("\n3,3\n");
+
+        try (MeterLog log = write(text.toString())) {
+            stream(log, 64);
+            fail("expected an IOException");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("longer than window"));
+        }
+    }
+}
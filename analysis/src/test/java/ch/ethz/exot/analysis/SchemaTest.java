@@ -0,0 +1,86 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+package ch.ethz.exot.analysis;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class SchemaTest {
+    @Test
+    public void infersTypesFromHeaderAndFirstRecord() {
+        Schema schema = Schema.infer("timestamp,thermal_sysfs:temp:0:C,process_events:top_app:0:-",
+                "1000,41.5,com.example");
+
+        assertEquals(3, schema.size());
+        assertEquals(0, schema.getTimeColumn());
+        assertEquals(ColumnType.LONG, schema.getType(0));
+        assertEquals(ColumnType.DOUBLE, schema.getType(1));
+        assertEquals(ColumnType.TEXT, schema.getType(2));
+        assertEquals(1, schema.indexOf("thermal_sysfs:temp:0:C"));
+        assertEquals(-1, schema.indexOf("missing"));
+    }
+
+    @Test
+    public void usesAnIntegralFirstColumnAsTimeWithoutHeader() {
+        Schema schema = Schema.infer(null, "1000, 2.5, 3");
+
+        assertEquals(3, schema.size());
+        assertEquals(0, schema.getTimeColumn());
+        assertEquals(ColumnType.LONG, schema.getType(0));
+        assertEquals("column_1", schema.getName(1));
+        assertEquals(ColumnType.DOUBLE, schema.getType(2));
+    }
+
+    @Test
+    public void hasNoTimeColumnIfTheFirstValueIsNotIntegral() {
+        Schema schema = Schema.infer("a,b", "1.5,2");
+
+        assertEquals(-1, schema.getTimeColumn());
+        assertEquals(ColumnType.DOUBLE, schema.getType(0));
+    }
+
+    @Test
+    public void columnsWithoutValuesAreNumeric() {
+        Schema schema = Schema.infer("timestamp,a,b", null);
+
+        assertEquals(ColumnType.DOUBLE, schema.getType(0));
+        assertEquals(ColumnType.DOUBLE, schema.getType(2));
+    }
+
+    @Test
+    public void selectsColumnsByPrefixAndType() {
+        Schema schema = Schema.infer("timestamp,freq:0,freq:1,temp:0,freq:name",
+                "1,1.0,2.0,3.0,x");
+
+        assertArrayEquals(new int[]{1, 2}, schema.columnsStartingWith("freq:", ColumnType.DOUBLE));
+        assertArrayEquals(new int[]{4}, schema.columnsStartingWith("freq:", ColumnType.TEXT));
+    }
+}
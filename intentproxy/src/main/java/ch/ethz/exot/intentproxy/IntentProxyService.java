@@ -32,17 +32,68 @@ import android.app.Service;
 import android.content.ComponentName;
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 
+import org.json.JSONException;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import ch.ethz.exot.intents.*;
+import ch.ethz.exot.plan.Plan;
+import ch.ethz.exot.plan.PlanParser;
+import ch.ethz.exot.plan.PlanRunner;
+import ch.ethz.exot.service.CaptureMarker;
+import ch.ethz.exot.service.CommandBus;
+import ch.ethz.exot.service.ServiceLiveness;
 
 public class IntentProxyService extends Service {
     private static final String TAG = "ExOT/IntentProxy";
 
+    /**
+     * Ways of sending a forwarded intent
+     */
+    private static final int VIA_BROADCAST = 0;
+    private static final int VIA_SERVICE = 1;
+    private static final int VIA_ACTIVITY = 2;
+
+    /**
+     * Liveness trackers of the app services started via START_APPS, modified on the
+     * main thread only
+     */
+    private final Map<ComponentName, ServiceLiveness> mTrackedApps = new ConcurrentHashMap<ComponentName, ServiceLiveness>();
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * The runner of the current experiment plan, if any
+     */
+    private PlanRunner mPlanRunner = null;
+
+    private final ServiceLiveness.Listener mLivenessListener = new ServiceLiveness.Listener() {
+        @Override
+        public void onLivenessChanged(ComponentName component, boolean alive) {
+            if (alive) {
+                Log.i(TAG + "/Liveness", component.flattenToShortString() + " is up");
+            } else {
+                Log.w(TAG + "/Liveness", component.flattenToShortString() + " went down");
+            }
+        }
+    };
+
     /**
      * Constructor
      */
@@ -75,6 +126,16 @@ public class IntentProxyService extends Service {
      */
     @Override
     public void onDestroy() {
+        if (mPlanRunner != null) {
+            mPlanRunner.cancel();
+            mPlanRunner = null;
+        }
+
+        for (ServiceLiveness liveness : mTrackedApps.values()) {
+            liveness.untrack();
+        }
+        mTrackedApps.clear();
+
         Log.i(TAG, "IntentProxyService destroyed!");
     }
 
@@ -98,30 +159,46 @@ public class IntentProxyService extends Service {
                 switch (action) {
                 case IntentProxy.Action.FORWARD_BUNDLE:
                 case IntentProxy.Action.BUNDLE_EXTRAS:
-                    sendBroadcast(forward(extras, true));
+                    send(forward(extras, true), VIA_BROADCAST, mTrackedApps.keySet());
                     break;
                 case IntentProxy.Action.START_APPS:
-                    for (Intent app_intent : generateAppIntents(extras, ExOTApps.Actions.START)) {
-                        sendBroadcast(app_intent);
-                    }
+                    startApps(generateAppIntents(extras, ExOTApps.Actions.START));
                     break;
                 case IntentProxy.Action.STOP_APPS:
-                    for (Intent app_intent : generateAppIntents(extras, ExOTApps.Actions.STOP)) {
-                        stopService(app_intent);
+                    stopApps(generateAppIntents(extras, ExOTApps.Actions.STOP));
+                    break;
+                case IntentProxy.Action.QUERY_APPS:
+                    for (ServiceLiveness liveness : mTrackedApps.values()) {
+                        Log.i(TAG, String.format("App %s: %s", liveness.getComponent().flattenToShortString(),
+                                liveness.isAlive() ? "alive" : "dead"));
                     }
                     break;
+                case IntentProxy.Action.TRIGGER_APPS:
+                    triggerApps(generateAppIntents(extras, ExOTApps.Actions.TRIGGER),
+                            extras.getString(ExOTApps.Keys.TRIGGER));
+                    break;
                 case IntentProxy.Action.FORWARD_STARTSERVICE:
-                    startService(forward(extras, false));
+                    send(forward(extras, false), VIA_SERVICE, mTrackedApps.keySet());
                     break;
                 case IntentProxy.Action.FORWARD_STARTACTIVITY:
-                    startActivity(forward(extras, false));
+                    send(forward(extras, false), VIA_ACTIVITY, mTrackedApps.keySet());
                     break;
                 case IntentProxy.Action.CONFIGURE_APP:
                     startService(forward(extras, true));
                     break;
                 case IntentProxy.Action.FORWARD:
                 case IntentProxy.Action.FORWARD_:
-                    sendBroadcast(forward(extras, false));
+                    send(forward(extras, false), VIA_BROADCAST, mTrackedApps.keySet());
+                    break;
+                case IntentProxy.Action.RUN_PLAN:
+                    runPlan(extras != null ? extras.getString(IntentProxy.KeysExtras.PLAN) : null);
+                    break;
+                case IntentProxy.Action.CANCEL_PLAN:
+                    if (mPlanRunner != null && mPlanRunner.isRunning()) {
+                        mPlanRunner.cancel();
+                    } else {
+                        Log.i(TAG + "/Plan", "No plan running, do nothing.");
+                    }
                     break;
                 default:
                     Log.i(TAG + "/Tx", "Action " + action + " unkonwn, do nothing.");
@@ -192,19 +269,357 @@ public class IntentProxyService extends Service {
         return repackaged_forward;
     }
 
+    /**
+     * Sends a forwarded intent. RepetiTouch actions are bracketed by markers in the
+     * captures of the given apps, 'repetitouch:<action>:begin' right before sending
+     * and 'repetitouch:<action>:sent' once the intent was handed to the system.
+     *
+     * @param forwarded The intent
+     * @param via       How to send the intent
+     * @param apps      The apps to mark
+     */
+    private void send(Intent forwarded, int via, Collection<ComponentName> apps) {
+        String marker = null;
+        if (RepetiTouch.Action.FIRE_SETTING.equals(forwarded.getAction())) {
+            Bundle bundle = forwarded.getBundleExtra(RepetiTouch.KeysExtras.BUNDLE);
+            String action = bundle != null ? bundle.getString(RepetiTouch.KeysBundleExtras.ACTION) : null;
+            marker = "repetitouch:" + (action != null ? action : "fire");
+            markApps(apps, marker + ":begin", SystemClock.elapsedRealtimeNanos());
+        }
+
+        switch (via) {
+        case VIA_SERVICE:
+            startService(forwarded);
+            break;
+        case VIA_ACTIVITY:
+            startActivity(forwarded);
+            break;
+        default:
+            sendBroadcast(forwarded);
+            break;
+        }
+
+        if (marker != null) {
+            markApps(apps, marker + ":sent", SystemClock.elapsedRealtimeNanos());
+        }
+    }
+
+    /**
+     * Sends a marker to app services. Tracked apps which are connected get it as a
+     * one-way binder call, the fastest path; tracked apps which are down are skipped.
+     * Other apps get a MARK broadcast, which only reaches them if running.
+     *
+     * @param apps The app services
+     * @param name The marker name
+     * @param time The event time, in elapsed realtime nanoseconds
+     */
+    private void markApps(Collection<ComponentName> apps, String name, long time) {
+        for (ComponentName app : apps) {
+            ServiceLiveness liveness = mTrackedApps.get(app);
+            if (liveness != null) {
+                IBinder binder = liveness.getBinder();
+                if (binder != null) {
+                    try {
+                        CaptureMarker.send(binder, name, time);
+                        continue;
+                    } catch (RemoteException e) {
+                        Log.w(TAG, "Marker to " + app.flattenToShortString() + " failed: " + e);
+                    }
+                }
+                if (!liveness.isAlive()) {
+                    continue;
+                }
+            }
+
+            broadcastToApp(CaptureMarker.command(app, name, time));
+        }
+    }
+
+    /**
+     * Broadcasts a command to an app service. The services register their receivers
+     * at runtime, which explicit broadcasts to a component do not reach, so the
+     * broadcast is limited to the package of the app instead.
+     *
+     * @param app_intent The command, with the component of the service
+     */
+    private void broadcastToApp(Intent app_intent) {
+        Intent broadcast = new Intent(app_intent);
+        broadcast.setComponent(null);
+        broadcast.setPackage(app_intent.getComponent().getPackageName());
+        sendBroadcast(broadcast);
+    }
+
+    private List<ComponentName> components(List<Intent> app_intents) {
+        List<ComponentName> components = new ArrayList<ComponentName>(app_intents.size());
+        for (Intent app_intent : app_intents) {
+            components.add(app_intent.getComponent());
+        }
+        return components;
+    }
+
+    /**
+     * Starts tracking the liveness of an app service, if not tracked already.
+     *
+     * @param component The service component
+     */
+    private void trackApp(ComponentName component) {
+        if (!mTrackedApps.containsKey(component)) {
+            ServiceLiveness liveness = new ServiceLiveness(this, component);
+            liveness.addListener(mLivenessListener);
+            mTrackedApps.put(component, liveness);
+            liveness.track();
+        }
+    }
+
+    /**
+     * Checks the cached liveness of an app service.
+     *
+     * @param component The service component
+     * @return True if the service is tracked and alive, false otherwise
+     */
+    private boolean isAppAlive(ComponentName component) {
+        ServiceLiveness liveness = mTrackedApps.get(component);
+        return liveness != null && liveness.isAlive();
+    }
+
+    private void startApps(List<Intent> app_intents) {
+        for (Intent app_intent : app_intents) {
+            trackApp(app_intent.getComponent());
+            broadcastToApp(app_intent);
+        }
+    }
+
+    private void stopApps(List<Intent> app_intents) {
+        for (Intent app_intent : app_intents) {
+            if (!isAppAlive(app_intent.getComponent())) {
+                Log.i(TAG, "App " + app_intent.getComponent().flattenToShortString()
+                        + " is not running, stopping anyway.");
+            }
+            stopService(app_intent);
+        }
+    }
+
+    private void triggerApps(List<Intent> app_intents, String reason) {
+        for (Intent app_intent : app_intents) {
+            if (reason != null) {
+                app_intent.putExtra(ExOTApps.Keys.TRIGGER, reason);
+            }
+            startService(app_intent);
+        }
+    }
+
     private List<Intent> generateAppIntents(Bundle extras, String action) {
+        if (extras != null && extras.containsKey(IntentProxy.KeysExtras.APPS_ARRAY)) {
+            return generateAppIntents(extras.getStringArrayList(IntentProxy.KeysExtras.APPS_ARRAY), action);
+        }
+        return new ArrayList<Intent>();
+    }
+
+    private List<Intent> generateAppIntents(List<String> apps, String action) {
         List<Intent> app_intents = new ArrayList<Intent>();
 
-        if (extras.containsKey(IntentProxy.KeysExtras.APPS_ARRAY)) {
-            for (String app : extras.getStringArrayList(IntentProxy.KeysExtras.APPS_ARRAY)) {
+        if (apps != null) {
+            for (String app : apps) {
                 Intent tmp = new Intent();
                 String[] component_name = app.split("/");
                 tmp.setComponent(new ComponentName(component_name[0], component_name[1]));
                 tmp.setAction(action);
+                CommandBus.stamp(tmp);
                 // TODO add intent other extras if necessary
                 app_intents.add(tmp);
             }
         }
         return app_intents;
     }
+
+    /**
+     * Parses and starts an experiment plan. Only one plan runs at a time, a plan
+     * received while another one is running is rejected.
+     *
+     * @param json The plan as JSON
+     */
+    private void runPlan(String json) {
+        if (json == null) {
+            Log.e(TAG + "/Plan", "No plan given, do nothing.");
+            return;
+        }
+
+        if (mPlanRunner != null && mPlanRunner.isRunning()) {
+            Log.e(TAG + "/Plan", "Plan " + mPlanRunner.getPlan().getName() + " is still running, rejecting.");
+            return;
+        }
+
+        final Plan plan;
+        try {
+            plan = PlanParser.parse(json);
+        } catch (JSONException e) {
+            Log.e(TAG + "/Plan", "Invalid plan: " + e.getMessage());
+            return;
+        }
+
+        File report = null;
+        File dir = getExternalFilesDir("plans");
+        if (dir != null) {
+            report = new File(dir, String.format("%s-%d.csv", plan.getName(), System.currentTimeMillis()));
+        }
+
+        Log.i(TAG + "/Plan", String.format("Running plan %s with %d steps, report: %s", plan.getName(),
+                plan.getSteps().size(), report));
+        mPlanRunner = new PlanRunner(plan, new PlanDispatcher(report), new PlanRunner.PreciseClock() {
+            @Override
+            public long now() {
+                return SystemClock.elapsedRealtimeNanos();
+            }
+        });
+        mPlanRunner.start();
+    }
+
+    /**
+     * Dispatches plan steps through the same paths as the individual actions. Step
+     * times use the elapsed realtime clock, i.e. CLOCK_BOOTTIME, the clock of the
+     * markers. Every executed or skipped step is marked in the captures of its apps as
+     * 'plan:<label>:<outcome>' at its start time, the apps map the marker time to the
+     * clock of their meter log.
+     */
+    private final class PlanDispatcher implements PlanRunner.Dispatcher {
+        private final File mReport;
+        private Writer mWriter = null;
+
+        PlanDispatcher(File report) {
+            mReport = report;
+        }
+
+        @Override
+        public void configure(Plan.Step step, String config) {
+            String action = step.getBoolean("reset", false) ? ExOTApps.Actions.RESET
+                    : ExOTApps.Actions.CREATE;
+            for (Intent app_intent : generateAppIntents(step.apps, action)) {
+                app_intent.putExtra(ExOTApps.Keys.CONFIG, config);
+                startService(app_intent);
+            }
+        }
+
+        @Override
+        public void start(Plan.Step step) {
+            final List<Intent> app_intents = generateAppIntents(step.apps, ExOTApps.Actions.START);
+            for (Intent app_intent : app_intents) {
+                broadcastToApp(app_intent);
+            }
+            /* Liveness tracking binds to the apps and must happen on the main thread. */
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (Intent app_intent : app_intents) {
+                        trackApp(app_intent.getComponent());
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void stop(Plan.Step step) {
+            stopApps(generateAppIntents(step.apps, ExOTApps.Actions.STOP));
+        }
+
+        @Override
+        public void trigger(Plan.Step step, String reason) {
+            triggerApps(generateAppIntents(step.apps, ExOTApps.Actions.TRIGGER), reason);
+        }
+
+        @Override
+        public void replay(Plan.Step step) {
+            Bundle bundle = new Bundle();
+            bundle.putString(RepetiTouch.KeysBundleExtras.ACTION, RepetiTouch.ValueBundleExtraAction.START_REPLAY);
+
+            for (Map.Entry<String, Object> extra : step.getObject("extras").entrySet()) {
+                String key = extra.getKey();
+                Object value = extra.getValue();
+                if (value instanceof Integer) {
+                    bundle.putInt(key, (Integer) value);
+                } else if (value instanceof Long) {
+                    bundle.putLong(key, (Long) value);
+                } else if (value instanceof Number) {
+                    bundle.putDouble(key, ((Number) value).doubleValue());
+                } else if (value instanceof Boolean) {
+                    bundle.putBoolean(key, (Boolean) value);
+                } else if (value != null) {
+                    bundle.putString(key, value.toString());
+                }
+            }
+
+            Intent intent = new Intent(RepetiTouch.Action.FIRE_SETTING);
+            if (step.has("component")) {
+                intent.setComponent(ComponentName.unflattenFromString(step.getString("component")));
+            }
+            intent.putExtra(RepetiTouch.KeysExtras.BUNDLE, bundle);
+            send(intent, VIA_BROADCAST, components(generateAppIntents(step.apps, null)));
+        }
+
+        @Override
+        public void mark(Plan.Step step, String label, long time) {
+            markApps(components(generateAppIntents(step.apps, null)), label, time);
+        }
+
+        @Override
+        public boolean check(Plan.Step step, String condition) {
+            boolean alive;
+            switch (condition) {
+            case "alive":
+                alive = true;
+                break;
+            case "dead":
+                alive = false;
+                break;
+            default:
+                throw new IllegalArgumentException("unknown condition " + condition);
+            }
+
+            for (Intent app_intent : generateAppIntents(step.apps, null)) {
+                if (isAppAlive(app_intent.getComponent()) != alive) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void onStep(PlanRunner.Report report) {
+            Log.i(TAG + "/Plan", report.toString());
+            markApps(components(generateAppIntents(report.step.apps, null)),
+                    String.format("plan:%s:%s", report.step.label.replace(',', ';'),
+                            report.outcome.name().toLowerCase(Locale.US)),
+                    report.started);
+            write(report.toRecord());
+        }
+
+        @Override
+        public void onFinished(Plan plan, boolean completed) {
+            Log.i(TAG + "/Plan", String.format("Plan %s %s", plan.getName(), completed ? "completed" : "aborted"));
+            if (mWriter != null) {
+                try {
+                    mWriter.close();
+                } catch (IOException e) {
+                    Log.w(TAG + "/Plan", "Closing the report failed: " + e.getMessage());
+                }
+                mWriter = null;
+            }
+        }
+
+        private void write(String record) {
+            if (mReport == null) {
+                return;
+            }
+
+            try {
+                if (mWriter == null) {
+                    mWriter = new FileWriter(mReport);
+                }
+                mWriter.write(record);
+                mWriter.write('\n');
+                mWriter.flush();
+            } catch (IOException e) {
+                Log.w(TAG + "/Plan", "Writing the report failed: " + e.getMessage());
+            }
+        }
+    }
 }
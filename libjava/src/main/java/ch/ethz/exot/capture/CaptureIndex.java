@@ -0,0 +1,398 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+package ch.ethz.exot.capture;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Sparse index of a capture log, for time-range and threshold queries without
+ * scanning the whole log.
+ *
+ * The index is stored next to the log, as <log>.idx, in big-endian binary format:
+ *
+ * <pre>
+ * header: magic "EXOTIDX1", int block records, int time column, int column count,
+ *         column names (modified UTF-8)
+ * blocks: long offset, long length, int records, long first time, long last time,
+ *         per column: double min, double max (NaN for non-numeric columns)
+ * </pre>
+ *
+ * Blocks are contiguous and appended while capturing, so an index of an interrupted
+ * capture is valid up to its last block. Bytes past the last block are the unindexed
+ * tail of the log, which queries treat as matching.
+ */
+public final class CaptureIndex {
+    static final byte[] MAGIC = {'E', 'X', 'O', 'T', 'I', 'D', 'X', '1'};
+
+    private final File mLog;
+    private final int mBlockRecords;
+    private final int mTimeColumn;
+    private final List<String> mColumns;
+    private final List<Block> mBlocks;
+
+    /**
+     * A block of consecutive records of the log
+     */
+    public static final class Block {
+        public final long offset;
+        public final long length;
+        public final int records;
+        public final long firstTime;
+        public final long lastTime;
+        private final double[] mMin;
+        private final double[] mMax;
+
+        Block(long offset, long length, int records, long firstTime, long lastTime, double[] min, double[] max) {
+            this.offset = offset;
+            this.length = length;
+            this.records = records;
+            this.firstTime = firstTime;
+            this.lastTime = lastTime;
+            mMin = min;
+            mMax = max;
+        }
+
+        public double getMin(int column) {
+            return mMin[column];
+        }
+
+        public double getMax(int column) {
+            return mMax[column];
+        }
+
+        public Range toRange() {
+            return new Range(offset, offset + length);
+        }
+    }
+
+    /**
+     * A byte range of the log, [start, end)
+     */
+    public static final class Range {
+        public final long start;
+        public final long end;
+
+        public Range(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        public long length() {
+            return end - start;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("[%d, %d)", start, end);
+        }
+    }
+
+    private CaptureIndex(File log, int blockRecords, int timeColumn, List<String> columns, List<Block> blocks) {
+        mLog = log;
+        mBlockRecords = blockRecords;
+        mTimeColumn = timeColumn;
+        mColumns = Collections.unmodifiableList(columns);
+        mBlocks = Collections.unmodifiableList(blocks);
+    }
+
+    /**
+     * Gets the index file of a log
+     *
+     * @param log The capture log
+     * @return The index file
+     */
+    public static File indexFileFor(File log) {
+        return new File(log.getPath() + ".idx");
+    }
+
+    /**
+     * Opens the index of a log. A truncated last block, e.g. of an index written by a
+     * killed process, is ignored.
+     *
+     * @param log The capture log
+     * @return The index
+     * @throws IOException if the index does not exist or is not valid
+     */
+    public static CaptureIndex open(File log) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(indexFileFor(log))))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("not a capture index: " + indexFileFor(log));
+            }
+
+            int blockRecords = in.readInt();
+            int timeColumn = in.readInt();
+            int count = in.readInt();
+
+            List<String> columns = new ArrayList<String>(count);
+            for (int i = 0; i < count; ++i) {
+                columns.add(in.readUTF());
+            }
+
+            List<Block> blocks = new ArrayList<Block>();
+
+            try {
+                while (true) {
+                    long offset = in.readLong();
+                    long length = in.readLong();
+                    int records = in.readInt();
+                    long firstTime = in.readLong();
+                    long lastTime = in.readLong();
+                    double[] min = new double[count];
+                    double[] max = new double[count];
+                    for (int c = 0; c < count; ++c) {
+                        min[c] = in.readDouble();
+                        max[c] = in.readDouble();
+                    }
+                    blocks.add(new Block(offset, length, records, firstTime, lastTime, min, max));
+                }
+            } catch (EOFException e) {
+                // end of the index, possibly in a partially written block
+            }
+
+            return new CaptureIndex(log, blockRecords, timeColumn, columns, blocks);
+        }
+    }
+
+    public File getLog() {
+        return mLog;
+    }
+
+    public int getBlockRecords() {
+        return mBlockRecords;
+    }
+
+    public int getTimeColumn() {
+        return mTimeColumn;
+    }
+
+    public List<String> getColumns() {
+        return mColumns;
+    }
+
+    public List<Block> getBlocks() {
+        return mBlocks;
+    }
+
+    /**
+     * Gets the index of a column
+     *
+     * @param name The column name
+     * @return The column index
+     * @throws IllegalArgumentException if there is no such column
+     */
+    public int indexOf(String name) {
+        int column = mColumns.indexOf(name);
+        if (column < 0) {
+            throw new IllegalArgumentException("no column named " + name);
+        }
+        return column;
+    }
+
+    /**
+     * Gets the offset after the last indexed block, where the unindexed tail starts
+     */
+    public long getIndexedLength() {
+        return mBlocks.isEmpty() ? 0 : mBlocks.get(mBlocks.size() - 1).toRange().end;
+    }
+
+    /**
+     * Finds the byte range holding all records within a time range. Timestamps are
+     * assumed to be non-decreasing. The range is block-aligned, records at its edges
+     * may be outside the time range.
+     *
+     * @param from The start time, inclusive
+     * @param to   The end time, inclusive
+     * @return The range, which is empty if no records can match
+     */
+    public Range seek(long from, long to) {
+        long tail = mLog.length();
+        long indexed = getIndexedLength();
+
+        if (mBlocks.isEmpty()) {
+            return new Range(0, tail);
+        }
+
+        /* First block whose last time is not before 'from'. */
+        int lo = 0;
+        int hi = mBlocks.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mBlocks.get(mid).lastTime < from) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        int first = lo;
+
+        /* First block whose first time is after 'to'. */
+        lo = first;
+        hi = mBlocks.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mBlocks.get(mid).firstTime <= to) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        int last = lo;
+
+        long start = first < mBlocks.size() ? mBlocks.get(first).offset : indexed;
+        long end = last < mBlocks.size() ? mBlocks.get(last).offset : Math.max(tail, indexed);
+
+        return new Range(start, Math.max(start, end));
+    }
+
+    /**
+     * Finds the blocks which may hold values of a column within [min, max]. Blocks
+     * whose value range does not intersect the query range are skipped.
+     *
+     * @param column The column index
+     * @param min    The minimum value, inclusive
+     * @param max    The maximum value, inclusive
+     * @return The byte ranges of the matching blocks, adjacent blocks merged, followed
+     *         by the unindexed tail if not empty
+     */
+    public List<Range> where(int column, double min, double max) {
+        List<Range> ranges = new ArrayList<Range>();
+
+        for (Block block : mBlocks) {
+            if (Double.isNaN(block.getMin(column)) || block.getMax(column) < min || block.getMin(column) > max) {
+                continue;
+            }
+
+            Range last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+            if (last != null && last.end == block.offset) {
+                ranges.set(ranges.size() - 1, new Range(last.start, block.offset + block.length));
+            } else {
+                ranges.add(block.toRange());
+            }
+        }
+
+        long tail = mLog.length();
+        if (tail > getIndexedLength()) {
+            ranges.add(new Range(getIndexedLength(), tail));
+        }
+
+        return ranges;
+    }
+
+    /**
+     * Finds the blocks which may hold values of a column above a threshold, e.g.
+     * temperatures above 70 degrees.
+     *
+     * @see #where(int, double, double)
+     */
+    public List<Range> above(String column, double threshold) {
+        return where(indexOf(column), Math.nextUp(threshold), Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Finds the blocks which may hold values of a column below a threshold.
+     *
+     * @see #where(int, double, double)
+     */
+    public List<Range> below(String column, double threshold) {
+        return where(indexOf(column), Double.NEGATIVE_INFINITY, Math.nextDown(threshold));
+    }
+
+    /**
+     * Opens a byte range of the log for reading
+     *
+     * @param range The range
+     * @return The stream, positioned at the range start and ending at the range end
+     * @throws IOException if the log cannot be opened
+     */
+    public InputStream open(Range range) throws IOException {
+        final FileInputStream in = new FileInputStream(mLog);
+        in.getChannel().position(range.start);
+
+        final long length = range.length();
+
+        return new FilterInputStream(in) {
+            private long remaining = length;
+
+            @Override
+            public int read() throws IOException {
+                if (remaining <= 0) {
+                    return -1;
+                }
+                int b = super.read();
+                if (b >= 0) {
+                    --remaining;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (remaining <= 0) {
+                    return -1;
+                }
+                int n = super.read(b, off, (int) Math.min(len, remaining));
+                if (n > 0) {
+                    remaining -= n;
+                }
+                return n;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                long skipped = super.skip(Math.min(n, remaining));
+                remaining -= skipped;
+                return skipped;
+            }
+
+            @Override
+            public int available() throws IOException {
+                return (int) Math.min(super.available(), remaining);
+            }
+
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+        };
+    }
+}
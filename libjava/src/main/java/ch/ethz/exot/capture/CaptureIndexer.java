@@ -0,0 +1,305 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+package ch.ethz.exot.capture;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Incrementally builds the sparse index of a capture log.
+ *
+ * The log is scanned from the last indexed position up to a given limit, e.g. the
+ * length committed by the capture journal. Every blockRecords records a block entry is
+ * appended to the index, holding the byte range, the time range and the per-column
+ * minimum and maximum of the block. See CaptureIndex for the file format.
+ */
+public final class CaptureIndexer implements Closeable {
+    /** The default number of records per block */
+    public static final int DEFAULT_BLOCK_RECORDS = 1000;
+
+    private static final int READ_SIZE = 1 << 20;
+
+    private final File mLog;
+    private final File mIndex;
+    private final int mBlockRecords;
+
+    private RandomAccessFile mReader = null;
+    private DataOutputStream mWriter = null;
+    private byte[] mBuffer = new byte[READ_SIZE];
+    private long mPosition = 0;
+
+    /* Header state */
+    private String[] mColumns = null;
+    private int mTimeColumn = 0;
+
+    /* State of the block being built */
+    private long mBlockStart = 0;
+    private int mRecords = 0;
+    private long mFirstTime = Long.MIN_VALUE;
+    private long mLastTime = Long.MIN_VALUE;
+    private double[] mMin;
+    private double[] mMax;
+
+    /**
+     * Constructor. An existing index of the log is replaced.
+     *
+     * @param log          The capture log
+     * @param blockRecords The number of records per block
+     */
+    public CaptureIndexer(File log, int blockRecords) {
+        if (blockRecords <= 0) {
+            throw new IllegalArgumentException("blockRecords must be positive");
+        }
+
+        mLog = log;
+        mIndex = CaptureIndex.indexFileFor(log);
+        mBlockRecords = blockRecords;
+        mIndex.delete();
+    }
+
+    /**
+     * Builds the complete index of a log
+     *
+     * @param log          The capture log
+     * @param blockRecords The number of records per block
+     * @throws IOException if the log cannot be read or the index cannot be written
+     */
+    public static void build(File log, int blockRecords) throws IOException {
+        try (CaptureIndexer indexer = new CaptureIndexer(log, blockRecords)) {
+            indexer.update(log.length());
+        }
+    }
+
+    /**
+     * Indexes all complete records up to a limit
+     *
+     * @param limit The offset up to which the log is known to be written
+     * @throws IOException if the log cannot be read or the index cannot be written
+     */
+    public synchronized void update(long limit) throws IOException {
+        if (mReader == null) {
+            if (!mLog.exists()) {
+                return;
+            }
+            mReader = new RandomAccessFile(mLog, "r");
+        }
+
+        while (mPosition < limit) {
+            int length = (int) Math.min(mBuffer.length, limit - mPosition);
+            mReader.seek(mPosition);
+            mReader.readFully(mBuffer, 0, length);
+
+            int end = length;
+            while (end > 0 && mBuffer[end - 1] != '\n') {
+                --end;
+            }
+
+            if (end == 0) {
+                if (length < mBuffer.length) {
+                    /* Only a partial record is available yet. */
+                    return;
+                }
+                mBuffer = new byte[mBuffer.length * 2];
+                continue;
+            }
+
+            int start = 0;
+            for (int i = 0; i < end; ++i) {
+                if (mBuffer[i] == '\n') {
+                    processLine(mPosition + start, mPosition + i + 1,
+                            new String(mBuffer, start, i - start, StandardCharsets.UTF_8));
+                    start = i + 1;
+                }
+            }
+
+            mPosition += end;
+        }
+    }
+
+    /**
+     * Writes the last, possibly incomplete, block and closes the index
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (mRecords > 0) {
+                writeBlock(mPosition);
+            }
+        } finally {
+            if (mWriter != null) {
+                mWriter.close();
+                mWriter = null;
+            }
+            if (mReader != null) {
+                mReader.close();
+                mReader = null;
+            }
+        }
+    }
+
+    /**
+     * Processes a line of the log
+     *
+     * @param offset The offset of the line
+     * @param next   The offset after the line's newline
+     * @param line   The line
+     */
+    private void processLine(long offset, long next, String line) throws IOException {
+        line = line.trim();
+
+        /* Side-channel records and empty lines are covered by blocks, but not indexed. */
+        if (line.isEmpty() || line.charAt(0) == '#') {
+            return;
+        }
+
+        String[] fields = line.split(",", -1);
+
+        if (mColumns == null) {
+            if (!isNumeric(fields[0].trim())) {
+                writeHeader(fields);
+                mBlockStart = next;
+                return;
+            }
+
+            String[] names = new String[fields.length];
+            for (int i = 0; i < names.length; ++i) {
+                names[i] = "column_" + i;
+            }
+            writeHeader(names);
+            mBlockStart = offset;
+        }
+
+        long time = parseTime(fields[mTimeColumn].trim());
+
+        if (mRecords == 0) {
+            mFirstTime = time;
+        }
+        mLastTime = time;
+
+        for (int c = 0; c < mColumns.length && c < fields.length; ++c) {
+            double value;
+            try {
+                value = Double.parseDouble(fields[c].trim());
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            mMin[c] = Math.min(mMin[c], value);
+            mMax[c] = Math.max(mMax[c], value);
+        }
+
+        if (++mRecords == mBlockRecords) {
+            writeBlock(next);
+        }
+    }
+
+    private void writeHeader(String[] columns) throws IOException {
+        mColumns = new String[columns.length];
+        mTimeColumn = 0;
+
+        for (int i = columns.length - 1; i >= 0; --i) {
+            mColumns[i] = columns[i].trim();
+            if (mColumns[i].toLowerCase().contains("timestamp")) {
+                mTimeColumn = i;
+            }
+        }
+
+        mMin = new double[mColumns.length];
+        mMax = new double[mColumns.length];
+        resetBlock();
+
+        mWriter = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mIndex)));
+        mWriter.write(CaptureIndex.MAGIC);
+        mWriter.writeInt(mBlockRecords);
+        mWriter.writeInt(mTimeColumn);
+        mWriter.writeInt(mColumns.length);
+        for (String column : mColumns) {
+            mWriter.writeUTF(column);
+        }
+        mWriter.flush();
+    }
+
+    /**
+     * Appends the current block to the index
+     *
+     * @param end The offset after the last record of the block
+     */
+    private void writeBlock(long end) throws IOException {
+        mWriter.writeLong(mBlockStart);
+        mWriter.writeLong(end - mBlockStart);
+        mWriter.writeInt(mRecords);
+        mWriter.writeLong(mFirstTime);
+        mWriter.writeLong(mLastTime);
+        for (int c = 0; c < mColumns.length; ++c) {
+            /* Columns without numeric values get an empty [NaN, NaN] range. */
+            boolean empty = mMin[c] > mMax[c];
+            mWriter.writeDouble(empty ? Double.NaN : mMin[c]);
+            mWriter.writeDouble(empty ? Double.NaN : mMax[c]);
+        }
+        mWriter.flush();
+
+        mBlockStart = end;
+        resetBlock();
+    }
+
+    private void resetBlock() {
+        mRecords = 0;
+        mFirstTime = Long.MIN_VALUE;
+        mLastTime = Long.MIN_VALUE;
+        Arrays.fill(mMin, Double.POSITIVE_INFINITY);
+        Arrays.fill(mMax, Double.NEGATIVE_INFINITY);
+    }
+
+    private static long parseTime(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            try {
+                return Math.round(Double.parseDouble(value));
+            } catch (NumberFormatException f) {
+                return Long.MIN_VALUE;
+            }
+        }
+    }
+
+    private static boolean isNumeric(String value) {
+        try {
+            Double.parseDouble(value);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+}
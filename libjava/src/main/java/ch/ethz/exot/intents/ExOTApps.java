@@ -52,6 +52,8 @@ public final class ExOTApps {
         public static final String QUERY       = BASE_A + "QUERY";
         public static final String STATUS      = BASE_A + "STATUS";
         public static final String KILLED      = BASE_A + "KILLED";
+        public static final String TRIGGER     = BASE_A + "TRIGGER";
+        public static final String MARK        = BASE_A + "MARK";
     }
 
     public final class Keys {
@@ -63,6 +65,11 @@ public final class ExOTApps {
         public static final String MODE        = BASE_KE + "MODE";
         public static final String BUNDLE      = BASE_KE + "BUNDLE";;
         public static final String CONFIG      = BASE_KE + "CONFIG";
+        public static final String TRIGGER     = BASE_KE + "TRIGGER";
+        public static final String MARKER      = BASE_KE + "MARKER";
+        public static final String COMMAND_ID  = BASE_KE + "COMMAND_ID";
+        public static final String COMMAND_TIME = BASE_KE + "COMMAND_TIME";
+        public static final String START_LATENCY = BASE_KE + "START_LATENCY";
     }
 
     /**
@@ -36,12 +36,16 @@ public final class IntentProxy {
         public static final String BUNDLE_EXTRAS  = BASE_A + "BUNDLE_EXTRAS";
         public static final String START_APPS     = BASE_A + "START_APPS";
         public static final String STOP_APPS      = BASE_A + "STOP_APPS";
+        public static final String QUERY_APPS     = BASE_A + "QUERY_APPS";
+        public static final String TRIGGER_APPS   = BASE_A + "TRIGGER_APPS";
         public static final String CONFIGURE_APP  = BASE_A + "CONFIGURE_APP";
         public static final String FORWARD_       = BASE_A + "FORWARD_";
         public static final String FORWARD        = BASE_A + "FORWARD";
         public static final String FORWARD_BUNDLE = BASE_A + "FORWARD_BUNDLE";
         public static final String FORWARD_STARTSERVICE = BASE_A + "FORWARD_STARTSERVICE";
         public static final String FORWARD_STARTACTIVITY = BASE_A + "FORWARD_STARTACTIVITY";
+        public static final String RUN_PLAN       = BASE_A + "RUN_PLAN";
+        public static final String CANCEL_PLAN    = BASE_A + "CANCEL_PLAN";
     }
 
     public final class KeysExtras {
@@ -57,5 +61,6 @@ public final class IntentProxy {
 
         // Other Keys
         public static final String APPS_ARRAY        = BASE_KE + "APPS_ARRAY";
+        public static final String PLAN              = BASE_KE + "PLAN";
     }
 }
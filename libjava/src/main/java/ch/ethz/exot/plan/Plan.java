@@ -0,0 +1,243 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+package ch.ethz.exot.plan;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An experiment plan, a sequence of steps executed on the device by a PlanRunner.
+ *
+ * Plans are usually given as JSON, see PlanParser:
+ *
+ * <pre>
+ * {
+ *   "name": "replay-hot",
+ *   "apps": ["ch.ethz.exot.thermalsc/.MeterService"],
+ *   "steps": [
+ *     {"do": "configure", "config": {...}},
+ *     {"do": "start"},
+ *     {"do": "wait_until", "condition": "alive", "timeout": 10},
+ *     {"do": "replay", "at": 5, "extras": {"filename": "touches.txt"}},
+ *     {"do": "wait", "for": 60},
+ *     {"do": "stop", "always": true}
+ *   ]
+ * }
+ * </pre>
+ *
+ * Steps run one after another. A step with "at" is held until that many seconds after
+ * the plan start, others run as soon as the previous step is done. The apps of a step
+ * default to the apps of the plan. If a step fails or a condition times out, the
+ * remaining steps are skipped except those marked "always", e.g. to stop the apps.
+ *
+ * The model itself holds the steps as maps of plain Java values, i.e. strings,
+ * numbers, booleans, lists and maps, so that plans can be built and run without a
+ * JSON library.
+ */
+public final class Plan {
+    /** Step kinds */
+    public static final String CONFIGURE = "configure";
+    public static final String START = "start";
+    public static final String STOP = "stop";
+    public static final String TRIGGER = "trigger";
+    public static final String REPLAY = "replay";
+    public static final String MARK = "mark";
+    public static final String WAIT = "wait";
+    public static final String WAIT_UNTIL = "wait_until";
+
+    private static final double DEFAULT_TIMEOUT = 30.0;
+    private static final double DEFAULT_POLL = 0.05;
+
+    private final String mName;
+    private final List<Step> mSteps;
+
+    /**
+     * A single step of a plan
+     */
+    public static final class Step {
+        public final int index;
+        public final String kind;
+        public final String label;
+        /** Offset from the plan start, in nanoseconds, or -1 if not scheduled */
+        public final long at;
+        /** Duration of waits and timeout of conditions, in nanoseconds */
+        public final long duration;
+        /** Polling period of conditions, in nanoseconds */
+        public final long poll;
+        public final boolean always;
+        public final List<String> apps;
+        /** The step as given, for kind-specific arguments */
+        public final Map<String, Object> args;
+
+        Step(int index, Map<String, Object> step, List<String> defaultApps) {
+            this.index = index;
+            this.args = Collections.unmodifiableMap(new LinkedHashMap<String, Object>(step));
+            this.kind = required(index, "do");
+            this.label = has("label") ? getString("label") : String.format("%d:%s", index, kind);
+            this.at = has("at") ? seconds(index, args.get("at")) : -1;
+            this.always = getBoolean("always", false);
+
+            switch (kind) {
+            case WAIT:
+                this.duration = seconds(index, args.get("for"));
+                break;
+            case WAIT_UNTIL:
+                required(index, "condition");
+                this.duration = has("timeout") ? seconds(index, args.get("timeout"))
+                        : seconds(index, DEFAULT_TIMEOUT);
+                break;
+            case CONFIGURE:
+                required(index, "config");
+                this.duration = 0;
+                break;
+            case START:
+            case STOP:
+            case TRIGGER:
+            case REPLAY:
+            case MARK:
+                this.duration = 0;
+                break;
+            default:
+                throw new IllegalArgumentException("step " + index + ": unknown kind " + kind);
+            }
+
+            this.poll = has("poll") ? seconds(index, args.get("poll")) : seconds(index, DEFAULT_POLL);
+
+            if (has("apps")) {
+                this.apps = Collections.unmodifiableList(strings(index, args.get("apps")));
+            } else if (has("app")) {
+                this.apps = Collections.singletonList(required(index, "app"));
+            } else {
+                this.apps = defaultApps;
+            }
+        }
+
+        public boolean has(String key) {
+            return args.get(key) != null;
+        }
+
+        /**
+         * Gets a string argument
+         *
+         * @return The argument, or null if not given
+         */
+        public String getString(String key) {
+            Object value = args.get(key);
+            return value != null ? value.toString() : null;
+        }
+
+        public boolean getBoolean(String key, boolean fallback) {
+            Object value = args.get(key);
+            return value instanceof Boolean ? (Boolean) value : fallback;
+        }
+
+        /**
+         * Gets an object argument, e.g. the extras of a replay step
+         *
+         * @return The argument, or an empty map if not given or not an object
+         */
+        @SuppressWarnings("unchecked")
+        public Map<String, Object> getObject(String key) {
+            Object value = args.get(key);
+            return value instanceof Map ? (Map<String, Object>) value
+                    : Collections.<String, Object>emptyMap();
+        }
+
+        private String required(int index, String key) {
+            if (!has(key)) {
+                throw new IllegalArgumentException("step " + index + ": missing " + key);
+            }
+            return getString(key);
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param name  The plan name
+     * @param apps  The default apps of the steps
+     * @param steps The steps, as maps of plain values
+     * @throws IllegalArgumentException if a step is not valid
+     */
+    public Plan(String name, List<String> apps, List<Map<String, Object>> steps) {
+        List<String> defaultApps = Collections.unmodifiableList(new ArrayList<String>(apps));
+        List<Step> list = new ArrayList<Step>(steps.size());
+        long last = 0;
+
+        for (int i = 0; i < steps.size(); ++i) {
+            Step step = new Step(i, steps.get(i), defaultApps);
+            if (step.at >= 0) {
+                if (step.at < last) {
+                    throw new IllegalArgumentException("step " + i + ": scheduled before the previous step");
+                }
+                last = step.at;
+            }
+            list.add(step);
+        }
+
+        mName = name;
+        mSteps = Collections.unmodifiableList(list);
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public List<Step> getSteps() {
+        return mSteps;
+    }
+
+    private static long seconds(int index, Object value) {
+        double s = value instanceof Number ? ((Number) value).doubleValue() : Double.NaN;
+        if (!(s >= 0) || Double.isInfinite(s)) {
+            throw new IllegalArgumentException("step " + index + ": invalid time: " + value);
+        }
+        return (long) (s * 1e9);
+    }
+
+    private static List<String> strings(int index, Object value) {
+        if (!(value instanceof List)) {
+            throw new IllegalArgumentException("step " + index + ": expected a list: " + value);
+        }
+
+        List<String> list = new ArrayList<String>();
+        for (Object item : (List<?>) value) {
+            list.add(String.valueOf(item));
+        }
+        return list;
+    }
+}
@@ -0,0 +1,112 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+package ch.ethz.exot.plan;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parses experiment plans from JSON, see Plan for the format.
+ *
+ * JSON objects and arrays become maps and lists of the plan model. The "config" of a
+ * configure step is kept as JSON text, which is what the apps receive.
+ */
+public final class PlanParser {
+    private PlanParser() {
+    }
+
+    /**
+     * Parses a plan
+     *
+     * @param json The plan as JSON
+     * @return The plan
+     * @throws JSONException if the plan is not valid
+     */
+    public static Plan parse(String json) throws JSONException {
+        JSONObject root = new JSONObject(json);
+
+        List<String> apps = new ArrayList<String>();
+        if (root.has("apps")) {
+            JSONArray array = root.getJSONArray("apps");
+            for (int i = 0; i < array.length(); ++i) {
+                apps.add(array.getString(i));
+            }
+        }
+
+        JSONArray array = root.getJSONArray("steps");
+        List<Map<String, Object>> steps = new ArrayList<Map<String, Object>>(array.length());
+        for (int i = 0; i < array.length(); ++i) {
+            JSONObject step = array.getJSONObject(i);
+            Map<String, Object> map = toMap(step);
+            if (step.has("config")) {
+                map.put("config", step.get("config").toString());
+            }
+            steps.add(map);
+        }
+
+        try {
+            return new Plan(root.optString("name", "plan"), apps, steps);
+        } catch (IllegalArgumentException e) {
+            throw new JSONException(e.getMessage());
+        }
+    }
+
+    private static Map<String, Object> toMap(JSONObject object) throws JSONException {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        Iterator<String> keys = object.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            map.put(key, toValue(object.get(key)));
+        }
+        return map;
+    }
+
+    private static Object toValue(Object value) throws JSONException {
+        if (value instanceof JSONObject) {
+            return Collections.unmodifiableMap(toMap((JSONObject) value));
+        }
+        if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            List<Object> list = new ArrayList<Object>(array.length());
+            for (int i = 0; i < array.length(); ++i) {
+                list.add(toValue(array.get(i)));
+            }
+            return Collections.unmodifiableList(list);
+        }
+        return value == JSONObject.NULL ? null : value;
+    }
+}
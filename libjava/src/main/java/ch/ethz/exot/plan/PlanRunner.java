@@ -0,0 +1,347 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+package ch.ethz.exot.plan;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Executes a plan on a dedicated thread, without any round trips to the host.
+ *
+ * Steps are dispatched through a Dispatcher, which sends the actual commands, and
+ * timed with a Clock. Both are interfaces so that the runner can be exercised on a
+ * plain JVM with fake targets and a simulated clock. For every step a Report is passed
+ * to the dispatcher, holding the time the step was due, when it actually ran and how
+ * long it took, all on the runner's clock.
+ */
+public final class PlanRunner implements Runnable {
+    /**
+     * The targets of the plan steps. Methods are called on the runner thread, an
+     * exception fails the step.
+     */
+    public interface Dispatcher {
+        void configure(Plan.Step step, String config) throws Exception;
+
+        void start(Plan.Step step) throws Exception;
+
+        void stop(Plan.Step step) throws Exception;
+
+        void trigger(Plan.Step step, String reason) throws Exception;
+
+        void replay(Plan.Step step) throws Exception;
+
+        void mark(Plan.Step step, String label, long time) throws Exception;
+
+        /**
+         * Evaluates a condition of a wait_until step
+         *
+         * @return True if satisfied
+         */
+        boolean check(Plan.Step step, String condition) throws Exception;
+
+        /**
+         * Receives the report of each executed or skipped step
+         */
+        void onStep(Report report);
+
+        /**
+         * Receives the end of the plan, after the last report
+         *
+         * @param completed True if all steps succeeded
+         */
+        void onFinished(Plan plan, boolean completed);
+    }
+
+    /**
+     * A time source, in nanoseconds
+     */
+    public interface Clock {
+        long now();
+
+        /**
+         * Blocks until the clock reaches a deadline
+         *
+         * @throws InterruptedException if the runner was cancelled
+         */
+        void sleepUntil(long deadline) throws InterruptedException;
+    }
+
+    /**
+     * A clock on System.nanoTime(). Sleeps end early by a margin, which is then spent
+     * yielding, so steps start within tens of microseconds of their deadline rather
+     * than within the scheduler's timer slack.
+     */
+    public static class PreciseClock implements Clock {
+        private static final long SPIN_NS = TimeUnit.MILLISECONDS.toNanos(2);
+
+        @Override
+        public long now() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public void sleepUntil(long deadline) throws InterruptedException {
+            long remaining;
+            while ((remaining = deadline - now()) > SPIN_NS) {
+                LockSupport.parkNanos(remaining - SPIN_NS);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+            while (deadline - now() > 0) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                Thread.yield();
+            }
+        }
+    }
+
+    /** Outcomes of a step */
+    public enum Outcome {
+        DONE,
+        FAILED,
+        TIMEOUT,
+        SKIPPED,
+        CANCELLED
+    }
+
+    /**
+     * The execution record of a step. Times are on the runner's clock.
+     */
+    public static final class Report {
+        public final Plan.Step step;
+        public final Outcome outcome;
+        /** The time the step was due, or the plan start plus its offset if scheduled */
+        public final long due;
+        /** The time the step started */
+        public final long started;
+        /** The time the step was done */
+        public final long finished;
+        public final String message;
+
+        Report(Plan.Step step, Outcome outcome, long due, long started, long finished, String message) {
+            this.step = step;
+            this.outcome = outcome;
+            this.due = due;
+            this.started = started;
+            this.finished = finished;
+            this.message = message;
+        }
+
+        /** Gets the delay of the step start past its due time, in nanoseconds */
+        public long getLateness() {
+            return started - due;
+        }
+
+        /**
+         * Formats the report as a side-channel record,
+         * '# plan_step,started,index,kind,outcome,lateness,duration,label'
+         */
+        public String toRecord() {
+            return String.format(Locale.US, "# plan_step,%d,%d,%s,%s,%d,%d,%s", started, step.index,
+                    step.kind, outcome.name().toLowerCase(Locale.US), getLateness(), finished - started,
+                    step.label.replace(',', ';'));
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s: %s late=%.3fms took=%.3fms%s", step.label, outcome,
+                    getLateness() / 1e6, (finished - started) / 1e6, message != null ? " " + message : "");
+        }
+    }
+
+    private final Plan mPlan;
+    private final Dispatcher mDispatcher;
+    private final Clock mClock;
+    private final List<Report> mReports = new ArrayList<Report>();
+
+    private volatile Thread mThread = null;
+    private volatile boolean mCancelled = false;
+    private volatile long mStart = 0;
+
+    public PlanRunner(Plan plan, Dispatcher dispatcher, Clock clock) {
+        mPlan = plan;
+        mDispatcher = dispatcher;
+        mClock = clock;
+    }
+
+    public PlanRunner(Plan plan, Dispatcher dispatcher) {
+        this(plan, dispatcher, new PreciseClock());
+    }
+
+    /**
+     * Runs the plan on a new thread
+     */
+    public synchronized void start() {
+        if (mThread != null) {
+            throw new IllegalStateException("plan already started");
+        }
+        mThread = new Thread(this, "ExOT/Plan");
+        mThread.setPriority(Thread.MAX_PRIORITY);
+        mThread.start();
+    }
+
+    /**
+     * Cancels the plan. Steps marked "always" are still executed, with their schedule
+     * ignored.
+     */
+    public void cancel() {
+        mCancelled = true;
+        Thread thread = mThread;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    public boolean isRunning() {
+        Thread thread = mThread;
+        return thread != null && thread.isAlive();
+    }
+
+    public Plan getPlan() {
+        return mPlan;
+    }
+
+    /**
+     * Gets the start time of the plan on the runner's clock
+     */
+    public long getStartTime() {
+        return mStart;
+    }
+
+    public synchronized List<Report> getReports() {
+        return Collections.unmodifiableList(new ArrayList<Report>(mReports));
+    }
+
+    /**
+     * Runs the plan on the calling thread
+     */
+    @Override
+    public void run() {
+        boolean completed = true;
+        mStart = mClock.now();
+
+        for (Plan.Step step : mPlan.getSteps()) {
+            boolean abandoned = !completed || mCancelled;
+            Report report;
+
+            if (abandoned && !step.always) {
+                long now = mClock.now();
+                report = new Report(step, mCancelled ? Outcome.CANCELLED : Outcome.SKIPPED, now, now, now, null);
+            } else {
+                report = execute(step, abandoned);
+                if (report.outcome != Outcome.DONE) {
+                    completed = false;
+                }
+            }
+
+            synchronized (this) {
+                mReports.add(report);
+            }
+            mDispatcher.onStep(report);
+        }
+
+        mDispatcher.onFinished(mPlan, completed && !mCancelled);
+    }
+
+    private Report execute(Plan.Step step, boolean abandoned) {
+        long due = mClock.now();
+
+        if (abandoned) {
+            /* Clear a pending cancellation, the step must run to completion. */
+            Thread.interrupted();
+        }
+
+        try {
+            if (step.at >= 0 && !abandoned) {
+                due = mStart + step.at;
+                mClock.sleepUntil(due);
+            }
+
+            long started = mClock.now();
+            Outcome outcome = Outcome.DONE;
+
+            switch (step.kind) {
+            case Plan.CONFIGURE:
+                mDispatcher.configure(step, step.getString("config"));
+                break;
+            case Plan.START:
+                mDispatcher.start(step);
+                break;
+            case Plan.STOP:
+                mDispatcher.stop(step);
+                break;
+            case Plan.TRIGGER:
+                mDispatcher.trigger(step, step.has("reason") ? step.getString("reason") : step.label);
+                break;
+            case Plan.REPLAY:
+                mDispatcher.replay(step);
+                break;
+            case Plan.MARK:
+                mDispatcher.mark(step, step.label, started);
+                break;
+            case Plan.WAIT:
+                mClock.sleepUntil(started + step.duration);
+                break;
+            case Plan.WAIT_UNTIL:
+                outcome = waitUntil(step, started);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown step " + step.kind);
+            }
+
+            return new Report(step, outcome, due, started, mClock.now(), null);
+        } catch (InterruptedException e) {
+            long now = mClock.now();
+            return new Report(step, Outcome.CANCELLED, due, now, now, null);
+        } catch (Exception e) {
+            long now = mClock.now();
+            return new Report(step, Outcome.FAILED, due, now, now, e.toString());
+        }
+    }
+
+    private Outcome waitUntil(Plan.Step step, long started) throws Exception {
+        String condition = step.getString("condition");
+        long deadline = started + step.duration;
+
+        while (!mDispatcher.check(step, condition)) {
+            long now = mClock.now();
+            if (now - deadline >= 0) {
+                return Outcome.TIMEOUT;
+            }
+            mClock.sleepUntil(Math.min(deadline, now + step.poll));
+        }
+        return Outcome.DONE;
+    }
+}
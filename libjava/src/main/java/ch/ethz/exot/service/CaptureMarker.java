@@ -0,0 +1,108 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+package ch.ethz.exot.service;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.RemoteException;
+import android.os.SystemClock;
+
+import ch.ethz.exot.intents.ExOTApps;
+
+/**
+ * Named markers injected into the capture of an app, to relate outside events such as
+ * touch replays to the meter timeline.
+ *
+ * A marker is stamped by the sender with the elapsed realtime clock, the boot clock
+ * the meters relate their records to, so the delivery latency does not shift it. It
+ * can be sent as a one-way call on the binder returned when binding to the app
+ * service, which skips the main thread of the receiver, or as a MARK command.
+ */
+public final class CaptureMarker {
+    /** The binder interface descriptor */
+    public static final String DESCRIPTOR = "ch.ethz.exot.service.CaptureMarker";
+
+    /**
+     * The binder transaction code of a marker. The call data holds the interface
+     * token, the name and the time.
+     */
+    public static final int TRANSACTION = IBinder.FIRST_CALL_TRANSACTION;
+
+    private CaptureMarker() {
+    }
+
+    /**
+     * Sends a marker on the binder of an app service
+     *
+     * @param binder The binder
+     * @param name   The marker name
+     * @param time   The event time, in elapsed realtime nanoseconds
+     * @throws RemoteException if the service is dead
+     */
+    public static void send(IBinder binder, String name, long time) throws RemoteException {
+        Parcel data = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(DESCRIPTOR);
+            data.writeString(name);
+            data.writeLong(time);
+            binder.transact(TRANSACTION, data, null, IBinder.FLAG_ONEWAY);
+        } finally {
+            data.recycle();
+        }
+    }
+
+    /**
+     * Creates the MARK command of a marker, stamped with the current time
+     *
+     * @param component The app service
+     * @param name      The marker name
+     * @return The command intent
+     */
+    public static Intent command(ComponentName component, String name) {
+        return command(component, name, SystemClock.elapsedRealtimeNanos());
+    }
+
+    /**
+     * Creates the MARK command of a marker
+     *
+     * @param component The app service
+     * @param name      The marker name
+     * @param time      The event time, in elapsed realtime nanoseconds
+     * @return The command intent
+     */
+    public static Intent command(ComponentName component, String name, long time) {
+        Intent intent = new Intent(ExOTApps.Actions.MARK);
+        intent.setComponent(component);
+        intent.putExtra(ExOTApps.Keys.MARKER, name);
+        intent.putExtra(ExOTApps.Keys.COMMAND_TIME, time);
+        return CommandBus.stamp(intent);
+    }
+}
@@ -0,0 +1,282 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+package ch.ethz.exot.service;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.WeakHashMap;
+
+import ch.ethz.exot.intents.ExOTApps.Keys;
+
+/**
+ * Process-wide bus delivering commands to the services of the process.
+ *
+ * Each service registers a single handler for its component for its whole lifetime,
+ * so that a command reaches it exactly once, no matter how many commands were issued
+ * before. Commands may arrive via startService(), via a broadcast, or be posted from
+ * within the process, in which case no IPC is involved at all.
+ *
+ * Commands are stamped with an id and the time they were issued. A command seen again
+ * by the same handler under the same id, e.g. when sent both as a broadcast and via
+ * startService(), is dropped. Each handler remembers its own ids, so that a command
+ * broadcast to several services of the process reaches every one of them.
+ *
+ * The dispatch latency, from issuing to handling, is recorded per action. The issue
+ * time uses the elapsed realtime clock, which is shared by all processes.
+ *
+ * All dispatching happens on the main thread.
+ */
+public final class CommandBus {
+    private static final String TAG = "ExOT/CommandBus";
+
+    /**
+     * Number of recent command ids remembered per handler for deduplication
+     */
+    private static final int RECENT_IDS = 256;
+
+    private static final CommandBus sInstance = new CommandBus();
+
+    /**
+     * Interface for handling commands delivered through the bus.
+     */
+    public interface Handler {
+        void onCommand(Intent command);
+    }
+
+    /**
+     * Dispatch latency statistics of a single action.
+     */
+    public static final class Latency {
+        private long mCount = 0;
+        private long mTotalNs = 0;
+        private long mMaxNs = 0;
+        private long mLastNs = 0;
+        private long mLastIssued = -1;
+
+        private void add(long issued, long latencyNs) {
+            mLastIssued = issued;
+            mCount++;
+            mTotalNs += latencyNs;
+            mMaxNs = Math.max(mMaxNs, latencyNs);
+            mLastNs = latencyNs;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getLastNanos() {
+            return mLastNs;
+        }
+
+        public long getMaxNanos() {
+            return mMaxNs;
+        }
+
+        public long getMeanNanos() {
+            return mCount > 0 ? mTotalNs / mCount : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "n=%d last=%.3fms mean=%.3fms max=%.3fms", mCount,
+                    mLastNs / 1e6, getMeanNanos() / 1e6, mMaxNs / 1e6);
+        }
+    }
+
+    private final android.os.Handler mMainHandler = new android.os.Handler(Looper.getMainLooper());
+    private final Map<ComponentName, Handler> mHandlers = new HashMap<ComponentName, Handler>();
+    private final Map<String, Latency> mLatencies = new HashMap<String, Latency>();
+    private final Map<Handler, Map<String, Boolean>> mRecentIds =
+            new WeakHashMap<Handler, Map<String, Boolean>>();
+
+    private CommandBus() {
+    }
+
+    public static CommandBus getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Stamps a command with an id and the current time, unless already stamped.
+     *
+     * @param command The command intent
+     * @return The same intent, for chaining
+     */
+    public static Intent stamp(Intent command) {
+        if (!command.hasExtra(Keys.COMMAND_ID)) {
+            command.putExtra(Keys.COMMAND_ID, UUID.randomUUID().toString());
+        }
+        if (!command.hasExtra(Keys.COMMAND_TIME)) {
+            command.putExtra(Keys.COMMAND_TIME, SystemClock.elapsedRealtimeNanos());
+        }
+        return command;
+    }
+
+    /**
+     * Registers the handler of a service component, replacing the previous one.
+     *
+     * @param component The service component
+     * @param handler   The handler
+     */
+    public synchronized void register(ComponentName component, Handler handler) {
+        mHandlers.put(component, handler);
+    }
+
+    public synchronized void unregister(ComponentName component) {
+        mHandlers.remove(component);
+    }
+
+    /**
+     * Sends a command to the service set as the intent's component. If the service is
+     * running in this process, the command is delivered directly, otherwise it is sent
+     * via startService().
+     *
+     * @param context The context used for sending
+     * @param command The command intent, with the component set
+     * @return True if delivered in process, false if sent via startService()
+     */
+    public boolean post(Context context, Intent command) {
+        stamp(command);
+
+        final Handler handler;
+        synchronized (this) {
+            handler = command.getComponent() != null ? mHandlers.get(command.getComponent()) : null;
+        }
+
+        if (handler != null) {
+            final Intent copy = new Intent(command);
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    dispatch(copy, handler);
+                }
+            });
+            return true;
+        }
+
+        context.startService(command);
+        return false;
+    }
+
+    /**
+     * Delivers a received command to a handler, unless the handler has already seen it.
+     * Commands issued outside of the bus, e.g. with am startservice, carry no issue time
+     * and are stamped on receipt, so that their latency is measured from here.
+     *
+     * @param command The command intent
+     * @param handler The handler
+     * @return True if delivered, false if dropped as a duplicate
+     */
+    public boolean dispatch(Intent command, Handler handler) {
+        String id = command.getStringExtra(Keys.COMMAND_ID);
+
+        if (id != null) {
+            synchronized (mRecentIds) {
+                Map<String, Boolean> recent = mRecentIds.get(handler);
+                if (recent == null) {
+                    recent = new LinkedHashMap<String, Boolean>() {
+                        @Override
+                        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                            return size() > RECENT_IDS;
+                        }
+                    };
+                    mRecentIds.put(handler, recent);
+                }
+                if (recent.put(id, Boolean.TRUE) != null) {
+                    Log.d(TAG, "dispatch(): dropped duplicate " + command.getAction() + " " + id);
+                    return false;
+                }
+            }
+        }
+
+        if (!command.hasExtra(Keys.COMMAND_TIME)) {
+            command.putExtra(Keys.COMMAND_TIME, SystemClock.elapsedRealtimeNanos());
+        }
+
+        long issued = command.getLongExtra(Keys.COMMAND_TIME, -1);
+        if (issued >= 0 && command.getAction() != null) {
+            long latency = SystemClock.elapsedRealtimeNanos() - issued;
+            synchronized (mLatencies) {
+                Latency stats = mLatencies.get(command.getAction());
+                if (stats == null) {
+                    stats = new Latency();
+                    mLatencies.put(command.getAction(), stats);
+                }
+                stats.add(issued, latency);
+            }
+            Log.d(TAG, String.format(Locale.US, "dispatch(): %s delivered %.3f ms after issue",
+                    command.getAction(), latency / 1e6));
+        }
+
+        handler.onCommand(command);
+        return true;
+    }
+
+    /**
+     * Gets the time the last delivered command with the given action was issued.
+     *
+     * @param action The action
+     * @return The elapsed realtime in nanoseconds, or -1 if no such command was seen
+     */
+    public long getLastIssued(String action) {
+        synchronized (mLatencies) {
+            Latency stats = mLatencies.get(action);
+            return stats != null ? stats.mLastIssued : -1;
+        }
+    }
+
+    /**
+     * Summarises the dispatch latencies of all actions seen so far.
+     *
+     * @return One line per action
+     */
+    public String getLatencySummary() {
+        StringBuilder builder = new StringBuilder();
+        synchronized (mLatencies) {
+            for (Map.Entry<String, Latency> entry : mLatencies.entrySet()) {
+                String action = entry.getKey();
+                builder.append(action.substring(action.lastIndexOf('.') + 1))
+                        .append(": ").append(entry.getValue()).append('\n');
+            }
+        }
+        return builder.toString();
+    }
+}
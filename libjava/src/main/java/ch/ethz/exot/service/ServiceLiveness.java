@@ -0,0 +1,225 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+package ch.ethz.exot.service;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Tracks whether a service is alive by holding a passive binding to it.
+ *
+ * The binding is made without BIND_AUTO_CREATE, so it neither creates nor keeps the
+ * service alive. The system connects it whenever the service comes up and disconnects
+ * it when the service is destroyed; a death recipient on the returned binder catches
+ * the case where the hosting process is killed. The tracked service must return a
+ * non-null binder from onBind().
+ *
+ * The cached state can be read from any thread, listeners are invoked on the main thread.
+ */
+public class ServiceLiveness implements ServiceConnection {
+    private static final String TAG = "ExOT/ServiceLiveness";
+
+    /**
+     * Interface for receiving liveness transitions of the tracked service.
+     */
+    public interface Listener {
+        void onLivenessChanged(ComponentName component, boolean alive);
+    }
+
+    private final Context mContext;
+    private final ComponentName mComponent;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+
+    private volatile boolean mAlive = false;
+    private boolean mTracking = false;
+    private volatile IBinder mBinder = null;
+
+    private final IBinder.DeathRecipient mDeathRecipient = new IBinder.DeathRecipient() {
+        @Override
+        public void binderDied() {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    Log.w(TAG, "binderDied(): " + mComponent.flattenToShortString());
+                    mBinder = null;
+                    setAlive(false);
+                }
+            });
+        }
+    };
+
+    /**
+     * Constructor
+     *
+     * @param context   The context used for binding
+     * @param component The service to track
+     */
+    public ServiceLiveness(Context context, ComponentName component) {
+        mContext = context;
+        mComponent = component;
+    }
+
+    /**
+     * Starts tracking the service. Must be called from the main thread.
+     *
+     * @return True if the binding was accepted by the system, false otherwise
+     */
+    public boolean track() {
+        if (mTracking) {
+            return true;
+        }
+
+        Intent intent = new Intent();
+        intent.setComponent(mComponent);
+
+        try {
+            mTracking = mContext.bindService(intent, this, 0);
+        } catch (SecurityException e) {
+            Log.e(TAG, "track(): not allowed to bind " + mComponent.flattenToShortString() + ": " + e);
+            mTracking = false;
+        }
+
+        Log.d(TAG, "track(): " + mComponent.flattenToShortString() + ": " + mTracking);
+        return mTracking;
+    }
+
+    /**
+     * Stops tracking the service. Must be called from the main thread.
+     */
+    public void untrack() {
+        if (!mTracking) {
+            return;
+        }
+
+        unlinkBinder();
+        mContext.unbindService(this);
+        mTracking = false;
+        setAlive(false);
+    }
+
+    /**
+     * Checks if the tracked service is alive, using the cached state.
+     *
+     * @return True if alive, false otherwise
+     */
+    public boolean isAlive() {
+        return mAlive;
+    }
+
+    public ComponentName getComponent() {
+        return mComponent;
+    }
+
+    /**
+     * Gets the binder of the tracked service, which can be used for direct calls.
+     *
+     * @return The binder, or null if the service is not connected
+     */
+    public IBinder getBinder() {
+        return mBinder;
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    @Override
+    public void onServiceConnected(ComponentName name, IBinder service) {
+        unlinkBinder();
+
+        if (service != null) {
+            try {
+                service.linkToDeath(mDeathRecipient, 0);
+                mBinder = service;
+            } catch (RemoteException e) {
+                /* The service died before we got the chance to link to it. */
+                Log.w(TAG, "onServiceConnected(): binder already dead");
+                setAlive(false);
+                return;
+            }
+        } else {
+            Log.w(TAG, "onServiceConnected(): null binder, death notifications unavailable");
+        }
+
+        setAlive(true);
+    }
+
+    @Override
+    public void onServiceDisconnected(ComponentName name) {
+        unlinkBinder();
+        setAlive(false);
+    }
+
+    @Override
+    public void onBindingDied(ComponentName name) {
+        /* The binding will not reconnect on its own, e.g. after the package was updated. */
+        Log.w(TAG, "onBindingDied(): " + name.flattenToShortString() + ", rebinding");
+        untrack();
+        track();
+    }
+
+    @Override
+    public void onNullBinding(ComponentName name) {
+        Log.e(TAG, "onNullBinding(): " + name.flattenToShortString() + " does not support liveness tracking");
+    }
+
+    private void unlinkBinder() {
+        if (mBinder != null) {
+            mBinder.unlinkToDeath(mDeathRecipient, 0);
+            mBinder = null;
+        }
+    }
+
+    private void setAlive(boolean alive) {
+        if (mAlive == alive) {
+            return;
+        }
+
+        mAlive = alive;
+        Log.i(TAG, String.format("%s is %s", mComponent.flattenToShortString(), alive ? "alive" : "dead"));
+
+        for (Listener listener : mListeners) {
+            listener.onLivenessChanged(mComponent, alive);
+        }
+    }
+}
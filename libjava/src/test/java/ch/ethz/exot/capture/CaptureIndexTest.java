@@ -0,0 +1,218 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+package ch.ethz.exot.capture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CaptureIndexTest {
+    private File mLog;
+
+    @Before
+    public void setUp() throws IOException {
+        mLog = File.createTempFile("log", ".csv");
+    }
+
+    @After
+    public void tearDown() {
+        CaptureIndex.indexFileFor(mLog).delete();
+        mLog.delete();
+    }
+
+    /**
+     * Record i has the timestamp 1000 * i, and a temperature which peaks at record 2500
+     */
+    private static String record(int i) {
+        return (1000L * i) + "," + (40 + 40 * Math.exp(-Math.pow((i - 2500) / 50.0, 2)))
+                + ",app" + (i % 3) + "\n";
+    }
+
+    private static String log(int from, int to) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = from; i < to; ++i) {
+            if (i % 400 == 7) {
+                builder.append("# marker,").append(1000L * i).append(",step\n");
+            }
+            builder.append(record(i));
+        }
+        return builder.toString();
+    }
+
+    private void write(String text, boolean append) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(mLog, append)) {
+            out.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private String read(CaptureIndex index, CaptureIndex.Range range) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = index.open(range)) {
+            byte[] buffer = new byte[997];
+            for (int n; (n = in.read(buffer)) > 0; ) {
+                out.write(buffer, 0, n);
+            }
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void indexesBlocksOfRecords() throws IOException {
+        write("timestamp,temperature,process\n" + log(0, 5000), false);
+        CaptureIndexer.build(mLog, 1000);
+        CaptureIndex index = CaptureIndex.open(mLog);
+
+        assertEquals(1000, index.getBlockRecords());
+        assertEquals(0, index.getTimeColumn());
+        assertEquals(3, index.getColumns().size());
+        assertEquals(5, index.getBlocks().size());
+        assertEquals(mLog.length(), index.getIndexedLength());
+
+        CaptureIndex.Block block = index.getBlocks().get(2);
+        assertEquals(1000, block.records);
+        assertEquals(2000000, block.firstTime);
+        assertEquals(2999000, block.lastTime);
+        assertEquals(80.0, block.getMax(1), 1e-9);
+        assertTrue(Double.isNaN(block.getMin(2)));
+
+        /* The blocks cover the log without gaps, side-channel records included. */
+        long offset = "timestamp,temperature,process\n".length();
+        for (CaptureIndex.Block b : index.getBlocks()) {
+            assertEquals(offset, b.offset);
+            offset += b.length;
+        }
+    }
+
+    @Test
+    public void seeksTimeRanges() throws IOException {
+        write("timestamp,temperature,process\n" + log(0, 5000), false);
+        CaptureIndexer.build(mLog, 1000);
+        CaptureIndex index = CaptureIndex.open(mLog);
+
+        String text = read(index, index.seek(2500000, 2600000));
+        assertTrue(text.startsWith(record(2000)));
+        assertTrue(text.endsWith(record(2999)));
+
+        assertEquals(0, index.seek(-10, -1).length());
+        assertEquals(0, index.seek(6000000, 7000000).length());
+        assertEquals(index.getBlocks().get(4).toRange().start, index.seek(4999000, 4999000).start);
+    }
+
+    @Test
+    public void skipsBlocksBelowAThreshold() throws IOException {
+        write("timestamp,temperature,process\n" + log(0, 5000), false);
+        CaptureIndexer.build(mLog, 500);
+        CaptureIndex index = CaptureIndex.open(mLog);
+
+        List<CaptureIndex.Range> ranges = index.above("temperature", 70);
+        assertEquals(1, ranges.size());
+        assertEquals(index.getBlocks().get(4).offset, ranges.get(0).start);
+        assertEquals(index.getBlocks().get(6).offset, ranges.get(0).end);
+        assertTrue(read(index, ranges.get(0)).contains(record(2500)));
+
+        /* Adjacent matching blocks are merged into one range. */
+        List<CaptureIndex.Range> below = index.below("temperature", 70);
+        assertEquals(1, below.size());
+        assertEquals(index.getBlocks().get(0).offset, below.get(0).start);
+        assertEquals(mLog.length(), below.get(0).end);
+        assertEquals(0, index.above("temperature", 80).size());
+    }
+
+    @Test
+    public void indexesIncrementallyAndTreatsTheTailAsMatching() throws IOException {
+        String text = "timestamp,temperature,process\n" + log(0, 2500);
+        String partial = record(2500).substring(0, 5);
+        write(text + partial, false);
+
+        CaptureIndexer indexer = new CaptureIndexer(mLog, 1000);
+        indexer.update(mLog.length());
+
+        CaptureIndex index = CaptureIndex.open(mLog);
+        assertEquals(2, index.getBlocks().size());
+
+        /* The records after the last block are the unindexed tail. */
+        List<CaptureIndex.Range> tail = index.above("temperature", 1000);
+        assertEquals(1, tail.size());
+        assertEquals(index.getIndexedLength(), tail.get(0).start);
+        assertEquals(mLog.length(), tail.get(0).end);
+
+        write(record(2500).substring(5) + log(2501, 5000), true);
+        indexer.update(mLog.length());
+        indexer.close();
+
+        index = CaptureIndex.open(mLog);
+        assertEquals(5, index.getBlocks().size());
+        assertEquals(mLog.length(), index.getIndexedLength());
+        /* The block open at the first update is continued by the second. */
+        assertEquals(2000000, index.getBlocks().get(2).firstTime);
+        assertEquals(1000, index.getBlocks().get(2).records);
+    }
+
+    @Test
+    public void ignoresATruncatedLastBlock() throws IOException {
+        write("timestamp,temperature,process\n" + log(0, 3000), false);
+        CaptureIndexer.build(mLog, 1000);
+
+        File file = CaptureIndex.indexFileFor(mLog);
+        try (RandomAccessFile index = new RandomAccessFile(file, "rw")) {
+            index.setLength(index.length() - 5);
+        }
+
+        assertEquals(2, CaptureIndex.open(mLog).getBlocks().size());
+    }
+
+    @Test
+    public void namesTheColumnsOfAHeaderlessLog() throws IOException {
+        write(log(0, 10), false);
+        CaptureIndexer.build(mLog, 4);
+        CaptureIndex index = CaptureIndex.open(mLog);
+
+        assertEquals("column_1", index.getColumns().get(1));
+        assertEquals(3, index.getBlocks().size());
+        assertEquals(0, index.getBlocks().get(0).offset);
+        assertEquals(2, index.getBlocks().get(2).records);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsAMissingIndex() throws IOException {
+        CaptureIndex.open(mLog);
+    }
+}
@@ -0,0 +1,94 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+package ch.ethz.exot.plan;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class PlanParserTest {
+    @Test
+    public void parsesStepsIntoPlainValues() throws JSONException {
+        Plan plan = PlanParser.parse("{\"name\": \"hot\", \"apps\": [\"app/.A\"], \"steps\": ["
+                + "{\"do\": \"configure\", \"config\": {\"meters\": {\"period\": 0.01}}, \"reset\": true},"
+                + "{\"do\": \"replay\", \"at\": 2, \"app\": \"app/.B\","
+                + " \"extras\": {\"filename\": \"t.txt\", \"count\": 3, \"fast\": false}},"
+                + "{\"do\": \"wait_until\", \"condition\": \"dead\", \"timeout\": 1.5},"
+                + "{\"do\": \"stop\", \"always\": true, \"apps\": []}]}");
+
+        assertEquals("hot", plan.getName());
+        assertEquals(4, plan.getSteps().size());
+
+        Plan.Step configure = plan.getSteps().get(0);
+        assertEquals(Plan.CONFIGURE, configure.kind);
+        assertEquals("0:configure", configure.label);
+        assertEquals(-1, configure.at);
+        assertTrue(configure.getBoolean("reset", false));
+        assertEquals(Arrays.asList("app/.A"), configure.apps);
+        assertEquals(0.01, new JSONObject(configure.getString("config"))
+                .getJSONObject("meters").getDouble("period"), 0);
+
+        Plan.Step replay = plan.getSteps().get(1);
+        assertEquals(2000000000L, replay.at);
+        assertEquals(Collections.singletonList("app/.B"), replay.apps);
+        Map<String, Object> extras = replay.getObject("extras");
+        assertEquals("t.txt", extras.get("filename"));
+        assertEquals(3, extras.get("count"));
+        assertEquals(false, extras.get("fast"));
+
+        Plan.Step wait = plan.getSteps().get(2);
+        assertEquals("dead", wait.getString("condition"));
+        assertEquals(1500000000L, wait.duration);
+        assertEquals(50000000L, wait.poll);
+
+        Plan.Step stop = plan.getSteps().get(3);
+        assertTrue(stop.always);
+        assertTrue(stop.apps.isEmpty());
+        assertFalse(stop.getBoolean("reset", false));
+        assertTrue(stop.getObject("extras").isEmpty());
+    }
+
+    @Test(expected = JSONException.class)
+    public void rejectsInvalidPlans() throws JSONException {
+        PlanParser.parse("{\"steps\": [{\"do\": \"wait\", \"for\": -1}]}");
+    }
+
+    @Test(expected = JSONException.class)
+    public void rejectsMissingSteps() throws JSONException {
+        PlanParser.parse("{\"name\": \"empty\"}");
+    }
+}
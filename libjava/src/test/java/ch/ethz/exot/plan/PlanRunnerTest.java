@@ -0,0 +1,350 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+package ch.ethz.exot.plan;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class PlanRunnerTest {
+    private static final long MS = 1000000L;
+    private static final long S = 1000000000L;
+
+    /**
+     * A simulated clock, sleeps advance it to their deadline
+     */
+    private static class FakeClock implements PlanRunner.Clock {
+        long mTime = 1000 * S;
+
+        @Override
+        public long now() {
+            return mTime;
+        }
+
+        @Override
+        public void sleepUntil(long deadline) throws InterruptedException {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            mTime = Math.max(mTime, deadline);
+        }
+    }
+
+    /**
+     * Records the dispatched steps with their time. Each command takes mCost on the
+     * clock, a check succeeds from the mChecks-th call on, and mFailing steps throw.
+     */
+    private static class FakeDispatcher implements PlanRunner.Dispatcher {
+        final FakeClock mClock;
+        final List<String> mCalls = new ArrayList<String>();
+        final List<PlanRunner.Report> mReports = new ArrayList<PlanRunner.Report>();
+        long mCost = 0;
+        int mChecks = 1;
+        String mFailing = null;
+        Boolean mCompleted = null;
+
+        FakeDispatcher(FakeClock clock) {
+            mClock = clock;
+        }
+
+        private void call(Plan.Step step, String what) {
+            mCalls.add(what + "@" + (mClock.now() / MS));
+            mClock.mTime += mCost;
+            if (step.label.equals(mFailing)) {
+                throw new IllegalStateException("failed " + step.label);
+            }
+        }
+
+        @Override
+        public void configure(Plan.Step step, String config) {
+            call(step, "configure:" + config);
+        }
+
+        @Override
+        public void start(Plan.Step step) {
+            call(step, "start:" + step.apps);
+        }
+
+        @Override
+        public void stop(Plan.Step step) {
+            call(step, "stop:" + step.apps);
+        }
+
+        @Override
+        public void trigger(Plan.Step step, String reason) {
+            call(step, "trigger:" + reason);
+        }
+
+        @Override
+        public void replay(Plan.Step step) {
+            call(step, "replay:" + step.getObject("extras"));
+        }
+
+        @Override
+        public void mark(Plan.Step step, String label, long time) {
+            call(step, "mark:" + label + ":" + (time / MS));
+        }
+
+        @Override
+        public boolean check(Plan.Step step, String condition) {
+            call(step, "check:" + condition);
+            return --mChecks <= 0;
+        }
+
+        @Override
+        public void onStep(PlanRunner.Report report) {
+            mReports.add(report);
+        }
+
+        @Override
+        public void onFinished(Plan plan, boolean completed) {
+            mCompleted = completed;
+        }
+    }
+
+    private final FakeClock mClock = new FakeClock();
+    private final FakeDispatcher mDispatcher = new FakeDispatcher(mClock);
+
+    private static Map<String, Object> step(Object... entries) {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        for (int i = 0; i < entries.length; i += 2) {
+            map.put((String) entries[i], entries[i + 1]);
+        }
+        return map;
+    }
+
+    @SafeVarargs
+    private static Plan plan(Map<String, Object>... steps) {
+        List<Map<String, Object>> list = new ArrayList<Map<String, Object>>(steps.length);
+        for (Map<String, Object> step : steps) {
+            list.add(step);
+        }
+        return new Plan("test", Arrays.asList("app/.A", "app/.B"), list);
+    }
+
+    private PlanRunner run(Plan plan) {
+        PlanRunner runner = new PlanRunner(plan, mDispatcher, mClock);
+        runner.run();
+        return runner;
+    }
+
+    private List<PlanRunner.Outcome> outcomes() {
+        List<PlanRunner.Outcome> outcomes = new ArrayList<PlanRunner.Outcome>();
+        for (PlanRunner.Report report : mDispatcher.mReports) {
+            outcomes.add(report.outcome);
+        }
+        return outcomes;
+    }
+
+    @Test
+    public void dispatchesStepsInOrderOnSchedule() {
+        mDispatcher.mCost = 10 * MS;
+
+        Map<String, Object> extras = step("filename", "touches.txt");
+        PlanRunner runner = run(plan(step("do", "configure", "config", "{\"a\":1}"),
+                step("do", "start"),
+                step("do", "trigger", "at", 1, "reason", "hot"),
+                step("do", "replay", "at", 1.5, "extras", extras, "app", "other/.C"),
+                step("do", "mark", "label", "here"),
+                step("do", "stop", "apps", Collections.singletonList("app/.A"))));
+
+        long start = runner.getStartTime() / MS;
+        assertEquals(Arrays.asList("configure:{\"a\":1}@" + start,
+                "start:[app/.A, app/.B]@" + (start + 10),
+                "trigger:hot@" + (start + 1000),
+                "replay:{filename=touches.txt}@" + (start + 1500),
+                "mark:here:" + (start + 1510) + "@" + (start + 1510),
+                "stop:[app/.A]@" + (start + 1520)), mDispatcher.mCalls);
+        assertEquals(Collections.nCopies(6, PlanRunner.Outcome.DONE), outcomes());
+        assertEquals(Boolean.TRUE, mDispatcher.mCompleted);
+        assertEquals(6, runner.getReports().size());
+
+        PlanRunner.Report trigger = mDispatcher.mReports.get(2);
+        assertEquals(runner.getStartTime() + S, trigger.due);
+        assertEquals(0, trigger.getLateness());
+        assertEquals(10 * MS, trigger.finished - trigger.started);
+    }
+
+    @Test
+    public void reportsLatenessOfOverrunSchedules() {
+        mDispatcher.mCost = 300 * MS;
+
+        PlanRunner runner = run(plan(step("do", "start"), step("do", "trigger", "at", 0.1)));
+
+        PlanRunner.Report trigger = mDispatcher.mReports.get(1);
+        assertEquals(runner.getStartTime() + 100 * MS, trigger.due);
+        assertEquals(200 * MS, trigger.getLateness());
+        assertEquals(PlanRunner.Outcome.DONE, trigger.outcome);
+    }
+
+    @Test
+    public void waitsForTheGivenDuration() {
+        PlanRunner runner = run(plan(step("do", "wait", "for", 2.5), step("do", "stop")));
+
+        PlanRunner.Report wait = mDispatcher.mReports.get(0);
+        assertEquals(2500 * MS, wait.finished - wait.started);
+        assertEquals(Arrays.asList("stop:[app/.A, app/.B]@" + (runner.getStartTime() / MS + 2500)),
+                mDispatcher.mCalls);
+    }
+
+    @Test
+    public void pollsConditionsUntilTheyHold() {
+        mDispatcher.mChecks = 3;
+
+        run(plan(step("do", "wait_until", "condition", "alive", "poll", 0.1), step("do", "start")));
+
+        assertEquals(Arrays.asList(PlanRunner.Outcome.DONE, PlanRunner.Outcome.DONE), outcomes());
+        PlanRunner.Report wait = mDispatcher.mReports.get(0);
+        assertEquals(200 * MS, wait.finished - wait.started);
+        assertEquals(4, mDispatcher.mCalls.size());
+        assertTrue(mDispatcher.mCalls.get(2).startsWith("check:alive@"));
+    }
+
+    @Test
+    public void skipsRemainingStepsAfterATimeoutExceptAlways() {
+        mDispatcher.mChecks = Integer.MAX_VALUE;
+
+        run(plan(step("do", "wait_until", "condition", "alive", "timeout", 1, "poll", 0.3),
+                step("do", "trigger"),
+                step("do", "stop", "always", true)));
+
+        assertEquals(Arrays.asList(PlanRunner.Outcome.TIMEOUT, PlanRunner.Outcome.SKIPPED,
+                PlanRunner.Outcome.DONE), outcomes());
+        PlanRunner.Report wait = mDispatcher.mReports.get(0);
+        assertEquals(1000 * MS, wait.finished - wait.started);
+        /* Polls at 0, 300, 600, 900 and at the deadline */
+        assertEquals(5 + 1, mDispatcher.mCalls.size());
+        assertTrue(mDispatcher.mCalls.get(5).startsWith("stop:"));
+        assertEquals(Boolean.FALSE, mDispatcher.mCompleted);
+    }
+
+    @Test
+    public void skipsRemainingStepsAfterAFailure() {
+        mDispatcher.mFailing = "boom";
+
+        run(plan(step("do", "start", "label", "boom"),
+                step("do", "trigger", "at", 5),
+                step("do", "stop", "always", true, "at", 10)));
+
+        assertEquals(Arrays.asList(PlanRunner.Outcome.FAILED, PlanRunner.Outcome.SKIPPED,
+                PlanRunner.Outcome.DONE), outcomes());
+        assertEquals("java.lang.IllegalStateException: failed boom", mDispatcher.mReports.get(0).message);
+        /* The schedule of an always step is ignored once the plan is abandoned */
+        assertEquals(0, mDispatcher.mReports.get(2).getLateness());
+        assertEquals(Boolean.FALSE, mDispatcher.mCompleted);
+    }
+
+    @Test
+    public void cancelsRemainingStepsExceptAlways() {
+        final PlanRunner[] runner = new PlanRunner[1];
+        FakeDispatcher dispatcher = new FakeDispatcher(mClock) {
+            @Override
+            public void start(Plan.Step step) {
+                super.start(step);
+                runner[0].cancel();
+            }
+        };
+
+        runner[0] = new PlanRunner(plan(step("do", "start"), step("do", "trigger"),
+                step("do", "stop", "always", true)), dispatcher, mClock);
+        runner[0].run();
+
+        List<PlanRunner.Outcome> outcomes = new ArrayList<PlanRunner.Outcome>();
+        for (PlanRunner.Report report : dispatcher.mReports) {
+            outcomes.add(report.outcome);
+        }
+        assertEquals(Arrays.asList(PlanRunner.Outcome.DONE, PlanRunner.Outcome.CANCELLED,
+                PlanRunner.Outcome.DONE), outcomes);
+        assertEquals(2, dispatcher.mCalls.size());
+        assertEquals(Boolean.FALSE, dispatcher.mCompleted);
+    }
+
+    @Test(timeout = 10000)
+    public void cancelInterruptsAWaitingRunner() throws InterruptedException {
+        final CountDownLatch waiting = new CountDownLatch(1);
+        FakeClock clock = new FakeClock() {
+            @Override
+            public void sleepUntil(long deadline) throws InterruptedException {
+                waiting.countDown();
+                Thread.sleep(Long.MAX_VALUE);
+            }
+        };
+        FakeDispatcher dispatcher = new FakeDispatcher(clock);
+
+        PlanRunner runner = new PlanRunner(plan(step("do", "wait", "for", 3600),
+                step("do", "stop", "always", true)), dispatcher, clock);
+        runner.start();
+        assertTrue(waiting.await(5, TimeUnit.SECONDS));
+        runner.cancel();
+
+        while (runner.isRunning()) {
+            Thread.sleep(1);
+        }
+        assertEquals(PlanRunner.Outcome.CANCELLED, dispatcher.mReports.get(0).outcome);
+        assertEquals(PlanRunner.Outcome.DONE, dispatcher.mReports.get(1).outcome);
+        assertEquals(Boolean.FALSE, dispatcher.mCompleted);
+        assertFalse(runner.isRunning());
+    }
+
+    @Test
+    public void formatsReportsAsRecords() {
+        mDispatcher.mCost = 2 * MS;
+
+        PlanRunner runner = run(plan(step("do", "start", "at", 0.5, "label", "go, now")));
+
+        assertEquals(String.format("# plan_step,%d,0,start,done,0,%d,go; now",
+                runner.getStartTime() + 500 * MS, 2 * MS), mDispatcher.mReports.get(0).toRecord());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsStepsScheduledBeforeThePreviousOne() {
+        plan(step("do", "start", "at", 2), step("do", "stop", "at", 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsConfigureWithoutConfig() {
+        plan(step("do", "configure"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownKinds() {
+        plan(step("do", "explode"));
+    }
+}
@@ -0,0 +1,365 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+/**
+ * @file libnative/src/main/cpp/include/exot/jni/capture.h
+ * @author     Bruno Klopott
+ * @brief      The capture pipeline between the meter and the application log.
+ */
+
+#pragma once
+
+#include <algorithm>
+#include <chrono>
+#include <cstdint>
+#include <memory>
+#include <optional>
+#include <string>
+#include <string_view>
+#include <utility>
+#include <vector>
+
+#include <fmt/format.h>
+#include <nlohmann/json.hpp>
+#include <spdlog/spdlog.h>
+
+#include <exot/jni/clock.h>
+#include <exot/jni/csv.h>
+#include <exot/jni/log.h>
+#include <exot/jni/relay.h>
+#include <exot/jni/stream.h>
+#include <exot/jni/trigger.h>
+#include <exot/jni/writer.h>
+
+namespace exot::jni {
+
+/**
+ * @brief The capture pipeline of the application log
+ * @details The pipeline is configured with the "capture" object of the JSON
+ *          config and installed in front of the sinks of the application
+ *          logger, right after the logger has been created. In the default
+ *          "continuous" mode every record is relayed straight to the log
+ *          file. With a queue capacity above 0, the log file is written on
+ *          a separate writer thread, see writer_sink. With a "stream" object,
+ *          the records written are also served to local clients, see
+ *          stream_sink. With a stall factor above 0, gaps in the sampling
+ *          are marked by stall records, see relay_sink.
+ *
+ *          The rows are stamped with CLOCK_MONOTONIC in every config, which
+ *          stops during suspend. Clock correlation records, which map the
+ *          row time to the boot and wall clocks, are therefore written by
+ *          default, every 10 s and on every start, see clock_correlator; a
+ *          clock period of 0 disables them.
+ *
+ * @code
+ * "capture": {
+ *   "clock": {"source": "monotonic_raw", "period": 10},
+ *   "stall": {"factor": 10, "min": 0.05},
+ *   "queue": {"capacity": 4096, "policy": "block", "decimation": 2},
+ *   "stream": {"socket": "exot_stream", "port": 0, "capacity": 4096},
+ *   "mode": "trigger",
+ *   "pre_trigger": 1000,
+ *   "post_trigger": 2000,
+ *   "triggers": [
+ *     {"column": "thermal_sysfs", "above": 70},
+ *     {"column": "frequency_rel", "drop": 0.25},
+ *     {"column": "process_events", "change": true}
+ *   ]
+ * }
+ * @endcode
+ */
+class Capture {
+  static inline const char* TAG = "ExOT/Native/Capture";
+
+ public:
+  static inline const char* APP_LOGGER = "app";  //! Name of the app logger
+
+  /**
+   * @brief Installs the pipeline in front of the application logger's sinks
+   *
+   * @param config The JSON config
+   */
+  void install(const nlohmann::json& config) {
+    auto app = spdlog::get(APP_LOGGER);
+    if (app == nullptr) {
+      Log.e(TAG, "{}(): no logger named {}", __func__, APP_LOGGER);
+      return;
+    }
+
+    auto& sinks  = app->sinks();
+    auto capture = config.find("capture");
+    auto mode    = capture != config.end() && capture->is_object()
+                    ? capture->value("mode", std::string{"continuous"})
+                    : std::string{"continuous"};
+
+    auto downstream = sinks;
+    auto queue      = capture != config.end() && capture->is_object()
+                     ? capture->value("queue", nlohmann::json::object())
+                     : nlohmann::json::object();
+
+    if (auto capacity = queue.value("capacity", std::size_t{0});
+        capacity != 0) {
+      auto name   = queue.value("policy", std::string{"block"});
+      auto policy = writer_sink::parse_policy(name);
+      if (!policy) Log.w(TAG, "{}(): unknown queue policy: {}", __func__, name);
+
+      writer_ = std::make_shared<writer_sink>(
+          APP_LOGGER, std::move(downstream), capacity,
+          policy.value_or(writer_sink::policy::block),
+          queue.value("decimation", 2u), queue.value("batch", std::size_t{64}));
+      downstream.assign(1, writer_);
+    }
+
+    if (capture != config.end() && capture->is_object() &&
+        capture->find("stream") != capture->end()) {
+      auto stream = capture->value("stream", nlohmann::json::object());
+
+      stream_ = std::make_shared<stream_sink>(
+          stream.value("socket", std::string{"exot_stream"}),
+          stream.value("port", std::uint16_t{0}),
+          stream.value("capacity", std::size_t{4096}),
+          stream.value("clients", std::size_t{8}));
+      downstream.push_back(stream_);
+    }
+
+    if (mode != "trigger") {
+      if (mode != "continuous")
+        Log.w(TAG, "{}(): unknown capture mode: {}", __func__, mode);
+
+      relay_ = std::make_shared<relay_sink>(std::move(downstream));
+      sinks.assign(1, relay_);
+      install_monitors(config);
+      return;
+    }
+
+    std::vector<trigger_condition> conditions;
+    for (const auto& trigger :
+         capture->value("triggers", nlohmann::json::array())) {
+      if (auto condition = parse_condition(trigger); condition) {
+        conditions.push_back(std::move(*condition));
+      } else {
+        Log.w(TAG, "{}(): invalid trigger: {}", __func__, trigger.dump());
+      }
+    }
+
+    auto pre_trigger  = capture->value("pre_trigger", std::size_t{1000});
+    auto post_trigger = capture->value("post_trigger", std::size_t{1000});
+
+    trigger_ = std::make_shared<trigger_sink>(std::move(downstream),
+                                              pre_trigger, post_trigger,
+                                              std::move(conditions));
+    relay_   = trigger_;
+    sinks.assign(1, relay_);
+    install_monitors(config);
+
+    Log.i(TAG, "{}(): trigger mode, pre: {}, post: {}, conditions: {}",
+          __func__, pre_trigger, post_trigger,
+          capture->value("triggers", nlohmann::json::array()).size());
+  }
+
+  /**
+   * @brief Fires an explicit trigger
+   *
+   * @param reason The reason recorded in the log
+   * @return True if the pipeline is in trigger mode, false otherwise
+   */
+  bool trigger(std::string reason) {
+    if (trigger_ == nullptr) return false;
+
+    trigger_->fire(std::move(reason));
+    return true;
+  }
+
+  /**
+   * @brief Writes a marker record into the application log
+   * @details The record, `# marker,<time>,<boot time>,<name>,<delay>`, is
+   *          logged right away from the calling thread. Like all side-channel
+   *          records it passes the trigger stage without being held. The
+   *          event time is given on the boot clock and converted to the clock
+   *          of the meter log; the delay is the time from the event to the
+   *          marker being written. Commas and line breaks in the name are
+   *          replaced.
+   *
+   *          The marker only depends on the application logger, not on the
+   *          Manager, so it may be called from any thread at any time.
+   *
+   * @param name The marker name
+   * @param time The event time on the boot clock, in nanoseconds
+   * @return True if written, false if there is no application logger
+   */
+  static bool mark(std::string_view name, std::int64_t time) {
+    auto app = spdlog::get(APP_LOGGER);
+    if (app == nullptr) return false;
+
+    auto now   = boot_time_ns();
+    auto delay = now - time;
+
+    thread_local std::string safe;
+    safe.assign(name.data(), name.size());
+    for (auto& c : safe) {
+      if (c == ',' || c == '\n' || c == '\r') c = ';';
+    }
+
+    csv_row::local()
+        .begin("# marker")
+        .add(meter_time_ns() - delay)
+        .add(time)
+        .add(safe)
+        .add(delay)
+        .emit(*app);
+    return true;
+  }
+
+  /**
+   * @brief Arms the pipeline to note the time of the next data record
+   */
+  void arm() {
+    if (relay_ != nullptr) relay_->arm();
+    if (correlator_ != nullptr) correlator_->correlate();
+  }
+
+  /**
+   * @brief Waits until the records logged so far are written by the writer
+   *        thread, if any, and flushed
+   * @details Flushing the logger only requests the flush from the writer
+   *          thread, such that the sampler is not held up while it is done.
+   *
+   * @return True if flushed, false if timed out
+   */
+  bool sync() const { return writer_ != nullptr ? writer_->sync() : true; }
+
+  /**
+   * @brief Gets the time of the first data record since the pipeline was armed
+   *
+   * @return The boot clock time in nanoseconds, or -1 if none arrived yet
+   */
+  std::int64_t first_record() const {
+    return relay_ != nullptr ? relay_->first_record() : -1;
+  }
+
+  /**
+   * @brief Describes the state of the pipeline
+   */
+  std::string status() const {
+    if (relay_ == nullptr) return "not installed";
+
+    return fmt::format("records: {}, stalls: {} ({:.3f} s), {}{}{}{}",
+                       relay_->records(), relay_->stalls(),
+                       relay_->stalled() / 1e9,
+                       trigger_ != nullptr ? "trigger: " + trigger_->status()
+                                           : std::string{"continuous"},
+                       writer_ != nullptr ? ", " + writer_->status()
+                                          : std::string{},
+                       stream_ != nullptr ? ", " + stream_->status()
+                                          : std::string{},
+                       correlator_ != nullptr ? ", " + correlator_->status()
+                                              : std::string{});
+  }
+
+ private:
+  /**
+   * @brief Sets up the stall detection and starts the clock correlation,
+   *        once the sinks are in place
+   * @details A stall is reported when the gap between two data records
+   *          exceeds "factor" times the sampling period of the host, but at
+   *          least "min" seconds. The detection is disabled by default,
+   *          i.e. with a factor of 0.
+   *
+   * @param config The JSON config
+   */
+  void install_monitors(const nlohmann::json& config) {
+    auto capture = config.value("capture", nlohmann::json::object());
+    auto host    = config.value("host", nlohmann::json::object());
+    auto stall   = capture.value("stall", nlohmann::json::object());
+    auto clock   = capture.value("clock", nlohmann::json::object());
+
+    auto sampling = host.value("period", 0.0);
+    auto factor   = stall.value("factor", 0.0);
+    if (factor > 0.0) {
+      auto threshold = std::max(factor * sampling, stall.value("min", 0.05));
+      relay_->detect_stalls(static_cast<std::int64_t>(sampling * 1e9),
+                            static_cast<std::int64_t>(threshold * 1e9));
+    }
+
+    auto period = clock.value("period", 10.0);
+    if (period <= 0.0) return;
+
+    auto name   = clock.value("source", std::string{"monotonic_raw"});
+    auto source = parse_clock_source(name);
+    if (!source) Log.w(TAG, "{}(): unknown clock source: {}", __func__, name);
+
+    correlator_ = std::make_unique<clock_correlator>(
+        APP_LOGGER, source.value_or(clock_source::monotonic_raw),
+        std::chrono::duration_cast<std::chrono::nanoseconds>(
+            std::chrono::duration<double>{period}));
+  }
+
+  /**
+   * @brief Parses a trigger condition
+   * @details The condition is an object with the column prefix and exactly
+   *          one of "above", "below", "drop" (relative, e.g. 0.25) or
+   *          "change".
+   *
+   * @param object The JSON object
+   * @return The condition, or nothing if the object is invalid
+   */
+  static std::optional<trigger_condition> parse_condition(
+      const nlohmann::json& object) {
+    using kind = trigger_condition::kind;
+
+    if (!object.is_object()) return {};
+
+    auto column = object.find("column");
+    if (column == object.end() || !column->is_string()) return {};
+
+    for (const auto& [key, type] : {std::pair{"above", kind::above},
+                                    std::pair{"below", kind::below},
+                                    std::pair{"drop", kind::drop},
+                                    std::pair{"change", kind::change}}) {
+      auto level = object.find(key);
+      if (level == object.end()) continue;
+
+      if (type == kind::change)
+        return trigger_condition{column->get<std::string>(), type, 0.0};
+      if (!level->is_number()) return {};
+
+      return trigger_condition{column->get<std::string>(), type,
+                               level->get<double>()};
+    }
+
+    return {};
+  }
+
+  std::shared_ptr<relay_sink> relay_;             //! The head of the pipeline
+  std::shared_ptr<trigger_sink> trigger_;         //! The trigger stage, if any
+  std::shared_ptr<writer_sink> writer_;           //! The writer stage, if any
+  std::shared_ptr<stream_sink> stream_;           //! The stream server, if any
+  std::unique_ptr<clock_correlator> correlator_;  //! The clock correlation
+};
+
+}  // namespace exot::jni
@@ -0,0 +1,300 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+/**
+ * @file libnative/src/main/cpp/include/exot/jni/clock.h
+ * @author     Bruno Klopott
+ * @brief      Clock sources, and the correlation records relating the clock
+ *             of the meter log to the other clocks of the system.
+ */
+
+#pragma once
+
+#include <time.h>
+
+#include <chrono>
+#include <condition_variable>
+#include <cstdint>
+#include <mutex>
+#include <optional>
+#include <string>
+#include <string_view>
+#include <thread>
+#include <utility>
+
+#if defined(__x86_64__) || defined(__i386__)
+#include <x86intrin.h>
+#endif
+
+#include <fmt/format.h>
+#include <spdlog/spdlog.h>
+
+#include <exot/jni/csv.h>
+#include <exot/jni/relay.h>
+
+namespace exot::jni {
+
+/**
+ * @brief The clocks which can be correlated with the meter log clock
+ */
+enum class clock_source {
+  monotonic,      //! CLOCK_MONOTONIC, slewed by NTP, stops in suspend
+  monotonic_raw,  //! CLOCK_MONOTONIC_RAW, not slewed, stops in suspend
+  boottime,       //! CLOCK_BOOTTIME, runs in suspend, elapsedRealtimeNanos()
+  realtime,       //! CLOCK_REALTIME, the wall clock, may jump
+  counter,        //! The CPU counter, cntvct_el0 or the TSC, in ticks
+};
+
+/**
+ * @brief Is the CPU counter readable from user space on this architecture?
+ */
+constexpr bool counter_available() {
+#if defined(__aarch64__) || defined(__x86_64__) || defined(__i386__)
+  return true;
+#else
+  return false;
+#endif
+}
+
+/**
+ * @brief Reads the CPU counter
+ * @details The generic timer's virtual count on AArch64, the time stamp
+ *          counter on x86. Both are constant-rate on the platforms we run on,
+ *          the rate follows from the correlation records or, on AArch64, from
+ *          counter_frequency().
+ *
+ * @return The counter value in ticks, or 0 if not available
+ */
+inline std::int64_t counter_ticks() {
+#if defined(__aarch64__)
+  std::uint64_t ticks;
+  asm volatile("isb; mrs %0, cntvct_el0" : "=r"(ticks) : : "memory");
+  return static_cast<std::int64_t>(ticks);
+#elif defined(__x86_64__) || defined(__i386__)
+  return static_cast<std::int64_t>(__rdtsc());
+#else
+  return 0;
+#endif
+}
+
+/**
+ * @brief Gets the rate of the CPU counter
+ *
+ * @return The rate in Hz, or 0 if not known
+ */
+inline std::int64_t counter_frequency() {
+#if defined(__aarch64__)
+  std::uint64_t frequency;
+  asm volatile("mrs %0, cntfrq_el0" : "=r"(frequency));
+  return static_cast<std::int64_t>(frequency);
+#else
+  return 0;
+#endif
+}
+
+/**
+ * @brief Reads a clock
+ *
+ * @param source The clock
+ * @return The time in nanoseconds, or in ticks for the counter
+ */
+inline std::int64_t read_clock(clock_source source) {
+  clockid_t id;
+  switch (source) {
+    case clock_source::monotonic:
+      id = CLOCK_MONOTONIC;
+      break;
+    case clock_source::monotonic_raw:
+      id = CLOCK_MONOTONIC_RAW;
+      break;
+    case clock_source::boottime:
+      id = CLOCK_BOOTTIME;
+      break;
+    case clock_source::realtime:
+      id = CLOCK_REALTIME;
+      break;
+    default:
+      return counter_ticks();
+  }
+
+  struct timespec ts;
+  clock_gettime(id, &ts);
+  return static_cast<std::int64_t>(ts.tv_sec) * 1000000000ll + ts.tv_nsec;
+}
+
+/**
+ * @brief Parses the name of a clock
+ *
+ * @param name One of monotonic, monotonic_raw, boottime, realtime, counter
+ * @return The clock, or nothing if unknown or the counter is not available
+ */
+inline std::optional<clock_source> parse_clock_source(std::string_view name) {
+  if (name == "monotonic") return clock_source::monotonic;
+  if (name == "monotonic_raw") return clock_source::monotonic_raw;
+  if (name == "boottime") return clock_source::boottime;
+  if (name == "realtime") return clock_source::realtime;
+  if (name == "counter" && counter_available()) return clock_source::counter;
+  return {};
+}
+
+/**
+ * @brief Gets the name of a clock
+ */
+inline const char* to_string(clock_source source) {
+  switch (source) {
+    case clock_source::monotonic:
+      return "monotonic";
+    case clock_source::monotonic_raw:
+      return "monotonic_raw";
+    case clock_source::boottime:
+      return "boottime";
+    case clock_source::realtime:
+      return "realtime";
+    default:
+      return "counter";
+  }
+}
+
+/**
+ * @brief Writes periodic clock correlation records into the application log
+ * @details The meter log is stamped with a single clock, see meter_time_ns().
+ *          To map its timestamps to other clocks, e.g. to merge logs across a
+ *          suspend, an NTP adjustment or another device, a thread writes
+ *          correlation records every period:
+ *
+ * @code
+ * # clock,<time>,<source>,<source time>,<boot time>,<wall time>,<window>
+ * @endcode
+ *
+ *          where time is on the meter log clock, and source is the name of
+ *          the correlated clock. The clocks are read in between two reads of
+ *          the meter log clock, the window being the time between these; the
+ *          narrowest of a few attempts is kept, and time is its midpoint.
+ *          Rows therefore carry a single cheap clock read, and the mapping to
+ *          boot and wall time is interpolated offline between the records.
+ */
+class clock_correlator {
+ public:
+  /**
+   * @brief Starts the correlation thread
+   *
+   * @param logger The name of the logger to write to
+   * @param source The clock correlated besides the boot and wall clocks
+   * @param period The time between records
+   */
+  clock_correlator(std::string logger, clock_source source,
+                   std::chrono::nanoseconds period)
+      : logger_{std::move(logger)}, source_{source}, period_{period} {
+    thread_ = std::thread([this] { run(); });
+  }
+
+  ~clock_correlator() {
+    {
+      std::lock_guard<std::mutex> lock(mutex_);
+      stop_ = true;
+    }
+    cv_.notify_all();
+    if (thread_.joinable()) thread_.join();
+  }
+
+  clock_correlator(const clock_correlator&) = delete;
+  clock_correlator& operator=(const clock_correlator&) = delete;
+
+  /**
+   * @brief Writes a correlation record right away
+   */
+  void correlate() {
+    auto log = spdlog::get(logger_);
+    if (log == nullptr) return;
+
+    std::int64_t window = -1;
+    std::int64_t time = 0, source = 0, boot = 0, wall = 0;
+
+    for (auto attempt = 0; attempt < ATTEMPTS; ++attempt) {
+      auto before = meter_time_ns();
+      auto s      = read_clock(source_);
+      auto b      = read_clock(clock_source::boottime);
+      auto w      = read_clock(clock_source::realtime);
+      auto after  = meter_time_ns();
+
+      if (window < 0 || after - before < window) {
+        window = after - before;
+        time   = before + window / 2;
+        source = s;
+        boot   = b;
+        wall   = w;
+      }
+    }
+
+    csv_row::local()
+        .begin("# clock")
+        .add(time)
+        .add(to_string(source_))
+        .add(source)
+        .add(boot)
+        .add(wall)
+        .add(window)
+        .emit(*log);
+
+    std::lock_guard<std::mutex> lock(mutex_);
+    ++records_;
+  }
+
+  /**
+   * @brief Describes the state of the correlator
+   */
+  std::string status() {
+    std::lock_guard<std::mutex> lock(mutex_);
+    return fmt::format("clock: {} every {}s, records: {}", to_string(source_),
+                       period_.count() / 1e9, records_);
+  }
+
+ private:
+  static constexpr int ATTEMPTS = 3;
+
+  void run() {
+    std::unique_lock<std::mutex> lock(mutex_);
+    while (!stop_) {
+      lock.unlock();
+      correlate();
+      lock.lock();
+      cv_.wait_for(lock, period_, [this] { return stop_; });
+    }
+  }
+
+  std::string logger_;
+  clock_source source_;
+  std::chrono::nanoseconds period_;
+  std::mutex mutex_;
+  std::condition_variable cv_;
+  bool stop_{false};
+  unsigned long long records_{0};
+  std::thread thread_;
+};
+
+}  // namespace exot::jni
@@ -0,0 +1,199 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+/**
+ * @file libnative/src/main/cpp/include/exot/jni/csv.h
+ * @author     Bruno Klopott
+ * @brief      Allocation-free formatter for the CSV records of the log.
+ */
+
+#pragma once
+
+#include <charconv>
+#include <cmath>
+#include <cstdint>
+#include <iterator>
+#include <string>
+#include <string_view>
+#include <type_traits>
+
+#include <fmt/format.h>
+#include <spdlog/spdlog.h>
+
+namespace exot::jni {
+
+/**
+ * @brief Formatter for a CSV record, reusing its buffer between records
+ * @details Formatting through a format string parses the format and builds
+ *          a new string for each record. The row instead appends the fields
+ *          directly to a buffer, which is reused, such that formatting does
+ *          not allocate once the buffer has grown to the size of a record.
+ *          Each thread has its own row, see local().
+ *
+ *          Integers are formatted with std::to_chars. Floating-point values
+ *          are either formatted with a fixed precision, by scaling them to an
+ *          integer, or as the shortest representation which round-trips,
+ *          which is the default format of fmt and therefore of the log.
+ *
+ * @code
+ * csv_row::local().begin("# top_app").add(time).add(pid).add(name).emit(log);
+ * @endcode
+ */
+class csv_row {
+ public:
+  /**
+   * @brief Gets the row of the calling thread
+   */
+  static csv_row& local() {
+    thread_local csv_row row;
+    return row;
+  }
+
+  csv_row() { buffer_.reserve(256); }
+
+  /**
+   * @brief Starts a new record
+   *
+   * @param first The first field, e.g. the kind of a side-channel record
+   */
+  csv_row& begin(std::string_view first = {}) {
+    buffer_.clear();
+    fields_ = 0;
+    if (!first.empty()) add(first);
+    return *this;
+  }
+
+  csv_row& add(std::string_view value) {
+    separate();
+    buffer_.append(value.data(), value.size());
+    return *this;
+  }
+
+  template <typename T>
+  std::enable_if_t<std::is_integral_v<T>, csv_row&> add(T value) {
+    separate();
+
+    char digits[24];
+    auto result = std::to_chars(digits, digits + sizeof(digits), value);
+    buffer_.append(digits, result.ptr);
+    return *this;
+  }
+
+  /**
+   * @brief Adds the shortest representation of a value which round-trips
+   */
+  csv_row& add(double value) {
+    separate();
+    fmt::format_to(std::back_inserter(buffer_), "{}", value);
+    return *this;
+  }
+
+  /**
+   * @brief Adds a value with a fixed number of decimals
+   * @details The value is scaled and rounded to an integer as fmt and printf
+   *          round it, i.e. by its exact binary value with ties to even, such
+   *          that the output is identical. Values which do not fit an integer
+   *          once scaled are formatted by fmt.
+   *
+   * @param value     The value
+   * @param precision The number of decimals, at most 9
+   */
+  csv_row& add(double value, int precision) {
+    static constexpr std::int64_t scales[] = {
+        1,      10,      100,      1000,      10000,
+        100000, 1000000, 10000000, 100000000, 1000000000};
+
+    auto fits = precision >= 0 && precision <= 9 && std::isfinite(value) &&
+                std::fabs(value) * scales[precision] < 1e18;
+
+    if (!fits) {
+      separate();
+      fmt::format_to(std::back_inserter(buffer_), "{:.{}f}", value, precision);
+      return *this;
+    }
+
+    // The product may be rounded onto a halfway case, its exact residual
+    // decides in which direction the exact value lies.
+    auto scale    = scales[precision];
+    auto product  = value * static_cast<double>(scale);
+    auto residual = std::fma(value, static_cast<double>(scale), -product);
+    auto rounded  = std::nearbyint(product);
+    if (std::fabs(product - rounded) == 0.5 && residual != 0.0)
+      rounded = residual > 0.0 ? std::ceil(product) : std::floor(product);
+
+    auto scaled = static_cast<std::int64_t>(rounded);
+
+    separate();
+    if (scaled < 0 || (scaled == 0 && std::signbit(value))) {
+      buffer_.push_back('-');
+      scaled = -scaled;
+    }
+
+    char digits[24];
+    auto limit = digits + sizeof(digits);
+    auto end   = std::to_chars(digits, limit, scaled / scale).ptr;
+    buffer_.append(digits, end);
+
+    if (precision > 0) {
+      buffer_.push_back('.');
+      end = std::to_chars(digits, limit, scaled % scale).ptr;
+      buffer_.append(static_cast<std::size_t>(precision - (end - digits)), '0');
+      buffer_.append(digits, end);
+    }
+
+    return *this;
+  }
+
+  /**
+   * @brief Gets the record, valid until the row is changed
+   */
+  std::string_view view() const { return {buffer_.data(), buffer_.size()}; }
+
+  /**
+   * @brief Gets the buffer of the record, valid until the row is changed
+   */
+  const std::string& str() const { return buffer_; }
+
+  /**
+   * @brief Writes the record to a logger, without formatting it again
+   */
+  void emit(spdlog::logger& logger,
+            spdlog::level::level_enum level = spdlog::level::info) const {
+    logger.log(level, spdlog::string_view_t{buffer_.data(), buffer_.size()});
+  }
+
+ private:
+  void separate() {
+    if (fields_++ != 0) buffer_.push_back(',');
+  }
+
+  std::string buffer_;
+  std::size_t fields_{0};
+};
+
+}  // namespace exot::jni
@@ -38,6 +38,7 @@
 #include <chrono>
 #include <initializer_list>
 #include <string>
+#include <type_traits>
 #include <utility>
 
 #include <fmt/format.h>
@@ -47,7 +48,10 @@
 #include <spdlog/details/registry.h>
 
 #include <exot/framework/state.h>
+#include <exot/jni/capture.h>
 #include <exot/jni/log.h>
+#include <exot/jni/overhead.h>
+#include <exot/meters/registry.h>
 #include <exot/utilities/configuration.h>
 #include <exot/utilities/logging.h>
 #include <exot/utilities/main.h>
@@ -55,6 +59,21 @@
 
 namespace exot::jni {
 
+/**
+ * @brief Is the component standalone, i.e. without in/out queues?
+ * @details Standalone components declare `static constexpr bool standalone`
+ *          and are spawned, but not connected to their neighbours.
+ */
+template <typename T, typename = void>
+struct is_standalone : std::false_type {};
+
+template <typename T>
+struct is_standalone<T, std::void_t<decltype(T::standalone)>>
+    : std::bool_constant<T::standalone> {};
+
+template <typename T>
+inline constexpr bool is_standalone_v = is_standalone<T>::value;
+
 template <typename... Components>
 struct Manager {
   using clock_t     = std::chrono::system_clock;
@@ -91,6 +110,27 @@ struct Manager {
 
     json_object_ = nlohmann::json::parse(json_string);
 
+    //! TODO: If new modules are added, make sure to add them to the list below.
+    //! TODO: Consider making a separate base class for Android-specific
+    //!       components, such that all Android settings can be at a single
+    //!       configuration object, e.g. with name "android". Similar ones
+    //!       are provided for base_bitset and base_shared_memory meters.
+    for (const auto android_module : {"process_events"s}) {
+      // Make sure that all android modules have a valid config field, with
+      // Java-specific pointers.
+      if (json_object_.find(android_module) == json_object_.end()) {
+        json_object_[android_module] = {{"jvm", java_vm_ptr},
+                                        {"jinstance", java_instance_ptr},
+                                        {"jclazz", java_class_ptr},
+                                        {"jmid", java_method_id_ptr},
+                                        {"jniversion", jni_version}};
+      }
+    }
+
+    // The enabled meter modules are listed once all configuration objects
+    // of the modules are present, see meter_registry::resolve().
+    exot::modules::meter_registry::instance().resolve(json_object_);
+
     Log.d(TAG,
           "{}(): "
           "java_vm_ptr: {:#0x}, java_instance_ptr: {:#0x}, "
@@ -113,23 +153,6 @@ struct Manager {
       }
     }
 
-    //! TODO: If new modules are added, make sure to add them to the list below.
-    //! TODO: Consider making a separate base class for Android-specific
-    //!       components, such that all Android settings can be at a single
-    //!       configuration object, e.g. with name "android". Similar ones
-    //!       are provided for base_bitset and base_shared_memory meters.
-    for (const auto android_module : {"process_android"s}) {
-      // Make sure that all android modules have a valid config field, with
-      // Java-specific pointers.
-      if (json_object_.find(android_module) == json_object_.end()) {
-        json_object_[android_module] = {{"jvm", java_vm_ptr},
-                                        {"jinstance", java_instance_ptr},
-                                        {"jclazz", java_class_ptr},
-                                        {"jmid", java_method_id_ptr},
-                                        {"jniversion", jni_version}};
-      }
-    }
-
     create(std::move(json_object_));
   }
 
@@ -141,20 +164,24 @@ struct Manager {
 
   /**
    * @brief Starts the Manager object and logs starting time
-   *
+   * @details All components, log files and threads are set up at creation,
+   *          the spawned threads only wait for the global state to flip.
+   *          Starting therefore only arms the capture pipeline to note the
+   *          first sample and flips the state.
    */
   void start() {
-    spdlog::details::registry::instance().flush_all();
-
-    state_->start();
+    capture_.arm();
     started_at_ = clock_t::now();
+    state_->start();
+    overhead_.resume();
   }
 
   /**
    * @brief Stops the Manager object
    *
    */
-  void stop() const {
+  void stop() {
+    overhead_.pause();
     spdlog::details::registry::instance().flush_all();
 
     if (is_started()) {
@@ -165,6 +192,45 @@ struct Manager {
     }
   }
 
+  /**
+   * @brief Flushes all registered loggers
+   * @details With synchronous loggers the data is handed to the kernel by the
+   *          time this returns; with async loggers the flush is only queued.
+   *          The records of the application log queued for the writer thread
+   *          are waited for, outside of the locks of the logging sinks.
+   *
+   */
+  void flush() const {
+    spdlog::details::registry::instance().flush_all();
+    capture_.sync();
+  }
+
+  /**
+   * @brief Fires an explicit capture trigger
+   *
+   * @param reason The reason recorded in the log
+   * @return True if the capture is in trigger mode, false otherwise
+   */
+  bool trigger(std::string reason) {
+    return capture_.trigger(std::move(reason));
+  }
+
+  /**
+   * @brief Describes the state of the capture pipeline
+   *
+   * @return std::string The capture mode and its state
+   */
+  inline std::string query_capture() const { return capture_.status(); }
+
+  /**
+   * @brief Gets the time of the first sample since the last start
+   *
+   * @return The boot clock time in nanoseconds, or -1 if none was taken yet
+   */
+  inline std::int64_t first_sample_time() const {
+    return capture_.first_record();
+  }
+
   /**
    * @brief Terminates the Manager object
    * @details Termination joins the executor threads and resets the state.
@@ -193,6 +259,17 @@ struct Manager {
                                : (is_started() ? "started" : "idle"));
   }
 
+  /**
+   * @brief Describes the Manager object in detail
+   *
+   * @return std::string The state, the meter's own resource usage and the
+   *                     state of the capture pipeline
+   */
+  inline std::string query_status() const {
+    return fmt::format("{}; {}; capture: {}", query_state(),
+                       overhead_.summary(), capture_.status());
+  }
+
   /**
    * @brief Is the Manager object started?
    *
@@ -230,10 +307,13 @@ struct Manager {
   /**
    * @brief Creates the Manager object
    * @details Creation entails:
-   *          1) configuration of settings structures,
+   *          1) configuration of settings structures, and of the meter
+   *             registry, from which the meter set creates its modules,
    *          2) initialisation of global state handlers,
-   *          3) creation of unique_ptr-wrapped component objects,
-   *          4) connection of component objects' in/out queues,
+   *          3) creation of unique_ptr-wrapped component objects, with the
+   *             capture pipeline installed once the logging is set up,
+   *          4) connection of component objects' in/out queues, except of
+   *             standalone ones,
    *          5) spawning of component objects with the executor.
    *
    * @param config The JSON config
@@ -246,6 +326,8 @@ struct Manager {
 
     Log.d(TAG, "{}(): JsonConfig created and assigned", __func__);
 
+    exot::modules::meter_registry::instance().bind(config);
+
 #ifdef __cpp_lib_apply
     std::apply([&jc, this](auto&... v) { configure(jc, v...); }, settings_);
 #else
@@ -259,7 +341,8 @@ struct Manager {
 
     Log.d(TAG, "{}(): state handlers initialised", __func__);
 
-    const_for<0, std::tuple_size_v<component_ptrs_t>>([this](const auto I) {
+    const_for<0, std::tuple_size_v<component_ptrs_t>>([&config,
+                                                       this](const auto I) {
       using component_t = typename std::decay_t<decltype(
           std::get<I>(components_))>::element_type;
 
@@ -267,15 +350,27 @@ struct Manager {
           std::make_unique<component_t>(std::get<I>(settings_));
 
       Log.d(TAG, "{}(): created component {}", __func__, I);
+
+      if constexpr (I == 0) {
+        capture_.install(config);
+        overhead_.configure(config, spdlog::get(Capture::APP_LOGGER));
+      }
     });
 
     if constexpr (sizeof...(Components) > 1ull) {
       const_for<1ull, sizeof...(Components)>([this](const auto I) {
-        Log.d(TAG, "{}(): connecting components {} and {}", __func__, I,
-              I + 1ull);
-
-        exot::framework::Connector().connect(*std::get<I>(components_),
-                                             *std::get<I + 1ull>(components_));
+        using left_t = typename std::decay_t<decltype(
+            std::get<I>(components_))>::element_type;
+        using right_t = typename std::decay_t<decltype(
+            std::get<I + 1ull>(components_))>::element_type;
+
+        if constexpr (!is_standalone_v<left_t> && !is_standalone_v<right_t>) {
+          Log.d(TAG, "{}(): connecting components {} and {}", __func__, I,
+                I + 1ull);
+
+          exot::framework::Connector().connect(
+              *std::get<I>(components_), *std::get<I + 1ull>(components_));
+        }
       });
     }
 
@@ -295,6 +390,8 @@ struct Manager {
   static inline const char* TAG = "ExOT/Native/Manager";     //! The logging tag
   state_ptr_t state_{exot::framework::GLOBAL_STATE->get()};  //! The gl. state
   json_t json_object_;              //! The JSON configuration object
+  Capture capture_;                 //! The capture pipeline
+  SelfAccounting overhead_;         //! The accounting of own resource usage
   clock_t::time_point started_at_;  //! The starting time point
   executor_t executor_;             //! The component executor
   settings_tuple_t settings_;       //! The tuple holding settings structures
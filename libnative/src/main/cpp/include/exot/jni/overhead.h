@@ -0,0 +1,404 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+/**
+ * @file libnative/src/main/cpp/include/exot/jni/overhead.h
+ * @author     Bruno Klopott
+ * @brief      Accounting of the meter's own resource usage, read from procfs.
+ */
+
+#pragma once
+
+#include <dirent.h>
+#include <fcntl.h>
+#include <unistd.h>
+
+#include <algorithm>
+#include <chrono>
+#include <condition_variable>
+#include <cstdint>
+#include <cstdlib>
+#include <memory>
+#include <mutex>
+#include <optional>
+#include <string>
+#include <string_view>
+#include <thread>
+#include <utility>
+#include <vector>
+
+#include <fmt/format.h>
+#include <nlohmann/json.hpp>
+#include <spdlog/spdlog.h>
+
+#include <exot/jni/csv.h>
+#include <exot/jni/log.h>
+#include <exot/jni/relay.h>
+
+namespace exot::jni {
+
+/**
+ * @brief Resource usage of the process or of one of its threads
+ */
+struct usage {
+  std::int64_t time_ns{0};  //! Meter log clock time of the reading
+  double utime_s{0};        //! CPU time in user mode
+  double stime_s{0};        //! CPU time in kernel mode
+  std::uint64_t run_ns{0};  //! Time on the CPU (schedstat)
+  std::uint64_t wait_ns{0};  //! Time runnable, waiting for a CPU (schedstat)
+  std::uint64_t slices{0};   //! Number of timeslices run (schedstat)
+  std::uint64_t voluntary{0};     //! Voluntary context switches
+  std::uint64_t involuntary{0};   //! Involuntary context switches
+  std::uint64_t rss_kb{0};        //! Resident set size
+  std::uint64_t threads{0};       //! Number of threads
+  int tid{0};                     //! The thread id, 0 for the process
+  std::string name;               //! The thread name
+};
+
+/**
+ * @brief Reads a whole (small) file
+ *
+ * @param path    The path
+ * @param content The string to hold the content
+ * @return True if read, false otherwise
+ */
+inline bool read_small_file(const std::string& path, std::string& content) {
+  auto fd = ::open(path.c_str(), O_RDONLY | O_CLOEXEC);
+  if (fd < 0) return false;
+
+  char buffer[4096];
+  content.clear();
+  for (ssize_t n; (n = ::read(fd, buffer, sizeof(buffer))) > 0;)
+    content.append(buffer, static_cast<std::size_t>(n));
+
+  ::close(fd);
+  return !content.empty();
+}
+
+/**
+ * @brief Accounts for the resources used by the meter process itself
+ * @details The accounting reads `stat`, `schedstat` and `status` of the
+ *          process, and of each of its threads, from procfs. A summary since
+ *          creation is available on demand. If configured with a period, the
+ *          readings are also written to the application log while the
+ *          Manager is started, as side-channel records:
+ *
+ * @code
+ * # overhead,<time ns>,<utime s>,<stime s>,<run ns>,<wait ns>,<slices>,<voluntary switches>,<involuntary switches>,<rss kB>,<threads>
+ * # overhead_thread,<time ns>,<tid>,<name>,<utime s>,<stime s>,<run ns>,<wait ns>,<slices>
+ * @endcode
+ *
+ *          The time is on the meter log clock, the CPU times are cumulative.
+ *          The configuration is part of the "capture" object:
+ *
+ * @code
+ * "capture": { "overhead": { "period": 1.0, "threads": true } }
+ * @endcode
+ */
+class SelfAccounting {
+  static inline const char* TAG = "ExOT/Native/Overhead";
+
+ public:
+  /**
+   * @brief Constructs the accounting
+   *
+   * @param root The procfs directory of the process
+   */
+  explicit SelfAccounting(std::string root = "/proc/self")
+      : root_{std::move(root)},
+        ticks_per_second_{static_cast<double>(::sysconf(_SC_CLK_TCK))} {
+    if (auto reading = read(root_); reading) baseline_ = std::move(*reading);
+  }
+
+  ~SelfAccounting() {
+    {
+      std::lock_guard<std::mutex> lock(mutex_);
+      quit_ = true;
+    }
+    cv_.notify_all();
+    if (worker_.joinable()) worker_.join();
+  }
+
+  /**
+   * @brief Configures the periodic records
+   * @details The worker thread is spawned here, such that starting the
+   *          records later does not have to create it.
+   *
+   * @param config The JSON config
+   * @param logger The logger to write the records to
+   */
+  void configure(const nlohmann::json& config,
+                 std::shared_ptr<spdlog::logger> logger) {
+    auto capture = config.find("capture");
+    if (capture == config.end() || !capture->is_object()) return;
+
+    auto overhead = capture->value("overhead", nlohmann::json::object());
+    auto period   = overhead.value("period", 0.0);
+    threads_      = overhead.value("threads", true);
+
+    if (period <= 0.0 || logger == nullptr || worker_.joinable()) return;
+
+    logger_ = std::move(logger);
+    period_ = std::chrono::duration_cast<std::chrono::milliseconds>(
+        std::chrono::duration<double>{period});
+
+    // A period below the resolution would be truncated to 0 ms and spin.
+    if (period_ < std::chrono::milliseconds{1}) {
+      Log.w(TAG, "{}(): period of {} s raised to 1 ms", __func__, period);
+      period_ = std::chrono::milliseconds{1};
+    }
+
+    worker_ = std::thread(&SelfAccounting::run, this);
+
+    Log.i(TAG, "{}(): records every {} ms, threads: {}", __func__,
+          period_.count(), threads_);
+  }
+
+  /**
+   * @brief Starts writing the periodic records, if configured
+   */
+  void resume() {
+    {
+      std::lock_guard<std::mutex> lock(mutex_);
+      running_ = true;
+    }
+    cv_.notify_all();
+  }
+
+  /**
+   * @brief Stops writing the periodic records
+   */
+  void pause() {
+    std::lock_guard<std::mutex> lock(mutex_);
+    running_ = false;
+  }
+
+  /**
+   * @brief Reads the usage of the process
+   */
+  std::optional<usage> read_process() const { return read(root_); }
+
+  /**
+   * @brief Reads the usage of each thread of the process
+   */
+  std::vector<usage> read_threads() const {
+    std::vector<usage> result;
+
+    auto path = root_ + "/task";
+    auto dir  = ::opendir(path.c_str());
+    if (dir == nullptr) return result;
+
+    while (auto entry = ::readdir(dir)) {
+      auto tid = std::atoi(entry->d_name);
+      if (tid <= 0) continue;
+
+      if (auto reading = read(path + "/" + entry->d_name); reading) {
+        reading->tid = tid;
+        result.push_back(std::move(*reading));
+      }
+    }
+
+    ::closedir(dir);
+    return result;
+  }
+
+  /**
+   * @brief Summarises the usage since the accounting was created
+   */
+  std::string summary() const {
+    auto now = read_process();
+    if (!now) return "overhead: N/A";
+
+    auto wall = (now->time_ns - baseline_.time_ns) / 1e9;
+    auto cpu  = (now->utime_s - baseline_.utime_s) +
+               (now->stime_s - baseline_.stime_s);
+
+    auto result = fmt::format(
+        "overhead: cpu {:.2f}% over {:.1f} s (user {:.2f} s, sys {:.2f} s), "
+        "wait {:.1f} ms, switches {}/{}, rss {} kB, threads {}",
+        wall > 0.0 ? 100.0 * cpu / wall : 0.0, wall,
+        now->utime_s - baseline_.utime_s, now->stime_s - baseline_.stime_s,
+        (now->wait_ns - baseline_.wait_ns) / 1e6,
+        now->voluntary - baseline_.voluntary,
+        now->involuntary - baseline_.involuntary, now->rss_kb, now->threads);
+
+    auto threads = read_threads();
+    std::sort(threads.begin(), threads.end(),
+              [](const auto& a, const auto& b) {
+                return a.utime_s + a.stime_s > b.utime_s + b.stime_s;
+              });
+
+    for (auto i = 0ull; i < std::min<std::size_t>(3, threads.size()); ++i) {
+      result += fmt::format("{} {}[{}] {:.2f} s", i == 0 ? ", top:" : ",",
+                            threads[i].name, threads[i].tid,
+                            threads[i].utime_s + threads[i].stime_s);
+    }
+
+    return result;
+  }
+
+ private:
+  /**
+   * @brief Reads the usage from a procfs process or thread directory
+   *
+   * @param dir The directory
+   * @return The usage, or nothing if the stat file could not be read
+   */
+  std::optional<usage> read(const std::string& dir) const {
+    usage result;
+    result.time_ns = meter_time_ns();
+
+    std::string content;
+    if (!read_small_file(dir + "/stat", content)) return {};
+
+    // The name is enclosed in parentheses and may contain spaces, the fields
+    // following it start with the state (3rd field).
+    auto open  = content.find('(');
+    auto close = content.rfind(')');
+    if (open == std::string::npos || close == std::string::npos) return {};
+
+    result.name = content.substr(open + 1, close - open - 1);
+    std::replace(result.name.begin(), result.name.end(), ',', '_');
+
+    std::vector<std::string_view> fields;
+    std::string_view rest{content};
+    rest.remove_prefix(close + 2);
+    for (std::size_t pos; (pos = rest.find(' ')) != std::string_view::npos;) {
+      fields.push_back(rest.substr(0, pos));
+      rest.remove_prefix(pos + 1);
+    }
+    fields.push_back(rest);
+
+    auto field = [&fields](std::size_t number) {
+      double value = 0;
+      return number - 3 < fields.size() &&
+                     parse_field(fields[number - 3], value)
+                 ? value
+                 : 0.0;
+    };
+
+    result.utime_s = field(14) / ticks_per_second_;
+    result.stime_s = field(15) / ticks_per_second_;
+    result.threads = static_cast<std::uint64_t>(field(20));
+
+    if (read_small_file(dir + "/schedstat", content)) {
+      char* end;
+      result.run_ns  = std::strtoull(content.c_str(), &end, 10);
+      result.wait_ns = std::strtoull(end, &end, 10);
+      result.slices  = std::strtoull(end, &end, 10);
+    }
+
+    if (read_small_file(dir + "/status", content)) {
+      auto value = [&content](std::string_view key) -> std::uint64_t {
+        auto pos = content.find(key);
+        return pos != std::string::npos
+                   ? std::strtoull(content.c_str() + pos + key.size(),
+                                   nullptr, 10)
+                   : 0;
+      };
+
+      result.rss_kb      = value("VmRSS:");
+      result.voluntary   = value("\nvoluntary_ctxt_switches:");
+      result.involuntary = value("nonvoluntary_ctxt_switches:");
+    }
+
+    return result;
+  }
+
+  /**
+   * @brief The worker loop writing the periodic records
+   */
+  void run() {
+    std::unique_lock<std::mutex> lock(mutex_);
+
+    while (!quit_) {
+      cv_.wait_for(lock, period_);
+      if (quit_) break;
+      if (!running_) {
+        cv_.wait(lock, [this] { return running_ || quit_; });
+        continue;
+      }
+
+      lock.unlock();
+      emit();
+      lock.lock();
+    }
+  }
+
+  /**
+   * @brief Writes the records of a single reading
+   */
+  void emit() const {
+    auto& row = csv_row::local();
+
+    if (auto process = read_process(); process) {
+      row.begin("# overhead")
+          .add(process->time_ns)
+          .add(process->utime_s, 2)
+          .add(process->stime_s, 2)
+          .add(process->run_ns)
+          .add(process->wait_ns)
+          .add(process->slices)
+          .add(process->voluntary)
+          .add(process->involuntary)
+          .add(process->rss_kb)
+          .add(process->threads)
+          .emit(*logger_);
+    }
+
+    if (!threads_) return;
+
+    for (const auto& thread : read_threads()) {
+      row.begin("# overhead_thread")
+          .add(thread.time_ns)
+          .add(thread.tid)
+          .add(thread.name)
+          .add(thread.utime_s, 2)
+          .add(thread.stime_s, 2)
+          .add(thread.run_ns)
+          .add(thread.wait_ns)
+          .add(thread.slices)
+          .emit(*logger_);
+    }
+  }
+
+  std::string root_;
+  double ticks_per_second_;
+  usage baseline_;
+  bool threads_{true};
+  std::chrono::milliseconds period_{0};
+  std::shared_ptr<spdlog::logger> logger_;
+
+  std::mutex mutex_;
+  std::condition_variable cv_;
+  bool running_{false};
+  bool quit_{false};
+  std::thread worker_;
+};
+
+}  // namespace exot::jni
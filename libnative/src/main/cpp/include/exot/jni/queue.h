@@ -0,0 +1,163 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+/**
+ * @file libnative/src/main/cpp/include/exot/jni/queue.h
+ * @author     Bruno Klopott
+ * @brief      Bounded lock-free queue between the sampler and the writer.
+ */
+
+#pragma once
+
+#include <atomic>
+#include <cstddef>
+#include <cstdint>
+#include <memory>
+#include <utility>
+
+namespace exot::jni {
+
+/**
+ * @brief Bounded lock-free queue with preallocated slots
+ * @details The queue has a single producer, and a single consumer which
+ *          drains it. In addition, the producer may discard the oldest
+ *          element when the queue is full, which makes it a second consumer.
+ *          Slots therefore carry a sequence number, as in Vyukov's bounded
+ *          queue, such that a slot is owned exclusively by whoever claimed it.
+ *
+ *          Elements are exchanged with swap, rather than copied, such that
+ *          slot contents which own memory, e.g. strings reserved up front,
+ *          are recycled instead of reallocated, and the consumer returns a
+ *          slot before writing its content out.
+ *
+ * @tparam T The element type, default-constructible and swappable
+ */
+template <typename T>
+class bounded_queue {
+ public:
+  /**
+   * @brief Constructs the queue
+   *
+   * @param capacity The capacity, rounded up to a power of two
+   * @param init     A function preparing each slot, e.g. reserving memory
+   */
+  template <typename Init>
+  bounded_queue(std::size_t capacity, Init&& init) {
+    capacity_ = 1;
+    while (capacity_ < capacity) capacity_ <<= 1;
+    mask_  = capacity_ - 1;
+    slots_ = std::make_unique<slot[]>(capacity_);
+
+    for (std::size_t i = 0; i < capacity_; ++i) {
+      slots_[i].sequence.store(i, std::memory_order_relaxed);
+      init(slots_[i].value);
+    }
+  }
+
+  explicit bounded_queue(std::size_t capacity)
+      : bounded_queue(capacity, [](T&) {}) {}
+
+  bounded_queue(const bounded_queue&) = delete;
+  bounded_queue& operator=(const bounded_queue&) = delete;
+
+  /**
+   * @brief Pushes an element, if there is space
+   *
+   * @param value The element, swapped with the content of the slot
+   * @return True if pushed, false if the queue is full
+   */
+  bool try_push(T& value) {
+    auto position = tail_.load(std::memory_order_relaxed);
+    auto& s       = slots_[position & mask_];
+
+    if (s.sequence.load(std::memory_order_acquire) != position) return false;
+
+    using std::swap;
+    swap(s.value, value);
+    s.sequence.store(position + 1, std::memory_order_release);
+    tail_.store(position + 1, std::memory_order_relaxed);
+    return true;
+  }
+
+  /**
+   * @brief Pops the oldest element, if there is one
+   *
+   * @param value The element, swapped with the content of the slot
+   * @return True if popped, false if the queue is empty
+   */
+  bool try_pop(T& value) {
+    auto position = head_.load(std::memory_order_relaxed);
+
+    for (;;) {
+      auto& s       = slots_[position & mask_];
+      auto sequence = s.sequence.load(std::memory_order_acquire);
+      auto distance = static_cast<std::intptr_t>(sequence - (position + 1));
+
+      if (distance < 0) return false;
+
+      if (distance == 0) {
+        if (head_.compare_exchange_weak(position, position + 1,
+                                        std::memory_order_relaxed)) {
+          using std::swap;
+          swap(s.value, value);
+          s.sequence.store(position + capacity_, std::memory_order_release);
+          return true;
+        }
+      } else {
+        position = head_.load(std::memory_order_relaxed);
+      }
+    }
+  }
+
+  /**
+   * @brief Gets the approximate number of elements
+   */
+  std::size_t size() const {
+    auto tail = tail_.load(std::memory_order_relaxed);
+    auto head = head_.load(std::memory_order_relaxed);
+    return tail > head ? tail - head : 0;
+  }
+
+  std::size_t capacity() const { return capacity_; }
+
+ private:
+  struct slot {
+    std::atomic<std::size_t> sequence;
+    T value;
+  };
+
+  std::size_t capacity_;
+  std::size_t mask_;
+  std::unique_ptr<slot[]> slots_;
+
+  // Keep the indices of the producer and the consumer on separate cache lines.
+  alignas(64) std::atomic<std::size_t> head_{0};
+  alignas(64) std::atomic<std::size_t> tail_{0};
+};
+
+}  // namespace exot::jni
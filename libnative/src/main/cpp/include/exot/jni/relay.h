@@ -0,0 +1,321 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+/**
+ * @file libnative/src/main/cpp/include/exot/jni/relay.h
+ * @author     Bruno Klopott
+ * @brief      The logging sink at the head of the capture pipeline, relaying
+ *             records to the sinks of the application logger.
+ */
+
+#pragma once
+
+#include <time.h>
+
+#include <atomic>
+#include <chrono>
+#include <cstdint>
+#include <cstdlib>
+#include <cstring>
+#include <mutex>
+#include <string_view>
+#include <utility>
+#include <vector>
+
+#include <spdlog/details/log_msg.h>
+#include <spdlog/sinks/base_sink.h>
+#include <spdlog/spdlog.h>
+
+#include <exot/jni/csv.h>
+
+namespace exot::jni {
+
+/**
+ * @brief Splits a CSV record into its fields
+ *
+ * @param record The record
+ * @param fields The vector to hold the fields, views into the record
+ */
+inline void split_record(std::string_view record,
+                         std::vector<std::string_view>& fields) {
+  fields.clear();
+
+  std::size_t begin = 0;
+  for (auto end = record.find(','); end != std::string_view::npos;
+       end      = record.find(',', begin)) {
+    fields.push_back(record.substr(begin, end - begin));
+    begin = end + 1;
+  }
+
+  fields.push_back(record.substr(begin));
+}
+
+/**
+ * @brief Parses a numeric CSV field
+ *
+ * @param field The field
+ * @param value The parsed value
+ * @return True if the whole field was a number, false otherwise
+ */
+inline bool parse_field(std::string_view field, double& value) {
+  char buffer[64];
+  if (field.empty() || field.size() >= sizeof(buffer)) return false;
+
+  std::memcpy(buffer, field.data(), field.size());
+  buffer[field.size()] = '\0';
+
+  char* end;
+  value = std::strtod(buffer, &end);
+  return end == buffer + field.size();
+}
+
+/**
+ * @brief Is the record a data record, i.e. neither the header nor a
+ *        side-channel record?
+ *
+ * @param record The record
+ * @return True if the first field is numeric, false otherwise
+ */
+inline bool is_data_record(std::string_view record) {
+  double value;
+  return !record.empty() && record.front() != '#' &&
+         parse_field(record.substr(0, record.find(',')), value);
+}
+
+/**
+ * @brief Gets the current time of the boot clock
+ * @details The boot clock is the one behind SystemClock.elapsedRealtimeNanos()
+ *          on the Java side, which allows relating native and Java events.
+ *
+ * @return The time in nanoseconds
+ */
+inline std::int64_t boot_time_ns() {
+  struct timespec ts;
+  clock_gettime(CLOCK_BOOTTIME, &ts);
+  return static_cast<std::int64_t>(ts.tv_sec) * 1000000000ll + ts.tv_nsec;
+}
+
+/**
+ * @brief Gets the current time of the monotonic clock
+ * @details Unlike the boot clock, the monotonic clock stops while the device
+ *          is suspended.
+ *
+ * @return The time in nanoseconds
+ */
+inline std::int64_t monotonic_time_ns() {
+  struct timespec ts;
+  clock_gettime(CLOCK_MONOTONIC, &ts);
+  return static_cast<std::int64_t>(ts.tv_sec) * 1000000000ll + ts.tv_nsec;
+}
+
+/**
+ * @brief Gets the current time of the clock of the meter log timestamps
+ * @details With METER_LOG_SYSTEM_TIME the meter host logger stamps records
+ *          with the system clock, otherwise with the steady clock.
+ *
+ * @return The time in nanoseconds since the epoch of the clock
+ */
+inline std::int64_t meter_time_ns() {
+#if defined(METER_LOG_SYSTEM_TIME) && METER_LOG_SYSTEM_TIME != 0
+  using clock = std::chrono::system_clock;
+#else
+  using clock = std::chrono::steady_clock;
+#endif
+  return std::chrono::duration_cast<std::chrono::nanoseconds>(
+             clock::now().time_since_epoch())
+      .count();
+}
+
+/**
+ * @brief Logging sink relaying records to the application logger's sinks
+ * @details Besides relaying, the sink notes when the first data record
+ *          arrives after it has been armed, which is used to report the
+ *          latency from a start command to the first sample.
+ *
+ *          With stall detection enabled, the sink also compares the arrival
+ *          times of consecutive data records on the boot clock. If more than
+ *          the threshold passed, e.g. because the CPU was suspended or the
+ *          sampler frozen in Doze, a gap record is written before the record:
+ *
+ * @code
+ * # stall,<boot time>,<gap>,<suspended>,<missed>
+ * @endcode
+ *
+ *          where gap is the time since the previous record, suspended the
+ *          part of it the device spent in suspend, i.e. the difference of the
+ *          boot and the monotonic clocks, and missed the number of sampling
+ *          periods without a record.
+ */
+class relay_sink : public spdlog::sinks::base_sink<std::mutex> {
+ public:
+  /**
+   * @brief Constructs the sink
+   *
+   * @param downstream The sinks to write to
+   */
+  explicit relay_sink(std::vector<spdlog::sink_ptr> downstream)
+      : downstream_{std::move(downstream)} {}
+
+  /**
+   * @brief Arms the sink, such that the time of the next data record is noted
+   * @details The stall detection restarts as well, such that the time the
+   *          meter was stopped is not reported as a stall.
+   */
+  void arm() {
+    first_record_.store(-1, std::memory_order_relaxed);
+    last_boot_.store(-1, std::memory_order_relaxed);
+    armed_.store(true, std::memory_order_release);
+  }
+
+  /**
+   * @brief Enables the stall detection
+   *
+   * @param period    The sampling period in nanoseconds
+   * @param threshold The gap from which on a stall is reported, in
+   *                  nanoseconds, 0 disables the detection
+   */
+  void detect_stalls(std::int64_t period, std::int64_t threshold) {
+    std::lock_guard<std::mutex> lock(mutex_);
+    period_    = period > 0 ? period : 1;
+    threshold_ = threshold;
+  }
+
+  /**
+   * @brief Gets the number of stalls detected
+   */
+  std::uint64_t stalls() const {
+    return stalls_.load(std::memory_order_relaxed);
+  }
+
+  /**
+   * @brief Gets the total time of the stalls detected, in nanoseconds
+   */
+  std::int64_t stalled() const {
+    return stalled_.load(std::memory_order_relaxed);
+  }
+
+  /**
+   * @brief Gets the time of the first data record since the sink was armed
+   *
+   * @return The boot clock time in nanoseconds, or -1 if none arrived yet
+   */
+  std::int64_t first_record() const {
+    return first_record_.load(std::memory_order_acquire);
+  }
+
+  /**
+   * @brief Gets the number of data records seen by the sink
+   */
+  std::uint64_t records() const {
+    return records_.load(std::memory_order_relaxed);
+  }
+
+ protected:
+  void sink_it_(const spdlog::details::log_msg& msg) override {
+    note(msg);
+    forward(msg);
+  }
+
+  void flush_() override {
+    for (auto& sink : downstream_) sink->flush();
+  }
+
+  /**
+   * @brief Notes the arrival of a record
+   *
+   * @param msg The log message
+   */
+  void note(const spdlog::details::log_msg& msg) {
+    if (!is_data_record({msg.payload.data(), msg.payload.size()})) return;
+
+    records_.fetch_add(1, std::memory_order_relaxed);
+    if (armed_.load(std::memory_order_acquire)) {
+      armed_.store(false, std::memory_order_relaxed);
+      first_record_.store(boot_time_ns(), std::memory_order_release);
+    }
+
+    if (threshold_ > 0) detect_stall(msg);
+  }
+
+  /**
+   * @brief Writes a record to the downstream sinks
+   *
+   * @param msg The log message
+   */
+  void forward(const spdlog::details::log_msg& msg) {
+    for (auto& sink : downstream_) {
+      if (sink->should_log(msg.level)) sink->log(msg);
+    }
+  }
+
+  std::vector<spdlog::sink_ptr> downstream_;
+
+ private:
+  /**
+   * @brief Writes a stall record if the gap to the previous record is beyond
+   *        the threshold
+   *
+   * @param msg The log message of the data record
+   */
+  void detect_stall(const spdlog::details::log_msg& msg) {
+    auto boot      = boot_time_ns();
+    auto monotonic = monotonic_time_ns();
+    auto last      = last_boot_.exchange(boot, std::memory_order_relaxed);
+    auto gap       = boot - last;
+
+    if (last >= 0 && gap > threshold_) {
+      stalls_.fetch_add(1, std::memory_order_relaxed);
+      stalled_.fetch_add(gap, std::memory_order_relaxed);
+
+      auto suspended = gap - (monotonic - last_monotonic_);
+      auto& row      = csv_row::local()
+                      .begin("# stall")
+                      .add(boot)
+                      .add(gap)
+                      .add(suspended > 0 ? suspended : 0)
+                      .add(gap / period_ - 1);
+      auto record    = msg;
+      record.payload = {row.view().data(), row.view().size()};
+      forward(record);
+    }
+
+    last_monotonic_ = monotonic;
+  }
+
+  std::atomic<bool> armed_{false};
+  std::atomic<std::int64_t> first_record_{-1};
+  std::atomic<std::uint64_t> records_{0};
+  std::atomic<std::int64_t> last_boot_{-1};
+  std::int64_t last_monotonic_{0};
+  std::int64_t period_{1};
+  std::int64_t threshold_{0};
+  std::atomic<std::uint64_t> stalls_{0};
+  std::atomic<std::int64_t> stalled_{0};
+};
+
+}  // namespace exot::jni
@@ -0,0 +1,379 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+/**
+ * @file libnative/src/main/cpp/include/exot/jni/stream.h
+ * @author     Bruno Klopott
+ * @brief      The logging sink serving the live records to local clients.
+ */
+
+#pragma once
+
+#include <arpa/inet.h>
+#include <netinet/in.h>
+#include <poll.h>
+#include <sys/socket.h>
+#include <sys/un.h>
+#include <unistd.h>
+
+#include <algorithm>
+#include <atomic>
+#include <cerrno>
+#include <cstddef>
+#include <cstdint>
+#include <cstring>
+#include <mutex>
+#include <string>
+#include <string_view>
+#include <thread>
+#include <vector>
+
+#include <spdlog/details/log_msg.h>
+#include <spdlog/details/null_mutex.h>
+#include <spdlog/sinks/base_sink.h>
+
+#include <exot/jni/csv.h>
+#include <exot/jni/log.h>
+#include <exot/jni/relay.h>
+
+namespace exot::jni {
+
+/**
+ * @brief Logging sink serving the live records over a local socket
+ * @details The records are kept in a ring of the most recent ones, from which
+ *          a server thread sends them to each connected client as CSV lines.
+ *          The server listens on an abstract Unix-domain socket, and if a
+ *          port is given, also on a TCP socket on the loopback interface.
+ *          From a host, either is reachable through adb:
+ *
+ * @code
+ * adb forward tcp:5555 localabstract:exot_stream
+ * nc localhost 5555
+ * @endcode
+ *
+ *          A new client first receives the header, then the records from the
+ *          time it connected. Each client has its own cursor into the ring.
+ *          A client which does not keep up is never waited for: once its
+ *          cursor has been overwritten, it skips ahead to the oldest record
+ *          in the ring and receives a side-channel record instead, with the
+ *          time on the meter log clock:
+ *
+ * @code
+ * # skip,<time>,<skipped records>
+ * @endcode
+ *
+ *          Clients of the Unix-domain socket are only accepted from the uid
+ *          of the app and from the shell, i.e. adb, by their credentials.
+ *          The TCP socket carries no credentials and accepts any local
+ *          client, it is therefore disabled unless a port is given.
+ */
+class stream_sink
+    : public spdlog::sinks::base_sink<spdlog::details::null_mutex> {
+  static inline const char* TAG = "ExOT/Native/Stream";
+
+ public:
+  /**
+   * @brief Constructs the sink and starts the server thread
+   *
+   * @param name     The name of the abstract socket
+   * @param port     The TCP port on the loopback interface, 0 for none
+   * @param capacity The number of records kept for the clients
+   * @param clients  The maximum number of clients
+   */
+  stream_sink(std::string name, std::uint16_t port, std::size_t capacity,
+              std::size_t clients = 8)
+      : name_{std::move(name)},
+        port_{port},
+        ring_(std::max<std::size_t>(capacity, 16)),
+        max_clients_{clients} {
+    for (auto& record : ring_) record.reserve(256);
+
+    listen_unix();
+    if (port_ != 0) listen_tcp();
+
+    if (listeners_.empty()) {
+      Log.e(TAG, "{}(): cannot listen on {} or port {}", __func__, name_,
+            port_);
+      return;
+    }
+
+    server_ = std::thread(&stream_sink::serve, this);
+  }
+
+  ~stream_sink() {
+    quit_.store(true, std::memory_order_release);
+    if (server_.joinable()) server_.join();
+
+    for (auto& c : clients_) ::close(c.fd);
+    for (auto fd : listeners_) ::close(fd);
+  }
+
+  /**
+   * @brief Describes the state of the server
+   */
+  std::string status() const {
+    return fmt::format("stream: @{}{}, clients: {}, records: {}, skipped: {}",
+                       name_, port_ != 0 ? fmt::format(" :{}", port_) : "",
+                       connected_.load(std::memory_order_relaxed),
+                       head_.load(std::memory_order_relaxed),
+                       skipped_.load(std::memory_order_relaxed));
+  }
+
+ protected:
+  void sink_it_(const spdlog::details::log_msg& msg) override {
+    std::string_view record{msg.payload.data(), msg.payload.size()};
+
+    std::lock_guard<std::mutex> lock(ring_mutex_);
+    if (header_.empty() && !record.empty() && record.front() != '#' &&
+        !is_data_record(record)) {
+      header_.assign(record.data(), record.size());
+      header_.push_back('\n');
+      return;
+    }
+
+    auto sequence = head_.load(std::memory_order_relaxed);
+    ring_[sequence % ring_.size()].assign(record.data(), record.size());
+    head_.store(sequence + 1, std::memory_order_release);
+  }
+
+  void flush_() override {}
+
+ private:
+  struct client {
+    int fd;
+    std::uint64_t cursor;
+    std::string out;
+    std::size_t sent{0};
+  };
+
+  static constexpr uid_t shell_uid = 2000;  //! AID_SHELL, the uid of adb
+
+  void listen_unix() {
+    struct sockaddr_un address = {};
+    address.sun_family = AF_UNIX;
+
+    // An abstract socket starts with a NUL byte and has no file.
+    auto length = std::min(name_.size(), sizeof(address.sun_path) - 1);
+    std::memcpy(address.sun_path + 1, name_.data(), length);
+
+    unix_listener_ =
+        listen_on(AF_UNIX, reinterpret_cast<struct sockaddr*>(&address),
+                  offsetof(struct sockaddr_un, sun_path) + 1 + length);
+  }
+
+  void listen_tcp() {
+    struct sockaddr_in address = {};
+    address.sin_family      = AF_INET;
+    address.sin_port        = htons(port_);
+    address.sin_addr.s_addr = htonl(INADDR_LOOPBACK);
+
+    listen_on(AF_INET, reinterpret_cast<struct sockaddr*>(&address),
+              sizeof(address));
+  }
+
+  int listen_on(int family, const struct sockaddr* address,
+                socklen_t length) {
+    auto fd = ::socket(family, SOCK_STREAM | SOCK_NONBLOCK | SOCK_CLOEXEC, 0);
+    if (fd < 0) return -1;
+
+    if (family == AF_INET) {
+      int on = 1;
+      ::setsockopt(fd, SOL_SOCKET, SO_REUSEADDR, &on, sizeof(on));
+    }
+
+    if (::bind(fd, address, length) != 0 || ::listen(fd, 4) != 0) {
+      Log.w(TAG, "{}(): cannot listen: {}", __func__, std::strerror(errno));
+      ::close(fd);
+      return -1;
+    }
+
+    listeners_.push_back(fd);
+    return fd;
+  }
+
+  /**
+   * @brief The server loop
+   * @details Clients with pending output are polled for writability, new
+   *          records are picked up at the poll timeout, such that the sampler
+   *          never has to wake the server.
+   */
+  void serve() {
+    std::vector<struct pollfd> fds;
+
+    while (!quit_.load(std::memory_order_acquire)) {
+      fds.clear();
+      for (auto fd : listeners_) fds.push_back({fd, POLLIN, 0});
+      for (const auto& c : clients_)
+        fds.push_back(
+            {c.fd, static_cast<short>(c.sent < c.out.size() ? POLLOUT : 0), 0});
+
+      ::poll(fds.data(), fds.size(), 10);
+
+      for (auto i = 0u; i < listeners_.size(); ++i) {
+        if (fds[i].revents & POLLIN) accept(listeners_[i]);
+      }
+
+      for (auto i = 0u; i < clients_.size();) {
+        auto revents = i + listeners_.size() < fds.size()
+                           ? fds[i + listeners_.size()].revents
+                           : 0;
+
+        if ((revents & (POLLERR | POLLHUP)) || !send(clients_[i])) {
+          ::close(clients_[i].fd);
+          clients_.erase(clients_.begin() + i);
+          fds.erase(fds.begin() + listeners_.size() + i);
+          connected_.fetch_sub(1, std::memory_order_relaxed);
+          continue;
+        }
+
+        ++i;
+      }
+    }
+  }
+
+  void accept(int listener) {
+    auto fd = ::accept4(listener, nullptr, nullptr,
+                        SOCK_NONBLOCK | SOCK_CLOEXEC);
+    if (fd < 0) return;
+
+    if (clients_.size() >= max_clients_) {
+      ::close(fd);
+      return;
+    }
+
+    if (listener == unix_listener_ && !permitted(fd)) {
+      ::close(fd);
+      return;
+    }
+
+    client c{fd, head_.load(std::memory_order_acquire), {}};
+    {
+      std::lock_guard<std::mutex> lock(ring_mutex_);
+      c.out = header_;
+    }
+
+    clients_.push_back(std::move(c));
+    connected_.fetch_add(1, std::memory_order_relaxed);
+  }
+
+  /**
+   * @brief Checks the credentials of a Unix-domain client
+   */
+  bool permitted(int fd) const {
+    struct ucred credentials = {};
+    socklen_t length         = sizeof(credentials);
+
+    if (::getsockopt(fd, SOL_SOCKET, SO_PEERCRED, &credentials, &length) !=
+        0) {
+      Log.w(TAG, "{}(): no credentials: {}", __func__, std::strerror(errno));
+      return false;
+    }
+
+    if (credentials.uid == ::getuid() || credentials.uid == shell_uid)
+      return true;
+
+    Log.w(TAG, "{}(): refused client with uid {}, pid {}", __func__,
+          credentials.uid, credentials.pid);
+    return false;
+  }
+
+  /**
+   * @brief Sends pending output to a client, refilling it from the ring
+   *
+   * @return False if the client is gone, true otherwise
+   */
+  bool send(client& c) {
+    if (c.sent == c.out.size()) {
+      c.out.clear();
+      c.sent = 0;
+      fill(c);
+    }
+
+    while (c.sent < c.out.size()) {
+      auto n = ::send(c.fd, c.out.data() + c.sent, c.out.size() - c.sent,
+                      MSG_DONTWAIT | MSG_NOSIGNAL);
+      if (n < 0) return errno == EAGAIN || errno == EWOULDBLOCK;
+
+      c.sent += static_cast<std::size_t>(n);
+    }
+
+    return true;
+  }
+
+  /**
+   * @brief Copies the records after the client's cursor to its output
+   * @details The ring is locked for one record at a time, such that the
+   *          sampler waits for at most a single record to be copied, not for
+   *          a whole batch.
+   */
+  void fill(client& c) {
+    static constexpr std::size_t batch = 64 * 1024;
+
+    while (c.out.size() < batch) {
+      std::lock_guard<std::mutex> lock(ring_mutex_);
+      auto head = head_.load(std::memory_order_relaxed);
+
+      if (head - c.cursor > ring_.size()) {
+        auto skipped = head - ring_.size() - c.cursor;
+        skipped_.fetch_add(skipped, std::memory_order_relaxed);
+        c.cursor = head - ring_.size();
+
+        c.out.append(csv_row::local()
+                         .begin("# skip")
+                         .add(meter_time_ns())
+                         .add(skipped)
+                         .view());
+        c.out.push_back('\n');
+      }
+
+      if (c.cursor == head) return;
+
+      c.out.append(ring_[c.cursor++ % ring_.size()]);
+      c.out.push_back('\n');
+    }
+  }
+
+  std::string name_;
+  std::uint16_t port_;
+  std::vector<std::string> ring_;
+  std::size_t max_clients_;
+
+  std::mutex ring_mutex_;  //! Guards the ring and the header
+  std::string header_;
+  std::atomic<std::uint64_t> head_{0};
+  std::atomic<std::uint64_t> skipped_{0};
+  std::atomic<std::size_t> connected_{0};
+
+  std::vector<int> listeners_;
+  int unix_listener_{-1};
+  std::vector<client> clients_;
+  std::atomic<bool> quit_{false};
+  std::thread server_;
+};
+
+}  // namespace exot::jni
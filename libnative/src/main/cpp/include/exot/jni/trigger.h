@@ -0,0 +1,327 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+/**
+ * @file libnative/src/main/cpp/include/exot/jni/trigger.h
+ * @author     Bruno Klopott
+ * @brief      Event-triggered capture: a logging sink which holds the records
+ *             in a pre-trigger ring and only writes the windows around
+ *             trigger events.
+ */
+
+#pragma once
+
+#include <limits>
+#include <mutex>
+#include <optional>
+#include <string>
+#include <string_view>
+#include <utility>
+#include <vector>
+
+#include <fmt/format.h>
+#include <spdlog/details/log_msg.h>
+#include <spdlog/sinks/base_sink.h>
+#include <spdlog/spdlog.h>
+
+#include <exot/jni/csv.h>
+#include <exot/jni/relay.h>
+
+namespace exot::jni {
+
+/**
+ * @brief A condition on the columns of the meter log which fires a trigger
+ * @details The condition applies to every column whose name starts with the
+ *          given prefix, e.g. "thermal_sysfs" covers all thermal zones. The
+ *          threshold conditions are edge-triggered, i.e. they fire when a
+ *          column crosses the level, not on every record beyond it.
+ */
+struct trigger_condition {
+  enum class kind {
+    above,   //! A value rises above the level
+    below,   //! A value falls below the level
+    drop,    //! A value drops by more than the level (relative) between records
+    change,  //! A value differs from the one in the previous record
+  };
+
+  std::string column;  //! The column name prefix
+  kind type;           //! The kind of the condition
+  double level;        //! The threshold level, or the relative drop
+
+  trigger_condition(std::string column, kind type, double level)
+      : column{std::move(column)}, type{type}, level{level} {}
+
+  /**
+   * @brief Resolves the condition against the log header
+   *
+   * @param header The header fields
+   */
+  void resolve(const std::vector<std::string_view>& header) {
+    indices_.clear();
+    for (auto i = 0ull; i < header.size(); ++i) {
+      if (header[i].substr(0, column.size()) == column) indices_.push_back(i);
+    }
+
+    previous_.assign(indices_.size(), std::numeric_limits<double>::quiet_NaN());
+    previous_text_.assign(indices_.size(), std::string{});
+    active_.assign(indices_.size(), false);
+    primed_ = false;
+  }
+
+  /**
+   * @brief Is the condition resolved against any of the columns?
+   */
+  bool resolved() const { return !indices_.empty(); }
+
+  /**
+   * @brief Evaluates the condition on a record and updates its state
+   *
+   * @param fields The record fields
+   * @return True if the condition fired, false otherwise
+   */
+  bool update(const std::vector<std::string_view>& fields) {
+    auto fired = false;
+
+    for (auto i = 0ull; i < indices_.size(); ++i) {
+      if (indices_[i] >= fields.size()) continue;
+      auto field = fields[indices_[i]];
+
+      if (type == kind::change) {
+        if (primed_ && field != previous_text_[i]) fired = true;
+        previous_text_[i].assign(field.data(), field.size());
+        continue;
+      }
+
+      double value;
+      if (!parse_field(field, value)) continue;
+
+      if (type == kind::drop) {
+        if (previous_[i] > 0.0 && value < previous_[i] * (1.0 - level))
+          fired = true;
+        previous_[i] = value;
+      } else {
+        auto on = type == kind::above ? value > level : value < level;
+        if (on && !active_[i]) fired = true;
+        active_[i] = on;
+      }
+    }
+
+    primed_ = true;
+    return fired;
+  }
+
+  /**
+   * @brief Describes the condition, used as the reason in trigger records
+   */
+  std::string describe() const {
+    switch (type) {
+      case kind::above:
+        return fmt::format("{}>{}", column, level);
+      case kind::below:
+        return fmt::format("{}<{}", column, level);
+      case kind::drop:
+        return fmt::format("{}-{}", column, level);
+      default:
+        return fmt::format("{}~", column);
+    }
+  }
+
+ private:
+  std::vector<std::size_t> indices_;
+  std::vector<double> previous_;
+  std::vector<std::string> previous_text_;
+  std::vector<bool> active_;
+  bool primed_{false};
+};
+
+/**
+ * @brief Logging sink implementing the event-triggered capture
+ * @details The sink sits in front of the sinks of the application logger.
+ *          The header and side-channel records (starting with '#') are passed
+ *          through immediately. Data records are held in a ring of
+ *          `pre_trigger` records, the oldest being discarded. When a trigger
+ *          fires, a `# trigger,<timestamp>,<reason>,<held>` record is written,
+ *          followed by the held records, and the following `post_trigger`
+ *          records are passed through. Triggers firing within the post-trigger
+ *          window extend it.
+ *
+ *          Ring slots keep their buffers, such that holding records does not
+ *          allocate once the ring has been filled.
+ */
+class trigger_sink final : public relay_sink {
+ public:
+  /**
+   * @brief Constructs the sink
+   *
+   * @param downstream   The sinks to write to
+   * @param pre_trigger  The number of records held before a trigger
+   * @param post_trigger The number of records written after a trigger
+   * @param conditions   The trigger conditions
+   */
+  trigger_sink(std::vector<spdlog::sink_ptr> downstream,
+               std::size_t pre_trigger, std::size_t post_trigger,
+               std::vector<trigger_condition> conditions)
+      : relay_sink{std::move(downstream)},
+        ring_(pre_trigger),
+        post_trigger_{post_trigger},
+        conditions_{std::move(conditions)} {
+    for (auto& slot : ring_) slot.text.reserve(256);
+  }
+
+  /**
+   * @brief Fires an explicit trigger
+   * @details The trigger takes effect at the next data record.
+   *
+   * @param reason The reason recorded in the trigger record
+   */
+  void fire(std::string reason) {
+    std::lock_guard<std::mutex> lock(mutex_);
+    pending_ = reason.empty() ? "explicit" : std::move(reason);
+  }
+
+  /**
+   * @brief Describes the state of the sink
+   */
+  std::string status() {
+    std::lock_guard<std::mutex> lock(mutex_);
+    return fmt::format("{}, held: {}/{}, fired: {}, discarded: {}",
+                       remaining_ > 0 ? "triggered" : "armed", held_,
+                       ring_.size(), fired_, discarded_);
+  }
+
+ protected:
+  void sink_it_(const spdlog::details::log_msg& msg) override {
+    std::string_view record{msg.payload.data(), msg.payload.size()};
+    note(msg);
+
+    if (!record.empty() && record.front() == '#') {
+      forward(msg);
+      return;
+    }
+
+    split_record(record, fields_);
+
+    double value;
+    if (!header_seen_ && !parse_field(fields_.front(), value)) {
+      header_seen_ = true;
+      for (auto& condition : conditions_) {
+        condition.resolve(fields_);
+        if (auto log = spdlog::get("log"); log && !condition.resolved())
+          log->warn("[trigger_sink] no columns match trigger condition {}",
+                    condition.describe());
+      }
+
+      forward(msg);
+      return;
+    }
+
+    header_seen_ = true;
+
+    std::string reason;
+    for (auto& condition : conditions_) {
+      if (condition.update(fields_) && reason.empty())
+        reason = condition.describe();
+    }
+
+    if (!pending_.empty()) {
+      reason = std::move(pending_);
+      pending_.clear();
+    }
+
+    if (!reason.empty()) release(msg, fields_.front(), reason);
+
+    if (remaining_ > 0) {
+      forward(msg);
+      --remaining_;
+    } else {
+      hold(msg, record);
+    }
+  }
+
+ private:
+  struct held_record {
+    std::optional<spdlog::details::log_msg> msg;
+    std::string text;
+  };
+
+  void hold(const spdlog::details::log_msg& msg, std::string_view record) {
+    if (ring_.empty()) {
+      ++discarded_;
+      return;
+    }
+
+    auto& slot = ring_[(first_ + held_) % ring_.size()];
+    if (held_ < ring_.size()) {
+      ++held_;
+    } else {
+      first_ = (first_ + 1) % ring_.size();
+      ++discarded_;
+    }
+
+    slot.text.assign(record.data(), record.size());
+    slot.msg.emplace(msg);
+    slot.msg->payload = {slot.text.data(), slot.text.size()};
+  }
+
+  void release(const spdlog::details::log_msg& msg, std::string_view timestamp,
+               const std::string& reason) {
+    marker_.assign(csv_row::local()
+                       .begin("# trigger")
+                       .add(timestamp)
+                       .add(reason)
+                       .add(held_)
+                       .view());
+    auto marker    = msg;
+    marker.payload = {marker_.data(), marker_.size()};
+    forward(marker);
+
+    for (; held_ > 0; --held_) {
+      forward(*ring_[first_].msg);
+      first_ = (first_ + 1) % ring_.size();
+    }
+
+    first_     = 0;
+    remaining_ = post_trigger_;
+    ++fired_;
+  }
+
+  std::vector<held_record> ring_;
+  std::size_t first_{0};
+  std::size_t held_{0};
+  std::size_t post_trigger_;
+  std::size_t remaining_{0};
+  std::vector<trigger_condition> conditions_;
+  std::vector<std::string_view> fields_;
+  std::string pending_;
+  std::string marker_;
+  bool header_seen_{false};
+  unsigned long long fired_{0};
+  unsigned long long discarded_{0};
+};
+
+}  // namespace exot::jni
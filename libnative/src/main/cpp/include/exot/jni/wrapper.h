@@ -38,7 +38,6 @@
 #include <jni.h>
 
 #include <chrono>
-#include <thread>
 #include <type_traits>
 #include <utility>
 
@@ -239,6 +238,45 @@ class Wrapper {
     return false;
   }
 
+  /**
+   * @brief Flushes the logs of the Manager instance
+   *
+   * @return true   Flushed successfully
+   * @return false  Failed to flush
+   */
+  bool flush() const {
+    if (manager_ptr_ != nullptr) {
+      manager_ptr_->flush();
+      return true;
+    } else {
+      Log.w(TAG, "{}(): manager does not exist", __func__);
+    }
+
+    return false;
+  }
+
+  /**
+   * @brief Fires an explicit capture trigger
+   *
+   * @param reason The reason recorded in the log
+   * @return true   Triggered successfully
+   * @return false  Failed to trigger, e.g. not in trigger mode
+   */
+  bool trigger(std::string reason) const {
+    if (manager_ptr_ != nullptr) {
+      if (manager_ptr_->trigger(std::move(reason))) {
+        Log.i(TAG, "{}(): {}", __func__, manager_ptr_->query_capture());
+        return true;
+      } else {
+        Log.w(TAG, "{}(): capture is not in trigger mode", __func__);
+      }
+    } else {
+      Log.e(TAG, "{}(): manager does not exist", __func__);
+    }
+
+    return false;
+  }
+
   /**
    * @brief Terminates the Manager instance
    *
@@ -286,14 +324,11 @@ class Wrapper {
    * @return false  Failed to destroy
    */
   bool destroy() {
-    using namespace std::literals::chrono_literals;
-
     if (manager_ptr_ != nullptr) {
       Log.i(TAG, "{}(): deleting the object", __func__);
+      // Termination joins the executor threads, no need to wait any further.
       manager_ptr_->terminate();
-      std::this_thread::sleep_for(100ms);
       manager_ptr_ = nullptr;
-      std::this_thread::sleep_for(10ms);
       return true;
     } else {
       Log.w(TAG, "{}(): object does not exist", __func__);
@@ -331,6 +366,15 @@ class Wrapper {
     return "N/A";
   }
 
+  /**
+   * @brief Gets the time of the first sample since the last start
+   *
+   * @return The boot clock time in nanoseconds, or -1 if not applicable
+   */
+  std::int64_t first_sample_time() const {
+    return manager_ptr_ != nullptr ? manager_ptr_->first_sample_time() : -1;
+  }
+
   /**
    * @brief Gets the state of the Manager instance
    *
@@ -340,6 +384,16 @@ class Wrapper {
   std::string query_state() const {
     return manager_ptr_ != nullptr ? manager_ptr_->query_state() : "missing";
   }
+
+  /**
+   * @brief Describes the Manager instance in detail
+   *
+   * @return std::string The state, followed by the meter's own resource usage
+   *                     and the state of the capture pipeline, if existent.
+   */
+  std::string query_status() const {
+    return manager_ptr_ != nullptr ? manager_ptr_->query_status() : "missing";
+  }
 };
 
 }  // namespace exot::jni
\ No newline at end of file
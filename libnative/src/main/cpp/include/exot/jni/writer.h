@@ -0,0 +1,402 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+/**
+ * @file libnative/src/main/cpp/include/exot/jni/writer.h
+ * @author     Bruno Klopott
+ * @brief      The logging sink decoupling the sampler from the log writes.
+ */
+
+#pragma once
+
+#include <algorithm>
+#include <atomic>
+#include <chrono>
+#include <condition_variable>
+#include <cstdint>
+#include <mutex>
+#include <optional>
+#include <string>
+#include <string_view>
+#include <thread>
+#include <utility>
+#include <vector>
+
+#include <fmt/format.h>
+#include <spdlog/details/log_msg.h>
+#include <spdlog/details/null_mutex.h>
+#include <spdlog/sinks/base_sink.h>
+#include <spdlog/spdlog.h>
+
+#include <exot/jni/csv.h>
+#include <exot/jni/queue.h>
+#include <exot/jni/relay.h>
+
+namespace exot::jni {
+
+/**
+ * @brief Logging sink handing records to a writer thread through a queue
+ * @details Writing to the log file, e.g. on a slow SD card, happens on a
+ *          writer thread which drains the queue in batches, such that a
+ *          stalled write does not stretch the sampling period. The sink sits
+ *          behind the relay sink, which serialises the producers, hence the
+ *          null mutex.
+ *
+ *          When the queue is full, the policy decides what is given up:
+ *          - block: the sampler waits for space, counted as delayed records,
+ *          - drop_oldest: the oldest queued records are dropped,
+ *          - drop_newest: the incoming record is dropped,
+ *          - decimate: above 3/4 of the capacity only every n-th data record
+ *            is kept, and the incoming record is dropped if the queue is full.
+ *
+ *          Lost records are marked in the log by a side-channel record,
+ *          written before the next record which is kept, with the time on
+ *          the meter log clock:
+ *
+ * @code
+ * # gap,<time>,<dropped>,<decimated>
+ * @endcode
+ *
+ *          Flushing the sink, which happens under the lock of the relay sink,
+ *          only requests the writer thread to flush the downstream sinks once
+ *          it has drained the queue. A caller which needs the records on disk
+ *          waits for that with sync(), outside of any sink lock, such that the
+ *          sampler is never held up by a flush.
+ */
+class writer_sink
+    : public spdlog::sinks::base_sink<spdlog::details::null_mutex> {
+ public:
+  enum class policy { block, drop_oldest, drop_newest, decimate };
+
+  /**
+   * @brief Parses the name of a policy
+   *
+   * @param name The name
+   * @return The policy, or nothing if the name is unknown
+   */
+  static std::optional<policy> parse_policy(std::string_view name) {
+    if (name == "block") return policy::block;
+    if (name == "drop_oldest") return policy::drop_oldest;
+    if (name == "drop_newest") return policy::drop_newest;
+    if (name == "decimate") return policy::decimate;
+    return {};
+  }
+
+  static const char* describe(policy p) {
+    switch (p) {
+      case policy::block:
+        return "block";
+      case policy::drop_oldest:
+        return "drop_oldest";
+      case policy::drop_newest:
+        return "drop_newest";
+      case policy::decimate:
+        return "decimate";
+    }
+    return "unknown";
+  }
+
+  /**
+   * @brief Constructs the sink and starts the writer thread
+   *
+   * @param logger     The name of the logger the records come from
+   * @param downstream The sinks to write to
+   * @param capacity   The capacity of the queue, in records
+   * @param p          The overflow policy
+   * @param decimation The decimation factor of the decimate policy
+   * @param batch      The maximum number of records written per batch
+   */
+  writer_sink(std::string logger, std::vector<spdlog::sink_ptr> downstream,
+              std::size_t capacity, policy p, unsigned decimation = 2,
+              std::size_t batch = 64)
+      : logger_{std::move(logger)},
+        downstream_{std::move(downstream)},
+        queue_{std::max<std::size_t>(capacity, 2), prepare},
+        policy_{p},
+        decimation_{std::max(decimation, 1u)},
+        high_water_{queue_.capacity() - queue_.capacity() / 4},
+        batch_size_{std::max<std::size_t>(batch, 1)} {
+    prepare(incoming_);
+    prepare(gap_);
+    prepare(scratch_);
+    writer_ = std::thread(&writer_sink::run, this);
+  }
+
+  /**
+   * @brief Drains the queue and stops the writer thread
+   */
+  ~writer_sink() {
+    stop_.store(true, std::memory_order_release);
+    wake();
+    if (writer_.joinable()) writer_.join();
+  }
+
+  std::uint64_t written() const {
+    return written_.load(std::memory_order_relaxed);
+  }
+
+  std::uint64_t dropped() const {
+    return dropped_.load(std::memory_order_relaxed);
+  }
+
+  std::uint64_t decimated() const {
+    return decimated_.load(std::memory_order_relaxed);
+  }
+
+  std::uint64_t delayed() const {
+    return delayed_.load(std::memory_order_relaxed);
+  }
+
+  /**
+   * @brief Waits until the records queued so far are written and flushed
+   * @details Must not be called while holding the lock of an upstream sink,
+   *          which would block the producers for the duration of the wait.
+   *
+   * @param timeout The maximum time to wait
+   * @return True if flushed, false if timed out
+   */
+  bool sync(std::chrono::milliseconds timeout = std::chrono::seconds{1}) {
+    auto request = request_flush();
+
+    std::unique_lock<std::mutex> lock(mutex_);
+    return flushed_cv_.wait_for(lock, timeout,
+                                [&] { return flushed_ >= request; });
+  }
+
+  /**
+   * @brief Describes the state of the queue
+   */
+  std::string status() const {
+    return fmt::format(
+        "queue: {}, {}/{}, written: {}, dropped: {}, decimated: {}, "
+        "delayed: {} (max {:.3f} ms)",
+        describe(policy_), queue_.size(), queue_.capacity(), written(),
+        dropped(), decimated(), delayed(),
+        max_delay_ns_.load(std::memory_order_relaxed) / 1e6);
+  }
+
+ protected:
+  void sink_it_(const spdlog::details::log_msg& msg) override {
+    std::string_view payload{msg.payload.data(), msg.payload.size()};
+
+    if (gap_dropped_ != 0 || gap_decimated_ != 0) mark_gap();
+
+    if (policy_ == policy::decimate && queue_.size() >= high_water_ &&
+        is_data_record(payload)) {
+      if (++phase_ % decimation_ != 0) {
+        decimated_.fetch_add(1, std::memory_order_relaxed);
+        ++gap_decimated_;
+        return;
+      }
+    }
+
+    incoming_.level = msg.level;
+    incoming_.time  = msg.time;
+    incoming_.text.assign(payload.data(), payload.size());
+
+    if (!queue_.try_push(incoming_)) overflow();
+    wake();
+  }
+
+  /**
+   * @brief Requests a flush from the writer thread, without waiting for it
+   */
+  void flush_() override { request_flush(); }
+
+ private:
+  struct entry {
+    spdlog::level::level_enum level;
+    std::chrono::system_clock::time_point time;
+    std::string text;
+  };
+
+  static void prepare(entry& e) { e.text.reserve(256); }
+
+  /**
+   * @brief Applies the overflow policy to the incoming record
+   */
+  void overflow() {
+    switch (policy_) {
+      case policy::block: {
+        auto begin = boot_time_ns();
+        while (!queue_.try_push(incoming_)) {
+          wake();
+          std::this_thread::sleep_for(std::chrono::microseconds{100});
+        }
+
+        auto waited = boot_time_ns() - begin;
+        delayed_.fetch_add(1, std::memory_order_relaxed);
+        if (waited > max_delay_ns_.load(std::memory_order_relaxed))
+          max_delay_ns_.store(waited, std::memory_order_relaxed);
+        break;
+      }
+
+      case policy::drop_oldest:
+        while (!queue_.try_push(incoming_)) {
+          if (queue_.try_pop(scratch_)) {
+            dropped_.fetch_add(1, std::memory_order_relaxed);
+            ++gap_dropped_;
+          }
+        }
+        break;
+
+      case policy::drop_newest:
+      case policy::decimate:
+        dropped_.fetch_add(1, std::memory_order_relaxed);
+        ++gap_dropped_;
+        break;
+    }
+  }
+
+  /**
+   * @brief Queues the gap marker for the records lost since the last one
+   * @details Decimation is only marked once it has ended, such that a period
+   *          of decimation yields a single marker.
+   */
+  void mark_gap() {
+    if (gap_dropped_ == 0 && queue_.size() >= high_water_) return;
+
+    gap_.level = spdlog::level::info;
+    gap_.time  = std::chrono::system_clock::now();
+    gap_.text.assign(csv_row::local()
+                         .begin("# gap")
+                         .add(meter_time_ns())
+                         .add(gap_dropped_)
+                         .add(gap_decimated_)
+                         .view());
+
+    if (queue_.try_push(gap_)) gap_dropped_ = gap_decimated_ = 0;
+  }
+
+  void wake() {
+    if (idle_.load(std::memory_order_acquire)) wakeup_.notify_one();
+  }
+
+  /**
+   * @brief Requests a flush of the downstream sinks
+   *
+   * @return The number of the request, flushed once flushed_ has reached it
+   */
+  std::uint64_t request_flush() {
+    auto request = requested_.fetch_add(1, std::memory_order_acq_rel) + 1;
+    wake();
+    return request;
+  }
+
+  /**
+   * @brief Flushes the downstream sinks and notes the requests served
+   *
+   * @param request The latest request made before the queue was found empty
+   */
+  void flush_downstream(std::uint64_t request) {
+    for (auto& sink : downstream_) sink->flush();
+
+    {
+      std::lock_guard<std::mutex> lock(mutex_);
+      flushed_ = request;
+    }
+    flushed_cv_.notify_all();
+  }
+
+  /**
+   * @brief The writer loop, draining the queue in batches
+   */
+  void run() {
+    std::vector<entry> batch(batch_size_);
+    for (auto& e : batch) prepare(e);
+
+    for (;;) {
+      // A request is served once the queue is empty, which covers the records
+      // queued before the request was made.
+      auto request  = requested_.load(std::memory_order_acquire);
+      std::size_t n = 0;
+      while (n < batch.size() && queue_.try_pop(batch[n])) ++n;
+
+      for (std::size_t i = 0; i < n; ++i) {
+        spdlog::details::log_msg msg(logger_, batch[i].level, batch[i].text);
+        msg.time = batch[i].time;
+
+        for (auto& sink : downstream_) {
+          if (sink->should_log(msg.level)) sink->log(msg);
+        }
+      }
+
+      written_.fetch_add(n, std::memory_order_relaxed);
+      if (n != 0) continue;
+
+      if (request != served_) {
+        served_ = request;
+        flush_downstream(request);
+        continue;
+      }
+
+      if (stop_.load(std::memory_order_acquire)) break;
+
+      std::unique_lock<std::mutex> lock(mutex_);
+      idle_.store(true, std::memory_order_release);
+      wakeup_.wait_for(lock, std::chrono::milliseconds{10});
+      idle_.store(false, std::memory_order_relaxed);
+    }
+
+    flush_downstream(requested_.load(std::memory_order_acquire));
+  }
+
+  std::string logger_;
+  std::vector<spdlog::sink_ptr> downstream_;
+  bounded_queue<entry> queue_;
+  policy policy_;
+  unsigned decimation_;
+  std::size_t high_water_;
+  std::size_t batch_size_;
+
+  // Producer state, guarded by the relay sink.
+  entry incoming_;
+  entry gap_;
+  entry scratch_;
+  unsigned phase_{0};
+  std::uint64_t gap_dropped_{0};
+  std::uint64_t gap_decimated_{0};
+
+  std::atomic<std::uint64_t> written_{0};
+  std::atomic<std::uint64_t> dropped_{0};
+  std::atomic<std::uint64_t> decimated_{0};
+  std::atomic<std::uint64_t> delayed_{0};
+  std::atomic<std::int64_t> max_delay_ns_{0};
+
+  std::atomic<std::uint64_t> requested_{0};  //! Flush requests made
+  std::uint64_t served_{0};                  //! Writer thread only
+  std::uint64_t flushed_{0};                 //! Guarded by mutex_
+  std::atomic<bool> stop_{false};
+  std::atomic<bool> idle_{false};
+  std::mutex mutex_;
+  std::condition_variable wakeup_;
+  std::condition_variable flushed_cv_;
+  std::thread writer_;
+};
+
+}  // namespace exot::jni
@@ -0,0 +1,281 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+/**
+ * @file libnative/src/main/cpp/include/exot/load/generator.h
+ * @author     Bruno Klopott
+ * @brief      The load generator component, a controllable heat source with
+ *             the timing precision of the meters.
+ */
+
+#pragma once
+
+#include <pthread.h>
+#include <sched.h>
+
+#include <atomic>
+#include <chrono>
+#include <cstdint>
+#include <memory>
+#include <string>
+#include <thread>
+#include <vector>
+
+#include <fmt/format.h>
+#include <spdlog/spdlog.h>
+
+#include <exot/framework/interface.h>
+#include <exot/framework/state.h>
+#include <exot/jni/capture.h>
+#include <exot/jni/csv.h>
+#include <exot/jni/relay.h>
+#include <exot/load/kernels.h>
+#include <exot/load/timing.h>
+#include <exot/utilities/configuration.h>
+
+namespace exot::load {
+
+/**
+ * @brief Component generating a duty-cycled load on chosen cores
+ * @details Each core runs a pinned worker, all following the same schedule
+ *          from a common origin, see duty_cycle. The workers are created
+ *          and their kernels allocated when the component is spawned, and
+ *          wait for the Manager to be started.
+ *
+ *          The schedule is logged to the application logger as side-channel
+ *          records, with times on the clock of the meter log:
+ *
+ *          - `# load_schedule,<origin>,<period>,<on time>,<pattern>,
+ *            <kernel>,<cores>` once, with the cores separated by ';',
+ *          - `# load_slot,<start>,<index>,<bit>,<late>,<busy>,<missed>` after
+ *            each slot of the first core, if enabled,
+ *          - `# load_summary,<time>,<core>,<slots>,<missed>,<max late>,<busy>`
+ *            per core when stopped.
+ *
+ *          Durations are in nanoseconds. Without cores the component is
+ *          disabled and its thread returns right away.
+ *
+ *          The component is not connected to the other components of the
+ *          Manager.
+ */
+class load_generator : public exot::framework::IProcess {
+ public:
+  static constexpr bool standalone = true;
+
+  using state_t     = exot::framework::State;
+  using state_ptr_t = typename state_t::state_pointer;
+  using timer_t     = steady_timer;
+
+  struct settings : public exot::utilities::configurable<settings> {
+    std::vector<unsigned> cores{};
+    double frequency{10.0};
+    double duty{0.5};
+    std::string pattern{"1"};
+    std::string kernel{"alu"};
+    std::size_t memory{16u << 20};
+    double slack{500e-6};
+    double lead{10e-3};
+    bool log_slots{true};
+
+    const char* name() const { return "load"; }
+
+    void configure() {
+      bind_and_describe_data("cores", cores,
+                             "cores to load |uint[]|, disabled if empty");
+      bind_and_describe_data("frequency", frequency,
+                             "slots per second |float|, e.g. 10.0");
+      bind_and_describe_data("duty", duty,
+                             "loaded fraction of an on-slot |float|, 0 to 1");
+      bind_and_describe_data("pattern", pattern,
+                             "on/off bits of the slots |str|, e.g. \"1101\"");
+      bind_and_describe_data("kernel", kernel,
+                             "intensity kernel |str|, alu, memory or simd");
+      bind_and_describe_data("memory", memory,
+                             "buffer of the memory kernel in bytes |uint|");
+      bind_and_describe_data("slack", slack,
+                             "spin-wait before deadlines in seconds |float|");
+      bind_and_describe_data("lead", lead,
+                             "delay from start to the first slot in seconds "
+                             "|float|");
+      bind_and_describe_data("log_slots", log_slots,
+                             "log a record per slot |bool|");
+    }
+  };
+
+  explicit load_generator(settings& conf)
+      : conf_{conf},
+        cycle_{std::llround(1e9 / std::max(conf_.frequency, 1e-3)),
+               conf_.duty, duty_cycle::parse_pattern(conf_.pattern)},
+        pace_{std::llround(conf_.slack * 1e9)} {
+    for (auto core : conf_.cores) {
+      auto load = make_kernel(conf_.kernel, conf_.memory);
+      if (!load) {
+        if (auto log = spdlog::get("log"); log)
+          log->warn("[load] no kernel named {}, using alu", conf_.kernel);
+        load = make_kernel("alu", conf_.memory);
+      }
+      workers_.push_back(std::make_unique<worker>(core, std::move(load)));
+    }
+  }
+
+  load_generator(const load_generator&) = delete;
+  load_generator& operator=(const load_generator&) = delete;
+
+  /**
+   * @brief Runs the workers from the start until the stop of the Manager
+   */
+  void process() override {
+    if (workers_.empty()) return;
+
+    while (!state_->is_started() && !stopping()) {
+      std::this_thread::sleep_for(std::chrono::milliseconds{1});
+    }
+    if (stopping()) return;
+
+    auto origin = timer_t::now() + std::llround(conf_.lead * 1e9);
+    log_schedule(origin);
+
+    std::vector<std::thread> threads;
+    for (auto i = 0ull; i < workers_.size(); ++i) {
+      threads.emplace_back(
+          [this, i, origin] { work(*workers_[i], i, origin); });
+    }
+    for (auto& thread : threads) thread.join();
+
+    for (const auto& w : workers_) log_summary(*w);
+  }
+
+ private:
+  struct worker {
+    worker(unsigned core, std::unique_ptr<kernel> load)
+        : core{core}, load{std::move(load)} {}
+
+    unsigned core;
+    std::unique_ptr<kernel> load;
+    std::uint64_t slots{0};
+    std::uint64_t missed{0};
+    std::int64_t max_late{0};
+    std::int64_t busy{0};
+  };
+
+  bool stopping() const {
+    return state_->is_stopped() || state_->is_terminated();
+  }
+
+  void work(worker& w, std::size_t position, std::int64_t origin) {
+    ::pthread_setname_np(::pthread_self(),
+                         fmt::format("exot-load-{}", w.core).c_str());
+
+    cpu_set_t set;
+    CPU_ZERO(&set);
+    CPU_SET(w.core, &set);
+    if (::sched_setaffinity(0, sizeof(set), &set) != 0) {
+      if (auto log = spdlog::get("log"); log)
+        log->warn("[load] could not pin the worker to core {}", w.core);
+    }
+
+    auto logged = position == 0 && conf_.log_slots;
+
+    run(
+        cycle_, origin, pace_, [&w] { w.load->step(); },
+        [this] { return stopping(); },
+        [this, &w, logged](const slot_record& record) {
+          ++w.slots;
+          w.missed += record.missed;
+          w.max_late = std::max(w.max_late, record.late);
+          w.busy += record.busy;
+          if (logged) log_slot(record);
+        });
+  }
+
+  /**
+   * @brief Converts a time of the timer to the clock of the meter log
+   */
+  static std::int64_t to_meter_time(std::int64_t time) {
+    return exot::jni::meter_time_ns() - (timer_t::now() - time);
+  }
+
+  void log_schedule(std::int64_t origin) {
+    auto app = spdlog::get(exot::jni::Capture::APP_LOGGER);
+    if (app == nullptr) return;
+
+    std::string cores;
+    for (const auto& w : workers_) {
+      if (!cores.empty()) cores.push_back(';');
+      cores += std::to_string(w->core);
+    }
+
+    exot::jni::csv_row::local()
+        .begin("# load_schedule")
+        .add(to_meter_time(origin))
+        .add(cycle_.period())
+        .add(cycle_.on_time())
+        .add(cycle_.pattern_string())
+        .add(workers_.front()->load->name())
+        .add(cores)
+        .emit(*app);
+  }
+
+  void log_slot(const slot_record& record) {
+    auto app = spdlog::get(exot::jni::Capture::APP_LOGGER);
+    if (app == nullptr) return;
+
+    exot::jni::csv_row::local()
+        .begin("# load_slot")
+        .add(to_meter_time(record.start))
+        .add(record.index)
+        .add(record.on ? 1 : 0)
+        .add(record.late)
+        .add(record.busy)
+        .add(record.missed)
+        .emit(*app);
+  }
+
+  void log_summary(const worker& w) {
+    auto app = spdlog::get(exot::jni::Capture::APP_LOGGER);
+    if (app == nullptr) return;
+
+    exot::jni::csv_row::local()
+        .begin("# load_summary")
+        .add(exot::jni::meter_time_ns())
+        .add(w.core)
+        .add(w.slots)
+        .add(w.missed)
+        .add(w.max_late)
+        .add(w.busy)
+        .emit(*app);
+  }
+
+  settings conf_;
+  duty_cycle cycle_;
+  pacer<timer_t> pace_;
+  std::vector<std::unique_ptr<worker>> workers_;
+  state_ptr_t state_{exot::framework::GLOBAL_STATE->get()};
+};
+
+}  // namespace exot::load
@@ -0,0 +1,167 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+/**
+ * @file libnative/src/main/cpp/include/exot/load/kernels.h
+ * @author     Bruno Klopott
+ * @brief      Intensity kernels of the load generator, stressing the integer
+ *             pipeline, the memory hierarchy or the vector units.
+ */
+
+#pragma once
+
+#include <cstddef>
+#include <cstdint>
+#include <memory>
+#include <string_view>
+#include <vector>
+
+namespace exot::load {
+
+/**
+ * @brief A load kernel, run in short steps
+ * @details A step takes in the order of a microsecond, such that the end of
+ *          the load is met closely. Results are stored to a volatile sink,
+ *          which keeps the compiler from removing the computation.
+ */
+class kernel {
+ public:
+  virtual ~kernel() = default;
+  virtual void step() = 0;
+  virtual const char* name() const = 0;
+};
+
+/**
+ * @brief Dependent integer multiply-add chains, in registers
+ */
+class alu_kernel final : public kernel {
+ public:
+  void step() override {
+    auto a = state_;
+    auto b = state_ ^ 0x9e3779b97f4a7c15ull;
+    for (auto i = 0; i < 256; ++i) {
+      a = a * 6364136223846793005ull + 1442695040888963407ull;
+      b = (b ^ (b >> 29)) * 0xbf58476d1ce4e5b9ull;
+    }
+    state_ = a ^ b;
+    sink_  = state_;
+  }
+
+  const char* name() const override { return "alu"; }
+
+ private:
+  std::uint64_t state_{1};
+  volatile std::uint64_t sink_{0};
+};
+
+/**
+ * @brief Pseudo-random read-modify-writes of cache lines in a buffer
+ * @details With a buffer larger than the last-level cache most accesses go
+ *          to DRAM. The buffer is allocated and touched at construction.
+ */
+class memory_kernel final : public kernel {
+ public:
+  static constexpr std::size_t line = 64 / sizeof(std::uint64_t);
+
+  /**
+   * @param bytes The buffer size, rounded down to a power of two cache lines
+   */
+  explicit memory_kernel(std::size_t bytes) {
+    std::size_t lines = 1;
+    while (lines * 2 * 64 <= bytes) lines *= 2;
+    mask_ = lines - 1;
+    buffer_.assign(lines * line, 1);
+  }
+
+  void step() override {
+    auto x = state_;
+    for (auto i = 0; i < 64; ++i) {
+      x ^= x << 13;
+      x ^= x >> 7;
+      x ^= x << 17;
+      auto& word = buffer_[(x & mask_) * line];
+      word += x;
+    }
+    state_ = x;
+  }
+
+  const char* name() const override { return "memory"; }
+
+ private:
+  std::vector<std::uint64_t> buffer_;
+  std::uint64_t mask_{0};
+  std::uint64_t state_{88172645463325252ull};
+};
+
+/**
+ * @brief Independent multiply-add chains on 128-bit float vectors
+ * @details Written with the vector extensions of GCC and Clang, which map to
+ *          NEON on ARM and SSE on x86. Eight independent accumulators keep
+ *          the vector pipelines busy.
+ */
+class simd_kernel final : public kernel {
+ public:
+  using vector = float __attribute__((vector_size(16)));
+
+  simd_kernel() {
+    for (auto i = 0; i < 8; ++i)
+      acc_[i] = vector{1.f, 2.f, 3.f, 4.f} * static_cast<float>(i);
+  }
+
+  void step() override {
+    const vector a{0.999f, 0.998f, 0.997f, 0.996f};
+    const vector b{0.001f, 0.002f, 0.003f, 0.004f};
+    for (auto i = 0; i < 128; ++i) {
+      for (auto& acc : acc_) acc = acc * a + b;
+    }
+    sink_ = acc_[0][0] + acc_[7][3];
+  }
+
+  const char* name() const override { return "simd"; }
+
+ private:
+  vector acc_[8];
+  volatile float sink_{0.f};
+};
+
+/**
+ * @brief Creates a kernel by name
+ *
+ * @param name   The kernel name, one of "alu", "memory", "simd"
+ * @param memory The buffer size of the memory kernel, in bytes
+ * @return The kernel, or nullptr if the name is not known
+ */
+inline std::unique_ptr<kernel> make_kernel(std::string_view name,
+                                           std::size_t memory) {
+  if (name == "alu") return std::make_unique<alu_kernel>();
+  if (name == "memory") return std::make_unique<memory_kernel>(memory);
+  if (name == "simd") return std::make_unique<simd_kernel>();
+  return nullptr;
+}
+
+}  // namespace exot::load
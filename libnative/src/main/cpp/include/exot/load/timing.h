@@ -0,0 +1,294 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+/**
+ * @file libnative/src/main/cpp/include/exot/load/timing.h
+ * @author     Bruno Klopott
+ * @brief      Timing core of the load generator: the duty-cycle schedule and
+ *             the pacing of its slots with spin-wait and drift correction.
+ */
+
+#pragma once
+
+#include <algorithm>
+#include <chrono>
+#include <cmath>
+#include <cstdint>
+#include <string>
+#include <string_view>
+#include <thread>
+#include <vector>
+
+namespace exot::load {
+
+/**
+ * @brief Hints the core that the calling thread is spinning
+ */
+inline void cpu_relax() {
+#if defined(__x86_64__) || defined(__i386__)
+  __builtin_ia32_pause();
+#elif defined(__aarch64__) || defined(__arm__)
+  asm volatile("yield" ::: "memory");
+#endif
+}
+
+/**
+ * @brief Timer of the load generator, on the steady clock
+ * @details The steady clock is the clock of the meter log timestamps, such
+ *          that the schedule and the meters share a clock domain. Tests can
+ *          substitute a timer with the same static interface.
+ */
+struct steady_timer {
+  using clock = std::chrono::steady_clock;
+
+  /**
+   * @brief Gets the current time in nanoseconds
+   */
+  static std::int64_t now() {
+    return std::chrono::duration_cast<std::chrono::nanoseconds>(
+               clock::now().time_since_epoch())
+        .count();
+  }
+
+  /**
+   * @brief Sleeps until a time in nanoseconds
+   */
+  static void sleep_until(std::int64_t time) {
+    std::this_thread::sleep_until(clock::time_point{
+        std::chrono::duration_cast<clock::duration>(
+            std::chrono::nanoseconds{time})});
+  }
+};
+
+/**
+ * @brief Duty-cycle schedule of equally long slots
+ * @details The schedule repeats a pattern of on/off bits, one bit per slot.
+ *          During an on-slot the load runs for the duty cycle fraction of
+ *          the slot, an off-slot is idle. Slot boundaries are computed from
+ *          the origin and the slot index, not accumulated from the previous
+ *          slot, such that timing errors do not add up over a run.
+ */
+class duty_cycle {
+ public:
+  struct slot {
+    std::uint64_t index;    //! The slot index since the origin
+    bool on;                //! The pattern bit of the slot
+    std::int64_t start;     //! The start time
+    std::int64_t on_until;  //! The end of the load, equal to start if off
+    std::int64_t end;       //! The end time, the start of the next slot
+  };
+
+  /**
+   * @param period  The slot length in nanoseconds, at least 1
+   * @param duty    The loaded fraction of an on-slot, clamped to [0, 1]
+   * @param pattern The on/off bits, "1" if empty
+   */
+  duty_cycle(std::int64_t period, double duty, std::vector<bool> pattern)
+      : period_{std::max<std::int64_t>(period, 1)},
+        on_{std::llround(std::clamp(duty, 0.0, 1.0) *
+                         static_cast<double>(period_))},
+        pattern_{std::move(pattern)} {
+    if (pattern_.empty()) pattern_.push_back(true);
+  }
+
+  /**
+   * @brief Parses a pattern of '0' and '1' characters, other ones ignored
+   */
+  static std::vector<bool> parse_pattern(std::string_view pattern) {
+    std::vector<bool> bits;
+    for (auto c : pattern) {
+      if (c == '0' || c == '1') bits.push_back(c == '1');
+    }
+    return bits;
+  }
+
+  /**
+   * @brief Gets a slot
+   *
+   * @param index  The slot index
+   * @param origin The start time of the first slot
+   */
+  slot at(std::uint64_t index, std::int64_t origin) const {
+    auto start = origin + static_cast<std::int64_t>(index) * period_;
+    auto on    = pattern_[index % pattern_.size()];
+    return {index, on, start, on ? start + on_ : start, start + period_};
+  }
+
+  /**
+   * @brief Gets the index of the slot containing a time
+   */
+  std::uint64_t index_at(std::int64_t time, std::int64_t origin) const {
+    if (time <= origin) return 0;
+    return static_cast<std::uint64_t>((time - origin) / period_);
+  }
+
+  std::int64_t period() const { return period_; }
+  std::int64_t on_time() const { return on_; }
+  const std::vector<bool>& pattern() const { return pattern_; }
+
+  std::string pattern_string() const {
+    std::string bits;
+    for (auto bit : pattern_) bits.push_back(bit ? '1' : '0');
+    return bits;
+  }
+
+ private:
+  std::int64_t period_;
+  std::int64_t on_;
+  std::vector<bool> pattern_;
+};
+
+/**
+ * @brief Waits for deadlines by sleeping and finishing with a spin-wait
+ * @details Sleeping wakes up with a latency of tens to hundreds of
+ *          microseconds, depending on the timer slack and the scheduler. The
+ *          pacer therefore sleeps until a slack before the deadline and spins
+ *          on the timer for the rest. Long sleeps are split, such that a stop
+ *          request is noticed within the maximum sleep.
+ *
+ * @tparam Timer The timer, see steady_timer
+ */
+template <typename Timer = steady_timer>
+class pacer {
+ public:
+  /**
+   * @param slack     The spin-wait before each deadline, in nanoseconds
+   * @param max_sleep The longest uninterrupted sleep, in nanoseconds
+   */
+  explicit pacer(std::int64_t slack, std::int64_t max_sleep = 50000000ll)
+      : slack_{std::max<std::int64_t>(slack, 0)},
+        max_sleep_{std::max<std::int64_t>(max_sleep, 1)} {}
+
+  /**
+   * @brief Waits until a deadline
+   *
+   * @param deadline The deadline in nanoseconds
+   * @param stop     Predicate checked between sleeps
+   * @return The time after the deadline at which the wait returned, or -1 if
+   *         stopped before the deadline
+   */
+  template <typename Stop>
+  std::int64_t wait_until(std::int64_t deadline, Stop&& stop) const {
+    auto now = Timer::now();
+
+    while (deadline - now > slack_) {
+      if (stop()) return -1;
+      Timer::sleep_until(std::min(deadline - slack_, now + max_sleep_));
+      now = Timer::now();
+    }
+
+    while (now < deadline) {
+      cpu_relax();
+      now = Timer::now();
+    }
+
+    return now - deadline;
+  }
+
+ private:
+  std::int64_t slack_;
+  std::int64_t max_sleep_;
+};
+
+/**
+ * @brief Record of an executed slot
+ */
+struct slot_record {
+  std::uint64_t index;   //! The slot index
+  bool on;               //! The pattern bit
+  std::int64_t start;    //! The scheduled start time
+  std::int64_t late;     //! The actual start minus the scheduled start
+  std::int64_t busy;     //! The time the load actually ran
+  std::uint64_t missed;  //! The slots skipped before this one
+};
+
+/**
+ * @brief Runs a schedule until stopped
+ * @details The kernel is stepped until the end of the load of each on-slot,
+ *          a step should therefore take no more than a few microseconds. If
+ *          a slot starts after its end, e.g. because the thread was
+ *          preempted, the run continues with the current slot rather than
+ *          catching up, and the skipped slots are reported as missed.
+ *
+ *          The stop predicate is also checked between the steps, such that
+ *          a stop request ends the load of the current slot early; the
+ *          partial slot is still observed.
+ *
+ *          The observer is called after the load of a slot, i.e. not while
+ *          the load runs, and should return quickly.
+ *
+ * @param cycle   The schedule
+ * @param origin  The start time of the first slot
+ * @param pace    The pacer
+ * @param step    Callable running one step of the load
+ * @param stop    Predicate to stop the run
+ * @param observe Callable taking the slot_record of each executed slot
+ * @return The number of executed slots
+ */
+template <typename Timer, typename Step, typename Stop, typename Observer>
+std::uint64_t run(const duty_cycle& cycle, std::int64_t origin,
+                  const pacer<Timer>& pace, Step&& step, Stop&& stop,
+                  Observer&& observe) {
+  std::uint64_t index    = 0;
+  std::uint64_t executed = 0;
+  std::uint64_t missed   = 0;
+
+  while (!stop()) {
+    auto slot = cycle.at(index, origin);
+    auto late = pace.wait_until(slot.start, stop);
+    if (late < 0) break;
+
+    if (slot.start + late >= slot.end) {
+      auto current = cycle.index_at(slot.start + late, origin);
+      missed += current - index;
+      index = current;
+      continue;
+    }
+
+    std::int64_t busy = 0;
+    if (slot.on) {
+      auto began = Timer::now();
+      auto now   = began;
+      while (now < slot.on_until && !stop()) {
+        step();
+        now = Timer::now();
+      }
+      busy = now - began;
+    }
+
+    observe(slot_record{slot.index, slot.on, slot.start, late, busy, missed});
+
+    missed = 0;
+    ++executed;
+    ++index;
+  }
+
+  return executed;
+}
+
+}  // namespace exot::load
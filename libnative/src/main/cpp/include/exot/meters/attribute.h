@@ -0,0 +1,155 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+/**
+ * @file libnative/src/main/cpp/include/exot/meters/attribute.h
+ * @author     Bruno Klopott
+ * @brief      Helper for repeatedly reading sysfs/procfs attribute files.
+ */
+
+#pragma once
+
+#include <fcntl.h>
+#include <unistd.h>
+
+#include <cstdint>
+#include <cstdlib>
+#include <string>
+#include <string_view>
+#include <utility>
+
+namespace exot::modules {
+
+/**
+ * @brief A sysfs or procfs attribute file, opened once and re-read in place
+ * @details Opening the file once and reading it with pread() from offset 0
+ *          avoids the path lookup and the file table churn of reopening it
+ *          on every reading. The read buffer is reused, such that readings do
+ *          not allocate once it has grown to the size of the attribute.
+ */
+class attribute_file {
+ public:
+  attribute_file() = default;
+
+  /**
+   * @param path     The attribute path
+   * @param capacity The initial size of the read buffer, which grows as needed
+   */
+  explicit attribute_file(const std::string& path, std::size_t capacity = 4096)
+      : path_{path},
+        fd_{::open(path.c_str(), O_RDONLY | O_CLOEXEC)},
+        capacity_{capacity > 0 ? capacity : 1} {}
+
+  attribute_file(const attribute_file&) = delete;
+  attribute_file& operator=(const attribute_file&) = delete;
+
+  attribute_file(attribute_file&& other) noexcept
+      : path_{std::move(other.path_)},
+        fd_{std::exchange(other.fd_, -1)},
+        capacity_{other.capacity_},
+        buffer_{std::move(other.buffer_)} {}
+
+  attribute_file& operator=(attribute_file&& other) noexcept {
+    if (this != &other) {
+      close();
+      path_   = std::move(other.path_);
+      fd_       = std::exchange(other.fd_, -1);
+      capacity_ = other.capacity_;
+      buffer_   = std::move(other.buffer_);
+    }
+    return *this;
+  }
+
+  ~attribute_file() { close(); }
+
+  /**
+   * @brief Is the file open?
+   */
+  bool is_open() const { return fd_ >= 0; }
+
+  /**
+   * @brief Gets the file descriptor, e.g. for poll()
+   */
+  int fd() const { return fd_; }
+
+  const std::string& path() const { return path_; }
+
+  /**
+   * @brief Reads the whole attribute
+   *
+   * @return The content, valid until the next read, or empty on failure
+   */
+  std::string_view read() {
+    if (fd_ < 0) return {};
+
+    if (buffer_.size() < capacity_) buffer_.resize(capacity_);
+
+    std::size_t length = 0;
+    for (;;) {
+      auto n = ::pread(fd_, &buffer_[length], buffer_.size() - length,
+                       static_cast<off_t>(length));
+      if (n <= 0) break;
+
+      length += static_cast<std::size_t>(n);
+      if (length == buffer_.size()) buffer_.resize(buffer_.size() * 2);
+    }
+
+    // Terminate the content, such that it can be parsed with the C functions
+    // without running into the remains of a previous, longer reading.
+    buffer_[length] = '\0';
+    return {buffer_.data(), length};
+  }
+
+  /**
+   * @brief Reads the attribute as a single integer
+   *
+   * @param fallback The value returned if it cannot be read
+   * @return The value
+   */
+  long long read_integer(long long fallback = 0) {
+    auto content = read();
+    if (content.empty()) return fallback;
+
+    char* end;
+    auto value = std::strtoll(content.data(), &end, 10);
+    return end != content.data() ? value : fallback;
+  }
+
+ private:
+  void close() {
+    if (fd_ >= 0) ::close(fd_);
+    fd_ = -1;
+  }
+
+  std::string path_;
+  int fd_{-1};
+  std::size_t capacity_{4096};
+  std::string buffer_;
+};
+
+}  // namespace exot::modules
@@ -0,0 +1,348 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+/**
+ * @file libnative/src/main/cpp/include/exot/meters/frequency_residency.h
+ * @author     Bruno Klopott
+ * @brief      Meter module for the residency of cpufreq policies in their
+ *             frequencies, based on the cpufreq statistics.
+ */
+
+#pragma once
+
+#include <dirent.h>
+#include <unistd.h>
+
+#include <algorithm>
+#include <chrono>
+#include <cstdint>
+#include <cstdlib>
+#include <memory>
+#include <string>
+#include <string_view>
+#include <vector>
+
+#include <fmt/format.h>
+#include <spdlog/spdlog.h>
+
+#include <exot/meters/attribute.h>
+#include <exot/meters/base.h>
+#include <exot/utilities/configuration.h>
+
+namespace exot::modules {
+
+/**
+ * @brief Meter module for the frequency residency of cpufreq policies
+ * @details Instead of sampling the current frequency at the host period,
+ *          which misses short excursions between samples, the module reads
+ *          the cumulative residency from `policy<N>/stats/time_in_state` at a
+ *          low rate and reports the residency accumulated since the previous
+ *          reading, in milliseconds. Between readings it reports zeros, such
+ *          that the columns sum up to the exact residency over any span of the
+ *          log. If `stats/trans_table` is available, the number of
+ *          transitions into each frequency is reported as well.
+ *
+ *          The counters are first read by the first measurement, i.e. once
+ *          the meter host has started, such that the residency accumulated
+ *          before the start is not reported.
+ *
+ *          A policy covers a cluster of cores sharing a clock. The cpufreq
+ *          directory can be configured, e.g. to point at a fake tree.
+ */
+struct frequency_residency : module {
+  using return_type = std::vector<std::uint64_t>;
+  using clock_type  = std::chrono::steady_clock;
+
+  struct settings : public exot::utilities::configurable<settings> {
+    std::string root{"/sys/devices/system/cpu/cpufreq"};
+    std::vector<unsigned> policies{};
+    double period{1.0};
+    bool transitions{true};
+
+    const char* name() const { return "frequency_residency"; }
+
+    void configure() {
+      bind_and_describe_data("root", root, "cpufreq directory |str|");
+      bind_and_describe_data("policies", policies,
+                             "policies to read |uint[]|, all if empty");
+      bind_and_describe_data("period", period,
+                             "reading period in seconds |float|, e.g. 1.0");
+      bind_and_describe_data("transitions", transitions,
+                             "count transitions if available |bool|");
+    }
+  };
+
+  explicit frequency_residency(settings& conf)
+      : conf_{conf},
+        period_{std::chrono::duration_cast<clock_type::duration>(
+            std::chrono::duration<double>{conf_.period})},
+        ticks_per_second_{static_cast<std::uint64_t>(::sysconf(_SC_CLK_TCK))} {
+    if (conf_.policies.empty()) conf_.policies = discover(conf_.root);
+
+    for (auto id : conf_.policies) {
+      auto dir = fmt::format("{}/policy{}/stats/", conf_.root, id);
+
+      policy p;
+      p.id            = id;
+      p.time_in_state = attribute_file(dir + "time_in_state");
+
+      if (!p.time_in_state.is_open()) {
+        if (auto log = spdlog::get("log"); log)
+          log->warn("[frequency_residency] policy{} has no time_in_state", id);
+        continue;
+      }
+
+      parse_time_in_state(p.time_in_state.read(), p.frequencies, p.last_time);
+
+      if (conf_.transitions) {
+        p.trans_table = attribute_file(dir + "trans_table");
+        if (p.trans_table.is_open()) {
+          map_trans_table(p);
+          p.last_entries.assign(p.frequencies.size(), 0);
+          parse_trans_table(p.trans_table.read(), p.columns, p.last_entries);
+        }
+      }
+
+      p.current_time.resize(p.frequencies.size());
+      p.current_entries.resize(p.last_entries.size());
+      columns_ += p.frequencies.size() + p.last_entries.size();
+      policies_.push_back(std::move(p));
+    }
+
+    zeros_.assign(columns_, 0);
+    values_.assign(columns_, 0);
+  }
+
+  /**
+   * @brief Reads the residency, if due
+   *
+   * @return The residency in ms per policy and frequency, followed by the
+   *         transitions into each frequency, or zeros if not due
+   */
+  return_type measure() {
+    auto now = clock_type::now();
+    if (!started_) {
+      started_ = true;
+      next_    = now + period_;
+      read();
+      return zeros_;
+    }
+
+    if (now < next_) return zeros_;
+    next_ = now + period_;
+
+    read();
+    return values_;
+  }
+
+  /**
+   * @brief Describes the columns, e.g. "frequency_residency:residency:0@1804800:ms"
+   */
+  std::vector<std::string> header() {
+    std::vector<std::string> descriptions;
+
+    for (const auto& p : policies_) {
+      for (auto frequency : p.frequencies)
+        descriptions.push_back(fmt::format("{}:residency:{}@{}:ms",
+                                           conf_.name(), p.id, frequency));
+      if (p.last_entries.empty()) continue;
+      for (auto frequency : p.frequencies)
+        descriptions.push_back(fmt::format("{}:transitions:{}@{}:#",
+                                           conf_.name(), p.id, frequency));
+    }
+
+    return descriptions;
+  }
+
+ private:
+  struct policy {
+    unsigned id;
+    attribute_file time_in_state;
+    attribute_file trans_table;
+    std::vector<std::uint64_t> frequencies;
+    std::vector<std::uint64_t> last_time;
+    std::vector<std::uint64_t> current_time;
+    std::vector<std::size_t> columns;  //! trans_table column -> frequency
+    std::vector<std::uint64_t> last_entries;
+    std::vector<std::uint64_t> current_entries;
+  };
+
+  /**
+   * @brief Reads the counters and sets the values to the change since the
+   *        previous reading
+   */
+  void read() {
+    std::size_t column = 0;
+    for (auto& p : policies_) {
+      parse_time_in_state(p.time_in_state.read(), p.current_time);
+      for (auto i = 0ull; i < p.frequencies.size(); ++i) {
+        values_[column++] = delta(p.current_time[i], p.last_time[i]) *
+                            1000ull / ticks_per_second_;
+      }
+      std::swap(p.current_time, p.last_time);
+
+      if (p.last_entries.empty()) continue;
+
+      std::fill(p.current_entries.begin(), p.current_entries.end(), 0);
+      parse_trans_table(p.trans_table.read(), p.columns, p.current_entries);
+      for (auto i = 0ull; i < p.last_entries.size(); ++i) {
+        values_[column++] = delta(p.current_entries[i], p.last_entries[i]);
+      }
+      std::swap(p.current_entries, p.last_entries);
+    }
+  }
+
+  /**
+   * @brief Gets the difference of cumulative counters, which restart from zero
+   *        if the statistics are reset
+   */
+  static std::uint64_t delta(std::uint64_t current, std::uint64_t last) {
+    return current >= last ? current - last : current;
+  }
+
+  /**
+   * @brief Finds the policies in the cpufreq directory
+   */
+  static std::vector<unsigned> discover(const std::string& root) {
+    std::vector<unsigned> found;
+
+    if (auto dir = ::opendir(root.c_str()); dir != nullptr) {
+      while (auto entry = ::readdir(dir)) {
+        std::string_view name{entry->d_name};
+        if (name.substr(0, 6) == "policy")
+          found.push_back(std::strtoul(entry->d_name + 6, nullptr, 10));
+      }
+      ::closedir(dir);
+    }
+
+    std::sort(found.begin(), found.end());
+    return found;
+  }
+
+  /**
+   * @brief Parses the frequencies and the residency from time_in_state
+   * @details Each line holds a frequency and the cumulative time spent at it.
+   */
+  static void parse_time_in_state(std::string_view content,
+                                  std::vector<std::uint64_t>& frequencies,
+                                  std::vector<std::uint64_t>& times) {
+    frequencies.clear();
+    times.clear();
+
+    for (auto cursor = content.data(); *cursor != '\0';) {
+      char* end;
+      auto frequency = std::strtoull(cursor, &end, 10);
+      if (end == cursor) break;
+      auto time = std::strtoull(end, &end, 10);
+
+      frequencies.push_back(frequency);
+      times.push_back(time);
+      cursor = end;
+    }
+  }
+
+  /**
+   * @brief Parses the residency from time_in_state, in the known order
+   */
+  static void parse_time_in_state(std::string_view content,
+                                  std::vector<std::uint64_t>& times) {
+    auto cursor = content.data();
+    for (auto& time : times) {
+      char* end;
+      std::strtoull(cursor, &end, 10);
+      if (end == cursor) break;
+      time   = std::strtoull(end, &end, 10);
+      cursor = end;
+    }
+  }
+
+  /**
+   * @brief Maps the "To" columns of the trans_table to frequency indices
+   * @details The table starts with two header lines, the second listing the
+   *          target frequencies after a colon.
+   */
+  static void map_trans_table(policy& p) {
+    auto content = p.trans_table.read();
+    auto line    = content.find('\n');
+    if (line == std::string_view::npos) return;
+
+    auto colon = content.find(':', line);
+    if (colon == std::string_view::npos) return;
+
+    for (auto cursor = content.data() + colon + 1; *cursor != '\n';) {
+      char* end;
+      auto frequency = std::strtoull(cursor, &end, 10);
+      if (end == cursor) break;
+
+      auto it = std::find(p.frequencies.begin(), p.frequencies.end(), frequency);
+      p.columns.push_back(static_cast<std::size_t>(it - p.frequencies.begin()));
+      cursor = end;
+    }
+  }
+
+  /**
+   * @brief Sums up the transitions into each frequency from the trans_table
+   * @details The rows following the header start with the source frequency
+   *          and a colon, followed by the counts per target frequency.
+   */
+  static void parse_trans_table(std::string_view content,
+                                const std::vector<std::size_t>& columns,
+                                std::vector<std::uint64_t>& entries) {
+    auto line = content.find('\n');
+    if (line == std::string_view::npos) return;
+    line = content.find('\n', line + 1);
+
+    while (line != std::string_view::npos && line + 1 < content.size()) {
+      auto colon = content.find(':', line + 1);
+      if (colon == std::string_view::npos) break;
+
+      auto cursor = content.data() + colon + 1;
+      for (auto column : columns) {
+        char* end;
+        auto count = std::strtoull(cursor, &end, 10);
+        if (end == cursor) break;
+        if (column < entries.size()) entries[column] += count;
+        cursor = end;
+      }
+
+      line = content.find('\n', colon);
+    }
+  }
+
+  settings conf_;
+  clock_type::duration period_;
+  std::uint64_t ticks_per_second_;
+  std::vector<policy> policies_;
+  std::size_t columns_{0};
+  return_type zeros_;
+  return_type values_;
+  clock_type::time_point next_;
+  bool started_{false};
+};
+
+}  // namespace exot::modules
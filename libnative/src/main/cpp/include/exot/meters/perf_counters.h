@@ -0,0 +1,330 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+/**
+ * @file libnative/src/main/cpp/include/exot/meters/perf_counters.h
+ * @author     Bruno Klopott
+ * @brief      Meter module for hardware performance counters, read via
+ *             perf_event_open counter groups.
+ */
+
+#pragma once
+
+#include <linux/perf_event.h>
+#include <sys/ioctl.h>
+#include <sys/syscall.h>
+#include <unistd.h>
+
+#include <cerrno>
+#include <cstdint>
+#include <cstring>
+#include <string>
+#include <utility>
+#include <vector>
+
+#include <fmt/format.h>
+#include <spdlog/spdlog.h>
+
+#include <exot/meters/base.h>
+#include <exot/utilities/configuration.h>
+
+namespace exot::modules {
+
+/**
+ * @brief Meter module for hardware performance counters
+ * @details For each configured core the module opens one perf event group,
+ *          once, with the first available event as the group leader. All
+ *          counters of a core are then read with a single read() of the
+ *          leader, using PERF_FORMAT_GROUP. The reported values are the counts
+ *          since the previous reading, scaled up if the kernel had to
+ *          multiplex the counters.
+ *
+ *          Counting all tasks on a core requires perf_event_paranoid <= 0 or
+ *          the respective capability. If that is not permitted, as with the
+ *          default perf_event_paranoid of 2, the module falls back to counting
+ *          its own process on each core, in user space only: the thread which
+ *          creates the meter and the threads it spawns afterwards, i.e. the
+ *          meter host and the other components. If counters cannot be opened
+ *          at all, e.g. because the event is not supported by the core, the
+ *          module logs a warning and reports zeros for them, such that the
+ *          columns of the log stay the same.
+ *
+ *          The counters are enabled by the first measurement, i.e. once the
+ *          meter host has started, which reports zeros.
+ */
+struct perf_counters : module {
+  using return_type = std::vector<std::uint64_t>;
+
+  struct settings : public exot::utilities::configurable<settings> {
+    std::vector<unsigned> cores{};
+    std::vector<std::string> events{"instructions", "cycles", "cache_misses"};
+    bool process{false};
+
+    const char* name() const { return "perf_counters"; }
+
+    void configure() {
+      bind_and_describe_data("cores", cores,
+                             "cores to count on |uint[]|, all if empty");
+      bind_and_describe_data(
+          "events", events,
+          "events to count |str[]|, e.g. [\"instructions\", \"cycles\"]");
+      bind_and_describe_data(
+          "process", process,
+          "count the own process only |bool|, the fallback if counting all "
+          "tasks is not permitted");
+    }
+  };
+
+  explicit perf_counters(settings& conf) : conf_{conf} {
+    if (conf_.cores.empty()) {
+      auto count = ::sysconf(_SC_NPROCESSORS_CONF);
+      for (auto core = 0l; core < count; ++core)
+        conf_.cores.push_back(static_cast<unsigned>(core));
+    }
+
+    for (const auto& event : conf_.events) {
+      if (!lookup(event)) warn("unknown event {}, reporting zeros", event);
+    }
+
+    open_groups(conf_.process);
+    if (denied_ && !conf_.process) {
+      info("counting all tasks is not permitted, counting the own process");
+      close_groups();
+      open_groups(true);
+    }
+
+    values_.assign(conf_.cores.size() * conf_.events.size(), 0);
+  }
+
+  ~perf_counters() { close_groups(); }
+
+  perf_counters(const perf_counters&) = delete;
+  perf_counters& operator=(const perf_counters&) = delete;
+
+  /**
+   * @brief Reads the counters
+   *
+   * @return The counts since the previous reading, per core and event
+   */
+  return_type measure() {
+    if (!enabled_) {
+      enabled_ = true;
+      for (auto& group : groups_) {
+        if (group.fds.empty()) continue;
+        ::ioctl(group.fds.front(), PERF_EVENT_IOC_RESET, PERF_IOC_FLAG_GROUP);
+        ::ioctl(group.fds.front(), PERF_EVENT_IOC_ENABLE, PERF_IOC_FLAG_GROUP);
+      }
+      return values_;
+    }
+
+    auto column = 0ull;
+
+    for (auto& group : groups_) {
+      auto events = conf_.events.size();
+
+      if (group.fds.empty() ||
+          ::read(group.fds.front(), group.buffer.data(),
+                 group.buffer.size() * sizeof(std::uint64_t)) <= 0) {
+        std::fill_n(values_.begin() + column, events, 0);
+        column += events;
+        continue;
+      }
+
+      // Layout: nr, time_enabled, time_running, value[nr]
+      auto enabled = group.buffer[1];
+      auto running = group.buffer[2];
+      auto scale   = 1.0;
+      if (running > group.running) {
+        scale = static_cast<double>(enabled - group.enabled) /
+                static_cast<double>(running - group.running);
+      }
+      group.enabled = enabled;
+      group.running = running;
+
+      for (auto i = 0ull; i < events; ++i) {
+        auto slot = group.slots[i];
+        if (slot < 0) {
+          values_[column++] = 0;
+          continue;
+        }
+
+        auto count = group.buffer[3 + slot];
+        values_[column++] =
+            static_cast<std::uint64_t>((count - group.last[slot]) * scale);
+        group.last[slot] = count;
+      }
+    }
+
+    return values_;
+  }
+
+  /**
+   * @brief Describes the columns, e.g. "perf_counters:instructions:0:#"
+   */
+  std::vector<std::string> header() {
+    std::vector<std::string> descriptions;
+
+    for (auto core : conf_.cores) {
+      for (const auto& event : conf_.events)
+        descriptions.push_back(
+            fmt::format("{}:{}:{}:#", conf_.name(), event, core));
+    }
+
+    return descriptions;
+  }
+
+ private:
+  struct group {
+    std::vector<int> fds;          //! Leader first
+    std::vector<int> slots;        //! Event -> position in group, -1 if none
+    std::vector<std::uint64_t> buffer;
+    std::vector<std::uint64_t> last;
+    std::uint64_t enabled{0};
+    std::uint64_t running{0};
+  };
+
+  /**
+   * @brief Looks up the perf type and config of an event by name
+   */
+  static const std::pair<std::uint32_t, std::uint64_t>* lookup(
+      const std::string& event) {
+    static const std::pair<const char*, std::pair<std::uint32_t, std::uint64_t>>
+        table[] = {
+            {"cycles", {PERF_TYPE_HARDWARE, PERF_COUNT_HW_CPU_CYCLES}},
+            {"instructions", {PERF_TYPE_HARDWARE, PERF_COUNT_HW_INSTRUCTIONS}},
+            {"cache_references",
+             {PERF_TYPE_HARDWARE, PERF_COUNT_HW_CACHE_REFERENCES}},
+            {"cache_misses", {PERF_TYPE_HARDWARE, PERF_COUNT_HW_CACHE_MISSES}},
+            {"branch_instructions",
+             {PERF_TYPE_HARDWARE, PERF_COUNT_HW_BRANCH_INSTRUCTIONS}},
+            {"branch_misses", {PERF_TYPE_HARDWARE, PERF_COUNT_HW_BRANCH_MISSES}},
+            {"bus_cycles", {PERF_TYPE_HARDWARE, PERF_COUNT_HW_BUS_CYCLES}},
+            {"stalled_cycles_frontend",
+             {PERF_TYPE_HARDWARE, PERF_COUNT_HW_STALLED_CYCLES_FRONTEND}},
+            {"stalled_cycles_backend",
+             {PERF_TYPE_HARDWARE, PERF_COUNT_HW_STALLED_CYCLES_BACKEND}},
+            {"ref_cycles", {PERF_TYPE_HARDWARE, PERF_COUNT_HW_REF_CPU_CYCLES}},
+            {"cpu_clock", {PERF_TYPE_SOFTWARE, PERF_COUNT_SW_CPU_CLOCK}},
+            {"context_switches",
+             {PERF_TYPE_SOFTWARE, PERF_COUNT_SW_CONTEXT_SWITCHES}},
+        };
+
+    for (const auto& [name, event_type] : table) {
+      if (event == name) return &event_type;
+    }
+
+    return nullptr;
+  }
+
+  /**
+   * @brief Opens the event groups of all cores
+   *
+   * @param process Count the own process rather than all tasks
+   */
+  void open_groups(bool process) {
+    denied_ = false;
+    for (auto core : conf_.cores) groups_.push_back(open_group(core, process));
+  }
+
+  void close_groups() {
+    for (auto& group : groups_) {
+      for (auto fd : group.fds) ::close(fd);
+    }
+    groups_.clear();
+  }
+
+  /**
+   * @brief Opens the disabled event group of a core
+   */
+  group open_group(unsigned core, bool process) {
+    group result;
+    result.slots.assign(conf_.events.size(), -1);
+
+    for (auto i = 0ull; i < conf_.events.size(); ++i) {
+      auto event = lookup(conf_.events[i]);
+      if (event == nullptr) continue;
+
+      struct perf_event_attr attr;
+      std::memset(&attr, 0, sizeof(attr));
+      // Unprivileged processes may only count user space of their own tasks,
+      // which includes the threads spawned after opening with inherit.
+      attr.size           = sizeof(attr);
+      attr.type           = event->first;
+      attr.config         = event->second;
+      attr.disabled       = result.fds.empty() ? 1 : 0;
+      attr.exclude_hv     = 1;
+      attr.exclude_kernel = process ? 1 : 0;
+      attr.inherit        = process ? 1 : 0;
+      attr.read_format = PERF_FORMAT_GROUP | PERF_FORMAT_TOTAL_TIME_ENABLED |
+                         PERF_FORMAT_TOTAL_TIME_RUNNING;
+
+      auto leader = result.fds.empty() ? -1 : result.fds.front();
+      auto fd     = static_cast<int>(
+          ::syscall(__NR_perf_event_open, &attr, process ? 0 : -1,
+                    static_cast<int>(core), leader, PERF_FLAG_FD_CLOEXEC));
+
+      if (fd < 0 && !process && (errno == EACCES || errno == EPERM)) {
+        denied_ = true;
+        continue;
+      }
+
+      if (fd < 0) {
+        warn("cannot count {} on core {}: {}", conf_.events[i], core,
+             std::strerror(errno));
+        continue;
+      }
+
+      result.slots[i] = static_cast<int>(result.fds.size());
+      result.fds.push_back(fd);
+    }
+
+    result.buffer.assign(3 + result.fds.size(), 0);
+    result.last.assign(result.fds.size(), 0);
+    return result;
+  }
+
+  static void info(const char* message) {
+    if (auto log = spdlog::get("log"); log)
+      log->info(std::string{"[perf_counters] "} + message);
+  }
+
+  template <typename... Args>
+  static void warn(const char* format, Args&&... args) {
+    if (auto log = spdlog::get("log"); log)
+      log->warn(std::string{"[perf_counters] "} + format,
+                std::forward<Args>(args)...);
+  }
+
+  settings conf_;
+  std::vector<group> groups_;
+  return_type values_;
+  bool denied_{false};
+  bool enabled_{false};
+};
+
+}  // namespace exot::modules
@@ -0,0 +1,261 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+/**
+ * @file libnative/src/main/cpp/include/exot/meters/power_supply.h
+ * @author     Bruno Klopott
+ * @brief      Meter module for the battery and other power supplies, with the
+ *             energy integrated from the current and voltage readings.
+ */
+
+#pragma once
+
+#include <dirent.h>
+
+#include <algorithm>
+#include <chrono>
+#include <cmath>
+#include <cstdint>
+#include <string>
+#include <string_view>
+#include <vector>
+
+#include <fmt/format.h>
+#include <spdlog/spdlog.h>
+
+#include <exot/meters/attribute.h>
+#include <exot/meters/base.h>
+#include <exot/utilities/configuration.h>
+
+namespace exot::modules {
+
+/**
+ * @brief Meter module for power supplies, e.g. the battery
+ * @details The attributes `current_now`, `voltage_now`, `temp` and `status`
+ *          of each supply are discovered and opened once, and re-read in
+ *          place at a lower rate than the host period, as the fuel gauge
+ *          updates them only every few hundred milliseconds to seconds.
+ *          Between readings the last values are held, such that every
+ *          record of the log carries the supply state next to the thermal
+ *          and frequency samples of the same record.
+ *
+ *          At each reading the power is computed from the current and the
+ *          voltage, and the energy integrated with the trapezoidal rule over
+ *          the time between readings. The supplies are first read at the
+ *          first measurement, i.e. when the meter starts, such that the
+ *          energy counts from there rather than from the creation. The
+ *          sign of the current, and therefore of power and energy, follows
+ *          the driver, most report a negative current when discharging.
+ *
+ *          Per supply the columns are the current in uA, the voltage in uV,
+ *          the power in mW, the energy in mJ, the temperature in tenths of a
+ *          degree Celsius and the status, as the index of the status in
+ *          "Unknown", "Charging", "Discharging", "Not charging", "Full". The
+ *          power and energy are integrated unrounded and rounded in the
+ *          columns. A column is only present if its attributes are.
+ *
+ *          The power_supply directory can be configured, e.g. to point at a
+ *          fake tree.
+ */
+struct power_supply : module {
+  using return_type = std::vector<std::int64_t>;
+  using clock_type  = std::chrono::steady_clock;
+
+  struct settings : public exot::utilities::configurable<settings> {
+    std::string root{"/sys/class/power_supply"};
+    std::vector<std::string> supplies{};
+    double period{1.0};
+
+    const char* name() const { return "power_supply"; }
+
+    void configure() {
+      bind_and_describe_data("root", root, "power_supply directory |str|");
+      bind_and_describe_data("supplies", supplies,
+                             "supplies to read |str[]|, e.g. [\"battery\"], "
+                             "all if empty");
+      bind_and_describe_data("period", period,
+                             "reading period in seconds |float|, e.g. 1.0");
+    }
+  };
+
+  explicit power_supply(settings& conf)
+      : conf_{conf},
+        period_{std::chrono::duration_cast<clock_type::duration>(
+            std::chrono::duration<double>{conf_.period})} {
+    if (conf_.supplies.empty()) conf_.supplies = discover(conf_.root);
+
+    for (const auto& name : conf_.supplies) {
+      auto dir = fmt::format("{}/{}/", conf_.root, name);
+
+      supply s;
+      s.name    = name;
+      s.current = attribute_file(dir + "current_now", 64);
+      s.voltage = attribute_file(dir + "voltage_now", 64);
+      s.temp    = attribute_file(dir + "temp", 64);
+      s.status  = attribute_file(dir + "status", 64);
+
+      if (!s.current.is_open() && !s.voltage.is_open() && !s.temp.is_open() &&
+          !s.status.is_open()) {
+        if (auto log = spdlog::get("log"); log)
+          log->warn("[power_supply] {} has no known attributes", name);
+        continue;
+      }
+
+      s.power = s.current.is_open() && s.voltage.is_open();
+      columns_ += s.current.is_open() + s.voltage.is_open() + 2 * s.power +
+                  s.temp.is_open() + s.status.is_open();
+      supplies_.push_back(std::move(s));
+    }
+
+    values_.assign(columns_, 0);
+  }
+
+  /**
+   * @brief Reads the supplies, if due
+   *
+   * @return The last values per supply
+   */
+  return_type measure() {
+    auto now = clock_type::now();
+    if (now >= next_) read(now);
+    return values_;
+  }
+
+  /**
+   * @brief Describes the columns, e.g. "power_supply:current:battery:uA"
+   */
+  std::vector<std::string> header() {
+    std::vector<std::string> descriptions;
+
+    for (const auto& s : supplies_) {
+      auto add = [&](const char* variable, const char* unit) {
+        descriptions.push_back(
+            fmt::format("{}:{}:{}:{}", conf_.name(), variable, s.name, unit));
+      };
+
+      if (s.current.is_open()) add("current", "uA");
+      if (s.voltage.is_open()) add("voltage", "uV");
+      if (s.power) {
+        add("power", "mW");
+        add("energy", "mJ");
+      }
+      if (s.temp.is_open()) add("temp", "dC");
+      if (s.status.is_open()) add("status", "#");
+    }
+
+    return descriptions;
+  }
+
+ private:
+  struct supply {
+    std::string name;
+    attribute_file current;
+    attribute_file voltage;
+    attribute_file temp;
+    attribute_file status;
+    bool power{false};
+    double last_power{0.0};  //! The power of the previous reading, in mW
+    double energy{0.0};      //! The integrated energy, in mJ
+  };
+
+  /**
+   * @brief Finds the supplies in the power_supply directory
+   */
+  static std::vector<std::string> discover(const std::string& root) {
+    std::vector<std::string> found;
+
+    if (auto dir = ::opendir(root.c_str()); dir != nullptr) {
+      while (auto entry = ::readdir(dir)) {
+        if (entry->d_name[0] != '.') found.emplace_back(entry->d_name);
+      }
+      ::closedir(dir);
+    }
+
+    std::sort(found.begin(), found.end());
+    return found;
+  }
+
+  /**
+   * @brief Maps the status attribute to its index
+   */
+  static int parse_status(std::string_view content) {
+    static constexpr std::string_view statuses[] = {
+        "Unknown", "Charging", "Discharging", "Not charging", "Full"};
+
+    while (!content.empty() && content.back() == '\n') content.remove_suffix(1);
+    for (auto i = 0; i < 5; ++i) {
+      if (content == statuses[i]) return i;
+    }
+    return 0;
+  }
+
+  /**
+   * @brief Reads all supplies and integrates their energy
+   * @details The first reading is the baseline of the integration.
+   */
+  void read(clock_type::time_point now) {
+    auto elapsed = std::chrono::duration<double>{now - last_read_}.count();
+    auto first   = last_read_ == clock_type::time_point{};
+    last_read_   = now;
+    next_        = now + period_;
+
+    std::size_t column = 0;
+    for (auto& s : supplies_) {
+      double current = 0.0;
+      double voltage = 0.0;
+
+      if (s.current.is_open()) {
+        values_[column] = s.current.read_integer();
+        current         = static_cast<double>(values_[column++]);
+      }
+      if (s.voltage.is_open()) {
+        values_[column] = s.voltage.read_integer();
+        voltage         = static_cast<double>(values_[column++]);
+      }
+      if (s.power) {
+        auto power = current * voltage * 1e-9;
+        if (!first) s.energy += 0.5 * (s.last_power + power) * elapsed;
+        s.last_power      = power;
+        values_[column++] = std::llround(power);
+        values_[column++] = std::llround(s.energy);
+      }
+      if (s.temp.is_open()) values_[column++] = s.temp.read_integer();
+      if (s.status.is_open()) values_[column++] = parse_status(s.status.read());
+    }
+  }
+
+  settings conf_;
+  clock_type::duration period_;
+  std::vector<supply> supplies_;
+  std::size_t columns_{0};
+  return_type values_;
+  clock_type::time_point last_read_{};
+  clock_type::time_point next_{};
+};
+
+}  // namespace exot::modules
@@ -0,0 +1,388 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+/**
+ * @file libnative/src/main/cpp/include/exot/meters/process_events.h
+ * @author     Bruno Klopott
+ * @brief      Event-driven meter module for the foreground (top) app.
+ */
+
+#pragma once
+
+#include <fcntl.h>
+#include <jni.h>
+#include <poll.h>
+#include <sys/stat.h>
+#include <unistd.h>
+
+#include <atomic>
+#include <cerrno>
+#include <chrono>
+#include <cstdint>
+#include <cstdlib>
+#include <memory>
+#include <mutex>
+#include <string>
+#include <string_view>
+#include <thread>
+#include <utility>
+#include <vector>
+
+#include <fmt/format.h>
+#include <spdlog/spdlog.h>
+
+#include <exot/jni/csv.h>
+#include <exot/jni/relay.h>
+#include <exot/meters/attribute.h>
+#include <exot/meters/base.h>
+#include <exot/utilities/configuration.h>
+
+namespace exot::modules {
+
+/**
+ * @brief Event-driven meter module for the foreground (top) app
+ * @details Unlike process_android, which calls back into Java on every
+ *          sample, the module keeps the top app in a cache which is only
+ *          updated when it changes, such that a sample costs a string copy.
+ *
+ *          Android moves the processes of the foreground app into the
+ *          "top-app" cpuset. Where tracefs is accessible, i.e. on rooted
+ *          devices or system installs, a worker thread subscribes to the
+ *          cgroup_attach_task events of that group in a private tracing
+ *          instance and resolves the attached process' name from procfs.
+ *          Otherwise the worker calls the Java resolver (getTopApp) at a low
+ *          rate. Each change is also written to the application log as a
+ *          side-channel record with its exact time on the meter log clock:
+ *
+ * @code
+ * # top_app,<time>,<pid or 0>,<name>
+ * @endcode
+ */
+struct process_events : module {
+  using return_type = std::string;
+
+  struct settings : public exot::utilities::configurable<settings> {
+    std::string tracefs{"/sys/kernel/tracing"};
+    std::string cpuset{"/dev/cpuset/top-app"};
+    std::string proc{"/proc"};
+    double fallback_period{1.0};
+    bool use_tracefs{true};
+    bool records{true};
+
+    std::uintptr_t jvm{0};
+    std::uintptr_t jinstance{0};
+    std::uintptr_t jclazz{0};
+    std::uintptr_t jmid{0};
+    int jniversion{0};
+
+    const char* name() const { return "process_events"; }
+
+    void configure() {
+      bind_and_describe_data("tracefs", tracefs, "tracefs directory |str|");
+      bind_and_describe_data("cpuset", cpuset,
+                             "cpuset of the foreground app |str|");
+      bind_and_describe_data("proc", proc, "procfs directory |str|");
+      bind_and_describe_data("fallback_period", fallback_period,
+                             "period of the Java resolver in s |float|");
+      bind_and_describe_data("use_tracefs", use_tracefs,
+                             "subscribe to kernel events if possible |bool|");
+      bind_and_describe_data("records", records,
+                             "write side-channel change records |bool|");
+      bind_and_describe_data("jvm", jvm, "Java VM pointer |uint|");
+      bind_and_describe_data("jinstance", jinstance, "Java instance |uint|");
+      bind_and_describe_data("jclazz", jclazz, "Java class |uint|");
+      bind_and_describe_data("jmid", jmid, "getTopApp method id |uint|");
+      bind_and_describe_data("jniversion", jniversion, "JNI version |int|");
+    }
+  };
+
+  explicit process_events(settings& conf) : conf_{conf} {
+    if (conf_.records) logger_ = spdlog::get("app");
+
+    if (conf_.use_tracefs && open_tracefs()) {
+      seed_from_cpuset();
+      worker_ = std::thread(&process_events::watch_tracefs, this);
+    } else if (conf_.jvm != 0 && conf_.jmid != 0) {
+      worker_ = std::thread(&process_events::poll_java, this);
+    } else {
+      warn("neither tracefs nor the Java resolver is available");
+    }
+  }
+
+  ~process_events() {
+    quit_ = true;
+    if (worker_.joinable()) worker_.join();
+    close_tracefs();
+  }
+
+  process_events(const process_events&) = delete;
+  process_events& operator=(const process_events&) = delete;
+
+  /**
+   * @brief Gets the cached top app
+   */
+  return_type measure() {
+    std::lock_guard<std::mutex> lock(mutex_);
+    return current_;
+  }
+
+  std::vector<std::string> header() {
+    return {fmt::format("{}:top_app:0:-", conf_.name())};
+  }
+
+ private:
+  static inline const char* INSTANCE = "/instances/exot_process_events";
+  static inline const char* EVENT    = "/events/cgroup/cgroup_attach_task";
+
+  /**
+   * @brief Creates a tracing instance subscribed to the top-app attach events
+   */
+  bool open_tracefs() {
+    for (const auto& root :
+         {conf_.tracefs, std::string{"/sys/kernel/debug/tracing"}}) {
+      auto instance = root + INSTANCE;
+      if (::mkdir(instance.c_str(), 0700) != 0 && errno != EEXIST) continue;
+
+      // Filtering in the kernel is an optimisation, lines are checked anyway.
+      auto group = conf_.cpuset.substr(conf_.cpuset.rfind('/') + 1);
+      write_file(instance + EVENT + "/filter",
+                 fmt::format("dst_path ~ \"*{}*\"", group));
+
+      if (!write_file(instance + EVENT + "/enable", "1")) {
+        ::rmdir(instance.c_str());
+        continue;
+      }
+
+      pipe_fd_ = ::open((instance + "/trace_pipe").c_str(),
+                        O_RDONLY | O_NONBLOCK | O_CLOEXEC);
+      if (pipe_fd_ < 0) {
+        write_file(instance + EVENT + "/enable", "0");
+        ::rmdir(instance.c_str());
+        continue;
+      }
+
+      instance_ = instance;
+      group_    = group;
+      return true;
+    }
+
+    return false;
+  }
+
+  void close_tracefs() {
+    if (pipe_fd_ >= 0) ::close(pipe_fd_);
+    pipe_fd_ = -1;
+
+    if (!instance_.empty()) {
+      write_file(instance_ + EVENT + "/enable", "0");
+      ::rmdir(instance_.c_str());
+    }
+  }
+
+  /**
+   * @brief Sets the initial top app from the members of the cpuset
+   */
+  void seed_from_cpuset() {
+    attribute_file procs(conf_.cpuset + "/cgroup.procs");
+    auto content = procs.read();
+
+    for (auto cursor = content.data(); *cursor != '\0';) {
+      char* end;
+      auto pid = static_cast<int>(std::strtol(cursor, &end, 10));
+      if (end == cursor) break;
+      cursor = end;
+
+      if (auto name = resolve(pid); is_app(name)) update(pid, std::move(name));
+    }
+  }
+
+  /**
+   * @brief The worker loop following the attach events
+   * @details Apps are attached while still being specialised from the zygote,
+   *          so a process without a proper name yet is resolved again a few
+   *          times before giving up.
+   */
+  void watch_tracefs() {
+    std::string buffer(16384, '\0');
+    std::string line;
+    int pending = 0, retries = 0;
+
+    while (!quit_) {
+      struct pollfd pfd = {pipe_fd_, POLLIN, 0};
+      auto ready = ::poll(&pfd, 1, pending != 0 ? 50 : 200);
+
+      if (ready > 0) {
+        for (ssize_t n;
+             (n = ::read(pipe_fd_, &buffer[0], buffer.size())) > 0;) {
+          for (auto i = 0; i < n; ++i) {
+            if (buffer[i] != '\n') {
+              line.push_back(buffer[i]);
+              continue;
+            }
+
+            if (auto pid = parse_event(line); pid > 0) {
+              pending = pid;
+              retries = 10;
+            }
+            line.clear();
+          }
+        }
+      }
+
+      if (pending != 0) {
+        if (auto name = resolve(pending); is_app(name)) {
+          update(pending, std::move(name));
+          pending = 0;
+        } else if (--retries <= 0) {
+          pending = 0;
+        }
+      }
+    }
+  }
+
+  /**
+   * @brief The worker loop calling the Java resolver
+   */
+  void poll_java() {
+    auto vm = reinterpret_cast<JavaVM*>(conf_.jvm);
+    JNIEnv* env;
+
+    if (vm->AttachCurrentThread(&env, nullptr) != JNI_OK) {
+      warn("cannot attach to the Java VM");
+      return;
+    }
+
+    auto period = std::chrono::duration_cast<std::chrono::milliseconds>(
+        std::chrono::duration<double>{conf_.fallback_period});
+    auto instance = reinterpret_cast<jobject>(conf_.jinstance);
+    auto method   = reinterpret_cast<jmethodID>(conf_.jmid);
+
+    while (!quit_) {
+      auto result =
+          static_cast<jstring>(env->CallObjectMethod(instance, method));
+
+      if (env->ExceptionCheck()) {
+        env->ExceptionClear();
+      } else if (result != nullptr) {
+        auto chars = env->GetStringUTFChars(result, nullptr);
+        update(0, chars);
+        env->ReleaseStringUTFChars(result, chars);
+        env->DeleteLocalRef(result);
+      }
+
+      for (auto slept = std::chrono::milliseconds{0}; slept < period && !quit_;
+           slept += std::chrono::milliseconds{50})
+        std::this_thread::sleep_for(std::chrono::milliseconds{50});
+    }
+
+    vm->DetachCurrentThread();
+  }
+
+  /**
+   * @brief Gets the pid from an attach event line of the foreground cpuset
+   *
+   * @return The pid, or 0 if the line is not such an event
+   */
+  int parse_event(std::string_view line) const {
+    auto path = line.find("dst_path=");
+    if (path == std::string_view::npos) return 0;
+
+    auto end = line.find(' ', path);
+    if (line.substr(path, end - path).find(group_) == std::string_view::npos)
+      return 0;
+
+    auto pid = line.find(" pid=", path);
+    if (pid == std::string_view::npos) return 0;
+
+    return static_cast<int>(std::strtol(line.data() + pid + 5, nullptr, 10));
+  }
+
+  /**
+   * @brief Gets the name of a process from its command line
+   */
+  std::string resolve(int pid) const {
+    attribute_file cmdline(fmt::format("{}/{}/cmdline", conf_.proc, pid));
+    auto content = cmdline.read();
+    return std::string{content.substr(0, content.find('\0'))};
+  }
+
+  /**
+   * @brief Is the name that of a specialised app process?
+   */
+  static bool is_app(const std::string& name) {
+    return !name.empty() && name.find('.') != std::string::npos &&
+           name != "<pre-initialized>";
+  }
+
+  /**
+   * @brief Updates the cached top app, recording the change
+   */
+  void update(int pid, std::string name) {
+    {
+      std::lock_guard<std::mutex> lock(mutex_);
+      if (name == current_) return;
+      current_ = name;
+    }
+
+    if (logger_ != nullptr)
+      exot::jni::csv_row::local()
+          .begin("# top_app")
+          .add(exot::jni::meter_time_ns())
+          .add(pid)
+          .add(name)
+          .emit(*logger_);
+  }
+
+  static bool write_file(const std::string& path, const std::string& value) {
+    auto fd = ::open(path.c_str(), O_WRONLY | O_TRUNC | O_CLOEXEC);
+    if (fd < 0) return false;
+
+    auto ok = ::write(fd, value.data(), value.size()) ==
+              static_cast<ssize_t>(value.size());
+    ::close(fd);
+    return ok;
+  }
+
+  static void warn(const char* message) {
+    if (auto log = spdlog::get("log"); log)
+      log->warn("[process_events] {}", message);
+  }
+
+  settings conf_;
+  std::shared_ptr<spdlog::logger> logger_;
+  std::string instance_;
+  std::string group_;
+  int pipe_fd_{-1};
+
+  std::mutex mutex_;
+  std::string current_{"~NOT FOUND~"};
+  std::atomic<bool> quit_{false};
+  std::thread worker_;
+};
+
+}  // namespace exot::modules
@@ -0,0 +1,472 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+/**
+ * @file libnative/src/main/cpp/include/exot/meters/process_utilisation.h
+ * @author     Bruno Klopott
+ * @brief      Meter module for the CPU time of tracked processes and their
+ *             busiest threads, read incrementally from procfs.
+ */
+
+#pragma once
+
+#include <dirent.h>
+#include <unistd.h>
+
+#include <algorithm>
+#include <chrono>
+#include <cstdint>
+#include <cstdlib>
+#include <cstring>
+#include <string>
+#include <string_view>
+#include <vector>
+
+#include <fmt/format.h>
+#include <spdlog/spdlog.h>
+
+#include <exot/meters/attribute.h>
+#include <exot/meters/base.h>
+#include <exot/utilities/configuration.h>
+
+namespace exot::modules {
+
+/**
+ * @brief Meter module for the CPU time of processes and threads
+ * @details Walking `/proc/<pid>/stat` for all processes at every sample is
+ *          far too expensive. The module instead tracks a fixed number of
+ *          processes in slots: the processes of the top app, read from the
+ *          top-app cpuset, and one process per name in the watch list. The
+ *          stat files of the tracked processes, and optionally of their
+ *          threads, are kept open and re-read in place. A file opened in
+ *          procfs stays bound to its process, reading it after the process
+ *          exited fails instead of reading a process which reused the pid.
+ *
+ *          The process list is only walked to find the watched processes,
+ *          at the rescan period, and the threads of the tracked processes
+ *          are listed again at the same rate or when the top app changes.
+ *
+ *          At the end of each window the user and system time of every slot
+ *          since the previous window are reported in milliseconds, followed
+ *          by the busiest threads of the slot with their time in the window.
+ *          Between windows the times are zero, such that the columns sum up
+ *          to the exact CPU time over any span of the log, as with the
+ *          frequency residency. The pid and tid columns hold the ids of the
+ *          last window, 0 for an empty slot.
+ *
+ *          The procfs root and the top-app file can be configured, e.g. to
+ *          point at a fake tree.
+ */
+struct process_utilisation : module {
+  using return_type = std::vector<std::int64_t>;
+  using clock_type  = std::chrono::steady_clock;
+
+  struct settings : public exot::utilities::configurable<settings> {
+    std::string procfs{"/proc"};
+    std::string top_app{"/dev/cpuset/top-app/cgroup.procs"};
+    unsigned top_processes{1};
+    std::vector<std::string> watch{};
+    unsigned threads{0};
+    unsigned max_threads{256};
+    double window{1.0};
+    double rescan{10.0};
+
+    const char* name() const { return "process_utilisation"; }
+
+    void configure() {
+      bind_and_describe_data("procfs", procfs, "procfs directory |str|");
+      bind_and_describe_data("top_app", top_app,
+                             "pids of the top app |str|, none if empty");
+      bind_and_describe_data("top_processes", top_processes,
+                             "top app processes to track |uint|, e.g. 1");
+      bind_and_describe_data("watch", watch,
+                             "process names to track |str[]|, e.g. "
+                             "[\"surfaceflinger\"]");
+      bind_and_describe_data("threads", threads,
+                             "busiest threads per process |uint|, e.g. 4");
+      bind_and_describe_data("max_threads", max_threads,
+                             "threads read per process |uint|, e.g. 256");
+      bind_and_describe_data("window", window,
+                             "reporting period in seconds |float|, e.g. 1.0");
+      bind_and_describe_data("rescan", rescan,
+                             "process list scan period in seconds |float|");
+    }
+  };
+
+  explicit process_utilisation(settings& conf)
+      : conf_{conf},
+        window_{to_duration(conf_.window)},
+        rescan_{to_duration(conf_.rescan)},
+        ticks_per_second_{static_cast<std::int64_t>(::sysconf(_SC_CLK_TCK))} {
+    if (!conf_.top_app.empty()) top_app_ = attribute_file(conf_.top_app, 512);
+    if (!conf_.top_app.empty() && !top_app_.is_open()) {
+      if (auto log = spdlog::get("log"); log)
+        log->warn("[process_utilisation] cannot open {}", conf_.top_app);
+    }
+
+    for (auto i = 0u; i < conf_.top_processes; ++i)
+      slots_.push_back(slot{fmt::format("top{}", i), {}});
+    for (const auto& name : conf_.watch)
+      slots_.push_back(slot{label(name), name});
+
+    stride_ = 3 + 2 * conf_.threads;
+    values_.assign(slots_.size() * stride_, 0);
+    idle_.assign(values_.size(), 0);
+    for (auto& s : slots_) {
+      s.deltas.reserve(conf_.max_threads);
+      s.order.reserve(conf_.max_threads);
+    }
+
+    auto now = clock_type::now();
+    update_top_app();
+    rescan();
+    for (auto i = 0ull; i < slots_.size(); ++i)
+      idle_[i * stride_] = slots_[i].pid;
+
+    next_rescan_ = now + rescan_;
+    next_        = now + window_;
+  }
+
+  /**
+   * @brief Reads the tracked processes, if the window is over
+   *
+   * @return Per slot the pid, user and system time in ms, followed by the
+   *         tid and time in ms of the busiest threads, or the ids with zero
+   *         times if the window is not over
+   */
+  return_type measure() {
+    auto now = clock_type::now();
+    if (now < next_) return idle_;
+    next_ = now + window_;
+
+    update_top_app();
+    if (now >= next_rescan_) {
+      next_rescan_ = now + rescan_;
+      rescan();
+    }
+
+    for (auto i = 0ull; i < slots_.size(); ++i) read_slot(slots_[i], i);
+    return values_;
+  }
+
+  /**
+   * @brief Describes the columns, e.g. "process_utilisation:user:top0:ms" or
+   *        "process_utilisation:thread:surfaceflinger.0:ms"
+   */
+  std::vector<std::string> header() {
+    std::vector<std::string> descriptions;
+
+    for (const auto& s : slots_) {
+      descriptions.push_back(
+          fmt::format("{}:pid:{}:#", conf_.name(), s.label));
+      descriptions.push_back(
+          fmt::format("{}:user:{}:ms", conf_.name(), s.label));
+      descriptions.push_back(
+          fmt::format("{}:system:{}:ms", conf_.name(), s.label));
+      for (auto r = 0u; r < conf_.threads; ++r) {
+        descriptions.push_back(
+            fmt::format("{}:tid:{}.{}:#", conf_.name(), s.label, r));
+        descriptions.push_back(
+            fmt::format("{}:thread:{}.{}:ms", conf_.name(), s.label, r));
+      }
+    }
+
+    return descriptions;
+  }
+
+ private:
+  struct task {
+    std::int64_t tid;
+    attribute_file stat;
+    std::int64_t last;  //! The last user + system time, in ticks
+  };
+
+  struct slot {
+    std::string label;
+    std::string name;  //! The watched name, empty for the top app slots
+    std::int64_t pid{0};
+    attribute_file stat{};
+    std::int64_t last_user{0};
+    std::int64_t last_system{0};
+    std::vector<task> tasks{};
+    std::vector<std::int64_t> deltas{};  //! Time in the window, per task
+    std::vector<std::size_t> order{};    //! Task indices, busiest first
+  };
+
+  static clock_type::duration to_duration(double seconds) {
+    return std::chrono::duration_cast<clock_type::duration>(
+        std::chrono::duration<double>{seconds});
+  }
+
+  /**
+   * @brief Makes a name usable in a column description
+   */
+  static std::string label(std::string name) {
+    for (auto& c : name) {
+      if (c == ',' || c == ':' || c == ' ') c = '_';
+    }
+    return name;
+  }
+
+  /**
+   * @brief Parses the user and system time from a stat file, in ticks
+   * @details The command name in parentheses may contain spaces, the fields
+   *          are therefore counted from the last parenthesis. The state is
+   *          the first field after it, the user and system time the 12th
+   *          and 13th.
+   *
+   * @return False if the content is not a valid stat line
+   */
+  static bool parse_stat(std::string_view content, std::int64_t& user,
+                         std::int64_t& system) {
+    auto paren = content.rfind(')');
+    if (paren == std::string_view::npos || paren + 2 >= content.size())
+      return false;
+
+    auto cursor = content.data() + paren + 2;
+    for (auto field = 0; field < 11; ++field) {
+      cursor = std::strchr(cursor, ' ');
+      if (cursor == nullptr) return false;
+      ++cursor;
+    }
+
+    char* end;
+    user = std::strtoll(cursor, &end, 10);
+    if (end == cursor) return false;
+    system = std::strtoll(end, &end, 10);
+    return true;
+  }
+
+  /**
+   * @brief Reads the top app pids and tracks the lowest ones
+   * @details The threads of a newly tracked process are listed right away.
+   */
+  void update_top_app() {
+    if (conf_.top_processes == 0 || !top_app_.is_open()) return;
+
+    pids_.clear();
+    auto content = top_app_.read();
+    for (auto cursor = content.data(); *cursor != '\0';) {
+      char* end;
+      auto pid = std::strtoll(cursor, &end, 10);
+      if (end == cursor) break;
+      pids_.push_back(pid);
+      cursor = end;
+    }
+    std::sort(pids_.begin(), pids_.end());
+
+    for (auto i = 0u; i < conf_.top_processes; ++i) {
+      auto pid = i < pids_.size() ? pids_[i] : 0;
+      if (slots_[i].pid != pid || (pid != 0 && !slots_[i].stat.is_open()))
+        track(slots_[i], pid);
+    }
+  }
+
+  /**
+   * @brief Finds the watched processes and lists the threads again
+   * @details A process matches if the base name of its first command-line
+   *          argument equals the name, e.g. the package name of an app, or
+   *          for processes without a command line, e.g. kernel threads, its
+   *          comm. Of several processes with the same name the lowest pid is
+   *          tracked.
+   */
+  void rescan() {
+    for (auto i = 0u; i < conf_.top_processes; ++i) track_threads(slots_[i]);
+    if (conf_.watch.empty()) return;
+
+    found_.assign(conf_.watch.size(), 0);
+
+    if (auto dir = ::opendir(conf_.procfs.c_str()); dir != nullptr) {
+      while (auto entry = ::readdir(dir)) {
+        char* end;
+        auto pid = std::strtoll(entry->d_name, &end, 10);
+        if (*end != '\0' || pid <= 0) continue;
+
+        auto command = read_command(pid);
+        if (command.empty()) continue;
+
+        for (auto w = 0ull; w < conf_.watch.size(); ++w) {
+          if (command != conf_.watch[w]) continue;
+          if (found_[w] == 0 || pid < found_[w]) found_[w] = pid;
+        }
+      }
+      ::closedir(dir);
+    }
+
+    for (auto w = 0ull; w < conf_.watch.size(); ++w) {
+      auto& s = slots_[conf_.top_processes + w];
+      if (s.pid != found_[w] || !s.stat.is_open()) {
+        track(s, found_[w]);
+      } else {
+        track_threads(s);
+      }
+    }
+  }
+
+  /**
+   * @brief Gets the name of a process, from its command line or its comm
+   */
+  std::string read_command(std::int64_t pid) {
+    auto cmdline =
+        attribute_file(fmt::format("{}/{}/cmdline", conf_.procfs, pid), 256);
+    auto content = cmdline.read();
+    if (!content.empty()) {
+      auto argv0 = std::string_view{content.data()};
+      return std::string{argv0.substr(argv0.rfind('/') + 1)};
+    }
+
+    auto comm =
+        attribute_file(fmt::format("{}/{}/comm", conf_.procfs, pid), 64);
+    content = comm.read();
+    while (!content.empty() && content.back() == '\n') content.remove_suffix(1);
+    return std::string{content};
+  }
+
+  /**
+   * @brief Tracks a process in a slot, or empties the slot for pid 0
+   */
+  void track(slot& s, std::int64_t pid) {
+    s.pid  = pid;
+    s.stat = pid != 0 ? attribute_file(
+                            fmt::format("{}/{}/stat", conf_.procfs, pid), 512)
+                      : attribute_file{};
+    s.last_user   = 0;
+    s.last_system = 0;
+    if (s.stat.is_open()) parse_stat(s.stat.read(), s.last_user, s.last_system);
+    s.tasks.clear();
+    track_threads(s);
+  }
+
+  /**
+   * @brief Opens the stat files of threads which are not tracked yet and
+   *        forgets the threads which exited
+   */
+  void track_threads(slot& s) {
+    if (conf_.threads == 0 || s.pid == 0) return;
+
+    s.tasks.erase(std::remove_if(s.tasks.begin(), s.tasks.end(),
+                                 [](task& t) { return !t.stat.is_open(); }),
+                  s.tasks.end());
+
+    auto path = fmt::format("{}/{}/task", conf_.procfs, s.pid);
+    auto dir  = ::opendir(path.c_str());
+    if (dir == nullptr) return;
+
+    while (auto entry = ::readdir(dir)) {
+      if (s.tasks.size() >= conf_.max_threads) break;
+
+      char* end;
+      auto tid = std::strtoll(entry->d_name, &end, 10);
+      if (*end != '\0' || tid <= 0) continue;
+
+      auto known = std::any_of(s.tasks.begin(), s.tasks.end(),
+                               [tid](const task& t) { return t.tid == tid; });
+      if (known) continue;
+
+      task t{tid, attribute_file(fmt::format("{}/{}/stat", path, tid), 512), 0};
+      std::int64_t user, system;
+      if (!t.stat.is_open() || !parse_stat(t.stat.read(), user, system))
+        continue;
+      t.last = user + system;
+      s.tasks.push_back(std::move(t));
+    }
+    ::closedir(dir);
+  }
+
+  /**
+   * @brief Reads a slot and writes its columns into the values
+   */
+  void read_slot(slot& s, std::size_t index) {
+    auto column = values_.begin() + index * stride_;
+    std::fill(column, column + stride_, 0);
+    auto idle = idle_.begin() + index * stride_;
+    std::fill(idle, idle + stride_, 0);
+
+    std::int64_t user, system;
+    if (s.pid == 0 || !parse_stat(s.stat.read(), user, system)) {
+      // The process exited, the slot is filled again by the next scan.
+      if (s.pid != 0) track(s, 0);
+      return;
+    }
+
+    column[0] = idle[0] = s.pid;
+    column[1] = to_ms(user - s.last_user);
+    column[2] = to_ms(system - s.last_system);
+    s.last_user   = user;
+    s.last_system = system;
+
+    if (conf_.threads == 0) return;
+
+    s.deltas.resize(s.tasks.size());
+    s.order.resize(s.tasks.size());
+    for (auto i = 0ull; i < s.tasks.size(); ++i) {
+      auto& t     = s.tasks[i];
+      s.order[i]  = i;
+      s.deltas[i] = 0;
+      if (!parse_stat(t.stat.read(), user, system)) {
+        t.stat = attribute_file{};
+        continue;
+      }
+      s.deltas[i] = user + system - t.last;
+      t.last      = user + system;
+    }
+
+    auto count = std::min<std::size_t>(conf_.threads, s.order.size());
+    std::partial_sort(s.order.begin(), s.order.begin() + count, s.order.end(),
+                      [&s](std::size_t a, std::size_t b) {
+                        return s.deltas[a] > s.deltas[b];
+                      });
+
+    for (auto r = 0ull; r < count; ++r) {
+      auto i                = s.order[r];
+      column[3 + 2 * r]     = s.tasks[i].tid;
+      column[3 + 2 * r + 1] = to_ms(s.deltas[i]);
+      idle[3 + 2 * r]       = s.tasks[i].tid;
+    }
+  }
+
+  std::int64_t to_ms(std::int64_t ticks) const {
+    return ticks > 0 ? ticks * 1000 / ticks_per_second_ : 0;
+  }
+
+  settings conf_;
+  clock_type::duration window_;
+  clock_type::duration rescan_;
+  std::int64_t ticks_per_second_;
+  attribute_file top_app_;
+  std::vector<slot> slots_;
+  std::size_t stride_{3};
+  std::vector<std::int64_t> pids_;
+  std::vector<std::int64_t> found_;
+  return_type values_;
+  return_type idle_;
+  clock_type::time_point next_;
+  clock_type::time_point next_rescan_;
+};
+
+}  // namespace exot::modules
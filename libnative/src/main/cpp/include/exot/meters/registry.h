@@ -0,0 +1,384 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+/**
+ * @file libnative/src/main/cpp/include/exot/meters/registry.h
+ * @author     Bruno Klopott
+ * @brief      Registry of meter modules, which are selected and instantiated
+ *             from the JSON configuration at runtime.
+ */
+
+#pragma once
+
+#include <algorithm>
+#include <iterator>
+#include <map>
+#include <memory>
+#include <mutex>
+#include <string>
+#include <string_view>
+#include <tuple>
+#include <type_traits>
+#include <utility>
+#include <vector>
+
+#include <fmt/format.h>
+#include <spdlog/spdlog.h>
+#include <nlohmann/json.hpp>
+
+#include <exot/jni/csv.h>
+#include <exot/meters/base.h>
+#include <exot/utilities/configuration.h>
+
+namespace exot::modules {
+
+namespace details {
+
+template <typename T, typename = void>
+struct is_iterable : std::false_type {};
+
+template <typename T>
+struct is_iterable<T, std::void_t<decltype(std::begin(std::declval<T&>())),
+                                  decltype(std::end(std::declval<T&>()))>>
+    : std::true_type {};
+
+template <typename T, typename = void>
+struct is_tuple_like : std::false_type {};
+
+template <typename T>
+struct is_tuple_like<T, std::void_t<decltype(std::tuple_size<T>::value)>>
+    : std::true_type {};
+
+/**
+ * @brief Appends a measurement to a row, one field per value
+ * @details Strings are appended as a single field, containers and tuples are
+ *          flattened, as the host logger does with the return values.
+ */
+template <typename T>
+void append(exot::jni::csv_row& row, const T& value) {
+  if constexpr (std::is_convertible_v<const T&, std::string_view>) {
+    row.add(std::string_view{value});
+  } else if constexpr (std::is_same_v<T, bool>) {
+    row.add(static_cast<int>(value));
+  } else if constexpr (std::is_integral_v<T>) {
+    row.add(value);
+  } else if constexpr (std::is_floating_point_v<T>) {
+    row.add(static_cast<double>(value));
+  } else if constexpr (std::is_enum_v<T>) {
+    row.add(static_cast<std::underlying_type_t<T>>(value));
+  } else if constexpr (is_iterable<T>::value) {
+    for (const auto& element : value) append(row, element);
+  } else if constexpr (is_tuple_like<T>::value) {
+    std::apply([&row](const auto&... v) { (append(row, v), ...); }, value);
+  } else {
+    row.add(fmt::format("{}", value));
+  }
+}
+
+}  // namespace details
+
+/**
+ * @brief Type-erased meter module, created by the registry
+ */
+class meter {
+ public:
+  virtual ~meter() = default;
+
+  /**
+   * @brief Takes a measurement and appends its fields to a row
+   */
+  virtual void measure(exot::jni::csv_row& row) = 0;
+
+  /**
+   * @brief Describes the fields appended by measure()
+   */
+  virtual std::vector<std::string> header() = 0;
+};
+
+/**
+ * @brief A meter module with its own settings
+ * @details The settings are configured from the root of the JSON config, at
+ *          the key given by their name(), as the host logger configures its
+ *          modules. They outlive the module, which may keep a reference.
+ *
+ * @tparam Module The meter module
+ */
+template <typename Module>
+class registered_meter final : public meter {
+ public:
+  explicit registered_meter(const nlohmann::json& root) {
+    exot::utilities::JsonConfig jc;
+    jc.get_ref() = root;
+    exot::utilities::configure(jc, settings_);
+    module_ = std::make_unique<Module>(settings_);
+  }
+
+  void measure(exot::jni::csv_row& row) override {
+    details::append(row, module_->measure());
+  }
+
+  std::vector<std::string> header() override { return module_->header(); }
+
+ private:
+  typename Module::settings settings_;
+  std::unique_ptr<Module> module_;
+};
+
+/**
+ * @brief Registry of the meter modules available to the meter set
+ * @details Modules are registered by name once, when the native library is
+ *          loaded. A registered module costs nothing until it is enabled in
+ *          the configuration, only then are its settings configured and the
+ *          module created, e.g. opening its files or tracing instances.
+ *
+ *          The enabled modules are listed in the config of the meter set:
+ *
+ * @code
+ * {"meters": {"modules": ["utilisation_procfs", "thermal_sysfs"]},
+ *  "thermal_sysfs": {"zones": [0, 1]}}
+ * @endcode
+ *
+ *          If the list is missing, the default modules are enabled, i.e. the
+ *          ones every configuration had before modules could be selected,
+ *          followed by the other registered modules which have a
+ *          configuration object of their own.
+ *
+ *          Modules may be registered under former names as well, e.g.
+ *          process_android for process_events. An alias can be used both in
+ *          the list and as the name of the configuration object.
+ */
+class meter_registry {
+ public:
+  using json_t    = nlohmann::json;
+  using factory_t = std::unique_ptr<meter> (*)(const json_t&);
+
+  static meter_registry& instance() {
+    static meter_registry registry;
+    return registry;
+  }
+
+  /**
+   * @brief Registers a module under the name of its settings
+   *
+   * @tparam Module The meter module
+   * @param  enabled Whether the module is enabled by default
+   */
+  template <typename Module>
+  void add(bool enabled = false) {
+    std::lock_guard<std::mutex> lock(mutex_);
+    std::string name = typename Module::settings{}.name();
+
+    factories_[name] = [](const json_t& root) -> std::unique_ptr<meter> {
+      return std::make_unique<registered_meter<Module>>(root);
+    };
+
+    if (enabled &&
+        std::find(defaults_.begin(), defaults_.end(), name) == defaults_.end())
+      defaults_.push_back(std::move(name));
+  }
+
+  /**
+   * @brief Registers an alternative name of a module
+   *
+   * @param alias The alternative name
+   * @param name  The name of the module
+   */
+  void alias(std::string alias, std::string name) {
+    std::lock_guard<std::mutex> lock(mutex_);
+    aliases_[std::move(alias)] = std::move(name);
+  }
+
+  bool contains(std::string_view name) const {
+    std::lock_guard<std::mutex> lock(mutex_);
+    return factories_.find(name) != factories_.end();
+  }
+
+  std::vector<std::string> names() const {
+    std::lock_guard<std::mutex> lock(mutex_);
+    std::vector<std::string> names;
+    for (const auto& [name, _] : factories_) names.push_back(name);
+    return names;
+  }
+
+  /**
+   * @brief Lists the enabled modules in the config, if not listed yet
+   * @details Aliases in the list are replaced by the module names, and the
+   *          configuration objects named by an alias are merged into the one
+   *          of the module, with the latter taking precedence.
+   *
+   * @param root The root of the JSON config
+   */
+  void resolve(json_t& root) const {
+    std::lock_guard<std::mutex> lock(mutex_);
+
+    for (const auto& [alias, name] : aliases_) {
+      auto it = root.find(alias);
+      if (it == root.end() || !it->is_object()) continue;
+
+      auto& target = root[name];
+      if (!target.is_object()) target = json_t::object();
+      for (const auto& [key, value] : it->items())
+        if (target.find(key) == target.end()) target[key] = value;
+    }
+
+    auto& meters = root["meters"];
+    if (!meters.is_object()) meters = json_t::object();
+
+    if (auto modules = meters.find("modules"); modules != meters.end()) {
+      if (!modules->is_array()) return;
+      for (auto& module : *modules) {
+        if (!module.is_string()) continue;
+        if (auto it = aliases_.find(module.get<std::string>());
+            it != aliases_.end())
+          module = it->second;
+      }
+      return;
+    }
+
+    auto enabled = json_t::array();
+    for (const auto& name : defaults_) enabled.push_back(name);
+    for (const auto& [name, _] : factories_) {
+      if (std::find(defaults_.begin(), defaults_.end(), name) !=
+          defaults_.end())
+        continue;
+      if (auto it = root.find(name); it != root.end() && it->is_object())
+        enabled.push_back(name);
+    }
+
+    meters["modules"] = enabled;
+  }
+
+  /**
+   * @brief Sets the config from which modules are created
+   *
+   * @param root The root of the JSON config
+   */
+  void bind(const json_t& root) {
+    std::lock_guard<std::mutex> lock(mutex_);
+    root_ = root;
+  }
+
+  /**
+   * @brief Creates a module with the bound config
+   *
+   * @param name The module name
+   * @return The module, or nullptr if no such module is registered
+   */
+  std::unique_ptr<meter> create(std::string_view name) const {
+    std::lock_guard<std::mutex> lock(mutex_);
+    auto it = factories_.find(name);
+    return it != factories_.end() ? it->second(root_) : nullptr;
+  }
+
+ private:
+  meter_registry() = default;
+
+  mutable std::mutex mutex_;
+  std::map<std::string, factory_t, std::less<>> factories_;
+  std::map<std::string, std::string, std::less<>> aliases_;
+  std::vector<std::string> defaults_;
+  json_t root_;
+};
+
+/**
+ * @brief Meter module holding the modules enabled in the configuration
+ * @details The enabled modules are measured in the order of the list and
+ *          their fields formatted into a single record fragment, such that
+ *          the host logger writes them as consecutive columns. The fragment
+ *          reuses its buffer and is returned by reference, a measurement
+ *          costs one virtual call per enabled module and no allocation.
+ *          The fragment is valid until the next measurement.
+ */
+struct meter_set : module {
+  using return_type = const std::string&;
+
+  struct settings : public exot::utilities::configurable<settings> {
+    std::vector<std::string> modules{};
+
+    const char* name() const { return "meters"; }
+
+    void configure() {
+      bind_and_describe_data("modules", modules,
+                             "enabled meter modules |str[]|, e.g. "
+                             "[\"utilisation_procfs\", \"thermal_sysfs\"]");
+    }
+  };
+
+  explicit meter_set(settings& conf) : conf_{conf} {
+    auto& registry = meter_registry::instance();
+    auto log       = spdlog::get("log");
+
+    for (const auto& name : conf_.modules) {
+      if (std::find(names_.begin(), names_.end(), name) != names_.end())
+        continue;
+
+      auto module = registry.create(name);
+      if (!module) {
+        if (log) log->warn("[meters] no module named {}", name);
+        continue;
+      }
+
+      if (log) log->info("[meters] enabled {}", name);
+      names_.push_back(name);
+      meters_.push_back(std::move(module));
+    }
+
+    if (meters_.empty() && log) log->warn("[meters] no modules enabled");
+  }
+
+  meter_set(const meter_set&) = delete;
+  meter_set& operator=(const meter_set&) = delete;
+
+  return_type measure() {
+    row_.begin();
+    for (auto& meter : meters_) meter->measure(row_);
+    return row_.str();
+  }
+
+  std::vector<std::string> header() {
+    std::vector<std::string> descriptions;
+    for (auto& meter : meters_) {
+      auto part = meter->header();
+      std::move(part.begin(), part.end(), std::back_inserter(descriptions));
+    }
+    return descriptions;
+  }
+
+  /**
+   * @brief Gets the names of the enabled modules, in measurement order
+   */
+  const std::vector<std::string>& enabled() const { return names_; }
+
+ private:
+  settings conf_;
+  std::vector<std::string> names_;
+  std::vector<std::unique_ptr<meter>> meters_;
+  exot::jni::csv_row row_;
+};
+
+}  // namespace exot::modules
@@ -0,0 +1,302 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+/**
+ * @file libnative/src/main/cpp/include/exot/meters/thermal_events.h
+ * @author     Bruno Klopott
+ * @brief      Meter module for thermal trip points and cooling device state
+ *             transitions, complementing the periodic thermal_sysfs meter.
+ */
+
+#pragma once
+
+#include <dirent.h>
+#include <poll.h>
+#include <unistd.h>
+
+#include <algorithm>
+#include <atomic>
+#include <chrono>
+#include <cstdint>
+#include <cstdlib>
+#include <memory>
+#include <mutex>
+#include <string>
+#include <string_view>
+#include <thread>
+#include <utility>
+#include <vector>
+
+#include <fmt/format.h>
+#include <spdlog/spdlog.h>
+
+#include <exot/jni/relay.h>
+#include <exot/meters/attribute.h>
+#include <exot/meters/base.h>
+#include <exot/utilities/configuration.h>
+
+namespace exot::modules {
+
+/**
+ * @brief Meter module for thermal trip points and cooling state transitions
+ * @details The thermal_sysfs meter samples zone temperatures, such that a
+ *          throttling decision only shows up indirectly, e.g. as a drop in
+ *          frequency. This module discovers the trip points of the thermal
+ *          zones and the cooling devices bound to them once, and watches the
+ *          `cur_state` of the cooling devices in a worker thread. The worker
+ *          waits in poll() for a sysfs notification where the kernel raises
+ *          one, and otherwise re-reads the states at the configured period,
+ *          which is independent of the sampling period of the host.
+ *
+ *          The samples hold the latest state of each cooling device. The
+ *          topology and each transition are written to the application log
+ *          as side-channel records, timestamped on the meter log clock when
+ *          they are observed:
+ *
+ * @code
+ * # thermal_trip,<time>,<zone>,<zone type>,<trip>,<trip type>,<mC>
+ * # cooling_map,<time>,<device>,<type>,<max state>,<zone>/<trip>;...
+ * # cooling,<time>,<device>,<type>,<old state>,<new state>,<max state>
+ * @endcode
+ *
+ *          The thermal class directory can be configured, e.g. to point at a
+ *          fake tree.
+ */
+struct thermal_events : module {
+  using return_type = std::vector<std::int32_t>;
+
+  struct settings : public exot::utilities::configurable<settings> {
+    std::string root{"/sys/class/thermal"};
+    std::vector<unsigned> devices{};
+    double period{0.2};
+    bool records{true};
+
+    const char* name() const { return "thermal_events"; }
+
+    void configure() {
+      bind_and_describe_data("root", root, "thermal class directory |str|");
+      bind_and_describe_data("devices", devices,
+                             "cooling devices to watch |uint[]|, all if empty");
+      bind_and_describe_data(
+          "period", period,
+          "re-reading period without notifications in seconds |float|");
+      bind_and_describe_data("records", records,
+                             "write side-channel records |bool|");
+    }
+  };
+
+  explicit thermal_events(settings& conf) : conf_{conf} {
+    if (conf_.records) logger_ = spdlog::get("app");
+    if (conf_.devices.empty()) conf_.devices = discover("cooling_device");
+
+    for (auto id : conf_.devices) {
+      auto dir = fmt::format("{}/cooling_device{}/", conf_.root, id);
+
+      device d;
+      d.id        = id;
+      d.cur_state = attribute_file(dir + "cur_state");
+
+      if (!d.cur_state.is_open()) {
+        if (auto log = spdlog::get("log"); log)
+          log->warn("[thermal_events] cooling_device{} has no cur_state", id);
+        continue;
+      }
+
+      d.type      = read_line(dir + "type");
+      d.max_state = static_cast<std::int32_t>(
+          attribute_file(dir + "max_state").read_integer(-1));
+      d.state = static_cast<std::int32_t>(d.cur_state.read_integer(-1));
+      devices_.push_back(std::move(d));
+    }
+
+    map_zones();
+    states_.resize(devices_.size());
+    for (auto i = 0u; i < devices_.size(); ++i) states_[i] = devices_[i].state;
+
+    if (!devices_.empty())
+      worker_ = std::thread(&thermal_events::watch, this);
+  }
+
+  ~thermal_events() {
+    quit_ = true;
+    if (worker_.joinable()) worker_.join();
+  }
+
+  thermal_events(const thermal_events&) = delete;
+  thermal_events& operator=(const thermal_events&) = delete;
+
+  /**
+   * @brief Gets the latest state of each cooling device
+   */
+  return_type measure() {
+    std::lock_guard<std::mutex> lock(mutex_);
+    return states_;
+  }
+
+  std::vector<std::string> header() {
+    std::vector<std::string> names;
+    for (const auto& d : devices_)
+      names.push_back(fmt::format("{}:cooling_state:{}:-", conf_.name(), d.id));
+    return names;
+  }
+
+ private:
+  struct device {
+    unsigned id;
+    std::string type;
+    std::int32_t max_state;
+    std::int32_t state;
+    attribute_file cur_state;
+  };
+
+  /**
+   * @brief Records the trip points and the zones the cooling devices serve
+   * @details A zone links its bound cooling devices as `cdev<K>`, with the
+   *          trip point activating the device in `cdev<K>_trip_point`.
+   */
+  void map_zones() {
+    std::vector<std::string> bindings(devices_.size());
+
+    for (auto zone : discover("thermal_zone")) {
+      auto dir  = fmt::format("{}/thermal_zone{}/", conf_.root, zone);
+      auto type = read_line(dir + "type");
+
+      for (auto trip = 0;; ++trip) {
+        attribute_file temp(fmt::format("{}trip_point_{}_temp", dir, trip));
+        if (!temp.is_open()) break;
+
+        record("# thermal_trip,{},thermal_zone{},{},{},{},{}",
+               exot::jni::meter_time_ns(), zone, type, trip,
+               read_line(fmt::format("{}trip_point_{}_type", dir, trip)),
+               temp.read_integer(-1));
+      }
+
+      for (auto cdev = 0;; ++cdev) {
+        char target[256];
+        auto link = fmt::format("{}cdev{}", dir, cdev);
+        auto n    = ::readlink(link.c_str(), target, sizeof(target) - 1);
+        if (n <= 0) break;
+
+        std::string_view name{target, static_cast<std::size_t>(n)};
+        name = name.substr(name.rfind('/') + 1);
+        if (name.substr(0, 14) != "cooling_device") continue;
+
+        auto id = std::strtoul(name.data() + 14, nullptr, 10);
+        auto it = std::find_if(devices_.begin(), devices_.end(),
+                               [id](const device& d) { return d.id == id; });
+        if (it == devices_.end()) continue;
+
+        auto& binding = bindings[it - devices_.begin()];
+        if (!binding.empty()) binding += ';';
+        binding += fmt::format(
+            "thermal_zone{}/{}", zone,
+            attribute_file(link + "_trip_point").read_integer(-1));
+      }
+    }
+
+    for (auto i = 0u; i < devices_.size(); ++i)
+      record("# cooling_map,{},cooling_device{},{},{},{}",
+             exot::jni::meter_time_ns(), devices_[i].id, devices_[i].type,
+             devices_[i].max_state, bindings[i]);
+  }
+
+  /**
+   * @brief The worker loop watching the cooling states
+   * @details Sysfs signals a notification as POLLPRI/POLLERR on a file that
+   *          was read before, so all states are re-read after each wake-up,
+   *          which also covers kernels that never notify.
+   */
+  void watch() {
+    std::vector<struct pollfd> fds;
+    for (const auto& d : devices_)
+      fds.push_back({d.cur_state.fd(), POLLPRI, 0});
+
+    auto timeout = std::max(1, static_cast<int>(conf_.period * 1000));
+
+    while (!quit_) {
+      ::poll(fds.data(), fds.size(), timeout);
+
+      for (auto i = 0u; i < devices_.size(); ++i) {
+        auto& d = devices_[i];
+        auto state = static_cast<std::int32_t>(d.cur_state.read_integer(-1));
+        if (state == d.state) continue;
+
+        record("# cooling,{},cooling_device{},{},{},{},{}",
+               exot::jni::meter_time_ns(), d.id, d.type, d.state, state,
+               d.max_state);
+        d.state = state;
+
+        std::lock_guard<std::mutex> lock(mutex_);
+        states_[i] = state;
+      }
+    }
+  }
+
+  template <typename... Args>
+  void record(const char* format, Args&&... args) {
+    if (logger_ != nullptr) logger_->info(format, std::forward<Args>(args)...);
+  }
+
+  /**
+   * @brief Lists the ids of the entries with the prefix, sorted
+   */
+  std::vector<unsigned> discover(std::string_view prefix) const {
+    std::vector<unsigned> found;
+
+    if (auto dir = ::opendir(conf_.root.c_str()); dir != nullptr) {
+      while (auto entry = ::readdir(dir)) {
+        std::string_view name{entry->d_name};
+        if (name.size() > prefix.size() &&
+            name.substr(0, prefix.size()) == prefix)
+          found.push_back(
+              std::strtoul(entry->d_name + prefix.size(), nullptr, 10));
+      }
+      ::closedir(dir);
+    }
+
+    std::sort(found.begin(), found.end());
+    return found;
+  }
+
+  static std::string read_line(const std::string& path) {
+    attribute_file file(path);
+    auto content = file.read();
+    return std::string{content.substr(0, content.find('\n'))};
+  }
+
+  settings conf_;
+  std::shared_ptr<spdlog::logger> logger_;
+  std::vector<device> devices_;
+
+  std::mutex mutex_;
+  return_type states_;
+  std::atomic<bool> quit_{false};
+  std::thread worker_;
+};
+
+}  // namespace exot::modules
@@ -26,6 +26,13 @@
 // OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
 // OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 // 
+/**
+ * @file libnative/src/main/cpp/src/exot-jni.cpp
+ * @author     Bruno Klopott
+ * @brief      Contains the functions for the Java Native Interface, shared by
+ *             all apps subclassing the BaseService.
+ */
+
 #include <jni.h>
 
 #include <chrono>
@@ -35,22 +42,28 @@
 #include <exot/jni/log.h>
 #include <exot/jni/manager.h>
 #include <exot/jni/wrapper.h>
+#include <exot/load/generator.h>
 #include <exot/meters/frequency.h>
-#include <exot/meters/process.h>
+#include <exot/meters/frequency_residency.h>
+#include <exot/meters/perf_counters.h>
+#include <exot/meters/power_supply.h>
+#include <exot/meters/process_events.h>
+#include <exot/meters/process_utilisation.h>
+#include <exot/meters/registry.h>
 #include <exot/meters/thermal.h>
+#include <exot/meters/thermal_events.h>
 #include <exot/meters/utilisation.h>
 
 using component_t = exot::components::meter_host_logger<
-    std::chrono::nanoseconds, exot::modules::utilisation_procfs,
-    exot::modules::frequency_sysfs, exot::modules::frequency_rel,
-    exot::modules::thermal_sysfs, exot::modules::process_android>;
-using manager_t     = exot::jni::Manager<component_t>;
+    std::chrono::nanoseconds, exot::modules::meter_set>;
+using generator_t   = exot::load::load_generator;
+using manager_t     = exot::jni::Manager<component_t, generator_t>;
 using wrapper_t     = exot::jni::Wrapper<manager_t>;
 using wrapper_ptr_t = std::unique_ptr<wrapper_t>;
 
 wrapper_ptr_t gWrapperObject = std::make_unique<wrapper_t>();
 
-const char* TAG = "ExOT/Native/ThermalSC";
+const char* TAG = "ExOT/Native/JNI";
 
 static JavaVM* g_java_vm;
 static jobject g_java_instance;
@@ -58,6 +71,40 @@ static jclass g_java_class;
 static jmethodID g_java_method_id;
 static jint g_jni_version;
 
+/**
+ * @brief      Registers the meter modules when the library is loaded
+ * @details    Registered modules are only created if enabled in the config
+ *             of the meter set, see exot::modules::meter_registry.
+ *
+ * @param      vm        The Java VM
+ * @param      reserved  Reserved
+ *
+ * @return     The JNI version required by the library
+ */
+extern "C" JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM* vm, void* reserved) {
+  using namespace exot::modules;
+
+  // The modules enabled by default are the ones of the former fixed meter
+  // host, such that configs without a module list keep their columns.
+  auto& registry = meter_registry::instance();
+  registry.add<utilisation_procfs>(true);
+  registry.add<frequency_sysfs>(true);
+  registry.add<frequency_rel>(true);
+  registry.add<frequency_residency>();
+  registry.add<thermal_sysfs>(true);
+  registry.add<thermal_events>();
+  registry.add<process_events>(true);
+  registry.alias("process_android", "process_events");
+  registry.add<process_utilisation>();
+  registry.add<perf_counters>();
+  registry.add<power_supply>();
+
+  Log.d(TAG, "{}(): registered meter modules: {}", __func__,
+        fmt::join(registry.names(), ", "));
+
+  return JNI_VERSION_1_6;
+}
+
 /**
  * @brief      Creates the manger object
  *
@@ -110,11 +157,10 @@ Java_ch_ethz_exot_lib_BaseService_createManagerObject(JNIEnv* env,
  *
  * @return     True if resetted successfully, false otherwise.
  */
- extern "C" JNIEXPORT jboolean JNICALL
+extern "C" JNIEXPORT jboolean JNICALL
 Java_ch_ethz_exot_lib_BaseService_resetManagerObject(JNIEnv* env,
                                                      jobject instance,
                                                      jstring jconfig) {
-  using namespace std::literals::chrono_literals;
   Log.d(TAG, "{}()", __func__);
 
   if (gWrapperObject->exists()) {
@@ -141,7 +187,6 @@ Java_ch_ethz_exot_lib_BaseService_resetManagerObject(JNIEnv* env,
                              java_class_ptr, java_method_id_ptr,
                              jni_version);
 
-  std::this_thread::sleep_for(100ms);
   Log.d(TAG, "{}(): creation status: {}", __func__, status);
   return static_cast<jboolean>(status);
 }
@@ -176,6 +221,73 @@ Java_ch_ethz_exot_lib_BaseService_stopManagerObject(JNIEnv* env,
   return static_cast<jboolean>(gWrapperObject->stop());
 }
 
+/**
+ * @brief      Flushes the logs of the manager object
+ *
+ * @param      env       The environment
+ * @param[in]  instance  The instance
+ *
+ * @return     True if flushed, false otherwise.
+ */
+extern "C" JNIEXPORT jboolean JNICALL
+Java_ch_ethz_exot_lib_BaseService_flushManagerObject(JNIEnv* env,
+                                                     jobject instance) {
+  Log.d(TAG, "{}()", __func__);
+  return static_cast<jboolean>(gWrapperObject->flush());
+}
+
+/**
+ * @brief      Fires an explicit capture trigger
+ *
+ * @param      env       The environment
+ * @param[in]  instance  The instance
+ * @param[in]  jreason   The reason recorded in the log
+ *
+ * @return     True if triggered, false otherwise.
+ */
+extern "C" JNIEXPORT jboolean JNICALL
+Java_ch_ethz_exot_lib_BaseService_triggerManagerObject(JNIEnv* env,
+                                                       jobject instance,
+                                                       jstring jreason) {
+  Log.d(TAG, "{}()", __func__);
+
+  std::string reason;
+  if (jreason != NULL) {
+    auto chars = env->GetStringUTFChars(jreason, 0);
+    reason     = chars;
+    env->ReleaseStringUTFChars(jreason, chars);
+  }
+
+  return static_cast<jboolean>(gWrapperObject->trigger(reason));
+}
+
+/**
+ * @brief      Writes a marker record into the capture
+ * @details    Called from binder threads as well, the marker does not touch
+ *             the manager object.
+ *
+ * @param      env       The environment
+ * @param[in]  instance  The instance
+ * @param[in]  jname     The marker name
+ * @param[in]  jtime     The event time, in elapsed realtime nanoseconds
+ *
+ * @return     True if written, false otherwise.
+ */
+extern "C" JNIEXPORT jboolean JNICALL
+Java_ch_ethz_exot_lib_BaseService_markManagerObject(JNIEnv* env,
+                                                    jobject instance,
+                                                    jstring jname,
+                                                    jlong jtime) {
+  if (jname == NULL) return JNI_FALSE;
+
+  auto chars = env->GetStringUTFChars(jname, 0);
+  auto time  = static_cast<std::int64_t>(jtime);
+  auto ret   = exot::jni::Capture::mark(chars, time);
+  env->ReleaseStringUTFChars(jname, chars);
+
+  return static_cast<jboolean>(ret);
+}
+
 /**
  * @brief      Checks if the manager object is started
  *
@@ -243,12 +355,30 @@ Java_ch_ethz_exot_lib_BaseService_managerObjectRunningTime(JNIEnv* env,
  * @param      env       The environment
  * @param[in]  instance  The instance
  *
- * @return     String containing the status of the manager, or 'N/A' if not applicable.
+ * @return     String containing the status of the manager, followed by the
+ *             meter's own resource usage and the capture state, or 'missing'
+ *             if not applicable.
  */
 extern "C" JNIEXPORT jstring JNICALL
 Java_ch_ethz_exot_lib_BaseService_queryManagerObjectStatus(JNIEnv* env,
                                                            jobject instance) {
   Log.d(TAG, "{}()", __func__);
-  auto result = gWrapperObject->query_state();
+  auto result = gWrapperObject->query_status();
   return env->NewStringUTF(result.c_str());
 }
+
+/**
+ * @brief      Gets the time of the first sample since the last start
+ *
+ * @param      env       The environment
+ * @param[in]  instance  The instance
+ *
+ * @return     The boot clock time in nanoseconds (as SystemClock's
+ *             elapsedRealtimeNanos), or -1 if not applicable.
+ */
+extern "C" JNIEXPORT jlong JNICALL
+Java_ch_ethz_exot_lib_BaseService_firstSampleTimeManagerObject(JNIEnv* env,
+                                                               jobject instance) {
+  Log.d(TAG, "{}()", __func__);
+  return static_cast<jlong>(gWrapperObject->first_sample_time());
+}
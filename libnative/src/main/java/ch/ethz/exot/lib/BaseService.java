@@ -32,31 +32,53 @@ import android.app.ActivityManager;
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.Service;
+import android.app.usage.UsageEvents;
 import android.app.usage.UsageStats;
 import android.app.usage.UsageStatsManager;
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.os.Binder;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Parcel;
+import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.Toast;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.List;
+import java.util.Locale;
 import java.util.SortedMap;
 import java.util.TreeMap;
 
 import org.json.JSONObject;
 import org.json.JSONException;
 
+import ch.ethz.exot.capture.CaptureIndexer;
 import ch.ethz.exot.intents.ExOTApps.*;
+import ch.ethz.exot.service.CaptureMarker;
+import ch.ethz.exot.service.CommandBus;
 
 public abstract class BaseService extends Service {
     public static final String TAG = "ExOT/BaseService";
 
+    /**
+     * The native library is shared by all services. The meter modules are selected
+     * by the "meters" object of the config, e.g.
+     * {"meters": {"modules": ["utilisation_procfs", "thermal_sysfs"]}}.
+     */
+    static {
+        System.loadLibrary("exot-jni");
+    }
+
     /**
      * Variables for managing notifications
      */
@@ -71,6 +93,34 @@ public abstract class BaseService extends Service {
      */
     protected Handler mHandler = new Handler();
 
+    /**
+     * The config of the current Manager object, as passed to create or reset
+     */
+    protected String mConfig = null;
+
+    /**
+     * Variables for crash-safe captures: the journal, the thread committing the
+     * segments and the capture interrupted by the previous process, if any
+     */
+    protected CaptureJournal mJournal;
+    protected HandlerThread mJournalThread;
+    protected Handler mJournalHandler;
+    protected CaptureJournal.Interrupted mInterrupted = null;
+    protected CaptureIndexer mIndexer = null;
+    private long mSegmentPeriodMs = 0;
+    private int mResumes = 0;
+
+    /**
+     * The keep-awake policy of the running capture
+     */
+    protected KeepAwake mKeepAwake;
+
+    /**
+     * The cached top app and the wall-clock time up to which usage events were read
+     */
+    private String mTopApp = null;
+    private long mTopAppQueriedAt = 0;
+
     /**
      * Constructor
      */
@@ -79,19 +129,41 @@ public abstract class BaseService extends Service {
     }
 
     /**
-     * Processes service bind events. At the moment binding is not supported,
-     * therefore onBind returns null.
+     * Binder handed out to bound clients. It is used by clients to track the liveness
+     * of the service via death notifications, and accepts capture markers (see
+     * CaptureMarker). Markers are handled on the binder thread, without a round trip
+     * through the main thread.
+     */
+    protected final IBinder mBinder = new Binder() {
+        @Override
+        protected boolean onTransact(int code, Parcel data, Parcel reply, int flags) throws RemoteException {
+            if (code != CaptureMarker.TRANSACTION) {
+                return super.onTransact(code, data, reply, flags);
+            }
+
+            data.enforceInterface(CaptureMarker.DESCRIPTOR);
+            String name = data.readString();
+            long time = data.readLong();
+            mark(name, time);
+            return true;
+        }
+    };
+
+    /**
+     * Processes service bind events. The returned binder is used for liveness
+     * tracking (see ServiceLiveness) and for sending markers.
      *
-     * @param intent The intent`
-     * @return null
+     * @param intent The intent
+     * @return The liveness binder
      */
     @Override
     public IBinder onBind(Intent intent) {
-        return null;
+        return mBinder;
     }
 
     /**
-     * Processes intents sent via startService().
+     * Processes intents sent via startService(). The commands are passed through the
+     * command bus, which drops duplicates and records the dispatch latency.
      *
      * @param intent  The supplied intent
      * @param flags   Additional data about the request
@@ -100,67 +172,323 @@ public abstract class BaseService extends Service {
      */
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
+        /* Check if the intent is present */
+        if (intent != null) {
+            CommandBus.getInstance().dispatch(intent, mCommandHandler);
+        } else {
+            Log.e(TAG, "onStartCommand(): intent == null");
+            handleRestart();
+        }
+
+        return getStartMode();
+    }
+
+    /**
+     * Handles a command, whether sent via startService(), as a broadcast, or posted
+     * on the command bus from within the process.
+     *
+     * @param intent The command intent
+     */
+    protected void handleCommand(Intent intent) {
         String jsonConfig = null;
         JSONObject jsonConfigObject = null;
 
-        /* Check if the intent is present */
-        if (intent != null) {
-            /* Get the action and make sure it is not null */
-            final String action = intent.getAction();
-            Log.i(TAG, "onStartCommand(): " + action);
-
-            if (action == null)
-                return START_NOT_STICKY;
-
-            /* Parse and log all provided extras */
-            Bundle extras = intent.getExtras();
-
-            if (extras != null) {
-                for (String key : extras.keySet()) {
-                    Object value = extras.get(key);
-                    if (value != null) {
-                        Log.d(TAG, String.format("onStartCommand(): k:[%s] v:[%s] (%s)", key, value,
-                                value.getClass().getName()));
-                    } else {
-                        Log.e(TAG, String.format("onStartCommand(): k:[%s] v:[null]!", key));
-                    }
+        /* Get the action and make sure it is not null */
+        final String action = intent.getAction();
+        Log.i(TAG, "handleCommand(): " + action);
+
+        if (action == null)
+            return;
+
+        /* Parse and log all provided extras */
+        Bundle extras = intent.getExtras();
+
+        if (extras != null) {
+            for (String key : extras.keySet()) {
+                Object value = extras.get(key);
+                if (value != null) {
+                    Log.d(TAG, String.format("handleCommand(): k:[%s] v:[%s] (%s)", key, value,
+                            value.getClass().getName()));
+                } else {
+                    Log.e(TAG, String.format("handleCommand(): k:[%s] v:[null]!", key));
                 }
+            }
 
-                if (action == Actions.CREATE
-                        || action == Actions.RESET) {
+            if (Actions.CREATE.equals(action)
+                    || Actions.RESET.equals(action)) {
 
-                    jsonConfig = extras.getString(Keys.CONFIG);
+                jsonConfig = extras.getString(Keys.CONFIG);
 
-                    if (jsonConfig == null) {
-                        Log.w(TAG, "jsonConfig is null...");
-                    } else {
-                        try {
-                            jsonConfigObject = new JSONObject(jsonConfig);
-                        } catch (JSONException e) {
-                            Log.e(TAG, String.format("onStartCommand(): invalid JSON: %s", jsonConfig));
-                            return START_NOT_STICKY;
-                        }
+                if (jsonConfig == null) {
+                    Log.w(TAG, "jsonConfig is null...");
+                } else {
+                    try {
+                        jsonConfigObject = new JSONObject(jsonConfig);
+                    } catch (JSONException e) {
+                        Log.e(TAG, String.format("handleCommand(): invalid JSON: %s", jsonConfig));
+                        return;
                     }
                 }
-            } else {
-                Log.e(TAG, "onStartCommand(): extras == null");
             }
+        } else {
+            Log.e(TAG, "handleCommand(): extras == null");
+        }
 
+        if (Actions.MARK.equals(action)) {
+            mark(intent.getStringExtra(Keys.MARKER),
+                    intent.getLongExtra(Keys.COMMAND_TIME, SystemClock.elapsedRealtimeNanos()));
+            return;
+        } else if (Actions.TRIGGER.equals(action)) {
+            handleActionTrigger(intent.getStringExtra(Keys.TRIGGER));
+        } else {
             handleActions(action, jsonConfigObject);
-            broadcastStatus();
+        }
+        broadcastStatus();
+    }
 
-            IntentFilter filter = new IntentFilter();
-            filter.addAction(Actions.START);
-            filter.addAction(Actions.STOP);
-            filter.addAction(Actions.START);
-            filter.addAction(Actions.STOP);
-            filter.addAction(Actions.QUERY);
-            registerReceiver(receiver, filter);
-        } else {
-            Log.e(TAG, "onStartCommand(): intent == null");
+    /**
+     * Gets the actions accepted as broadcasts. The receiver is registered once, when
+     * the service is created.
+     *
+     * @return The actions
+     */
+    protected String[] getBroadcastActions() {
+        return new String[] {Actions.START, Actions.STOP, Actions.QUERY, Actions.TRIGGER, Actions.MARK};
+    }
+
+    /**
+     * Gets the value for onStartCommand(). The service is sticky while a capture is
+     * journaled, such that it gets restarted if its process is killed.
+     *
+     * @return START_STICKY if a capture is running, START_NOT_STICKY otherwise
+     */
+    protected int getStartMode() {
+        return mJournal != null && mJournal.isActive() ? START_STICKY : START_NOT_STICKY;
+    }
+
+    /**
+     * Handles the restart of a sticky service, i.e. onStartCommand() with a null
+     * intent. If the capture of the killed process has "service": {"resume": true}
+     * in its config, it is resumed with the same config, writing to a new log file.
+     */
+    protected void handleRestart() {
+        CaptureJournal.Interrupted interrupted = mInterrupted;
+        mInterrupted = null;
+
+        if (interrupted == null || interrupted.config == null) {
+            Log.i(TAG, "handleRestart(): no interrupted capture");
+            return;
+        }
+
+        JSONObject config;
+
+        try {
+            config = new JSONObject(interrupted.config);
+            JSONObject service = config.optJSONObject("service");
+
+            if (service == null || !service.optBoolean("resume", false)) {
+                Log.i(TAG, "handleRestart(): interrupted capture not resumable: " + interrupted.log);
+                return;
+            }
+
+            JSONObject logging = config.getJSONObject("logging");
+            logging.put("app_log_filename", getResumedLogFilename(interrupted.log, interrupted.resumes + 1));
+        } catch (JSONException e) {
+            Log.e(TAG, "handleRestart(): invalid config: " + e);
+            return;
+        }
+
+        Log.i(TAG, "handleRestart(): resuming capture " + interrupted.log);
+
+        mResumes = interrupted.resumes + 1;
+        handleActionCreate(config.toString());
+        handleActionStart();
+        broadcastStatus();
+    }
+
+    /**
+     * Gets the log filename of a resumed capture, e.g. log_x.csv -> log_x_resumed1.csv
+     */
+    private static String getResumedLogFilename(File log, int resumes) {
+        String name = log.getName();
+        int dot = name.lastIndexOf('.');
+        String stem = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+
+        stem = stem.replaceFirst("_resumed\\d+$", "");
+        return new File(log.getParentFile(), stem + "_resumed" + resumes + extension).getPath();
+    }
+
+    /**
+     * Runnable committing a segment of the journaled capture
+     */
+    private final Runnable mSegmentRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mJournal) {
+                if (!mJournal.isActive()) {
+                    return;
+                }
+
+                flushManagerObject();
+                if (mJournal.commit()) {
+                    updateIndex(mJournal.getCommitted());
+                }
+            }
+
+            mJournalHandler.postDelayed(this, mSegmentPeriodMs);
+        }
+    };
+
+    /**
+     * Indexes the committed part of the capture log. Called on the journal thread.
+     *
+     * @param limit The committed length of the log
+     */
+    private void updateIndex(long limit) {
+        if (mIndexer == null) {
+            return;
         }
 
-        return START_NOT_STICKY;
+        try {
+            mIndexer.update(limit);
+        } catch (IOException e) {
+            Log.e(TAG, "updateIndex(): indexing failed, disabling: " + e);
+            mIndexer = null;
+        }
+    }
+
+    /**
+     * Begins journaling the capture of the current config. The segment period is set
+     * with "service": {"segment_period": <seconds>}, 5 s by default, 0 disables it.
+     * The capture index is built alongside, with "service": {"index_block": <records>}
+     * records per block, 0 disables it. Without journaling, the index is built when
+     * the capture ends.
+     */
+    protected void beginJournal() {
+        double period = 5.0;
+        int indexBlock = CaptureIndexer.DEFAULT_BLOCK_RECORDS;
+
+        try {
+            JSONObject service = new JSONObject(mConfig).optJSONObject("service");
+            if (service != null) {
+                period = service.optDouble("segment_period", period);
+                indexBlock = service.optInt("index_block", indexBlock);
+            }
+        } catch (JSONException | NullPointerException e) {
+            Log.w(TAG, "beginJournal(): no valid config, not journaling");
+            return;
+        }
+
+        File log = CaptureJournal.getLogFile(mConfig);
+        if (indexBlock > 0 && log != null) {
+            mIndexer = new CaptureIndexer(log, indexBlock);
+        }
+
+        if (period <= 0.0) {
+            Log.i(TAG, "beginJournal(): journaling disabled");
+            return;
+        }
+
+        mSegmentPeriodMs = (long) (period * 1000.0);
+
+        synchronized (mJournal) {
+            if (!mJournal.begin(mConfig, mResumes)) {
+                return;
+            }
+        }
+
+        mJournalHandler.postDelayed(mSegmentRunnable, mSegmentPeriodMs);
+        Log.i(TAG, "beginJournal(): segment period " + mSegmentPeriodMs + " ms");
+    }
+
+    /**
+     * Ends journaling, committing the last segment. Must be called before the Manager
+     * object is destroyed.
+     */
+    protected void endJournal() {
+        mJournalHandler.removeCallbacks(mSegmentRunnable);
+
+        final CaptureIndexer indexer;
+
+        synchronized (mJournal) {
+            if (mJournal.isActive()) {
+                flushManagerObject();
+                mJournal.end();
+            }
+
+            indexer = mIndexer;
+            mIndexer = null;
+        }
+
+        mResumes = 0;
+
+        if (indexer != null) {
+            /* Index the rest of the log off the main thread. */
+            final File log = CaptureJournal.getLogFile(mConfig);
+            mJournalHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        indexer.update(log.length());
+                        indexer.close();
+                    } catch (IOException e) {
+                        Log.e(TAG, "endJournal(): indexing failed: " + e);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Begins keeping the CPU awake as set with "service": {"keep_awake": <policy>},
+     * one of none (default), wakelock or alarm. For the alarm policy,
+     * "heartbeat" sets the alarm period and "heartbeat_hold" the time the wake lock is
+     * held per alarm, in seconds, 60 and 2 by default. See KeepAwake.
+     */
+    protected void beginKeepAwake() {
+        String name = "none";
+        double heartbeat = 60.0;
+        double hold = 2.0;
+
+        try {
+            JSONObject service = new JSONObject(mConfig).optJSONObject("service");
+            if (service != null) {
+                name = service.optString("keep_awake", name);
+                heartbeat = service.optDouble("heartbeat", heartbeat);
+                hold = service.optDouble("heartbeat_hold", hold);
+            }
+        } catch (JSONException | NullPointerException e) {
+            Log.w(TAG, "beginKeepAwake(): no valid config, not keeping awake");
+            return;
+        }
+
+        KeepAwake.Policy policy = KeepAwake.parsePolicy(name);
+        if (policy == null) {
+            Log.w(TAG, "beginKeepAwake(): unknown policy " + name + ", not keeping awake");
+            return;
+        }
+
+        mKeepAwake.start(policy, (long) (heartbeat * 1000.0), (long) (hold * 1000.0));
+    }
+
+    /**
+     * Ends keeping the CPU awake. The time the wake lock was held is written into the
+     * capture as a 'keep_awake:<policy>:held_ns=<ns>:heartbeats=<n>' marker, such that
+     * the energy cost of the policy is visible in the data. Must be called before the
+     * Manager object is destroyed.
+     */
+    protected void endKeepAwake() {
+        KeepAwake.Policy policy = mKeepAwake.getPolicy();
+        if (policy == KeepAwake.Policy.NONE) {
+            return;
+        }
+
+        mKeepAwake.stop();
+        mark(String.format(Locale.US, "keep_awake:%s:held_ns=%d:heartbeats=%d",
+                policy.name().toLowerCase(Locale.US), mKeepAwake.getHeldNanos(), mKeepAwake.getHeartbeats()));
+        Log.i(TAG, String.format(Locale.US, "endKeepAwake(): %s, held: %.3f s, heartbeats: %d", policy,
+                mKeepAwake.getHeldNanos() / 1e9, mKeepAwake.getHeartbeats()));
     }
 
     public void handleActions(String action, JSONObject jsonConfigObject) {
@@ -196,8 +524,14 @@ public abstract class BaseService extends Service {
     protected final BroadcastReceiver receiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
-            String action = intent.getAction();
-            handleActions(action, null);
+            CommandBus.getInstance().dispatch(intent, mCommandHandler);
+        }
+    };
+
+    private final CommandBus.Handler mCommandHandler = new CommandBus.Handler() {
+        @Override
+        public void onCommand(Intent command) {
+            handleCommand(command);
         }
     };
 
@@ -212,6 +546,25 @@ public abstract class BaseService extends Service {
             mNotificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
         }
 
+        mKeepAwake = new KeepAwake(this, TAG + ":KeepAwake");
+
+        mJournalThread = new HandlerThread(TAG + "/Journal");
+        mJournalThread.start();
+        mJournalHandler = new Handler(mJournalThread.getLooper());
+
+        /* Recover the capture interrupted by the previous process, if any. */
+        mJournal = new CaptureJournal(new File(getFilesDir(), "capture.journal"));
+        mInterrupted = mJournal.recover();
+
+        /* Commands are received for the lifetime of the service, so register only once. */
+        CommandBus.getInstance().register(new ComponentName(this, getClass()), mCommandHandler);
+
+        IntentFilter filter = new IntentFilter();
+        for (String action : getBroadcastActions()) {
+            filter.addAction(action);
+        }
+        registerReceiver(receiver, filter);
+
         // android.os.Debug.waitForDebugger();
 
         Toast.makeText(this, TAG + " created!", Toast.LENGTH_SHORT).show();
@@ -220,6 +573,7 @@ public abstract class BaseService extends Service {
     private void broadcastStatus() {
         Intent intent = new Intent(Broadcasts.STATUS);
         intent.putExtra(Keys.STATUS, getObjectStatus());
+        intent.putExtra(Keys.START_LATENCY, getStartLatencyNanos());
         sendBroadcast(intent);
     }
 
@@ -240,10 +594,16 @@ public abstract class BaseService extends Service {
             Toast.makeText(this, TAG + " destroyed!", Toast.LENGTH_SHORT).show();
         }
 
+        endKeepAwake();
+        endJournal();
+        mJournalThread.quitSafely();
+
         unregisterReceiver(receiver);
+        CommandBus.getInstance().unregister(new ComponentName(this, getClass()));
     }
 
     protected void handleActionCreate(String config) {
+        mConfig = config;
         boolean ret = createManagerObject(config);
 
         if (ret) {
@@ -261,6 +621,8 @@ public abstract class BaseService extends Service {
             destroyNotification();
         }
 
+        endKeepAwake();
+        endJournal();
         ret &= destroyManagerObject();
 
         Log.i(TAG, "handleActionStop(): " + ret);
@@ -272,6 +634,8 @@ public abstract class BaseService extends Service {
 
         if (ret) {
             createNotification();
+            beginJournal();
+            beginKeepAwake();
         }
 
         Log.i(TAG, "handleActionStart(): " + ret);
@@ -279,6 +643,10 @@ public abstract class BaseService extends Service {
 
     protected void handleActionReset(String config) {
         boolean started = isManagerObjectStarted();
+
+        endKeepAwake();
+        endJournal();
+        mConfig = config;
         boolean ret = resetManagerObject(config);
 
         if (ret && started) {
@@ -290,6 +658,9 @@ public abstract class BaseService extends Service {
 
     protected void handleActionDestroy() {
         boolean started = isManagerObjectStarted();
+
+        endKeepAwake();
+        endJournal();
         boolean ret = destroyManagerObject();
 
         if (ret && started) {
@@ -303,6 +674,69 @@ public abstract class BaseService extends Service {
         String query = queryManagerObjectStatus();
 
         Log.i(TAG, "handleActionQuery(): " + query);
+
+        long latency = getStartLatencyNanos();
+        if (latency >= 0) {
+            Log.i(TAG, String.format("handleActionQuery(): START to first sample: %.3f ms", latency / 1e6));
+        }
+        Log.i(TAG, "handleActionQuery(): dispatch latencies:\n" + CommandBus.getInstance().getLatencySummary());
+        Log.i(TAG, "handleActionQuery(): keep awake: " + mKeepAwake);
+    }
+
+    /**
+     * Fires an explicit capture trigger. Only has an effect if the capture was created
+     * in trigger mode, i.e. with "capture": {"mode": "trigger"} in the config.
+     *
+     * @param reason The reason recorded in the log, may be null
+     */
+    protected void handleActionTrigger(String reason) {
+        boolean ret = triggerManagerObject(reason != null ? reason : "intent");
+
+        Log.i(TAG, "handleActionTrigger(): " + ret);
+    }
+
+    /**
+     * Injects a named marker into the capture, stamped with the current time.
+     *
+     * @param name The marker name
+     * @return True if written, false if there is no capture
+     */
+    public boolean mark(String name) {
+        return mark(name, SystemClock.elapsedRealtimeNanos());
+    }
+
+    /**
+     * Injects a named marker into the capture. The marker is written right away as a
+     * '# marker' record, with the event time converted to the clock of the meter log.
+     * Safe to call from any thread.
+     *
+     * @param name The marker name
+     * @param time The event time, in elapsed realtime nanoseconds
+     * @return True if written, false if there is no capture
+     */
+    public boolean mark(String name, long time) {
+        boolean ret = markManagerObject(name != null ? name : "marker", time);
+
+        Log.d(TAG, String.format("mark(): %s at %d: %b", name, time, ret));
+        return ret;
+    }
+
+    /**
+     * Gets the latency from issuing the last START command to the first sample taken. A
+     * START command sent without an issue time is timed from its receipt.
+     *
+     * @return The latency in nanoseconds, or -1 if no START command was seen or no sample
+     *         was taken yet
+     */
+    protected long getStartLatencyNanos() {
+        long issued = CommandBus.getInstance().getLastIssued(Actions.START);
+        long firstSample = firstSampleTimeManagerObject();
+
+        if (issued < 0 || firstSample < issued) {
+            return -1;
+        }
+
+        return firstSample - issued;
     }
 
     protected void notifyAboutException() {
@@ -387,6 +821,30 @@ public abstract class BaseService extends Service {
      */
     public native boolean destroyManagerObject();
 
+    /**
+     * Flushes the loggers of the Manager
+     *
+     * @return True if flushed, false if the Manager does not exist
+     */
+    protected native boolean flushManagerObject();
+
+    /**
+     * Fires an explicit trigger of a capture in trigger mode
+     *
+     * @param reason The reason recorded in the log
+     * @return True if triggered, false if not in trigger mode or no Manager exists
+     */
+    protected native boolean triggerManagerObject(String reason);
+
+    /**
+     * Writes a marker record into the capture of the Manager
+     *
+     * @param name The marker name
+     * @param time The event time, in elapsed realtime nanoseconds
+     * @return True if written, false if there is no capture
+     */
+    protected native boolean markManagerObject(String name, long time);
+
     /**
      * Queries the Manager started state
      *
@@ -413,7 +871,8 @@ public abstract class BaseService extends Service {
     /**
      * Query manager object's status
      *
-     * @return
+     * @return The state, followed by the meter's own resource usage since creation
+     *         and the state of the capture pipeline
      */
     protected native String queryManagerObjectStatus();
 
@@ -424,34 +883,62 @@ public abstract class BaseService extends Service {
      */
     protected native String managerObjectRunningTime();
 
+    /**
+     * Gets the time of the first sample since the Manager was last started
+     *
+     * @return The elapsed realtime in nanoseconds, or -1 if no sample was taken yet
+     */
+    protected native long firstSampleTimeManagerObject();
+
     /**
      * Method to get the name of the currently running foreground service. Used for
      * callbacks from the native treads.
+     *
+     * Once the top app is known, only the usage events since the previous call are
+     * read, instead of the usage statistics of the last 100 seconds.
      */
-    public String getTopApp() {
-        String topPackageName = "~NOT FOUND~";
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-            UsageStatsManager mUsageStatsManager = (UsageStatsManager) this
-                    .getSystemService(Context.USAGE_STATS_SERVICE);
-
-            final List<UsageStats> queryUsageStats = mUsageStatsManager.queryUsageStats(
-                    UsageStatsManager.INTERVAL_DAILY, System.currentTimeMillis() - 100000, System.currentTimeMillis());
-            // Sort the stats by the last time used
-            if (queryUsageStats != null) {
-                SortedMap<Long, UsageStats> mySortedMap = new TreeMap<Long, UsageStats>();
-                for (UsageStats usageStats : queryUsageStats) {
-                    mySortedMap.put(usageStats.getLastTimeUsed(), usageStats);
-                }
-                if (!mySortedMap.isEmpty()) {
-                    topPackageName = mySortedMap.get(mySortedMap.lastKey()).getPackageName();
-                } else {
-                    ActivityManager manager = (ActivityManager) this.getSystemService(Context.ACTIVITY_SERVICE);
-                    List<ActivityManager.RunningAppProcessInfo> tasks = manager.getRunningAppProcesses();
-                    topPackageName = tasks.get(0).processName;
+    public synchronized String getTopApp() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            // TODO: else part was missing?
+            return "~NOT FOUND~";
+        }
+
+        UsageStatsManager mUsageStatsManager = (UsageStatsManager) this
+                .getSystemService(Context.USAGE_STATS_SERVICE);
+        final long now = System.currentTimeMillis();
+
+        if (mTopApp != null) {
+            UsageEvents events = mUsageStatsManager.queryEvents(mTopAppQueriedAt, now);
+            UsageEvents.Event event = new UsageEvents.Event();
+            while (events != null && events.hasNextEvent()) {
+                events.getNextEvent(event);
+                if (event.getEventType() == UsageEvents.Event.MOVE_TO_FOREGROUND) {
+                    mTopApp = event.getPackageName();
                 }
             }
+            mTopAppQueriedAt = now;
+            return mTopApp;
+        }
+
+        String topPackageName = "~NOT FOUND~";
+        final List<UsageStats> queryUsageStats = mUsageStatsManager.queryUsageStats(
+                UsageStatsManager.INTERVAL_DAILY, now - 100000, now);
+        // Sort the stats by the last time used
+        if (queryUsageStats != null) {
+            SortedMap<Long, UsageStats> mySortedMap = new TreeMap<Long, UsageStats>();
+            for (UsageStats usageStats : queryUsageStats) {
+                mySortedMap.put(usageStats.getLastTimeUsed(), usageStats);
+            }
+            if (!mySortedMap.isEmpty()) {
+                topPackageName = mySortedMap.get(mySortedMap.lastKey()).getPackageName();
+                mTopApp = topPackageName;
+                mTopAppQueriedAt = now;
+            } else {
+                ActivityManager manager = (ActivityManager) this.getSystemService(Context.ACTIVITY_SERVICE);
+                List<ActivityManager.RunningAppProcessInfo> tasks = manager.getRunningAppProcesses();
+                topPackageName = tasks.get(0).processName;
+            }
         }
-        // TODO: else part was missing?
         return topPackageName;
     }
 }
@@ -0,0 +1,328 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+package ch.ethz.exot.lib;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Write-ahead journal for crash-safe captures.
+ *
+ * The capture log is committed in segments: on every commit the log file is synced to
+ * storage and its length is recorded in a small journal file, together with the config
+ * of the capture. The journal itself is replaced atomically (write, sync, rename).
+ *
+ * If the process is killed mid-capture, the journal is left in the 'capturing' state.
+ * On the next start the log can be recovered, which drops the trailing partial record,
+ * so at most the data of one uncommitted segment is lost.
+ */
+public class CaptureJournal {
+    private static final String TAG = "ExOT/CaptureJournal";
+
+    private static final String STATE_CAPTURING = "capturing";
+
+    private static final String KEY_STATE = "state";
+    private static final String KEY_CONFIG = "config";
+    private static final String KEY_LOG = "log";
+    private static final String KEY_COMMITTED = "committed";
+    private static final String KEY_SEGMENTS = "segments";
+    private static final String KEY_RESUMES = "resumes";
+    private static final String KEY_UPDATED = "updated";
+
+    private final File mFile;
+    private final File mTempFile;
+
+    private String mConfig = null;
+    private File mLog = null;
+    private long mCommitted = 0;
+    private long mSegments = 0;
+    private int mResumes = 0;
+
+    /**
+     * Constructor
+     *
+     * @param file The journal file
+     */
+    public CaptureJournal(File file) {
+        mFile = file;
+        mTempFile = new File(file.getPath() + ".tmp");
+    }
+
+    /**
+     * Checks if a capture is being journaled
+     *
+     * @return True if a capture was begun and not yet ended
+     */
+    public synchronized boolean isActive() {
+        return mLog != null;
+    }
+
+    /**
+     * Gets the length of the log committed by the last segment
+     *
+     * @return The committed length in bytes
+     */
+    public synchronized long getCommitted() {
+        return mCommitted;
+    }
+
+    /**
+     * Begins journaling a capture
+     *
+     * @param config  The JSON config of the capture
+     * @param resumes The number of times the capture was resumed already
+     * @return True if the journal was written, false otherwise
+     */
+    public synchronized boolean begin(String config, int resumes) {
+        File log = getLogFile(config);
+
+        if (log == null) {
+            Log.w(TAG, "begin(): config has no logging.app_log_filename, not journaling");
+            return false;
+        }
+
+        mConfig = config;
+        mLog = log;
+        mCommitted = log.length();
+        mSegments = 0;
+        mResumes = resumes;
+
+        return write();
+    }
+
+    /**
+     * Commits a segment: syncs the log to storage and records its length. The
+     * caller is expected to flush the loggers beforehand.
+     *
+     * @return True if committed, false otherwise
+     */
+    public synchronized boolean commit() {
+        if (mLog == null) {
+            return false;
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(mLog, "r")) {
+            /* fsync applies to the file, not to the descriptor it was written through. */
+            raf.getFD().sync();
+            mCommitted = raf.length();
+        } catch (IOException e) {
+            Log.e(TAG, "commit(): failed to sync " + mLog + ": " + e);
+            return false;
+        }
+
+        mSegments++;
+        return write();
+    }
+
+    /**
+     * Ends the journaled capture, commits the last segment and removes the journal.
+     */
+    public synchronized void end() {
+        if (mLog == null) {
+            return;
+        }
+
+        commit();
+        Log.i(TAG, String.format("end(): %s, %d bytes in %d segments", mLog, mCommitted, mSegments));
+
+        mLog = null;
+        mConfig = null;
+
+        if (!mFile.delete() && mFile.exists()) {
+            Log.e(TAG, "end(): failed to delete " + mFile);
+        }
+    }
+
+    /**
+     * Recovers an interrupted capture, if the journal reports one. The partial record
+     * at the end of the log is truncated and the journal is removed.
+     *
+     * @return The recovered capture, or null if there was nothing to recover
+     */
+    public synchronized Interrupted recover() {
+        if (!mFile.exists()) {
+            return null;
+        }
+
+        JSONObject journal;
+
+        try (FileInputStream in = new FileInputStream(mFile)) {
+            byte[] bytes = new byte[(int) mFile.length()];
+            int read = 0;
+            while (read < bytes.length) {
+                int n = in.read(bytes, read, bytes.length - read);
+                if (n < 0) break;
+                read += n;
+            }
+            journal = new JSONObject(new String(bytes, 0, read, StandardCharsets.UTF_8));
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "recover(): unreadable journal, discarding: " + e);
+            mFile.delete();
+            return null;
+        }
+
+        mFile.delete();
+
+        if (!STATE_CAPTURING.equals(journal.optString(KEY_STATE))) {
+            return null;
+        }
+
+        Interrupted interrupted = new Interrupted(journal.optString(KEY_CONFIG, null),
+                new File(journal.optString(KEY_LOG)), journal.optLong(KEY_COMMITTED, 0),
+                journal.optInt(KEY_RESUMES, 0));
+
+        truncatePartialRecord(interrupted.log, interrupted.committed);
+
+        Log.i(TAG, String.format("recover(): %s, committed %d bytes in %d segments", interrupted.log,
+                interrupted.committed, journal.optLong(KEY_SEGMENTS, 0)));
+
+        return interrupted;
+    }
+
+    /**
+     * An interrupted capture, as found in the journal
+     */
+    public static final class Interrupted {
+        public final String config;
+        public final File log;
+        public final long committed;
+        public final int resumes;
+
+        Interrupted(String config, File log, long committed, int resumes) {
+            this.config = config;
+            this.log = log;
+            this.committed = committed;
+            this.resumes = resumes;
+        }
+    }
+
+    /**
+     * Gets the application log file from a JSON config
+     *
+     * @param config The JSON config
+     * @return The log file, or null if not set or the config is invalid
+     */
+    public static File getLogFile(String config) {
+        try {
+            String path = new JSONObject(config).getJSONObject("logging").optString("app_log_filename", null);
+            return path != null ? new File(path) : null;
+        } catch (JSONException | NullPointerException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Truncates the log after the last complete record. Data past the committed
+     * offset is kept if it ends in complete records, since a killed process does not
+     * lose data that already reached the kernel.
+     */
+    private static void truncatePartialRecord(File log, long committed) {
+        try (RandomAccessFile raf = new RandomAccessFile(log, "rw")) {
+            long length = raf.length();
+
+            if (length <= committed) {
+                if (length < committed) {
+                    Log.w(TAG, String.format("truncatePartialRecord(): %s shorter than committed (%d < %d)",
+                            log, length, committed));
+                }
+                return;
+            }
+
+            byte[] buffer = new byte[4096];
+            long end = length;
+            long newLength = committed;
+
+            search:
+            while (end > committed) {
+                int chunk = (int) Math.min(buffer.length, end - committed);
+                raf.seek(end - chunk);
+                raf.readFully(buffer, 0, chunk);
+
+                for (int i = chunk - 1; i >= 0; --i) {
+                    if (buffer[i] == '\n') {
+                        newLength = end - chunk + i + 1;
+                        break search;
+                    }
+                }
+
+                end -= chunk;
+            }
+
+            if (newLength < length) {
+                raf.setLength(newLength);
+                Log.i(TAG, String.format("truncatePartialRecord(): %s: dropped %d bytes", log, length - newLength));
+            }
+
+            raf.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "truncatePartialRecord(): failed on " + log + ": " + e);
+        }
+    }
+
+    private boolean write() {
+        JSONObject journal = new JSONObject();
+
+        try {
+            journal.put(KEY_STATE, STATE_CAPTURING);
+            journal.put(KEY_CONFIG, mConfig);
+            journal.put(KEY_LOG, mLog.getPath());
+            journal.put(KEY_COMMITTED, mCommitted);
+            journal.put(KEY_SEGMENTS, mSegments);
+            journal.put(KEY_RESUMES, mResumes);
+            journal.put(KEY_UPDATED, System.currentTimeMillis());
+        } catch (JSONException e) {
+            Log.e(TAG, "write(): " + e);
+            return false;
+        }
+
+        try (FileOutputStream out = new FileOutputStream(mTempFile)) {
+            out.write(journal.toString().getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "write(): failed to write " + mTempFile + ": " + e);
+            return false;
+        }
+
+        if (!mTempFile.renameTo(mFile)) {
+            Log.e(TAG, "write(): failed to rename " + mTempFile + " to " + mFile);
+            return false;
+        }
+
+        return true;
+    }
+}
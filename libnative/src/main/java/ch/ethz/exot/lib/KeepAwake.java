@@ -0,0 +1,229 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+package ch.ethz.exot.lib;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Build;
+import android.os.Handler;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * Keeps the CPU awake while capturing, such that the sampler is not frozen by CPU
+ * suspend or Doze when the screen turns off.
+ *
+ * Policies:
+ * <ul>
+ * <li>none: nothing is held, the capture has holes while the device sleeps,</li>
+ * <li>wakelock: a partial wake lock is held for the whole capture,</li>
+ * <li>alarm: exact wake-up alarms fire every heartbeat period, each holding a partial
+ * wake lock for the hold time. The device sleeps in between, at a fraction of the
+ * energy cost. In Doze, the system limits such alarms to about one per 9 minutes.</li>
+ * </ul>
+ *
+ * The time the wake lock was held is accounted, as it is what the policy costs in
+ * energy. Must be used from the main thread.
+ */
+public final class KeepAwake {
+    private static final String TAG = "ExOT/KeepAwake";
+
+    public enum Policy {
+        NONE,
+        WAKELOCK,
+        ALARM
+    }
+
+    private final Context mContext;
+    private final String mAction;
+    private final Handler mHandler = new Handler();
+    private final PowerManager.WakeLock mWakeLock;
+
+    private Policy mPolicy = Policy.NONE;
+    private long mHeartbeatMs = 60000;
+    private long mHoldMs = 2000;
+    private PendingIntent mAlarm = null;
+
+    private long mHeldSince = -1;
+    private long mHeldNs = 0;
+    private int mHeartbeats = 0;
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            ++mHeartbeats;
+            acquire();
+            mHandler.removeCallbacks(mRelease);
+            mHandler.postDelayed(mRelease, mHoldMs);
+            schedule();
+        }
+    };
+
+    private final Runnable mRelease = new Runnable() {
+        @Override
+        public void run() {
+            release();
+        }
+    };
+
+    /**
+     * Constructor
+     *
+     * @param context The context, e.g. the service
+     * @param tag     The wake lock tag
+     */
+    public KeepAwake(Context context, String tag) {
+        mContext = context;
+        mAction = context.getPackageName() + ".action.KEEP_AWAKE_HEARTBEAT";
+        PowerManager power = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        mWakeLock = power.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, tag);
+        mWakeLock.setReferenceCounted(false);
+    }
+
+    /**
+     * Parses a policy name
+     *
+     * @param name One of none, wakelock, alarm
+     * @return The policy, or null if unknown
+     */
+    public static Policy parsePolicy(String name) {
+        try {
+            return Policy.valueOf(name.toUpperCase(Locale.US));
+        } catch (IllegalArgumentException | NullPointerException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Starts keeping the CPU awake. Counters are reset.
+     *
+     * @param policy      The policy
+     * @param heartbeatMs The alarm period, for the alarm policy
+     * @param holdMs      The wake lock time per alarm, for the alarm policy
+     */
+    public void start(Policy policy, long heartbeatMs, long holdMs) {
+        stop();
+
+        mPolicy = policy;
+        mHeartbeatMs = heartbeatMs;
+        mHoldMs = holdMs;
+        mHeldNs = 0;
+        mHeartbeats = 0;
+
+        switch (policy) {
+        case WAKELOCK:
+            acquire();
+            break;
+        case ALARM:
+            mContext.registerReceiver(mReceiver, new IntentFilter(mAction));
+            Intent intent = new Intent(mAction).setPackage(mContext.getPackageName());
+            mAlarm = PendingIntent.getBroadcast(mContext, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+            schedule();
+            break;
+        default:
+            break;
+        }
+
+        Log.i(TAG, "start(): " + this);
+    }
+
+    /**
+     * Stops keeping the CPU awake, releasing the wake lock. The counters are kept
+     * until the next start, the policy becomes none.
+     */
+    public void stop() {
+        mPolicy = Policy.NONE;
+
+        if (mAlarm != null) {
+            ((AlarmManager) mContext.getSystemService(Context.ALARM_SERVICE)).cancel(mAlarm);
+            mContext.unregisterReceiver(mReceiver);
+            mAlarm = null;
+        }
+
+        mHandler.removeCallbacks(mRelease);
+        release();
+    }
+
+    public Policy getPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * Gets the total time the wake lock was held since started, including the
+     * current hold
+     *
+     * @return The time in nanoseconds
+     */
+    public long getHeldNanos() {
+        return mHeldNs + (mHeldSince >= 0 ? SystemClock.elapsedRealtimeNanos() - mHeldSince : 0);
+    }
+
+    public int getHeartbeats() {
+        return mHeartbeats;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%s, held: %.3f s, heartbeats: %d",
+                mPolicy.name().toLowerCase(Locale.US), getHeldNanos() / 1e9, mHeartbeats);
+    }
+
+    private void schedule() {
+        AlarmManager alarms = (AlarmManager) mContext.getSystemService(Context.ALARM_SERVICE);
+        long at = SystemClock.elapsedRealtime() + mHeartbeatMs;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            alarms.setExactAndAllowWhileIdle(AlarmManager.ELAPSED_REALTIME_WAKEUP, at, mAlarm);
+        } else {
+            alarms.setExact(AlarmManager.ELAPSED_REALTIME_WAKEUP, at, mAlarm);
+        }
+    }
+
+    private void acquire() {
+        if (mHeldSince < 0) {
+            mWakeLock.acquire();
+            mHeldSince = SystemClock.elapsedRealtimeNanos();
+        }
+    }
+
+    private void release() {
+        if (mHeldSince >= 0) {
+            mWakeLock.release();
+            mHeldNs += SystemClock.elapsedRealtimeNanos() - mHeldSince;
+            mHeldSince = -1;
+        }
+    }
+}
@@ -0,0 +1,339 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+package ch.ethz.exot.lib;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed-size off-heap block of a {@link SeriesStore}, holding rows of a timestamp and
+ * a number of column values, compressed as in Facebook's Gorilla time-series store.
+ *
+ * Timestamps are stored as the difference of consecutive deltas, in buckets sized for
+ * nanosecond timestamps of a sampler with some jitter:
+ *
+ * <pre>
+ * '0'                   no change of the delta
+ * '10'   + 12 bits      |delta of delta| &lt; 2^11
+ * '110'  + 20 bits      |delta of delta| &lt; 2^19
+ * '1110' + 32 bits      |delta of delta| &lt; 2^31
+ * '1111' + 64 bits      otherwise
+ * </pre>
+ *
+ * Values are XORed with the previous value of the column: '0' if equal, otherwise '1'
+ * followed by '0' and the meaningful bits if they fit the window of the previous XOR,
+ * or '1', 5 bits of leading zeros, 6 bits of length and the meaningful bits. The first
+ * row is stored uncompressed.
+ *
+ * The block is appended to by a single writer. Rows are readable by others once the
+ * number of rows is published, since bits of a row are never changed afterwards.
+ */
+final class SeriesBlock {
+    private final ByteBuffer mBuffer;
+    private final int mColumns;
+    private final long mCapacityBits;
+    private final long mRowBits;
+
+    /* Writer state */
+    private long mPosition = 0;
+    private long mLastDelta = 0;
+    private final long[] mLast;
+    private final int[] mLeading;
+    private final int[] mTrailing;
+
+    /* Published state */
+    private volatile int mRows = 0;
+    private volatile long mFirstTime = 0;
+    private volatile long mLastTime = 0;
+    private volatile int mGeneration = 0;
+
+    /**
+     * Constructor
+     *
+     * @param bytes   The size of the block
+     * @param columns The number of values per row
+     */
+    SeriesBlock(int bytes, int columns) {
+        mBuffer = ByteBuffer.allocateDirect(bytes);
+        mColumns = columns;
+        mCapacityBits = 8L * bytes;
+        mRowBits = 4 + 64 + columns * (2 + 5 + 6 + 64);
+        mLast = new long[columns];
+        mLeading = new int[columns];
+        mTrailing = new int[columns];
+    }
+
+    /**
+     * Empties the block for reuse. Readers of the previous content notice the change
+     * of the generation.
+     */
+    void reset() {
+        mGeneration++;
+        mRows = 0;
+        mPosition = 0;
+        mLastDelta = 0;
+    }
+
+    int getRows() {
+        return mRows;
+    }
+
+    long getFirstTime() {
+        return mFirstTime;
+    }
+
+    long getLastTime() {
+        return mLastTime;
+    }
+
+    int getGeneration() {
+        return mGeneration;
+    }
+
+    int getCapacity() {
+        return mBuffer.capacity();
+    }
+
+    /**
+     * Gets the number of bytes holding rows
+     */
+    long getUsedBytes() {
+        return (mPosition + 7) / 8;
+    }
+
+    /**
+     * Appends a row, if it fits the block
+     *
+     * @param time   The timestamp, not smaller than the previous one
+     * @param values The values, one per column
+     * @return True if appended, false if the block is full
+     */
+    boolean append(long time, double[] values) {
+        if (mPosition + mRowBits > mCapacityBits) {
+            return false;
+        }
+
+        if (mRows == 0) {
+            write(time, 64);
+            for (int i = 0; i < mColumns; ++i) {
+                mLast[i] = Double.doubleToRawLongBits(values[i]);
+                mLeading[i] = -1;
+                write(mLast[i], 64);
+            }
+            mFirstTime = time;
+        } else {
+            long delta = time - mLastTime;
+            writeDeltaOfDelta(delta - mLastDelta);
+            mLastDelta = delta;
+
+            for (int i = 0; i < mColumns; ++i) {
+                long bits = Double.doubleToRawLongBits(values[i]);
+                writeXor(i, bits ^ mLast[i]);
+                mLast[i] = bits;
+            }
+        }
+
+        mLastTime = time;
+        mRows = mRows + 1;
+        return true;
+    }
+
+    private void writeDeltaOfDelta(long dod) {
+        if (dod == 0) {
+            write(0, 1);
+        } else if (fits(dod, 12)) {
+            write(0b10, 2);
+            write(dod, 12);
+        } else if (fits(dod, 20)) {
+            write(0b110, 3);
+            write(dod, 20);
+        } else if (fits(dod, 32)) {
+            write(0b1110, 4);
+            write(dod, 32);
+        } else {
+            write(0b1111, 4);
+            write(dod, 64);
+        }
+    }
+
+    private void writeXor(int column, long xor) {
+        if (xor == 0) {
+            write(0, 1);
+            return;
+        }
+
+        int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+        int trailing = Long.numberOfTrailingZeros(xor);
+
+        if (mLeading[column] >= 0 && leading >= mLeading[column]
+                && trailing >= mTrailing[column]) {
+            write(0b10, 2);
+            write(xor >>> mTrailing[column], 64 - mLeading[column] - mTrailing[column]);
+        } else {
+            int length = 64 - leading - trailing;
+            write(0b11, 2);
+            write(leading, 5);
+            write(length - 1, 6);
+            write(xor >>> trailing, length);
+            mLeading[column] = leading;
+            mTrailing[column] = trailing;
+        }
+    }
+
+    private static boolean fits(long value, int bits) {
+        return value >= -(1L << (bits - 1)) && value < (1L << (bits - 1));
+    }
+
+    /**
+     * Writes the lowest bits of a value, most significant first
+     */
+    private void write(long value, int bits) {
+        while (bits > 0) {
+            int index = (int) (mPosition >>> 3);
+            int offset = (int) (mPosition & 7);
+            int take = Math.min(8 - offset, bits);
+            int chunk = (int) (value >>> (bits - take)) & ((1 << take) - 1);
+            int current = offset == 0 ? 0 : mBuffer.get(index) & 0xFF;
+
+            mBuffer.put(index, (byte) (current | (chunk << (8 - offset - take))));
+            mPosition += take;
+            bits -= take;
+        }
+    }
+
+    /**
+     * Decoder of the rows of a block, which decodes a row at a time
+     */
+    final class Reader {
+        private final int mRows;
+        private final int mGeneration;
+        private int mRow = 0;
+        private long mPosition = 0;
+        private long mTime;
+        private long mDelta = 0;
+        private final long[] mBits = new long[mColumns];
+        private final int[] mLeading = new int[mColumns];
+        private final int[] mTrailing = new int[mColumns];
+
+        /**
+         * Constructor
+         *
+         * @param rows The number of rows to read, at most the published number
+         */
+        Reader(int rows) {
+            mRows = rows;
+            mGeneration = SeriesBlock.this.mGeneration;
+        }
+
+        /**
+         * Decodes the next row
+         *
+         * @return True if decoded, false if there are no more rows or the block has
+         *         been reused in the meantime
+         */
+        boolean next() {
+            if (mRow >= mRows || mGeneration != SeriesBlock.this.mGeneration) {
+                return false;
+            }
+
+            if (mRow == 0) {
+                mTime = read(64);
+                for (int i = 0; i < mColumns; ++i) {
+                    mBits[i] = read(64);
+                }
+            } else {
+                mDelta += readDeltaOfDelta();
+                mTime += mDelta;
+                for (int i = 0; i < mColumns; ++i) {
+                    mBits[i] ^= readXor(i);
+                }
+            }
+
+            mRow++;
+
+            // The block may have been reused while decoding the row.
+            return mGeneration == SeriesBlock.this.mGeneration;
+        }
+
+        long time() {
+            return mTime;
+        }
+
+        double value(int column) {
+            return Double.longBitsToDouble(mBits[column]);
+        }
+
+        private long readDeltaOfDelta() {
+            if (read(1) == 0) {
+                return 0;
+            } else if (read(1) == 0) {
+                return signed(read(12), 12);
+            } else if (read(1) == 0) {
+                return signed(read(20), 20);
+            } else if (read(1) == 0) {
+                return signed(read(32), 32);
+            }
+            return read(64);
+        }
+
+        private long readXor(int column) {
+            if (read(1) == 0) {
+                return 0;
+            }
+
+            if (read(1) == 1) {
+                mLeading[column] = (int) read(5);
+                int length = (int) read(6) + 1;
+                mTrailing[column] = 64 - mLeading[column] - length;
+            }
+
+            int length = 64 - mLeading[column] - mTrailing[column];
+            return read(length) << mTrailing[column];
+        }
+
+        private long signed(long value, int bits) {
+            return (value << (64 - bits)) >> (64 - bits);
+        }
+
+        private long read(int bits) {
+            long result = 0;
+            while (bits > 0) {
+                int index = (int) (mPosition >>> 3);
+                int offset = (int) (mPosition & 7);
+                int take = Math.min(8 - offset, bits);
+                int chunk = ((mBuffer.get(index) & 0xFF) >>> (8 - offset - take))
+                        & ((1 << take) - 1);
+
+                result = (result << take) | chunk;
+                mPosition += take;
+                bits -= take;
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,266 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+package ch.ethz.exot.lib;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * In-memory store of the recent history of a meter, compressed to hold hours of samples
+ * within a fixed memory budget.
+ *
+ * Rows of a timestamp and the numeric column values are appended to fixed-size blocks
+ * outside of the Java heap, see {@link SeriesBlock} for the encoding. Once the budget
+ * is used up, the oldest block is evicted and reused for new rows.
+ *
+ * Queries return a {@link Cursor} over a time window, which decodes only the blocks
+ * overlapping the window, one row at a time. A store has a single writer, queries can
+ * be made from any thread.
+ */
+public final class SeriesStore {
+    /**
+     * The default block size, in bytes
+     */
+    public static final int DEFAULT_BLOCK_BYTES = 64 * 1024;
+
+    private final List<String> mColumns;
+    private final int mBlockBytes;
+    private final int mMaxBlocks;
+    private final ArrayDeque<SeriesBlock> mBlocks = new ArrayDeque<>();
+    private long mEvictedRows = 0;
+
+    /**
+     * Constructor
+     *
+     * @param columns     The names of the value columns
+     * @param blockBytes  The size of a block, in bytes
+     * @param budgetBytes The memory budget, in bytes, at least two blocks are kept
+     */
+    public SeriesStore(List<String> columns, int blockBytes, long budgetBytes) {
+        if (columns.isEmpty()) {
+            throw new IllegalArgumentException("no columns");
+        }
+
+        mColumns = Collections.unmodifiableList(new ArrayList<>(columns));
+        mBlockBytes = Math.max(blockBytes, 8 + 8 * 10 * columns.size());
+        mMaxBlocks = (int) Math.max(2, Math.min(Integer.MAX_VALUE, budgetBytes / mBlockBytes));
+    }
+
+    public List<String> getColumns() {
+        return mColumns;
+    }
+
+    /**
+     * Gets the index of a column
+     *
+     * @param name The column name
+     * @return The column index, or -1 if there is no such column
+     */
+    public int column(String name) {
+        return mColumns.indexOf(name);
+    }
+
+    /**
+     * Appends a row
+     *
+     * @param time   The timestamp, not smaller than the previous one
+     * @param values The values, one per column
+     */
+    public void append(long time, double[] values) {
+        if (values.length != mColumns.size()) {
+            throw new IllegalArgumentException("expected " + mColumns.size() + " values, got "
+                    + values.length);
+        }
+
+        SeriesBlock block;
+        synchronized (this) {
+            block = mBlocks.peekLast();
+        }
+
+        if (block == null || !block.append(time, values)) {
+            block = nextBlock();
+            block.append(time, values);
+        }
+    }
+
+    /**
+     * Gets a block to append to, evicting the oldest one if the budget is used up
+     */
+    private synchronized SeriesBlock nextBlock() {
+        SeriesBlock block;
+        if (mBlocks.size() < mMaxBlocks) {
+            block = new SeriesBlock(mBlockBytes, mColumns.size());
+        } else {
+            block = mBlocks.pollFirst();
+            mEvictedRows += block.getRows();
+            block.reset();
+        }
+
+        mBlocks.addLast(block);
+        return block;
+    }
+
+    /**
+     * Gets the number of rows held
+     */
+    public synchronized long getRows() {
+        long rows = 0;
+        for (SeriesBlock block : mBlocks) {
+            rows += block.getRows();
+        }
+        return rows;
+    }
+
+    /**
+     * Gets the number of rows evicted to stay within the budget
+     */
+    public synchronized long getEvictedRows() {
+        return mEvictedRows;
+    }
+
+    /**
+     * Gets the memory held by the blocks, in bytes
+     */
+    public synchronized long getBytes() {
+        return (long) mBlocks.size() * mBlockBytes;
+    }
+
+    /**
+     * Gets the compressed size of a row, in bytes, over all columns
+     */
+    public synchronized double getBytesPerRow() {
+        long used = 0;
+        long rows = 0;
+        for (SeriesBlock block : mBlocks) {
+            used += block.getUsedBytes();
+            rows += block.getRows();
+        }
+        return rows == 0 ? 0 : (double) used / rows;
+    }
+
+    /**
+     * Gets the timestamp of the oldest row held, or Long.MIN_VALUE if empty
+     */
+    public synchronized long getFirstTime() {
+        SeriesBlock block = mBlocks.peekFirst();
+        return block == null || block.getRows() == 0 ? Long.MIN_VALUE : block.getFirstTime();
+    }
+
+    /**
+     * Gets the timestamp of the latest row held, or Long.MIN_VALUE if empty
+     */
+    public synchronized long getLastTime() {
+        SeriesBlock block = mBlocks.peekLast();
+        return block == null || block.getRows() == 0 ? Long.MIN_VALUE : block.getLastTime();
+    }
+
+    /**
+     * Queries the rows within a time window. The cursor covers the rows held when the
+     * query is made; rows evicted while it is used are skipped.
+     *
+     * @param from The first timestamp, inclusive
+     * @param to   The last timestamp, inclusive
+     * @return The cursor
+     */
+    public synchronized Cursor query(long from, long to) {
+        List<SeriesBlock.Reader> readers = new ArrayList<>();
+        for (SeriesBlock block : mBlocks) {
+            int rows = block.getRows();
+            if (rows != 0 && block.getLastTime() >= from && block.getFirstTime() <= to) {
+                readers.add(block.new Reader(rows));
+            }
+        }
+        return new Cursor(readers, from, to);
+    }
+
+    /**
+     * Cursor over the rows of a time window
+     *
+     * <pre>
+     * SeriesStore.Cursor cursor = store.query(from, to);
+     * while (cursor.next()) {
+     *     use(cursor.time(), cursor.value(column));
+     * }
+     * </pre>
+     */
+    public static final class Cursor {
+        private final List<SeriesBlock.Reader> mReaders;
+        private final long mFrom;
+        private final long mTo;
+        private int mIndex = 0;
+        private SeriesBlock.Reader mReader;
+
+        private Cursor(List<SeriesBlock.Reader> readers, long from, long to) {
+            mReaders = readers;
+            mFrom = from;
+            mTo = to;
+        }
+
+        /**
+         * Moves to the next row of the window
+         *
+         * @return True if there is a row, false at the end of the window
+         */
+        public boolean next() {
+            for (;;) {
+                if (mReader == null) {
+                    if (mIndex == mReaders.size()) {
+                        return false;
+                    }
+                    mReader = mReaders.get(mIndex++);
+                }
+
+                if (!mReader.next()) {
+                    mReader = null;
+                    continue;
+                }
+
+                long time = mReader.time();
+                if (time > mTo) {
+                    mIndex = mReaders.size();
+                    mReader = null;
+                    return false;
+                }
+                if (time >= mFrom) {
+                    return true;
+                }
+            }
+        }
+
+        public long time() {
+            return mReader.time();
+        }
+
+        public double value(int column) {
+            return mReader.value(column);
+        }
+    }
+}
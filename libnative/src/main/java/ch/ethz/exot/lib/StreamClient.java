@@ -0,0 +1,323 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+package ch.ethz.exot.lib;
+
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Client of the record stream served by the native capture pipeline, see the "stream"
+ * object of the capture config.
+ *
+ * The client connects to the abstract socket on a background thread, reconnecting while
+ * the meter is not running, and reduces each record to a few channels, e.g. the highest
+ * temperature of all thermal zones. The channel values are appended to a
+ * {@link SeriesStore} and passed to a listener, on the client thread.
+ *
+ * The server skips records which the client does not keep up with, so a slow client
+ * never slows down the meter.
+ */
+public final class StreamClient {
+    private static final String TAG = "ExOT/StreamClient";
+
+    /**
+     * Listener for the channel values of the records
+     */
+    public interface Listener {
+        /**
+         * Called for each record, on the client thread
+         *
+         * @param time   The timestamp of the record
+         * @param values The channel values, NaN for channels without columns
+         */
+        void onRecord(long time, double[] values);
+    }
+
+    /**
+     * A channel, reducing the columns with a common prefix to a single value
+     */
+    public static final class Channel {
+        public final String name;
+        public final String prefix;
+        public final String preferred;
+        public final boolean maximum;
+
+        /**
+         * Constructor
+         *
+         * @param name      The channel name
+         * @param prefix    The prefix of the columns
+         * @param preferred If not null, only columns containing it are used, if any do
+         * @param maximum   True to take the maximum of the columns, false for the mean
+         */
+        public Channel(String name, String prefix, String preferred, boolean maximum) {
+            this.name = name;
+            this.prefix = prefix;
+            this.preferred = preferred;
+            this.maximum = maximum;
+        }
+
+        /**
+         * Gets the indices of the columns of the channel
+         */
+        int[] select(String[] columns) {
+            List<Integer> all = new ArrayList<>();
+            List<Integer> preferredColumns = new ArrayList<>();
+            for (int i = 1; i < columns.length; ++i) {
+                if (columns[i].startsWith(prefix)) {
+                    all.add(i);
+                    if (preferred != null && columns[i].contains(preferred)) {
+                        preferredColumns.add(i);
+                    }
+                }
+            }
+
+            List<Integer> selected = preferredColumns.isEmpty() ? all : preferredColumns;
+            int[] indices = new int[selected.size()];
+            for (int i = 0; i < indices.length; ++i) {
+                indices[i] = selected.get(i);
+            }
+            return indices;
+        }
+    }
+
+    private final String mSocket;
+    private final List<Channel> mChannels;
+    private final SeriesStore mStore;
+    private final Listener mListener;
+
+    private final String[] mUnits;
+    private volatile boolean mRunning = false;
+    private volatile LocalSocket mConnection;
+    private Thread mThread;
+
+    /**
+     * Constructor
+     *
+     * @param socket   The name of the abstract socket
+     * @param channels The channels, in the order of the store columns
+     * @param store    The store to append to
+     * @param listener The listener, may be null
+     */
+    public StreamClient(String socket, List<Channel> channels, SeriesStore store,
+                        Listener listener) {
+        mSocket = socket;
+        mChannels = new ArrayList<>(channels);
+        mUnits = new String[channels.size()];
+        mStore = store;
+        mListener = listener;
+    }
+
+    /**
+     * Starts the client thread
+     */
+    public synchronized void start() {
+        if (mRunning) {
+            return;
+        }
+
+        mRunning = true;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, TAG);
+        mThread.setPriority(Thread.MIN_PRIORITY);
+        mThread.start();
+    }
+
+    /**
+     * Stops the client thread and closes the connection
+     */
+    public synchronized void stop() {
+        mRunning = false;
+        closeConnection();
+        if (mThread != null) {
+            mThread.interrupt();
+            mThread = null;
+        }
+    }
+
+    public boolean isConnected() {
+        return mConnection != null;
+    }
+
+    /**
+     * Gets the unit of a channel, the last part of the names of its columns
+     *
+     * @param channel The channel index
+     * @return The unit, or an empty string if not known yet
+     */
+    public synchronized String getUnit(int channel) {
+        return mUnits[channel] != null ? mUnits[channel] : "";
+    }
+
+    private synchronized void setUnit(int channel, String column) {
+        mUnits[channel] = column.substring(column.lastIndexOf(':') + 1);
+    }
+
+    private void loop() {
+        while (mRunning) {
+            try {
+                LocalSocket connection = new LocalSocket();
+                connection.connect(new LocalSocketAddress(mSocket,
+                        LocalSocketAddress.Namespace.ABSTRACT));
+                mConnection = connection;
+                Log.i(TAG, "connected to @" + mSocket);
+
+                read(new BufferedReader(new InputStreamReader(connection.getInputStream(),
+                        StandardCharsets.UTF_8), 64 * 1024));
+            } catch (IOException e) {
+                Log.v(TAG, "not connected: " + e.getMessage());
+            } finally {
+                closeConnection();
+            }
+
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void closeConnection() {
+        LocalSocket connection = mConnection;
+        mConnection = null;
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                Log.v(TAG, "close failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Reads the header and the records of a connection
+     */
+    private void read(BufferedReader reader) throws IOException {
+        int[][] selected = null;
+        boolean[] needed = null;
+        double[] values = new double[mChannels.size()];
+        double[] fields = null;
+
+        String line;
+        while (mRunning && (line = reader.readLine()) != null) {
+            if (line.isEmpty() || line.charAt(0) == '#') {
+                continue;
+            }
+
+            if (selected == null) {
+                String[] columns = line.split(",");
+                selected = new int[mChannels.size()][];
+                needed = new boolean[columns.length];
+                needed[0] = true;
+                for (int i = 0; i < selected.length; ++i) {
+                    selected[i] = mChannels.get(i).select(columns);
+                    if (selected[i].length != 0) {
+                        setUnit(i, columns[selected[i][0]]);
+                    }
+                    for (int column : selected[i]) {
+                        needed[column] = true;
+                    }
+                }
+                fields = new double[columns.length];
+                continue;
+            }
+
+            if (!parse(line, needed, fields)) {
+                continue;
+            }
+
+            for (int i = 0; i < values.length; ++i) {
+                values[i] = reduce(mChannels.get(i), selected[i], fields);
+            }
+
+            long time = (long) fields[0];
+            mStore.append(time, values);
+            if (mListener != null) {
+                mListener.onRecord(time, values);
+            }
+        }
+    }
+
+    /**
+     * Parses the needed fields of a record, non-numeric ones become NaN
+     *
+     * @return False if the record is not a data record
+     */
+    private static boolean parse(String line, boolean[] needed, double[] fields) {
+        int begin = 0;
+        for (int i = 0; i < fields.length; ++i) {
+            int end = line.indexOf(',', begin);
+            if (end < 0) {
+                end = line.length();
+            }
+
+            if (!needed[i]) {
+                begin = Math.min(end + 1, line.length());
+                continue;
+            }
+
+            try {
+                fields[i] = Double.parseDouble(line.substring(begin, end));
+            } catch (NumberFormatException e) {
+                if (i == 0) {
+                    return false;
+                }
+                fields[i] = Double.NaN;
+            }
+
+            begin = Math.min(end + 1, line.length());
+        }
+        return true;
+    }
+
+    private static double reduce(Channel channel, int[] columns, double[] fields) {
+        if (columns.length == 0) {
+            return Double.NaN;
+        }
+
+        double result = channel.maximum ? Double.NEGATIVE_INFINITY : 0;
+        for (int column : columns) {
+            result = channel.maximum ? Math.max(result, fields[column]) : result + fields[column];
+        }
+        return channel.maximum ? result : result / columns.length;
+    }
+}
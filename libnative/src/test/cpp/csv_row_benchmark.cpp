@@ -0,0 +1,153 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+/**
+ * @file libnative/src/test/cpp/csv_row_benchmark.cpp
+ * @author     Bruno Klopott
+ * @brief      Formatting cost of the CSV row, compared to formatting the same
+ *             records with fmt::format.
+ *
+ * @details    Usage: csv_row_benchmark [records] [seed]
+ *
+ *             The records have the layout of the overhead records, with
+ *             integer, fixed-precision and shortest round-trip fields. Values
+ *             include halfway cases of the fixed precision. Every record of
+ *             the row is compared to the fmt::format string, such that the
+ *             benchmark doubles as a check that the log output is unchanged.
+ */
+
+#include <chrono>
+#include <cmath>
+#include <cstdint>
+#include <cstdio>
+#include <cstdlib>
+#include <random>
+#include <string>
+#include <vector>
+
+#include <fmt/format.h>
+
+#include <exot/jni/csv.h>
+
+namespace {
+
+struct record {
+  std::int64_t time_ns;
+  double utime_s;
+  double stime_s;
+  std::uint64_t run_ns;
+  std::int32_t tid;
+  double ratio;
+  double load;
+};
+
+std::vector<record> records(std::size_t count, unsigned seed) {
+  std::mt19937_64 engine{seed};
+  std::uniform_int_distribution<std::int64_t> time(0, INT64_C(1) << 50);
+  std::uniform_int_distribution<std::int32_t> tid(-1, 1 << 22);
+  std::uniform_real_distribution<double> seconds(0.0, 1e5);
+  std::uniform_real_distribution<double> unit(-1.0, 1.0);
+  std::uniform_int_distribution<int> cents(0, 100000);
+
+  std::vector<record> result(count);
+  for (std::size_t i = 0; i < count; ++i) {
+    auto& r   = result[i];
+    r.time_ns = time(engine);
+    r.utime_s = seconds(engine);
+    // Halfway cases of two decimals, e.g. 0.125, every other record
+    r.stime_s = i % 2 ? (cents(engine) * 2 + 1) / 8.0 : seconds(engine);
+    r.run_ns  = static_cast<std::uint64_t>(time(engine));
+    r.tid     = tid(engine);
+    r.ratio   = unit(engine);
+    r.load    = i % 3 ? unit(engine) * 1e3 : std::ldexp(unit(engine), -30);
+  }
+  return result;
+}
+
+std::string with_fmt(const record& r) {
+  return fmt::format("# overhead,{},{:.2f},{:.2f},{},{},{},{:.6f}", r.time_ns,
+                     r.utime_s, r.stime_s, r.run_ns, r.tid, r.ratio, r.load);
+}
+
+const std::string& with_row(exot::jni::csv_row& row, const record& r) {
+  return row.begin("# overhead")
+      .add(r.time_ns)
+      .add(r.utime_s, 2)
+      .add(r.stime_s, 2)
+      .add(r.run_ns)
+      .add(r.tid)
+      .add(r.ratio)
+      .add(r.load, 6)
+      .str();
+}
+
+template <typename Callable>
+double elapsed(Callable&& callable) {
+  auto begin = std::chrono::steady_clock::now();
+  callable();
+  return std::chrono::duration<double>(std::chrono::steady_clock::now() -
+                                       begin)
+      .count();
+}
+
+}  // namespace
+
+int main(int argc, char** argv) {
+  auto count = argc > 1 ? std::strtoull(argv[1], nullptr, 10) : 1000000;
+  auto seed  = argc > 2 ? std::strtoul(argv[2], nullptr, 10) : 1;
+
+  auto data = records(count, static_cast<unsigned>(seed));
+  exot::jni::csv_row row;
+
+  std::size_t mismatches = 0;
+  for (const auto& r : data) {
+    auto expected = with_fmt(r);
+    if (with_row(row, r) == expected) continue;
+    if (mismatches++ < 10)
+      std::printf("mismatch:\n  fmt     %s\n  csv_row %s\n", expected.c_str(),
+                  row.str().c_str());
+  }
+
+  std::printf("%zu records, %zu mismatches\n", data.size(), mismatches);
+
+  // Keeps the formatting from being optimised away
+  std::size_t bytes = 0;
+  for (auto round = 0; round < 3; ++round) {
+    auto f = elapsed([&] {
+      for (const auto& r : data) bytes += with_fmt(r).size();
+    });
+    auto c = elapsed([&] {
+      for (const auto& r : data) bytes += with_row(row, r).size();
+    });
+    std::printf("fmt::format %8.1f ns/record, csv_row %8.1f ns/record\n",
+                f * 1e9 / count, c * 1e9 / count);
+  }
+
+  std::printf("%zu bytes\n", bytes);
+  return mismatches == 0 ? EXIT_SUCCESS : EXIT_FAILURE;
+}
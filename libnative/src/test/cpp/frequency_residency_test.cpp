@@ -0,0 +1,136 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+/**
+ * @file libnative/src/test/cpp/frequency_residency_test.cpp
+ * @author     Bruno Klopott
+ * @brief      Tests the frequency residency meter against a fake cpufreq tree.
+ */
+
+#include <unistd.h>
+
+#include <cstdint>
+#include <string>
+#include <vector>
+
+#include <exot/meters/frequency_residency.h>
+
+#include "testing.h"
+
+using exot::modules::frequency_residency;
+using exot::testing::fake_tree;
+using values = std::vector<std::uint64_t>;
+
+namespace {
+
+const std::uint64_t ticks = static_cast<std::uint64_t>(::sysconf(_SC_CLK_TCK));
+
+std::string trans_table(unsigned a, unsigned b, unsigned c, unsigned d) {
+  return "   From  :    To\n"
+         "         :    300000   1000000 \n"
+         "   300000:         " + std::to_string(a) + "         " +
+         std::to_string(b) + " \n"
+         "* 1000000:         " + std::to_string(c) + "         " +
+         std::to_string(d) + " \n";
+}
+
+void discovers_policies_and_describes_columns() {
+  fake_tree tree;
+  tree.write("policy4/stats/time_in_state", "500000 10\n2000000 20\n");
+  tree.write("policy0/stats/time_in_state", "300000 100\n1000000 200\n");
+  tree.write("policy0/stats/trans_table", trans_table(0, 1, 2, 0));
+  tree.mkdir("policy6/stats");
+
+  frequency_residency::settings conf;
+  conf.root = tree.root();
+  frequency_residency meter{conf};
+
+  auto header = meter.header();
+  CHECK_EQ(header.size(), 6ull);
+  CHECK_EQ(header.at(0),
+           std::string{"frequency_residency:residency:0@300000:ms"});
+  CHECK_EQ(header.at(2),
+           std::string{"frequency_residency:transitions:0@300000:#"});
+  CHECK_EQ(header.at(5),
+           std::string{"frequency_residency:residency:4@2000000:ms"});
+}
+
+void reports_residency_from_the_first_measurement() {
+  fake_tree tree;
+  tree.write("policy0/stats/time_in_state", "300000 100\n1000000 200\n");
+  tree.write("policy0/stats/trans_table", trans_table(0, 1, 2, 0));
+
+  frequency_residency::settings conf;
+  conf.root   = tree.root();
+  conf.period = 0.0;
+  frequency_residency meter{conf};
+
+  // Residency accumulated between construction and the start is not reported.
+  tree.write("policy0/stats/time_in_state", "300000 600\n1000000 700\n");
+  tree.write("policy0/stats/trans_table", trans_table(0, 6, 7, 0));
+  CHECK(meter.measure() == values(4, 0));
+
+  tree.write("policy0/stats/time_in_state", "300000 610\n1000000 730\n");
+  tree.write("policy0/stats/trans_table", trans_table(0, 7, 9, 0));
+  auto first = meter.measure();
+  CHECK_EQ(first.at(0), 10 * 1000 / ticks);
+  CHECK_EQ(first.at(1), 30 * 1000 / ticks);
+  CHECK_EQ(first.at(2), 2ull);
+  CHECK_EQ(first.at(3), 1ull);
+
+  // Statistics reset to zero count from zero.
+  tree.write("policy0/stats/time_in_state", "300000 5\n1000000 0\n");
+  tree.write("policy0/stats/trans_table", trans_table(0, 0, 0, 0));
+  auto reset = meter.measure();
+  CHECK_EQ(reset.at(0), 5 * 1000 / ticks);
+  CHECK_EQ(reset.at(1), 0ull);
+  CHECK_EQ(reset.at(2), 0ull);
+}
+
+void reports_zeros_between_readings() {
+  fake_tree tree;
+  tree.write("policy0/stats/time_in_state", "300000 100\n");
+
+  frequency_residency::settings conf;
+  conf.root   = tree.root();
+  conf.period = 3600.0;
+  frequency_residency meter{conf};
+
+  CHECK(meter.measure() == values(1, 0));
+  tree.write("policy0/stats/time_in_state", "300000 900\n");
+  CHECK(meter.measure() == values(1, 0));
+}
+
+}  // namespace
+
+int main() {
+  discovers_policies_and_describes_columns();
+  reports_residency_from_the_first_measurement();
+  reports_zeros_between_readings();
+  return exot::testing::result();
+}
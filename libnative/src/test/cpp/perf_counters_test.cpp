@@ -0,0 +1,169 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+/**
+ * @file libnative/src/test/cpp/perf_counters_test.cpp
+ * @author     Bruno Klopott
+ * @brief      Tests the performance counter meter with software events.
+ */
+
+#include <linux/perf_event.h>
+#include <sys/syscall.h>
+#include <sys/wait.h>
+#include <unistd.h>
+
+#include <chrono>
+#include <cstdint>
+#include <fstream>
+#include <iostream>
+#include <numeric>
+#include <string>
+#include <vector>
+
+#include <exot/meters/perf_counters.h>
+
+#include "testing.h"
+
+using exot::modules::perf_counters;
+
+namespace {
+
+/**
+ * @brief Checks if perf events can be opened at all, which is not the case in
+ *        some containers
+ */
+bool perf_available() {
+  struct perf_event_attr attr {};
+  attr.size           = sizeof(attr);
+  attr.type           = PERF_TYPE_SOFTWARE;
+  attr.config         = PERF_COUNT_SW_CPU_CLOCK;
+  attr.exclude_kernel = 1;
+
+  auto fd = static_cast<int>(
+      ::syscall(__NR_perf_event_open, &attr, 0, -1, -1, PERF_FLAG_FD_CLOEXEC));
+  if (fd < 0) return false;
+  ::close(fd);
+  return true;
+}
+
+int paranoid() {
+  int level = 2;
+  std::ifstream{"/proc/sys/kernel/perf_event_paranoid"} >> level;
+  return level;
+}
+
+void spin(std::chrono::milliseconds duration) {
+  auto until = std::chrono::steady_clock::now() + duration;
+  while (std::chrono::steady_clock::now() < until) {}
+}
+
+std::uint64_t sum(const std::vector<std::uint64_t>& values, std::size_t from,
+                  std::size_t stride) {
+  std::uint64_t total = 0;
+  for (auto i = from; i < values.size(); i += stride) total += values[i];
+  return total;
+}
+
+perf_counters::settings software_events(bool process) {
+  perf_counters::settings conf;
+  conf.events  = {"cpu_clock", "bogus", "context_switches"};
+  conf.process = process;
+  return conf;
+}
+
+void describes_columns_per_core_and_event() {
+  auto conf  = software_events(true);
+  conf.cores = {0, 2};
+  perf_counters meter{conf};
+
+  auto header = meter.header();
+  CHECK_EQ(header.size(), 6ull);
+  CHECK_EQ(header.at(0), std::string{"perf_counters:cpu_clock:0:#"});
+  CHECK_EQ(header.at(4), std::string{"perf_counters:bogus:2:#"});
+}
+
+/**
+ * @brief Checks that nothing is counted before the first measurement, and
+ *        that the own work is counted after it
+ */
+void counts_from_the_first_measurement(bool process) {
+  auto conf = software_events(process);
+  perf_counters meter{conf};
+  auto events = conf.events.size();
+
+  spin(std::chrono::milliseconds{50});
+  auto first = meter.measure();
+  CHECK_EQ(std::accumulate(first.begin(), first.end(), std::uint64_t{0}),
+           std::uint64_t{0});
+
+  spin(std::chrono::milliseconds{20});
+  auto second = meter.measure();
+  auto clock  = sum(second, 0, events);
+  CHECK(clock >= 10'000'000ull);  // ns of cpu_clock
+  CHECK(clock < 1'000'000'000ull);
+  CHECK_EQ(sum(second, 1, events), std::uint64_t{0});
+}
+
+/**
+ * @brief Checks the fallback to the own process, dropping privileges in a
+ *        child process if run as root
+ */
+void falls_back_to_the_own_process() {
+  if (paranoid() < 1) {
+    std::cerr << "skipped fallback, perf_event_paranoid < 1\n";
+    return;
+  }
+
+  auto child = ::fork();
+  if (child == 0) {
+    if (::geteuid() == 0 && ::setresuid(65534, 65534, 65534) != 0) ::_exit(2);
+    counts_from_the_first_measurement(false);
+    ::_exit(exot::testing::failures() == 0 ? 0 : 1);
+  }
+
+  int status = 0;
+  ::waitpid(child, &status, 0);
+  CHECK(WIFEXITED(status));
+  CHECK_EQ(WEXITSTATUS(status), 0);
+}
+
+}  // namespace
+
+int main() {
+  if (!perf_available()) {
+    std::cerr << "skipped, perf events are not available\n";
+    return exot::testing::result();
+  }
+
+  describes_columns_per_core_and_event();
+  counts_from_the_first_measurement(true);
+  if (paranoid() < 1 || ::geteuid() == 0)
+    counts_from_the_first_measurement(false);
+  falls_back_to_the_own_process();
+  return exot::testing::result();
+}
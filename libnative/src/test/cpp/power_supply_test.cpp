@@ -0,0 +1,186 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+/**
+ * @file libnative/src/test/cpp/power_supply_test.cpp
+ * @author     Bruno Klopott
+ * @brief      Tests the power supply meter against a fake power_supply tree.
+ */
+
+#include <chrono>
+#include <cstdint>
+#include <string>
+#include <thread>
+#include <vector>
+
+#include <exot/meters/power_supply.h>
+
+#include "testing.h"
+
+using exot::modules::power_supply;
+using exot::testing::fake_tree;
+using namespace std::string_literals;
+using values = std::vector<std::int64_t>;
+
+namespace {
+
+using clock_type = power_supply::clock_type;
+
+double seconds(clock_type::duration duration) {
+  return std::chrono::duration<double>{duration}.count();
+}
+
+/**
+ * @brief Writes a battery drawing 1 A at 4 V, i.e. -4000 mW
+ */
+void make_battery(const fake_tree& tree) {
+  tree.write("battery/current_now", "-1000000\n");
+  tree.write("battery/voltage_now", "4000000\n");
+  tree.write("battery/status", "Discharging\n");
+}
+
+power_supply::settings make_settings(const fake_tree& tree) {
+  power_supply::settings conf;
+  conf.root   = tree.root();
+  conf.period = 0.0;
+  return conf;
+}
+
+void discovers_supplies_and_their_attributes() {
+  fake_tree tree;
+  make_battery(tree);
+  tree.write("battery/temp", "305\n");
+  tree.write("usb/status", "Charging\n");
+  tree.write("usb/online", "1\n");
+  tree.write("wireless/type", "Wireless\n");
+
+  auto conf = make_settings(tree);
+  power_supply meter{conf};
+
+  auto header = meter.header();
+  CHECK(header == (std::vector<std::string>{
+                      "power_supply:current:battery:uA",
+                      "power_supply:voltage:battery:uV",
+                      "power_supply:power:battery:mW",
+                      "power_supply:energy:battery:mJ",
+                      "power_supply:temp:battery:dC",
+                      "power_supply:status:battery:#",
+                      "power_supply:status:usb:#"}));
+
+  /* The supplies are first read at the first measurement */
+  CHECK(meter.measure() ==
+        (values{-1000000, 4000000, -4000, 0, 305, 2, 1}));
+}
+
+void counts_energy_from_the_first_measurement() {
+  fake_tree tree;
+  make_battery(tree);
+
+  auto conf = make_settings(tree);
+  power_supply meter{conf};
+
+  /* The time between creation and start is not integrated */
+  std::this_thread::sleep_for(std::chrono::milliseconds{200});
+  auto result = meter.measure();
+  CHECK_EQ(result.at(3), 0ll);
+}
+
+void integrates_energy_with_the_trapezoidal_rule() {
+  fake_tree tree;
+  make_battery(tree);
+
+  auto conf = make_settings(tree);
+  power_supply meter{conf};
+
+  auto before_first = clock_type::now();
+  meter.measure();
+  auto after_first = clock_type::now();
+
+  std::this_thread::sleep_for(std::chrono::milliseconds{100});
+  tree.write("battery/current_now", "-2000000\n");
+
+  auto before_second = clock_type::now();
+  auto result        = meter.measure();
+  auto after_second  = clock_type::now();
+
+  /* From -4000 to -8000 mW, i.e. -6000 mW on average */
+  auto least = -6000.0 * seconds(after_second - before_first);
+  auto most  = -6000.0 * seconds(before_second - after_first);
+  CHECK_EQ(result.at(2), -8000ll);
+  CHECK(result.at(3) >= least - 1 && result.at(3) <= most + 1);
+  CHECK(result.at(3) < -500);
+}
+
+void holds_the_values_between_readings() {
+  fake_tree tree;
+  make_battery(tree);
+
+  auto conf   = make_settings(tree);
+  conf.period = 3600.0;
+  power_supply meter{conf};
+
+  auto first = meter.measure();
+  tree.write("battery/current_now", "500000\n");
+  tree.write("battery/status", "Charging\n");
+  CHECK(meter.measure() == first);
+}
+
+void reads_only_the_configured_supplies() {
+  fake_tree tree;
+  make_battery(tree);
+  tree.write("usb/status", "Charging\n");
+
+  auto conf     = make_settings(tree);
+  conf.supplies = {"usb", "missing"};
+  power_supply meter{conf};
+
+  CHECK(meter.header() ==
+        (std::vector<std::string>{"power_supply:status:usb:#"}));
+  CHECK(meter.measure() == values{1});
+}
+
+void handles_a_missing_tree() {
+  power_supply::settings conf;
+  conf.root = "/nonexistent";
+  power_supply meter{conf};
+
+  CHECK(meter.header().empty());
+  CHECK(meter.measure().empty());
+}
+
+}  // namespace
+
+int main() {
+  discovers_supplies_and_their_attributes();
+  counts_energy_from_the_first_measurement();
+  integrates_energy_with_the_trapezoidal_rule();
+  holds_the_values_between_readings();
+  reads_only_the_configured_supplies();
+  handles_a_missing_tree();
+  return exot::testing::result();
+}
@@ -0,0 +1,259 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+/**
+ * @file libnative/src/test/cpp/process_utilisation_test.cpp
+ * @author     Bruno Klopott
+ * @brief      Tests the process utilisation meter against a fake procfs tree.
+ */
+
+#include <unistd.h>
+
+#include <cstdint>
+#include <string>
+#include <vector>
+
+#include <fmt/format.h>
+
+#include <exot/meters/process_utilisation.h>
+
+#include "testing.h"
+
+using exot::modules::process_utilisation;
+using exot::testing::fake_tree;
+using namespace std::string_literals;
+using values = std::vector<std::int64_t>;
+
+namespace {
+
+/**
+ * @brief Converts clock ticks to the milliseconds reported by the meter
+ */
+std::int64_t ms(std::int64_t ticks) {
+  return ticks * 1000 / ::sysconf(_SC_CLK_TCK);
+}
+
+/**
+ * @brief Writes a stat file with the user and system time in ticks
+ * @details The command name holds spaces and a parenthesis, as it may.
+ */
+void write_stat(const fake_tree& tree, const std::string& relative,
+                std::int64_t pid, std::int64_t user, std::int64_t system) {
+  tree.write(relative,
+             fmt::format("{} (a (b) c) S 1 1 1 0 -1 4194560 10 0 0 0 {} {} "
+                         "0 0 20 0 4 0 100\n",
+                         pid, user, system));
+}
+
+void write_process(const fake_tree& tree, std::int64_t pid,
+                   const std::string& cmdline, std::int64_t user,
+                   std::int64_t system) {
+  tree.write(fmt::format("{}/cmdline", pid), cmdline);
+  tree.write(fmt::format("{}/comm", pid), "comm\n");
+  write_stat(tree, fmt::format("{}/stat", pid), pid, user, system);
+}
+
+void write_thread(const fake_tree& tree, std::int64_t pid, std::int64_t tid,
+                  std::int64_t user, std::int64_t system) {
+  write_stat(tree, fmt::format("{}/task/{}/stat", pid, tid), tid, user,
+             system);
+}
+
+process_utilisation::settings make_settings(const fake_tree& tree) {
+  process_utilisation::settings conf;
+  conf.procfs  = tree.root();
+  conf.top_app = tree.path("top-app");
+  conf.window  = 0.0;
+  conf.rescan  = 3600.0;
+  return conf;
+}
+
+void reports_the_top_app_and_its_busiest_threads() {
+  fake_tree tree;
+  tree.write("top-app", "300\n200\n");
+  write_process(tree, 200, "com.example.app\0"s, 100, 50);
+  write_thread(tree, 200, 200, 60, 30);
+  write_thread(tree, 200, 201, 30, 10);
+  write_thread(tree, 200, 202, 10, 10);
+  write_process(tree, 300, "com.example.app:remote\0"s, 7, 7);
+
+  auto conf    = make_settings(tree);
+  conf.threads = 2;
+  process_utilisation meter{conf};
+
+  auto header = meter.header();
+  CHECK_EQ(header.size(), 7ull);
+  CHECK_EQ(header.at(0), "process_utilisation:pid:top0:#"s);
+  CHECK_EQ(header.at(1), "process_utilisation:user:top0:ms"s);
+  CHECK_EQ(header.at(5), "process_utilisation:tid:top0.1:#"s);
+  CHECK_EQ(header.at(6), "process_utilisation:thread:top0.1:ms"s);
+
+  write_process(tree, 200, "com.example.app\0"s, 130, 60);
+  write_thread(tree, 200, 200, 61, 30);
+  write_thread(tree, 200, 201, 50, 15);
+  write_thread(tree, 200, 202, 18, 10);
+
+  CHECK(meter.measure() ==
+        (values{200, ms(30), ms(10), 201, ms(25), 202, ms(8)}));
+
+  /* Nothing ran since, only the ids remain */
+  auto idle = meter.measure();
+  CHECK_EQ(idle.at(0), 200ll);
+  CHECK_EQ(idle.at(1) + idle.at(2) + idle.at(4) + idle.at(6), 0ll);
+}
+
+void follows_the_top_app() {
+  fake_tree tree;
+  tree.write("top-app", "200\n");
+  write_process(tree, 200, "com.example.first\0"s, 10, 10);
+  write_process(tree, 500, "com.example.second\0"s, 40, 20);
+
+  auto conf = make_settings(tree);
+  process_utilisation meter{conf};
+
+  tree.write("top-app", "500\n");
+  write_process(tree, 500, "com.example.second\0"s, 45, 21);
+
+  /* The switch is a new baseline, the time before it is not reported */
+  CHECK(meter.measure() == (values{500, 0, 0}));
+
+  write_process(tree, 500, "com.example.second\0"s, 50, 23);
+  CHECK(meter.measure() == (values{500, ms(5), ms(2)}));
+
+  tree.write("top-app", "");
+  CHECK(meter.measure() == (values{0, 0, 0}));
+}
+
+void tracks_watched_processes_by_name() {
+  fake_tree tree;
+  write_process(tree, 410, "/system/bin/surfaceflinger\0--flag\0"s, 1, 1);
+  write_process(tree, 400, "/system/bin/surfaceflinger\0"s, 10, 20);
+  write_process(tree, 90, "", 5, 5);
+  tree.write("90/comm", "kswapd0\n");
+  tree.write("self/stat", "not a process\n");
+
+  auto conf          = make_settings(tree);
+  conf.top_app       = "";
+  conf.top_processes = 0;
+  conf.watch         = {"surfaceflinger", "kswapd0", "missing"};
+  process_utilisation meter{conf};
+
+  auto header = meter.header();
+  CHECK_EQ(header.size(), 9ull);
+  CHECK_EQ(header.at(3), "process_utilisation:pid:kswapd0:#"s);
+
+  write_process(tree, 400, "/system/bin/surfaceflinger\0"s, 12, 21);
+  write_stat(tree, "90/stat", 90, 5, 9);
+
+  CHECK(meter.measure() ==
+        (values{400, ms(2), ms(1), 90, 0, ms(4), 0, 0, 0}));
+}
+
+/**
+ * @brief Makes a process unreadable, as procfs does once it exited
+ */
+void exit_process(const fake_tree& tree, std::int64_t pid) {
+  tree.write(fmt::format("{}/stat", pid), "");
+  tree.write(fmt::format("{}/cmdline", pid), "");
+  tree.write(fmt::format("{}/comm", pid), "");
+}
+
+void empties_the_slot_of_an_exited_process() {
+  fake_tree tree;
+  write_process(tree, 400, "surfaceflinger\0"s, 10, 10);
+
+  auto conf          = make_settings(tree);
+  conf.top_app       = "";
+  conf.top_processes = 0;
+  conf.watch         = {"surfaceflinger"};
+  process_utilisation meter{conf};
+
+  exit_process(tree, 400);
+  CHECK(meter.measure() == (values{0, 0, 0}));
+  CHECK(meter.measure() == (values{0, 0, 0}));
+}
+
+void finds_a_restarted_process_at_the_next_scan() {
+  fake_tree tree;
+  write_process(tree, 400, "surfaceflinger\0"s, 10, 10);
+
+  auto conf          = make_settings(tree);
+  conf.top_app       = "";
+  conf.top_processes = 0;
+  conf.watch         = {"surfaceflinger"};
+  conf.rescan        = 0.0;
+  process_utilisation meter{conf};
+
+  exit_process(tree, 400);
+  write_process(tree, 401, "surfaceflinger\0"s, 3, 3);
+
+  /* The new process is a new baseline */
+  CHECK(meter.measure() == (values{401, 0, 0}));
+
+  write_process(tree, 401, "surfaceflinger\0"s, 4, 6);
+  CHECK(meter.measure() == (values{401, ms(1), ms(3)}));
+}
+
+void reports_only_at_the_end_of_a_window() {
+  fake_tree tree;
+  tree.write("top-app", "200\n");
+  write_process(tree, 200, "com.example.app\0"s, 10, 10);
+
+  auto conf   = make_settings(tree);
+  conf.window = 3600.0;
+  process_utilisation meter{conf};
+
+  write_process(tree, 200, "com.example.app\0"s, 20, 20);
+  CHECK(meter.measure() == (values{200, 0, 0}));
+}
+
+void handles_a_missing_tree() {
+  process_utilisation::settings conf;
+  conf.procfs  = "/nonexistent";
+  conf.top_app = "/nonexistent/top-app";
+  conf.watch   = {"surfaceflinger"};
+  conf.threads = 1;
+  conf.window  = 0.0;
+  process_utilisation meter{conf};
+
+  CHECK_EQ(meter.header().size(), 10ull);
+  CHECK(meter.measure() == values(10, 0));
+}
+
+}  // namespace
+
+int main() {
+  reports_the_top_app_and_its_busiest_threads();
+  follows_the_top_app();
+  tracks_watched_processes_by_name();
+  empties_the_slot_of_an_exited_process();
+  finds_a_restarted_process_at_the_next_scan();
+  reports_only_at_the_end_of_a_window();
+  handles_a_missing_tree();
+  return exot::testing::result();
+}
@@ -0,0 +1,176 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+/**
+ * @file libnative/src/test/cpp/queue_benchmark.cpp
+ * @author     Bruno Klopott
+ * @brief      Producer/consumer throughput of the bounded queue, compared to
+ *             a deque guarded by a mutex.
+ *
+ * @details    Usage: queue_benchmark [records] [capacity]
+ *
+ *             The producer pushes records of the size of a typical log record
+ *             while the consumer drains them, both yielding when the queue is
+ *             full or empty. The records are checked to
+ *             arrive complete and in order, such that the benchmark doubles as
+ *             a stress test, e.g. when built with -fsanitize=thread.
+ */
+
+#include <atomic>
+#include <chrono>
+#include <cstdio>
+#include <cstdlib>
+#include <deque>
+#include <mutex>
+#include <string>
+#include <thread>
+#include <utility>
+
+#include <exot/jni/queue.h>
+
+namespace {
+
+/**
+ * @brief The reference: a deque guarded by a mutex, with the same interface
+ */
+template <typename T>
+class locked_queue {
+ public:
+  explicit locked_queue(std::size_t capacity) : capacity_{capacity} {}
+
+  bool try_push(T& value) {
+    std::lock_guard<std::mutex> lock(mutex_);
+    if (queue_.size() == capacity_) return false;
+    queue_.push_back(std::move(value));
+    return true;
+  }
+
+  bool try_pop(T& value) {
+    std::lock_guard<std::mutex> lock(mutex_);
+    if (queue_.empty()) return false;
+    value = std::move(queue_.front());
+    queue_.pop_front();
+    return true;
+  }
+
+ private:
+  std::size_t capacity_;
+  std::mutex mutex_;
+  std::deque<T> queue_;
+};
+
+struct result {
+  double seconds;
+  std::size_t full;   //! Failed pushes
+  std::size_t empty;  //! Failed pops
+  bool ordered;
+};
+
+std::string record(std::size_t i) {
+  return std::to_string(i) +
+         ",0.250000,1804800,1804800,1094400,1094400,45000,46000,41000,"
+         "com.example.app,0.125000,0.375000";
+}
+
+template <typename Queue>
+result run(Queue& queue, std::size_t records) {
+  result r{0.0, 0, 0, true};
+  std::atomic<bool> go{false};
+
+  std::thread consumer([&] {
+    std::string value;
+    value.reserve(256);
+    while (!go.load(std::memory_order_acquire)) {}
+
+    for (std::size_t i = 0; i < records;) {
+      if (!queue.try_pop(value)) {
+        ++r.empty;
+        std::this_thread::yield();
+        continue;
+      }
+      if (std::strtoull(value.c_str(), nullptr, 10) != i) r.ordered = false;
+      ++i;
+    }
+  });
+
+  std::string value;
+  value.reserve(256);
+
+  auto begin = std::chrono::steady_clock::now();
+  go.store(true, std::memory_order_release);
+
+  for (std::size_t i = 0; i < records; ++i) {
+    value.assign(record(i));
+    while (!queue.try_push(value)) {
+      ++r.full;
+      std::this_thread::yield();
+    }
+  }
+
+  consumer.join();
+  r.seconds = std::chrono::duration<double>(std::chrono::steady_clock::now() -
+                                            begin)
+                  .count();
+  return r;
+}
+
+void report(const char* name, const result& r, std::size_t records) {
+  std::printf("%-14s %7.3f Mrecords/s %8.1f ns/record, full %zu, empty %zu%s\n",
+              name, records / r.seconds / 1e6, r.seconds * 1e9 / records,
+              r.full, r.empty, r.ordered ? "" : "  OUT OF ORDER");
+}
+
+}  // namespace
+
+int main(int argc, char** argv) {
+  auto argument = [&](int i, std::size_t fallback) -> std::size_t {
+    return argc > i ? std::strtoull(argv[i], nullptr, 10) : fallback;
+  };
+
+  auto records  = argument(1, 1000000);
+  auto capacity = argument(2, 4096);
+
+  std::printf("%zu records, capacity %zu, %u hardware threads\n", records,
+              capacity, std::thread::hardware_concurrency());
+
+  auto ok = true;
+  for (auto round = 0; round < 3; ++round) {
+    exot::jni::bounded_queue<std::string> bounded(
+        capacity, [](std::string& s) { s.reserve(256); });
+    auto b = run(bounded, records);
+    report("bounded_queue", b, records);
+
+    locked_queue<std::string> locked(capacity);
+    auto l = run(locked, records);
+    report("mutex + deque", l, records);
+
+    ok = ok && b.ordered && l.ordered;
+  }
+
+  return ok ? EXIT_SUCCESS : EXIT_FAILURE;
+}
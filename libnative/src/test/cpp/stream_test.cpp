@@ -0,0 +1,275 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+/**
+ * @file libnative/src/test/cpp/stream_test.cpp
+ * @author     Bruno Klopott
+ * @brief      Tests the stream sink with local clients on the abstract and the
+ *             loopback sockets.
+ */
+
+#include <arpa/inet.h>
+#include <netinet/in.h>
+#include <sys/socket.h>
+#include <sys/un.h>
+#include <sys/wait.h>
+#include <unistd.h>
+
+#include <chrono>
+#include <cstddef>
+#include <cstdlib>
+#include <cstring>
+#include <iostream>
+#include <sstream>
+#include <string>
+#include <thread>
+#include <vector>
+
+#include <exot/jni/stream.h>
+
+#include "testing.h"
+
+using exot::jni::stream_sink;
+using namespace std::chrono_literals;
+
+namespace {
+
+std::string socket_name() {
+  return "exot_stream_test_" + std::to_string(::getpid());
+}
+
+int connect_abstract(const std::string& name) {
+  auto fd = ::socket(AF_UNIX, SOCK_STREAM | SOCK_CLOEXEC, 0);
+
+  struct sockaddr_un address = {};
+  address.sun_family         = AF_UNIX;
+  std::memcpy(address.sun_path + 1, name.data(), name.size());
+
+  auto length = offsetof(struct sockaddr_un, sun_path) + 1 + name.size();
+  if (::connect(fd, reinterpret_cast<struct sockaddr*>(&address),
+                static_cast<socklen_t>(length)) != 0) {
+    ::close(fd);
+    return -1;
+  }
+  return fd;
+}
+
+int connect_loopback(std::uint16_t port) {
+  auto fd = ::socket(AF_INET, SOCK_STREAM | SOCK_CLOEXEC, 0);
+
+  struct sockaddr_in address = {};
+  address.sin_family         = AF_INET;
+  address.sin_port           = htons(port);
+  address.sin_addr.s_addr    = htonl(INADDR_LOOPBACK);
+
+  if (::connect(fd, reinterpret_cast<struct sockaddr*>(&address),
+                sizeof(address)) != 0) {
+    ::close(fd);
+    return -1;
+  }
+  return fd;
+}
+
+/**
+ * @brief Reads from a client socket until the text ends with the suffix, or
+ *        the timeout expires
+ */
+std::string read_until(int fd, const std::string& suffix,
+                       std::chrono::milliseconds timeout = 5s) {
+  std::string text;
+  char buffer[65536];
+  auto deadline = std::chrono::steady_clock::now() + timeout;
+
+  while (std::chrono::steady_clock::now() < deadline) {
+    if (text.size() >= suffix.size() &&
+        text.compare(text.size() - suffix.size(), suffix.size(), suffix) == 0)
+      break;
+
+    auto n = ::recv(fd, buffer, sizeof(buffer), MSG_DONTWAIT);
+    if (n > 0)
+      text.append(buffer, static_cast<std::size_t>(n));
+    else if (n == 0)
+      break;
+    else
+      std::this_thread::sleep_for(1ms);
+  }
+
+  return text;
+}
+
+std::vector<std::string> lines(const std::string& text) {
+  std::vector<std::string> result;
+  std::istringstream stream{text};
+  for (std::string line; std::getline(stream, line);) result.push_back(line);
+  return result;
+}
+
+void log(spdlog::sinks::sink& sink, const std::string& text) {
+  sink.log(spdlog::details::log_msg("app", spdlog::level::info, text));
+}
+
+/**
+ * @brief Waits until the server has accepted the number of clients
+ */
+void await_clients(stream_sink& sink, std::size_t count) {
+  auto expected = "clients: " + std::to_string(count) + ",";
+  auto deadline = std::chrono::steady_clock::now() + 5s;
+  while (sink.status().find(expected) == std::string::npos &&
+         std::chrono::steady_clock::now() < deadline)
+    std::this_thread::sleep_for(1ms);
+}
+
+void serves_the_header_and_the_records_since_connecting() {
+  stream_sink sink{socket_name(), 0, 64};
+  log(sink, "timestamp,value");
+  log(sink, "1,0.5");
+
+  auto fd = connect_abstract(socket_name());
+  CHECK(fd >= 0);
+  await_clients(sink, 1);
+
+  log(sink, "# marker,2,start");
+  log(sink, "3,1.5");
+
+  auto received = lines(read_until(fd, "3,1.5\n"));
+  CHECK_EQ(received.size(), 3ull);
+  CHECK_EQ(received.at(0), std::string{"timestamp,value"});
+  CHECK_EQ(received.at(1), std::string{"# marker,2,start"});
+  CHECK_EQ(received.at(2), std::string{"3,1.5"});
+
+  ::close(fd);
+  await_clients(sink, 0);
+  CHECK(sink.status().find("clients: 0,") != std::string::npos);
+}
+
+void serves_on_the_loopback_port() {
+  auto port = static_cast<std::uint16_t>(40000 + ::getpid() % 20000);
+  stream_sink sink{socket_name(), port, 64};
+
+  auto fd = connect_loopback(port);
+  if (fd < 0) {
+    std::cerr << "skipped loopback, cannot connect to port " << port << "\n";
+    return;
+  }
+  await_clients(sink, 1);
+
+  log(sink, "timestamp,value");
+  log(sink, "1,0.5");
+  CHECK_EQ(read_until(fd, "1,0.5\n"), std::string{"1,0.5\n"});
+  ::close(fd);
+}
+
+void skips_ahead_for_a_slow_client() {
+  stream_sink sink{socket_name(), 0, 16};
+  log(sink, "timestamp,value");
+
+  auto fd    = connect_abstract(socket_name());
+  int buffer = 4096;
+  ::setsockopt(fd, SOL_SOCKET, SO_RCVBUF, &buffer, sizeof(buffer));
+  await_clients(sink, 1);
+
+  // The producer is never held up by the client, which does not read.
+  auto begin = std::chrono::steady_clock::now();
+  for (auto i = 0; i < 100000; ++i)
+    log(sink, std::to_string(i) + ",0.123456789");
+  CHECK(std::chrono::steady_clock::now() - begin < 2s);
+
+  auto received = lines(read_until(fd, "99999,0.123456789\n"));
+  CHECK(received.size() > 2);
+  CHECK_EQ(received.front(), std::string{"timestamp,value"});
+
+  auto skips = 0;
+  auto last  = -1l;
+  for (auto i = 1ull; i < received.size(); ++i) {
+    if (received[i].rfind("# skip,", 0) == 0) {
+      ++skips;
+      continue;
+    }
+
+    auto value = std::strtol(received[i].c_str(), nullptr, 10);
+    CHECK(value > last);
+    last = value;
+  }
+
+  CHECK(skips > 0);
+  CHECK_EQ(last, 99999l);
+  CHECK(sink.status().find("skipped: 0") == std::string::npos);
+  ::close(fd);
+}
+
+void limits_the_number_of_clients() {
+  stream_sink sink{socket_name(), 0, 16, 1};
+
+  auto first = connect_abstract(socket_name());
+  await_clients(sink, 1);
+  auto second = connect_abstract(socket_name());
+
+  // The second client is closed by the server right after accepting it.
+  CHECK_EQ(read_until(second, "\n", 1s), std::string{});
+  log(sink, "1,0.5");
+  CHECK_EQ(read_until(first, "1,0.5\n"), std::string{"1,0.5\n"});
+
+  ::close(first);
+  ::close(second);
+}
+
+void refuses_clients_of_other_users() {
+  if (::getuid() != 0) {
+    std::cerr << "skipped credentials, cannot change the uid\n";
+    return;
+  }
+
+  auto name = socket_name();
+  stream_sink sink{name, 0, 16};
+  log(sink, "timestamp,value");
+
+  // An accepted client would receive the header.
+  auto child = ::fork();
+  if (child == 0) {
+    if (::setuid(12345) != 0) ::_exit(2);
+    auto fd = connect_abstract(name);
+    ::_exit(fd >= 0 && read_until(fd, "\n", 1s).empty() ? 0 : 1);
+  }
+
+  int status = -1;
+  ::waitpid(child, &status, 0);
+  CHECK(WIFEXITED(status));
+  CHECK_EQ(WEXITSTATUS(status), 0);
+  CHECK(sink.status().find("clients: 0,") != std::string::npos);
+}
+
+}  // namespace
+
+int main() {
+  serves_the_header_and_the_records_since_connecting();
+  serves_on_the_loopback_port();
+  skips_ahead_for_a_slow_client();
+  limits_the_number_of_clients();
+  refuses_clients_of_other_users();
+  return exot::testing::result();
+}
@@ -0,0 +1,221 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+/**
+ * @file libnative/src/test/cpp/testing.h
+ * @author     Bruno Klopott
+ * @brief      Minimal checks, fake file trees and log capture for the host
+ *             tests.
+ */
+
+#pragma once
+
+#include <ftw.h>
+#include <sys/stat.h>
+#include <unistd.h>
+
+#include <cstdlib>
+#include <fstream>
+#include <iostream>
+#include <memory>
+#include <mutex>
+#include <stdexcept>
+#include <string>
+#include <vector>
+
+#include <spdlog/sinks/base_sink.h>
+#include <spdlog/spdlog.h>
+
+namespace exot::testing {
+
+inline int& failures() {
+  static int count{0};
+  return count;
+}
+
+/**
+ * @brief Reports a failed check
+ */
+template <typename L, typename R>
+void report(const char* file, int line, const char* expression, const L& lhs,
+            const R& rhs) {
+  ++failures();
+  std::cerr << file << ":" << line << ": check failed: " << expression
+            << " (" << lhs << " vs " << rhs << ")\n";
+}
+
+/**
+ * @brief Gets the exit status of the test binary
+ */
+inline int result() {
+  if (failures() > 0) {
+    std::cerr << failures() << " check(s) failed\n";
+    return EXIT_FAILURE;
+  }
+  return EXIT_SUCCESS;
+}
+
+/**
+ * @brief A temporary directory tree standing in for sysfs or procfs
+ * @details The tree is created under TMPDIR, or /tmp, and removed with all
+ *          its content on destruction. Files are rewritten in place, since
+ *          the meters keep their attribute files open and re-read them.
+ */
+class fake_tree {
+ public:
+  fake_tree() {
+    auto base = std::getenv("TMPDIR");
+    std::string path{base != nullptr ? base : "/tmp"};
+    path += "/exot-test-XXXXXX";
+    if (::mkdtemp(path.data()) == nullptr)
+      throw std::runtime_error("cannot create " + path);
+    root_ = path;
+  }
+
+  ~fake_tree() {
+    ::nftw(
+        root_.c_str(),
+        [](const char* path, const struct stat*, int, struct FTW*) {
+          return ::remove(path);
+        },
+        16, FTW_DEPTH | FTW_PHYS);
+  }
+
+  fake_tree(const fake_tree&) = delete;
+  fake_tree& operator=(const fake_tree&) = delete;
+
+  const std::string& root() const { return root_; }
+
+  std::string path(const std::string& relative) const {
+    return root_ + "/" + relative;
+  }
+
+  /**
+   * @brief Creates a directory and its parents
+   */
+  void mkdir(const std::string& relative) const {
+    for (auto slash = relative.find('/'); slash != std::string::npos;
+         slash = relative.find('/', slash + 1))
+      ::mkdir(path(relative.substr(0, slash)).c_str(), 0755);
+    ::mkdir(path(relative).c_str(), 0755);
+  }
+
+  /**
+   * @brief Writes a file, creating its directory if needed
+   */
+  void write(const std::string& relative, const std::string& content) const {
+    if (auto slash = relative.rfind('/'); slash != std::string::npos)
+      mkdir(relative.substr(0, slash));
+
+    std::ofstream file{path(relative), std::ios::trunc};
+    if (!(file << content))
+      throw std::runtime_error("cannot write " + path(relative));
+  }
+
+  /**
+   * @brief Creates a symbolic link, e.g. from a thermal zone to a device
+   */
+  void link(const std::string& relative, const std::string& target) const {
+    if (::symlink(target.c_str(), path(relative).c_str()) != 0)
+      throw std::runtime_error("cannot link " + path(relative));
+  }
+
+  /**
+   * @brief Removes a file
+   */
+  void remove(const std::string& relative) const {
+    ::unlink(path(relative).c_str());
+  }
+
+ private:
+  std::string root_;
+};
+
+/**
+ * @brief A sink keeping the logged records, e.g. the side-channel records
+ */
+class record_sink : public spdlog::sinks::base_sink<std::mutex> {
+ public:
+  std::vector<std::string> records() {
+    std::lock_guard<std::mutex> lock(this->mutex_);
+    return records_;
+  }
+
+ protected:
+  void sink_it_(const spdlog::details::log_msg& msg) override {
+    records_.emplace_back(msg.payload.data(), msg.payload.size());
+  }
+
+  void flush_() override {}
+
+ private:
+  std::vector<std::string> records_;
+};
+
+/**
+ * @brief Registers a logger whose records are kept, for the lifetime of the
+ *        object
+ */
+class captured_logger {
+ public:
+  explicit captured_logger(std::string name)
+      : name_{std::move(name)}, sink_{std::make_shared<record_sink>()} {
+    spdlog::drop(name_);
+    spdlog::register_logger(std::make_shared<spdlog::logger>(
+        name_, std::vector<spdlog::sink_ptr>{sink_}));
+  }
+
+  ~captured_logger() { spdlog::drop(name_); }
+
+  captured_logger(const captured_logger&) = delete;
+  captured_logger& operator=(const captured_logger&) = delete;
+
+  std::vector<std::string> records() { return sink_->records(); }
+
+ private:
+  std::string name_;
+  std::shared_ptr<record_sink> sink_;
+};
+
+}  // namespace exot::testing
+
+#define CHECK(expression)                                                   \
+  do {                                                                      \
+    if (!(expression))                                                      \
+      ::exot::testing::report(__FILE__, __LINE__, #expression, "false",     \
+                              "true");                                      \
+  } while (false)
+
+#define CHECK_EQ(lhs, rhs)                                                  \
+  do {                                                                      \
+    const auto& check_lhs_ = (lhs);                                         \
+    const auto& check_rhs_ = (rhs);                                         \
+    if (!(check_lhs_ == check_rhs_))                                        \
+      ::exot::testing::report(__FILE__, __LINE__, #lhs " == " #rhs,         \
+                              check_lhs_, check_rhs_);                      \
+  } while (false)
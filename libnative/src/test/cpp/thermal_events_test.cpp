@@ -0,0 +1,190 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+/**
+ * @file libnative/src/test/cpp/thermal_events_test.cpp
+ * @author     Bruno Klopott
+ * @brief      Tests the thermal events meter against a fake thermal class
+ *             tree, and its discovery on the thermal class of the host.
+ */
+
+#include <algorithm>
+#include <chrono>
+#include <cstdint>
+#include <iostream>
+#include <string>
+#include <thread>
+#include <vector>
+
+#include <exot/meters/thermal_events.h>
+
+#include "testing.h"
+
+using exot::modules::thermal_events;
+using exot::testing::captured_logger;
+using exot::testing::fake_tree;
+using states = std::vector<std::int32_t>;
+
+namespace {
+
+/**
+ * @brief Removes the timestamp, the second field, from a side-channel record
+ */
+std::string untimed(const std::string& record) {
+  auto first  = record.find(',');
+  auto second = record.find(',', first + 1);
+  return record.substr(0, first) + record.substr(second);
+}
+
+bool contains(const std::vector<std::string>& records,
+              const std::string& record) {
+  return std::any_of(
+      records.begin(), records.end(),
+      [&](const std::string& r) { return untimed(r) == record; });
+}
+
+void make_tree(const fake_tree& tree) {
+  tree.write("thermal_zone0/type", "cpu-thermal\n");
+  tree.write("thermal_zone0/temp", "45000\n");
+  tree.write("thermal_zone0/trip_point_0_temp", "75000\n");
+  tree.write("thermal_zone0/trip_point_0_type", "passive\n");
+  tree.write("thermal_zone0/trip_point_1_temp", "95000\n");
+  tree.write("thermal_zone0/trip_point_1_type", "critical\n");
+  tree.link("thermal_zone0/cdev0", "../cooling_device1");
+  tree.write("thermal_zone0/cdev0_trip_point", "0\n");
+  tree.link("thermal_zone0/cdev1", "../cooling_device3");
+  tree.write("thermal_zone0/cdev1_trip_point", "0\n");
+
+  tree.write("thermal_zone2/type", "gpu-thermal\n");
+  tree.link("thermal_zone2/cdev0", "../cooling_device3");
+  tree.write("thermal_zone2/cdev0_trip_point", "1\n");
+
+  tree.write("cooling_device1/type", "thermal-cpufreq-0\n");
+  tree.write("cooling_device1/max_state", "7\n");
+  tree.write("cooling_device1/cur_state", "0\n");
+  tree.write("cooling_device3/type", "devfreq-gpu\n");
+  tree.write("cooling_device3/max_state", "4\n");
+  tree.write("cooling_device3/cur_state", "1\n");
+  tree.write("cooling_device5/type", "broken\n");
+}
+
+void discovers_devices_and_records_the_topology() {
+  fake_tree tree;
+  make_tree(tree);
+  captured_logger app{"app"};
+
+  thermal_events::settings conf;
+  conf.root = tree.root();
+  thermal_events meter{conf};
+
+  auto header = meter.header();
+  CHECK_EQ(header.size(), 2ull);
+  CHECK_EQ(header.at(0), std::string{"thermal_events:cooling_state:1:-"});
+  CHECK_EQ(header.at(1), std::string{"thermal_events:cooling_state:3:-"});
+  CHECK(meter.measure() == (states{0, 1}));
+
+  auto records = app.records();
+  CHECK(contains(records,
+                 "# thermal_trip,thermal_zone0,cpu-thermal,0,passive,75000"));
+  CHECK(contains(records,
+                 "# thermal_trip,thermal_zone0,cpu-thermal,1,critical,95000"));
+  CHECK(contains(records,
+                 "# cooling_map,cooling_device1,thermal-cpufreq-0,7,"
+                 "thermal_zone0/0"));
+  CHECK(contains(records,
+                 "# cooling_map,cooling_device3,devfreq-gpu,4,"
+                 "thermal_zone0/0;thermal_zone2/1"));
+}
+
+void records_state_transitions() {
+  fake_tree tree;
+  make_tree(tree);
+  captured_logger app{"app"};
+
+  thermal_events::settings conf;
+  conf.root    = tree.root();
+  conf.devices = {1};
+  conf.period  = 0.01;
+  thermal_events meter{conf};
+
+  tree.write("cooling_device1/cur_state", "3\n");
+
+  auto deadline = std::chrono::steady_clock::now() + std::chrono::seconds{5};
+  while (meter.measure() != states{3} &&
+         std::chrono::steady_clock::now() < deadline)
+    std::this_thread::sleep_for(std::chrono::milliseconds{5});
+
+  CHECK(meter.measure() == states{3});
+  CHECK(contains(app.records(),
+                 "# cooling,cooling_device1,thermal-cpufreq-0,0,3,7"));
+}
+
+void writes_no_records_if_disabled() {
+  fake_tree tree;
+  make_tree(tree);
+  captured_logger app{"app"};
+
+  thermal_events::settings conf;
+  conf.root    = tree.root();
+  conf.records = false;
+  thermal_events meter{conf};
+
+  CHECK(app.records().empty());
+}
+
+void handles_a_missing_tree() {
+  thermal_events::settings conf;
+  conf.root = "/nonexistent";
+  thermal_events meter{conf};
+
+  CHECK(meter.header().empty());
+  CHECK(meter.measure().empty());
+}
+
+/**
+ * @brief Discovers the cooling devices of the host, if there are any
+ */
+void discovers_the_host_tree() {
+  thermal_events::settings conf;
+  thermal_events meter{conf};
+
+  auto header = meter.header();
+  CHECK_EQ(meter.measure().size(), header.size());
+  std::cerr << "host has " << header.size() << " cooling device(s)\n";
+}
+
+}  // namespace
+
+int main() {
+  discovers_devices_and_records_the_topology();
+  records_state_transitions();
+  writes_no_records_if_disabled();
+  handles_a_missing_tree();
+  discovers_the_host_tree();
+  return exot::testing::result();
+}
@@ -0,0 +1,213 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+/**
+ * @file libnative/src/test/cpp/timing_test.cpp
+ * @author     Bruno Klopott
+ * @brief      Tests the timing core of the load generator on a simulated
+ *             clock.
+ */
+
+#include <cstdint>
+#include <string>
+#include <vector>
+
+#include <exot/load/timing.h>
+
+#include "testing.h"
+
+using exot::load::duty_cycle;
+using exot::load::pacer;
+using exot::load::slot_record;
+
+namespace {
+
+/**
+ * @brief A simulated timer, with the static interface of steady_timer
+ * @details Every reading advances the clock by a tick, as spinning on a real
+ *          clock does, and sleeps jump to their deadline.
+ */
+struct fake_timer {
+  static inline std::int64_t time = 0;
+  static inline std::int64_t tick = 100;
+  static inline unsigned sleeps   = 0;
+
+  static void reset() {
+    time   = 0;
+    tick   = 100;
+    sleeps = 0;
+  }
+
+  static std::int64_t now() { return time += tick; }
+
+  static void sleep_until(std::int64_t deadline) {
+    ++sleeps;
+    if (deadline > time) time = deadline;
+  }
+};
+
+constexpr std::int64_t us = 1000;
+constexpr std::int64_t ms = 1000 * us;
+
+void parses_patterns_and_computes_slots() {
+  CHECK(duty_cycle::parse_pattern("1 0-1x1") ==
+        (std::vector<bool>{true, false, true, true}));
+
+  duty_cycle cycle{10 * ms, 0.25, duty_cycle::parse_pattern("10")};
+  CHECK_EQ(cycle.on_time(), 2500 * us);
+  CHECK_EQ(cycle.pattern_string(), std::string{"10"});
+
+  auto on = cycle.at(4, 1 * ms);
+  CHECK(on.on);
+  CHECK_EQ(on.start, 41 * ms);
+  CHECK_EQ(on.on_until, 43500 * us);
+  CHECK_EQ(on.end, 51 * ms);
+
+  auto off = cycle.at(5, 1 * ms);
+  CHECK(!off.on);
+  CHECK_EQ(off.on_until, off.start);
+
+  CHECK_EQ(cycle.index_at(0, 1 * ms), 0ull);
+  CHECK_EQ(cycle.index_at(51 * ms - 1, 1 * ms), 4ull);
+  CHECK_EQ(cycle.index_at(51 * ms, 1 * ms), 5ull);
+
+  duty_cycle clamped{0, 2.0, {}};
+  CHECK_EQ(clamped.period(), 1ll);
+  CHECK_EQ(clamped.on_time(), 1ll);
+  CHECK_EQ(clamped.pattern_string(), std::string{"1"});
+}
+
+void pacer_sleeps_in_parts_and_spins_the_slack() {
+  fake_timer::reset();
+  pacer<fake_timer> pace{200 * us, 10 * ms};
+
+  auto late = pace.wait_until(35 * ms, [] { return false; });
+  CHECK(late >= 0);
+  CHECK(late <= fake_timer::tick);
+  /* 0-10, 10-20, 20-30, 30-34.8 ms, then spinning */
+  CHECK_EQ(fake_timer::sleeps, 4u);
+
+  unsigned checks = 0;
+  auto stopped    = pace.wait_until(100 * ms, [&] { return ++checks == 3; });
+  CHECK_EQ(stopped, -1ll);
+  CHECK(fake_timer::time < 100 * ms);
+}
+
+void runs_slots_on_schedule() {
+  fake_timer::reset();
+  duty_cycle cycle{1 * ms, 0.5, duty_cycle::parse_pattern("110")};
+  pacer<fake_timer> pace{50 * us};
+
+  std::vector<slot_record> records;
+  unsigned steps = 0;
+  auto executed  = exot::load::run(
+      cycle, 10 * ms, pace,
+      [&] {
+        ++steps;
+        fake_timer::time += 10 * us;
+      },
+      [&] { return records.size() == 6; },
+      [&](const slot_record& r) { records.push_back(r); });
+
+  CHECK_EQ(executed, 6ull);
+  CHECK_EQ(records.size(), 6ull);
+  for (auto i = 0u; i < records.size(); ++i) {
+    const auto& r = records[i];
+    CHECK_EQ(r.index, std::uint64_t{i});
+    CHECK_EQ(r.on, i % 3 != 2);
+    CHECK_EQ(r.start, 10 * ms + i * ms);
+    CHECK(r.late >= 0 && r.late <= fake_timer::tick);
+    CHECK_EQ(r.missed, 0ull);
+    if (r.on) {
+      CHECK(r.busy >= 500 * us - r.late);
+      CHECK(r.busy < 500 * us + 20 * us);
+    } else {
+      CHECK_EQ(r.busy, 0ll);
+    }
+  }
+  /* About 50 steps of 10 us in each of the 4 on-slots */
+  CHECK(steps >= 4 * 49 && steps <= 4 * 51);
+}
+
+void skips_slots_missed_by_a_stalled_step() {
+  fake_timer::reset();
+  duty_cycle cycle{1 * ms, 0.5, {}};
+  pacer<fake_timer> pace{50 * us};
+
+  std::vector<slot_record> records;
+  bool stalled = false;
+  exot::load::run(
+      cycle, 0, pace,
+      [&] {
+        /* A single preemption of 3.2 ms in the first slot */
+        fake_timer::time += stalled ? 10 * us : 3200 * us;
+        stalled = true;
+      },
+      [&] { return records.size() == 2; },
+      [&](const slot_record& r) { records.push_back(r); });
+
+  CHECK_EQ(records.size(), 2ull);
+  CHECK_EQ(records.at(0).index, 0ull);
+  CHECK(records.at(0).busy >= 3200 * us);
+  CHECK_EQ(records.at(1).index, 3ull);
+  CHECK_EQ(records.at(1).missed, 2ull);
+  CHECK_EQ(records.at(1).start, 3 * ms);
+}
+
+void stops_within_the_load_of_a_slot() {
+  fake_timer::reset();
+  duty_cycle cycle{1000 * ms, 1.0, {}};
+  pacer<fake_timer> pace{50 * us};
+
+  std::vector<slot_record> records;
+  unsigned steps = 0;
+  auto executed  = exot::load::run(
+      cycle, 0, pace,
+      [&] {
+        ++steps;
+        fake_timer::time += 10 * us;
+      },
+      [&] { return steps >= 5; },
+      [&](const slot_record& r) { records.push_back(r); });
+
+  CHECK_EQ(steps, 5u);
+  CHECK_EQ(executed, 1ull);
+  CHECK_EQ(records.size(), 1ull);
+  CHECK(records.at(0).busy < 1 * ms);
+}
+
+}  // namespace
+
+int main() {
+  parses_patterns_and_computes_slots();
+  pacer_sleeps_in_parts_and_spins_the_slack();
+  runs_slots_on_schedule();
+  skips_slots_missed_by_a_stalled_step();
+  stops_within_the_load_of_a_slot();
+  return exot::testing::result();
+}
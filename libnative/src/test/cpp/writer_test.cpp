@@ -0,0 +1,168 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+/**
+ * @file libnative/src/test/cpp/writer_test.cpp
+ * @author     Bruno Klopott
+ * @brief      Tests the flushing of the writer sink behind a relaying sink.
+ */
+
+#include <atomic>
+#include <chrono>
+#include <memory>
+#include <mutex>
+#include <string>
+#include <thread>
+#include <vector>
+
+#include <exot/jni/writer.h>
+
+#include "testing.h"
+
+using exot::jni::writer_sink;
+using namespace std::chrono_literals;
+
+namespace {
+
+/**
+ * @brief A sink which is slow to write and to flush, e.g. an SD card
+ */
+class slow_sink : public spdlog::sinks::base_sink<std::mutex> {
+ public:
+  std::size_t written() {
+    std::lock_guard<std::mutex> lock(this->mutex_);
+    return written_;
+  }
+
+  std::size_t flushed() {
+    std::lock_guard<std::mutex> lock(this->mutex_);
+    return flushed_;
+  }
+
+ protected:
+  void sink_it_(const spdlog::details::log_msg&) override {
+    std::this_thread::sleep_for(100us);
+    ++written_;
+  }
+
+  void flush_() override {
+    std::this_thread::sleep_for(20ms);
+    flushed_ = written_;
+  }
+
+ private:
+  std::size_t written_{0};
+  std::size_t flushed_{0};
+};
+
+/**
+ * @brief A sink forwarding under its lock, like the relay sink
+ */
+class forwarding_sink : public spdlog::sinks::base_sink<std::mutex> {
+ public:
+  explicit forwarding_sink(spdlog::sink_ptr next) : next_{std::move(next)} {}
+
+ protected:
+  void sink_it_(const spdlog::details::log_msg& msg) override {
+    next_->log(msg);
+  }
+
+  void flush_() override { next_->flush(); }
+
+ private:
+  spdlog::sink_ptr next_;
+};
+
+void log(spdlog::sinks::sink& sink, int i) {
+  auto text = std::to_string(i) + ",1.0";
+  sink.log(spdlog::details::log_msg("app", spdlog::level::info, text));
+}
+
+void sync_waits_for_the_queued_records() {
+  auto slow   = std::make_shared<slow_sink>();
+  auto writer = std::make_shared<writer_sink>(
+      "app", std::vector<spdlog::sink_ptr>{slow}, 1024,
+      writer_sink::policy::block);
+
+  for (auto i = 0; i < 200; ++i) log(*writer, i);
+
+  CHECK(writer->sync(5s));
+  CHECK_EQ(slow->flushed(), 200ull);
+  CHECK_EQ(writer->written(), 200ull);
+}
+
+void flush_does_not_block_the_producer() {
+  auto slow    = std::make_shared<slow_sink>();
+  auto writer  = std::make_shared<writer_sink>(
+      "app", std::vector<spdlog::sink_ptr>{slow}, 1024,
+      writer_sink::policy::block);
+  auto relay   = std::make_shared<forwarding_sink>(writer);
+  auto longest = std::chrono::steady_clock::duration::zero();
+
+  std::atomic<bool> done{false};
+  std::thread flusher([&] {
+    while (!done) {
+      relay->flush();
+      writer->sync(5s);
+    }
+  });
+
+  for (auto i = 0; i < 500; ++i) {
+    auto begin = std::chrono::steady_clock::now();
+    log(*relay, i);
+    longest = std::max(longest, std::chrono::steady_clock::now() - begin);
+    std::this_thread::sleep_for(200us);
+  }
+
+  done = true;
+  flusher.join();
+
+  // A flush of the downstream sink takes 20 ms, which the producer would wait
+  // for if the flush happened under the lock of the relaying sink.
+  CHECK(longest < 10ms);
+  CHECK(writer->sync(5s));
+  CHECK_EQ(slow->flushed(), 500ull);
+}
+
+void flushes_on_destruction() {
+  auto slow = std::make_shared<slow_sink>();
+  {
+    writer_sink writer("app", {slow}, 1024, writer_sink::policy::block);
+    for (auto i = 0; i < 100; ++i) log(writer, i);
+  }
+  CHECK_EQ(slow->flushed(), 100ull);
+}
+
+}  // namespace
+
+int main() {
+  sync_waits_for_the_queued_records();
+  flush_does_not_block_the_producer();
+  flushes_on_destruction();
+  return exot::testing::result();
+}
@@ -0,0 +1,117 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+package ch.ethz.exot.lib;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Benchmark of the compression and the decoding throughput of the series store, on a
+ * desktop JVM.
+ *
+ * The store is filled with an hour of 1 kHz rows resembling a capture: per-core
+ * frequencies stepping between a few levels, slowly changing temperatures, and
+ * utilisation with noise. Run with the test classpath, e.g.:
+ *
+ * <pre>
+ * java -cp &lt;classes&gt;:&lt;test classes&gt; ch.ethz.exot.lib.SeriesStoreBenchmark [seconds] [rate]
+ * </pre>
+ */
+public final class SeriesStoreBenchmark {
+    private static final long[] LEVELS = {300000, 1094400, 1401600, 1804800, 2419200};
+
+    public static void main(String[] args) {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3600;
+        int rate = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+        List<String> columns = new ArrayList<>();
+        for (int i = 0; i < 8; ++i) {
+            columns.add("frequency:" + i);
+        }
+        for (int i = 0; i < 8; ++i) {
+            columns.add("temperature:" + i);
+        }
+        for (int i = 0; i < 4; ++i) {
+            columns.add("utilisation:" + i);
+        }
+
+        long rows = (long) seconds * rate;
+        SeriesStore store = new SeriesStore(columns, SeriesStore.DEFAULT_BLOCK_BYTES, Long.MAX_VALUE);
+        Random random = new Random(1);
+        double[] values = new double[columns.size()];
+        long period = 1000000000L / rate;
+
+        long begin = System.nanoTime();
+        long time = 0;
+        for (long row = 0; row < rows; ++row) {
+            for (int i = 0; i < 8; ++i) {
+                if (random.nextInt(200) == 0) {
+                    values[i] = LEVELS[random.nextInt(LEVELS.length)];
+                }
+                if (random.nextInt(100) == 0) {
+                    values[8 + i] = 40000 + 100 * random.nextInt(300);
+                }
+            }
+            for (int i = 16; i < values.length; ++i) {
+                values[i] = Math.round(random.nextDouble() * 1000) / 1000.0;
+            }
+
+            store.append(time, values);
+            time += period + random.nextInt(20000) - 10000;
+        }
+        double append = (System.nanoTime() - begin) / 1e9;
+
+        long samples = rows * columns.size();
+        System.out.println(String.format(Locale.US,
+                "%d rows of %d columns: %.1f MB, %.2f bytes/sample (8 raw), append %.2f M rows/s",
+                rows, columns.size(), store.getBytes() / 1e6,
+                store.getBytesPerRow() / columns.size(), rows / append / 1e6));
+
+        for (int round = 0; round < 5; ++round) {
+            begin = System.nanoTime();
+            long decoded = 0;
+            double sum = 0;
+
+            SeriesStore.Cursor cursor = store.query(Long.MIN_VALUE, Long.MAX_VALUE);
+            while (cursor.next()) {
+                for (int c = 0; c < values.length; ++c) {
+                    sum += cursor.value(c);
+                }
+                decoded++;
+            }
+
+            double elapsed = (System.nanoTime() - begin) / 1e9;
+            System.out.println(String.format(Locale.US,
+                    "decode: %.2f M rows/s, %.1f M values/s (checksum %.0f)",
+                    decoded / elapsed / 1e6, decoded * values.length / elapsed / 1e6, sum));
+        }
+    }
+}
@@ -0,0 +1,230 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+package ch.ethz.exot.lib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class SeriesStoreTest {
+    private static final List<String> COLUMNS = Arrays.asList("frequency", "temperature", "utilisation");
+
+    /**
+     * Values of a row, derived from its timestamp, such that readers can check them
+     */
+    private static double[] values(long time) {
+        long step = time / 1000000;
+        return new double[]{
+                step % 500 < 250 ? 1804800 : 1094400,
+                45000 + (step / 100) % 7 * 100,
+                (step % 37) / 37.0
+        };
+    }
+
+    private static void assertRow(long time, SeriesStore.Cursor cursor) {
+        double[] expected = values(time);
+        for (int c = 0; c < expected.length; ++c) {
+            assertEquals(Double.doubleToRawLongBits(expected[c]),
+                    Double.doubleToRawLongBits(cursor.value(c)));
+        }
+    }
+
+    @Test
+    public void roundTripsValuesExactly() {
+        SeriesBlock block = new SeriesBlock(4096, 2);
+        long[] times = {0, 1, 2, 1000, 1000, 5000000, -7, Long.MAX_VALUE / 2, Long.MAX_VALUE / 2 + 3};
+        double[][] values = {
+                {0.0, -0.0},
+                {Double.NaN, 1.0},
+                {Double.POSITIVE_INFINITY, 1.0},
+                {Double.MIN_VALUE, -1.5},
+                {Double.MAX_VALUE, 1e-300},
+                {3.141592653589793, 2.718281828459045},
+                {3.141592653589794, 2.718281828459045},
+                {-0.0, Double.NEGATIVE_INFINITY},
+                {42.0, 42.0},
+        };
+
+        for (int i = 0; i < times.length; ++i) {
+            assertTrue(block.append(times[i], values[i]));
+        }
+
+        SeriesBlock.Reader reader = block.new Reader(block.getRows());
+        for (int i = 0; i < times.length; ++i) {
+            assertTrue(reader.next());
+            assertEquals(times[i], reader.time());
+            for (int c = 0; c < 2; ++c) {
+                assertEquals(Double.doubleToRawLongBits(values[i][c]),
+                        Double.doubleToRawLongBits(reader.value(c)));
+            }
+        }
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void refusesRowsOnceFull() {
+        SeriesBlock block = new SeriesBlock(256, 1);
+        Random random = new Random(1);
+
+        int rows = 0;
+        while (block.append(rows * 1000L + random.nextInt(1000), new double[]{random.nextDouble()})) {
+            rows++;
+        }
+
+        assertEquals(rows, block.getRows());
+        assertTrue(block.getUsedBytes() <= block.getCapacity());
+    }
+
+    @Test
+    public void queriesWindowsAcrossBlocks() {
+        SeriesStore store = new SeriesStore(COLUMNS, 1024, 1 << 20);
+        Random random = new Random(2);
+
+        long time = 1000000000L;
+        long[] times = new long[20000];
+        for (int i = 0; i < times.length; ++i) {
+            times[i] = time;
+            store.append(time, values(time));
+            time += 1000000 + random.nextInt(20000) - 10000;
+        }
+
+        assertEquals(times.length, store.getRows());
+        assertEquals(times[0], store.getFirstTime());
+        assertEquals(times[times.length - 1], store.getLastTime());
+
+        int[][] windows = {{0, times.length - 1}, {0, 0}, {5000, 5010}, {12345, 19999}, {777, 778}};
+        for (int[] window : windows) {
+            SeriesStore.Cursor cursor = store.query(times[window[0]], times[window[1]]);
+            for (int i = window[0]; i <= window[1]; ++i) {
+                assertTrue(cursor.next());
+                assertEquals(times[i], cursor.time());
+                assertRow(times[i], cursor);
+            }
+            assertFalse(cursor.next());
+        }
+
+        assertFalse(store.query(times[0] - 10, times[0] - 1).next());
+        assertFalse(store.query(time, Long.MAX_VALUE).next());
+    }
+
+    @Test
+    public void evictsTheOldestBlocksWithinTheBudget() {
+        SeriesStore store = new SeriesStore(COLUMNS, 1024, 8 * 1024);
+
+        for (long i = 0; i < 100000; ++i) {
+            store.append(i * 1000000, values(i * 1000000));
+        }
+
+        assertEquals(8 * 1024, store.getBytes());
+        assertEquals(100000, store.getRows() + store.getEvictedRows());
+        assertEquals(99999L * 1000000, store.getLastTime());
+
+        long expected = store.getFirstTime();
+        SeriesStore.Cursor cursor = store.query(Long.MIN_VALUE, Long.MAX_VALUE);
+        while (cursor.next()) {
+            assertEquals(expected, cursor.time());
+            assertRow(expected, cursor);
+            expected += 1000000;
+        }
+        assertEquals(100000L * 1000000, expected);
+    }
+
+    @Test
+    public void compressesRegularSamples() {
+        SeriesStore store = new SeriesStore(COLUMNS, SeriesStore.DEFAULT_BLOCK_BYTES, 1 << 24);
+        Random random = new Random(3);
+
+        long time = 0;
+        for (int i = 0; i < 100000; ++i) {
+            store.append(time, values(time));
+            time += 1000000 + random.nextInt(2000) - 1000;
+        }
+
+        /* 32 bytes per row uncompressed, the utilisation changes in every row */
+        assertTrue(store.getBytesPerRow() < 12);
+    }
+
+    @Test
+    public void rejectsRowsOfTheWrongWidth() {
+        SeriesStore store = new SeriesStore(COLUMNS, 1024, 1 << 20);
+        try {
+            store.append(0, new double[2]);
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+        throw new AssertionError("expected an IllegalArgumentException");
+    }
+
+    @Test(timeout = 30000)
+    public void readsConsistentlyDuringEviction() throws InterruptedException {
+        final SeriesStore store = new SeriesStore(COLUMNS, 512, 4 * 512);
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (!done.get()) {
+                        long last = Long.MIN_VALUE;
+                        SeriesStore.Cursor cursor = store.query(Long.MIN_VALUE, Long.MAX_VALUE);
+                        while (cursor.next()) {
+                            assertTrue(cursor.time() > last);
+                            assertEquals(0, cursor.time() % 1000000);
+                            assertRow(cursor.time(), cursor);
+                            last = cursor.time();
+                        }
+                    }
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        });
+
+        reader.start();
+        for (long i = 0; i < 500000; ++i) {
+            store.append(i * 1000000, values(i * 1000000));
+        }
+        done.set(true);
+        reader.join();
+
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertTrue(store.getEvictedRows() > 0);
+    }
+}
@@ -31,7 +31,4 @@ package ch.ethz.exot.thermalsc;
 import ch.ethz.exot.lib.BaseService;
 
 public class MeterService extends BaseService {
-    static {
-        System.loadLibrary("exot-jni-thermalsc");
-    }
 }
@@ -0,0 +1,222 @@
+// Copyright (c) 2015-2020, Swiss Federal Institute of Technology (ETH Zurich)
+// All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+// 
+// * Redistributions of source code must retain the above copyright notice, this
+//   list of conditions and the following disclaimer.
+// 
+// * Redistributions in binary form must reproduce the above copyright notice,
+//   this list of conditions and the following disclaimer in the documentation
+//   and/or other materials provided with the distribution.
+// 
+// * Neither the name of the copyright holder nor the names of its
+//   contributors may be used to endorse or promote products derived from
+//   this software without specific prior written permission.
+// 
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+// DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+// SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+// 
+package ch.ethz.exot.thermalscui;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.util.TypedValue;
+import android.view.View;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+import ch.ethz.exot.lib.SeriesStore;
+
+/**
+ * Live chart of a single channel of the meter, over a fixed time window.
+ *
+ * Records are reduced to the minimum and maximum per pixel column as they arrive, so
+ * drawing costs the same regardless of the sampling rate, and short spikes remain
+ * visible. When the width changes, the columns are rebuilt from the store.
+ */
+public class LiveChartView extends View {
+    /* The time window, in units of the record timestamps (ns) */
+    private static final long WINDOW = 60L * 1000 * 1000 * 1000;
+
+    private final Paint mLinePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+    private String mLabel = "";
+    private String mUnit = "";
+    private SeriesStore mStore;
+    private int mColumn = 0;
+
+    /* Per pixel column: the bucket held, and its minimum and maximum */
+    private long[] mBuckets = new long[0];
+    private float[] mMin = new float[0];
+    private float[] mMax = new float[0];
+    private long mBucketWidth = 1;
+    private long mLatestBucket = Long.MIN_VALUE;
+    private float mLatest = Float.NaN;
+
+    /* Copies drawn on the main thread */
+    private float[] mDrawMin = new float[0];
+    private float[] mDrawMax = new float[0];
+
+    public LiveChartView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+
+        mLinePaint.setColor(Color.rgb(0x21, 0x96, 0xf3));
+        mLinePaint.setStrokeWidth(TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, 1,
+                getResources().getDisplayMetrics()));
+        mTextPaint.setColor(Color.GRAY);
+        mTextPaint.setTextSize(TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP, 10,
+                getResources().getDisplayMetrics()));
+    }
+
+    /**
+     * Binds the chart to a column of the store
+     *
+     * @param label  The label
+     * @param store  The store
+     * @param column The column index
+     */
+    public void bind(String label, SeriesStore store, int column) {
+        mLabel = label;
+        mStore = store;
+        mColumn = column;
+    }
+
+    public void setUnit(String unit) {
+        mUnit = unit;
+    }
+
+    /**
+     * Adds a value, may be called from any thread
+     *
+     * @param time  The timestamp
+     * @param value The value
+     */
+    public synchronized void add(long time, double value) {
+        if (mBuckets.length == 0 || Double.isNaN(value)) {
+            return;
+        }
+
+        long bucket = time / mBucketWidth;
+        int slot = slot(bucket, mBuckets.length);
+        if (mBuckets[slot] != bucket) {
+            mBuckets[slot] = bucket;
+            mMin[slot] = (float) value;
+            mMax[slot] = (float) value;
+        } else {
+            mMin[slot] = Math.min(mMin[slot], (float) value);
+            mMax[slot] = Math.max(mMax[slot], (float) value);
+        }
+
+        mLatestBucket = Math.max(mLatestBucket, bucket);
+        mLatest = (float) value;
+    }
+
+    /* Math.floorMod needs API level 24 */
+    private static int slot(long bucket, int slots) {
+        return (int) (((bucket % slots) + slots) % slots);
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        rebuild(Math.max(w, 1));
+    }
+
+    /**
+     * Rebuilds the pixel columns for a new width from the history in the store
+     */
+    private void rebuild(int width) {
+        synchronized (this) {
+            mBuckets = new long[width];
+            Arrays.fill(mBuckets, Long.MIN_VALUE);
+            mMin = new float[width];
+            mMax = new float[width];
+            mBucketWidth = Math.max(1, WINDOW / width);
+            mLatestBucket = Long.MIN_VALUE;
+            mDrawMin = new float[width];
+            mDrawMax = new float[width];
+        }
+
+        if (mStore != null && mStore.getLastTime() != Long.MIN_VALUE) {
+            SeriesStore.Cursor cursor = mStore.query(mStore.getLastTime() - WINDOW, Long.MAX_VALUE);
+            while (cursor.next()) {
+                add(cursor.time(), cursor.value(mColumn));
+            }
+        }
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+
+        int width;
+        float latest;
+        synchronized (this) {
+            width = mBuckets.length;
+            latest = mLatest;
+            for (int x = 0; x < width; ++x) {
+                long bucket = mLatestBucket - (width - 1 - x);
+                int slot = slot(bucket, width);
+                boolean held = mLatestBucket != Long.MIN_VALUE && mBuckets[slot] == bucket;
+                mDrawMin[x] = held ? mMin[slot] : Float.NaN;
+                mDrawMax[x] = held ? mMax[slot] : Float.NaN;
+            }
+        }
+
+        float low = Float.POSITIVE_INFINITY;
+        float high = Float.NEGATIVE_INFINITY;
+        for (int x = 0; x < width; ++x) {
+            if (!Float.isNaN(mDrawMin[x])) {
+                low = Math.min(low, mDrawMin[x]);
+                high = Math.max(high, mDrawMax[x]);
+            }
+        }
+
+        float text = mTextPaint.getTextSize();
+        canvas.drawText(Float.isNaN(latest) ? mLabel
+                        : String.format(Locale.ENGLISH, "%s: %.1f %s [%.1f, %.1f]", mLabel,
+                        latest, mUnit, low, high),
+                0, text, mTextPaint);
+
+        if (low > high) {
+            return;
+        }
+
+        float top = text * 1.5f;
+        float bottom = getHeight() - 1;
+        float range = high > low ? high - low : 1;
+        float scale = (bottom - top) / range;
+        float previous = Float.NaN;
+
+        for (int x = 0; x < width; ++x) {
+            if (Float.isNaN(mDrawMin[x])) {
+                previous = Float.NaN;
+                continue;
+            }
+
+            float yMin = bottom - (mDrawMin[x] - low) * scale;
+            float yMax = bottom - (mDrawMax[x] - low) * scale;
+            canvas.drawLine(x, yMin, x, Math.min(yMax, yMin - 1), mLinePaint);
+
+            if (!Float.isNaN(previous)) {
+                canvas.drawLine(x - 1, previous, x, (yMin + yMax) / 2, mLinePaint);
+            }
+            previous = (yMin + yMax) / 2;
+        }
+    }
+}
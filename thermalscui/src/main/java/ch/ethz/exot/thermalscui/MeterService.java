@@ -33,7 +33,6 @@ import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.icu.text.SimpleDateFormat;
 import android.icu.util.Calendar;
 import android.os.Build;
@@ -58,77 +57,77 @@ public class MeterService extends BaseService {
 
     public Modes mMode = Modes.NORMAL;
 
-    static {
-        System.loadLibrary("exot-jni-thermalscui");
-    }
-
     /**
-     * Processes intents sent via startService().
+     * Handles a command delivered to the service.
      *
-     * @param intent The supplied intent
-     * @param flags Additional data about the request
-     * @param startId A unique integer for specific requests to start
-     * @return Value indicating how the system should handle the service
+     * @param intent The command intent
      */
     @RequiresApi(api = Build.VERSION_CODES.N)
     @Override
-    public int onStartCommand(Intent intent, int flags, int startId) {
-        /* Check if the intent is present */
-        if (intent != null) {
-            /* Get the action and make sure it is not null */
-            final String action = intent.getAction();
-            assert action != null;
-            Log.i(TAG, "onHandleIntent(): " + action);
-
-            /* Parse and log all provided extras */
-            Bundle extras = intent.getExtras();
-            if (extras != null) {
-                for (String key : extras.keySet()) {
-                    Object value = extras.get(key);
-                    if (value != null) {
-                        Log.d(TAG, String.format("onHandleIntent(): k:[%s] v:[%s] (%s)",
-                                key, value, value.getClass().getName()));
-                    } else {
-                        Log.e(TAG, String.format("onHandleIntent(): k:[%s] v:[null]!", key));
-                    }
+    protected void handleCommand(Intent intent) {
+        /* Get the action and make sure it is not null */
+        final String action = intent.getAction();
+        assert action != null;
+        Log.i(TAG, "handleCommand(): " + action);
+
+        /* Markers carry no config and leave the status unchanged, the base handles them. */
+        if (Actions.MARK.equals(action)) {
+            super.handleCommand(intent);
+            return;
+        }
+
+        /* Parse and log all provided extras */
+        Bundle extras = intent.getExtras();
+        if (extras != null) {
+            for (String key : extras.keySet()) {
+                Object value = extras.get(key);
+                if (value != null) {
+                    Log.d(TAG, String.format("handleCommand(): k:[%s] v:[%s] (%s)",
+                            key, value, value.getClass().getName()));
+                } else {
+                    Log.e(TAG, String.format("handleCommand(): k:[%s] v:[null]!", key));
                 }
+            }
 
-                String str_config = extras.getString(Keys.CONFIG);
+            String str_config = extras.getString(Keys.CONFIG);
 
-                if (str_config != null) {
-                    try {
-                        config = new JSONObject(str_config);
-                    } catch (JSONException e) {
-                        Log.e(TAG, String.format("onHandleIntent(): Unable to create JSON config with error %s!", e));
-                    }
+            if (str_config != null) {
+                try {
+                    config = new JSONObject(str_config);
+                } catch (JSONException e) {
+                    Log.e(TAG, String.format("handleCommand(): Unable to create JSON config with error %s!", e));
                 }
-
-                if (config == null) Log.e(TAG, "config is null");
             }
 
-            handleActions(action, config);
-        } else {
-            Log.d(TAG, "onHandleIntent(): null");
+            if (config == null) Log.e(TAG, "config is null");
         }
 
-        IntentFilter filter = new IntentFilter();
-        filter.addAction(ch.ethz.exot.intents.ExOTApps.Actions.START);
-        filter.addAction(ch.ethz.exot.intents.ExOTApps.Actions.STOP);
-        filter.addAction(ch.ethz.exot.intents.ExOTApps.Actions.STATUS);
-        registerReceiver(receiver, filter);
+        if (Actions.TRIGGER.equals(action)) {
+            handleActionTrigger(intent.getStringExtra(Keys.TRIGGER));
+        } else {
+            handleActions(action, config);
+        }
 
         publishStatus(getObjectStatus());
-        return START_NOT_STICKY;
     }
 
     public void handleActions(String action, JSONObject jsonConfigObject) {
 
         /* Choose how to handle the action */
         switch (action) {
+            case Actions.CREATE:
+                /* Pre-arm the meter, such that START only has to flip its state. */
+                handleActionCreate(config.toString());
+                break;
             case Actions.START:
                 assert (path != null);
                 assert (uuid != null);
-                handleActionCreate(config.toString());
+                /* A START carrying a new config replaces the pre-armed meter. */
+                if (!managerObjectExists()) {
+                    handleActionCreate(config.toString());
+                } else if (!config.toString().equals(mConfig)) {
+                    handleActionReset(config.toString());
+                }
                 mMode = Modes.NORMAL;
                 handleActionStart();
                 break;
@@ -236,6 +235,7 @@ public class MeterService extends BaseService {
     protected void publishStatus(Status status) {
         Intent intent = new Intent(Actions.STATUS);
         intent.putExtra(Keys.STATUS, status);
+        intent.putExtra(Keys.START_LATENCY, getStartLatencyNanos());
         sendBroadcast(intent);
     }
 
@@ -31,16 +31,16 @@ package ch.ethz.exot.thermalscui;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 import java.util.UUID;
 
 import android.annotation.SuppressLint;
 import android.app.Activity;
-import android.app.ActivityManager.RunningServiceInfo;
-import android.app.ActivityManager;
 import android.app.NotificationManager;
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
@@ -72,6 +72,10 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import ch.ethz.exot.intents.ExOTApps.*;
+import ch.ethz.exot.lib.SeriesStore;
+import ch.ethz.exot.lib.StreamClient;
+import ch.ethz.exot.service.CommandBus;
+import ch.ethz.exot.service.ServiceLiveness;
 
 /**
  * Class for main activity.
@@ -102,6 +106,26 @@ public class UIactivity extends Activity {
 
     private NotificationManager mNotificationManager;
 
+    /* Tracks the liveness of the meter service, replaces polling the activity manager. */
+    private ServiceLiveness mMeterLiveness;
+
+    /* Live charts, fed from the record stream of the meter while the activity is visible. */
+    private static final String STREAM_SOCKET = "exot_thermalscui";
+    private static final long HISTORY_BUDGET = 16L * 1024 * 1024;
+    private StreamClient mStreamClient;
+    private LiveChartView[] mCharts;
+    private final Handler mChartHandler = new Handler();
+    private final Runnable mChartRefresher = new Runnable() {
+        @Override
+        public void run() {
+            for (int i = 0; i < mCharts.length; ++i) {
+                mCharts[i].setUnit(mStreamClient.getUnit(i));
+                mCharts[i].invalidate();
+            }
+            mChartHandler.postDelayed(this, 100);
+        }
+    };
+
     /**
      * Enables UI buttons based on Manager object status and
      * whether the 'advanced' options were enabled
@@ -352,25 +376,14 @@ public class UIactivity extends Activity {
             }
         });
 
-        /* Handler for monitoring Android service status. */
-        final Handler serviceRunningHandler = new Handler();
-        final Runnable serviceRunningRunnable = new Runnable() {
+        /* Listener for meter service liveness changes, invoked on the main thread. */
+        mMeterLiveness = new ServiceLiveness(this, new ComponentName(this, MeterService.class));
+        mMeterLiveness.addListener(new ServiceLiveness.Listener() {
             @Override
-            public void run() {
-                TextView statusTextView = findViewById(R.id.tvServiceStatus);
-
-                if (isMeterServiceRunning()) {
-                    statusTextView.setText(getString(R.string.service_running));
-                    forceButton.setEnabled(true);
-                } else {
-                    statusTextView.setText(getString(R.string.service_not_running));
-                    enableButtons(Status.MISSING);
-                    forceButton.setEnabled(false);
-                }
-
-                serviceRunningHandler.postDelayed(this, 5000);
+            public void onLivenessChanged(ComponentName component, boolean alive) {
+                updateServiceStatus(alive);
             }
-        };
+        });
 
         Intent intent = getIntent();
         if (intent.getBooleanExtra(Keys.REOPENED, false)) {
@@ -379,7 +392,10 @@ public class UIactivity extends Activity {
         }
 
         /* Start monitoring service status. */
-        serviceRunningHandler.post(serviceRunningRunnable);
+        updateServiceStatus(false);
+        mMeterLiveness.track();
+
+        setUpCharts();
 
         /* Once the mDataPath is set, spawn the directory size monitor. */
         sizeMonitorHandler.post(sizeMonitor);
@@ -387,6 +403,65 @@ public class UIactivity extends Activity {
         Log.i(TAG, "activity created");
     }
 
+    /**
+     * Sets up the live charts and the stream client feeding them. The charts show the
+     * hottest thermal zone, and the mean frequency and user utilisation of the cores.
+     */
+    private void setUpCharts() {
+        List<StreamClient.Channel> channels = Arrays.asList(
+                new StreamClient.Channel(getString(R.string.chart_temperature),
+                        "thermal_sysfs", null, true),
+                new StreamClient.Channel(getString(R.string.chart_frequency),
+                        "frequency_sysfs", null, false),
+                new StreamClient.Channel(getString(R.string.chart_utilisation),
+                        "utilisation_procfs", "user", false));
+
+        List<String> names = new ArrayList<>();
+        for (StreamClient.Channel channel : channels) {
+            names.add(channel.name);
+        }
+        SeriesStore history = new SeriesStore(names, SeriesStore.DEFAULT_BLOCK_BYTES,
+                HISTORY_BUDGET);
+
+        mCharts = new LiveChartView[]{
+                findViewById(R.id.chartTemperature),
+                findViewById(R.id.chartFrequency),
+                findViewById(R.id.chartUtilisation)};
+        for (int i = 0; i < mCharts.length; ++i) {
+            mCharts[i].bind(names.get(i), history, i);
+        }
+
+        mStreamClient = new StreamClient(STREAM_SOCKET, channels, history,
+                new StreamClient.Listener() {
+                    @Override
+                    public void onRecord(long time, double[] values) {
+                        for (int i = 0; i < mCharts.length; ++i) {
+                            mCharts[i].add(time, values[i]);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Starts the live charts while the activity is visible
+     */
+    @Override
+    protected void onStart() {
+        super.onStart();
+        mStreamClient.start();
+        mChartHandler.post(mChartRefresher);
+    }
+
+    /**
+     * Stops the live charts when the activity is no longer visible
+     */
+    @Override
+    protected void onStop() {
+        super.onStop();
+        mChartHandler.removeCallbacks(mChartRefresher);
+        mStreamClient.stop();
+    }
+
     /**
      * Destroys the Activity
      */
@@ -396,6 +471,25 @@ public class UIactivity extends Activity {
         super.onDestroy();
 
         unregisterReceiver(mBroadcastReceiver);
+        mMeterLiveness.untrack();
+    }
+
+    /**
+     * Updates the service status view and the buttons depending on the service liveness
+     *
+     * @param      alive  Whether the meter service is alive
+     */
+    private void updateServiceStatus(boolean alive) {
+        TextView statusTextView = findViewById(R.id.tvServiceStatus);
+
+        if (alive) {
+            statusTextView.setText(getString(R.string.service_running));
+            forceButton.setEnabled(true);
+        } else {
+            statusTextView.setText(getString(R.string.service_not_running));
+            enableButtons(Status.MISSING);
+            forceButton.setEnabled(false);
+        }
     }
 
     private final Handler mServiceDestroyHandler = new Handler();
@@ -429,12 +523,12 @@ public class UIactivity extends Activity {
         Intent intent = new Intent(UIactivity.this, MeterService.class);
         intent.setAction(Actions.STOP);
 
-        startService(intent);
+        CommandBus.getInstance().post(this, intent);
 
         Log.i(TAG, "Destroy called");
         intent = new Intent(UIactivity.this, MeterService.class);
         intent.setAction(Actions.DESTROY);
-        startService(intent);
+        CommandBus.getInstance().post(this, intent);
     }
 
     /**
@@ -460,11 +554,20 @@ public class UIactivity extends Activity {
                     "    \"log_header\": true,\n" +
                     "    \"start_immediately\": false,\n" +
                     "    \"period\": 0.001\n" +
+                    "  },\n" +
+                    "  \"meters\": {\n" +
+                    "    \"modules\": [\"utilisation_procfs\", \"frequency_sysfs\", \"frequency_rel\",\n" +
+                    "                \"frequency_residency\", \"thermal_sysfs\", \"thermal_events\",\n" +
+                    "                \"process_events\"]\n" +
+                    "  },\n" +
+                    "  \"capture\": {\n" +
+                    "    \"stream\": {\"socket\": \"" + STREAM_SOCKET + "\"}\n" +
                     "  }\n" +
                     "}\n";
 
         /* Add data path and device ID to the intent. */
         intent.putExtra(Keys.CONFIG, config);
+        CommandBus.stamp(intent);
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             startForegroundService(intent);
@@ -487,6 +590,7 @@ public class UIactivity extends Activity {
             assert config != null;
             intent.putExtra(Keys.CONFIG, config);
         }
+        CommandBus.stamp(intent);
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             startForegroundService(intent);
@@ -504,24 +608,16 @@ public class UIactivity extends Activity {
         Intent intent = new Intent(UIactivity.this, MeterService.class);
         intent.setAction(Actions.QUERY);
 
-        startService(intent);
+        CommandBus.getInstance().post(this, intent);
     }
 
     /**
      * Checks if the meter service is running, not to be confused with the native meter object.
+     * Uses the cached state of the liveness tracker.
      * @return True if running, false otherwise.
      */
     private boolean isMeterServiceRunning() {
-        ActivityManager manager = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
-        assert (manager != null);
-
-        for (RunningServiceInfo service : manager.getRunningServices(Integer.MAX_VALUE)) {
-            if (MeterService.class.getName().equals(service.service.getClassName())) {
-                return true;
-            }
-        }
-
-        return false;
+        return mMeterLiveness.isAlive();
     }
 
     /**